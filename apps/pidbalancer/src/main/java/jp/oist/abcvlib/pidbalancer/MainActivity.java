@@ -17,6 +17,7 @@ import jp.oist.abcvlib.core.inputs.microcontroller.WheelData;
 import jp.oist.abcvlib.core.inputs.phone.OrientationData;
 import jp.oist.abcvlib.tests.BalancePIDController;
 import jp.oist.abcvlib.fragments.PidGuiFragament;
+import jp.oist.abcvlib.util.EventLoops;
 
 /**
  * Android application showing connection to IOIOBoard, Hubee Wheels, and Android Sensors
@@ -77,8 +78,8 @@ public class MainActivity extends AbcvlibActivity implements IOReadyListener{
 
         // Create your controller/subscriber
         balancePIDController = (BalancePIDController) new BalancePIDController().setInitDelay(0)
-                .setName("BalancePIDController").setThreadCount(1)
-                .setThreadPriority(Thread.NORM_PRIORITY).setTimestep(5)
+                .setName("BalancePIDController").setEventLoop(EventLoops.getControlLoop())
+                .setTimestep(5)
                 .setTimeUnit(TimeUnit.MILLISECONDS);
 
         // Attach the controller/subscriber to the publishers
@@ -18,6 +18,7 @@ import java.util.concurrent.Executors;
 import jp.oist.abcvlib.core.outputs.Outputs;
 import jp.oist.abcvlib.util.ProcessPriorityThreadFactory;
 import jp.oist.abcvlib.util.SerialCommManager;
+import jp.oist.abcvlib.util.SerialDeviceManager;
 import jp.oist.abcvlib.util.UsbSerial;
 import jp.oist.abcvlib.util.SerialReadyListener;
 
@@ -40,6 +41,9 @@ public abstract class AbcvlibActivity extends AppCompatActivity implements Seria
     private IOReadyListener ioReadyListener;
     protected UsbSerial usbSerial;
     private SerialCommManager serialCommManager;
+    // Only used with setMultipleDevices, in place of usbSerial
+    private boolean multipleDevices = false;
+    private SerialDeviceManager serialDeviceManager;
     private Runnable android2PiWriter = null;
     private Runnable pi2AndroidReader = null;
     AlertDialog alertDialog = null;
@@ -59,6 +63,16 @@ public abstract class AbcvlibActivity extends AppCompatActivity implements Seria
 
     private void usbInitialize(){
         try {
+            if (multipleDevices){
+                if (serialDeviceManager == null){
+                    serialDeviceManager = new SerialDeviceManager.Builder(this,
+                            (UsbManager) getSystemService(Context.USB_SERVICE))
+                            .setDeviceListener(this::onDeviceReady)
+                            .build();
+                }
+                serialDeviceManager.connectAll();
+                return;
+            }
             this.usbSerial = new UsbSerial(this,
                     (UsbManager) getSystemService(Context.USB_SERVICE),
                     this);
@@ -75,6 +89,25 @@ public abstract class AbcvlibActivity extends AppCompatActivity implements Seria
             serialCommManager = new SerialCommManager(usbSerial);
         }
         serialCommManager.start();
+        onSerialCommManagerStarted();
+    }
+
+    /**
+     * With {@link #setMultipleDevices(boolean)}, called for every device whose link is ready. The
+     * first one drives the outputs, the others are reached through
+     * {@link #getSerialDeviceManager()}.
+     */
+    private synchronized void onDeviceReady(String deviceId, SerialCommManager serialCommManager){
+        if (outputs != null){
+            Log.i(TAG, "Device " + deviceId + " ready. Outputs stay on the first device");
+            return;
+        }
+        Log.i(TAG, "Device " + deviceId + " ready. Using it for the outputs");
+        this.serialCommManager = serialCommManager;
+        onSerialCommManagerStarted();
+    }
+
+    private void onSerialCommManagerStarted(){
         initializeOutputs();
         onOutputsReady();
 
@@ -105,6 +138,27 @@ public abstract class AbcvlibActivity extends AppCompatActivity implements Seria
         this.serialCommManager = serialCommManager;
     }
 
+    /**
+     * Connects to every supported usb device through a {@link SerialDeviceManager} instead of to
+     * the first one found. The first device to be ready drives the outputs, and a
+     * SerialCommManager given to {@link #setSerialCommManager(SerialCommManager)} is not used.
+     * Off by default.
+     */
+    protected void setMultipleDevices(boolean multipleDevices){
+        if (isCreated){
+            throw new RuntimeException("setMultipleDevices must be called before onCreate");
+        }
+        this.multipleDevices = multipleDevices;
+    }
+
+    /**
+     * @return the manager of all connected devices, or null unless
+     * {@link #setMultipleDevices(boolean)} is set
+     */
+    public SerialDeviceManager getSerialDeviceManager(){
+        return serialDeviceManager;
+    }
+
     protected void setInitialDelay(long initialDelay){
         if (isCreated){
             throw new RuntimeException("setInitialDelay must be called before onCreate");
@@ -182,7 +236,10 @@ public abstract class AbcvlibActivity extends AppCompatActivity implements Seria
     public void onPause()
     {
         super.onPause();
-        if (serialCommManager != null){
+        if (serialDeviceManager != null){
+            // Brakes and stops every device, including the one driving the outputs
+            serialDeviceManager.stop();
+        } else if (serialCommManager != null){
             serialCommManager.setMotorLevels(0, 0, true, true);
             serialCommManager.stop();
         }
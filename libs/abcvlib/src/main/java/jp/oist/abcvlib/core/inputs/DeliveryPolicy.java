@@ -0,0 +1,196 @@
+package jp.oist.abcvlib.core.inputs;
+
+/**
+ * How often a {@link Publisher} passes samples on to one subscriber, given when subscribing with
+ * {@link Publisher#addSubscriber(Subscriber, DeliveryPolicy)}. The publisher drops the samples a
+ * subscriber does not want before dispatching, so e.g. a GUI can follow a sensor at 10Hz while a
+ * controller subscribed to the same publisher gets every sample.
+ * <br><br>
+ * The policies are:
+ * <ul>
+ *     <li>{@link #EVERY_SAMPLE} (the default)</li>
+ *     <li>{@link #everyNth(int)} passes on one in every n samples</li>
+ *     <li>{@link #maxRate(double)} passes on a sample only if the last one passed on was at least
+ *     1/hz ago</li>
+ *     <li>{@link #latestOnly()} skips straight to the newest sample whenever the subscriber has
+ *     fallen behind, rather than working through the backlog</li>
+ *     <li>{@link #aggregate(Aggregate, int)} and {@link #aggregateAtRate(Aggregate, double)} pass
+ *     on the mean, minimum or maximum of each value over a window of samples</li>
+ * </ul>
+ * Latest only and aggregates need the publisher to be a {@link RingPublisher}, e.g.
+ * WheelData, BatteryData and OrientationData. Publishers calling their subscribers directly run
+ * each subscriber in line with the sample, so there is never a backlog to skip and latest only is
+ * the same as every sample, while aggregates are refused.
+ * <br><br>
+ * On a {@link RingPublisher}, each subscriber runs on the publisher's event loop by default, in
+ * batches taking turns with the publisher's callbacks and other subscribers, so no thread is
+ * started per subscriber. A subscriber whose class is assigned to a loop in the publisher's
+ * {@link jp.oist.abcvlib.util.EventLoops} runs on that loop instead. A subscriber too slow to
+ * share a loop can be given a thread of its own with {@link #onOwnThread()}.
+ */
+public final class DeliveryPolicy {
+
+    public enum Aggregate {
+        MEAN,
+        MIN,
+        MAX
+    }
+
+    enum Mode {
+        EVERY_SAMPLE,
+        EVERY_NTH,
+        MAX_RATE,
+        LATEST_ONLY,
+        AGGREGATE
+    }
+
+    public static final DeliveryPolicy EVERY_SAMPLE = new DeliveryPolicy(Mode.EVERY_SAMPLE, 0, 0, null);
+
+    private final Mode mode;
+    private final int samples;
+    private final long period; // ns
+    private final Aggregate aggregate;
+    private final boolean ownThread;
+
+    private DeliveryPolicy(Mode mode, int samples, long period, Aggregate aggregate) {
+        this(mode, samples, period, aggregate, false);
+    }
+
+    private DeliveryPolicy(Mode mode, int samples, long period, Aggregate aggregate, boolean ownThread) {
+        this.mode = mode;
+        this.samples = samples;
+        this.period = period;
+        this.aggregate = aggregate;
+        this.ownThread = ownThread;
+    }
+
+    public static DeliveryPolicy everyNth(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be at least 1");
+        }
+        return new DeliveryPolicy(Mode.EVERY_NTH, n, 0, null);
+    }
+
+    public static DeliveryPolicy maxRate(double hz) {
+        return new DeliveryPolicy(Mode.MAX_RATE, 0, toPeriod(hz), null);
+    }
+
+    public static DeliveryPolicy latestOnly() {
+        return new DeliveryPolicy(Mode.LATEST_ONLY, 0, 0, null);
+    }
+
+    /**
+     * @param samples number of samples aggregated into each one passed on
+     */
+    public static DeliveryPolicy aggregate(Aggregate aggregate, int samples) {
+        if (samples < 1) {
+            throw new IllegalArgumentException("samples must be at least 1");
+        }
+        return new DeliveryPolicy(Mode.AGGREGATE, samples, 0, aggregate);
+    }
+
+    /**
+     * @param hz rate at which aggregates of all samples received in between are passed on
+     */
+    public static DeliveryPolicy aggregateAtRate(Aggregate aggregate, double hz) {
+        return new DeliveryPolicy(Mode.AGGREGATE, 0, toPeriod(hz), aggregate);
+    }
+
+    /**
+     * @return this policy, but run on a thread of its own at the priority class of the publisher's
+     * event loop, rather than sharing a loop. For subscribers that block or take long enough to
+     * hold up everything else on the loop. No effect on publishers calling their subscribers
+     * directly
+     */
+    public DeliveryPolicy onOwnThread() {
+        return new DeliveryPolicy(mode, samples, period, aggregate, true);
+    }
+
+    private static long toPeriod(double hz) {
+        if (!(hz > 0)) {
+            throw new IllegalArgumentException("hz must be positive");
+        }
+        return (long) (1e9 / hz);
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    Aggregate getAggregate() {
+        return aggregate;
+    }
+
+    boolean isOnOwnThread() {
+        return ownThread;
+    }
+
+    boolean isAggregate() {
+        return mode == Mode.AGGREGATE;
+    }
+
+    /**
+     * @return true once a window that started at windowStart and holds count samples is complete
+     */
+    boolean isWindowComplete(int count, long windowStart, long now) {
+        if (samples > 0) {
+            return count >= samples;
+        }
+        return now - windowStart >= period;
+    }
+
+    Gate newGate() {
+        return new Gate();
+    }
+
+    private String describe() {
+        switch (mode) {
+            case EVERY_NTH:
+                return "every " + samples + " samples";
+            case MAX_RATE:
+                return "at most " + (1e9 / period) + "Hz";
+            case AGGREGATE:
+                return aggregate + (samples > 0 ? " of every " + samples + " samples" :
+                        " at " + (1e9 / period) + "Hz");
+            default:
+                return mode.toString();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return describe() + (ownThread ? " on its own thread" : "");
+    }
+
+    /**
+     * Decimation and rate limiting state of one subscription. Not thread safe, it is only used by
+     * the thread dispatching to that subscriber.
+     */
+    final class Gate {
+        private long count = 0;
+        private long lastPassed = 0;
+        private boolean passedAny = false;
+
+        private Gate() {
+        }
+
+        /**
+         * @return true if the sample arriving at now should be passed on
+         */
+        boolean admit(long now) {
+            switch (mode) {
+                case EVERY_NTH:
+                    return count++ % samples == 0;
+                case MAX_RATE:
+                    if (passedAny && now - lastPassed < period) {
+                        return false;
+                    }
+                    passedAny = true;
+                    lastPassed = now;
+                    return true;
+                default:
+                    return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,606 @@
+package jp.oist.abcvlib.core.inputs;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import jp.oist.abcvlib.util.EventLoop;
+import jp.oist.abcvlib.util.ProcessPriorityThreadFactory;
+
+/**
+ * Preallocated ring of events handed from a {@link Publisher} to its subscribers, in the style of
+ * the LMAX disruptor.
+ * <br><br>
+ * Every event is a fixed number of primitive fields (long, int or double) stored in place in the
+ * ring, so publishing allocates nothing. A producer claims the next sequence number, writes the
+ * fields of that slot and publishes it:
+ * <pre>
+ *     long sequence = ring.claim();
+ *     ring.putLong(sequence, TIMESTAMP, timestamp);
+ *     ring.putDouble(sequence, VOLTAGE, voltage);
+ *     ring.publish(sequence);
+ * </pre>
+ * Each consumer (one per subscriber) follows the ring with its own cursor, either in tasks posted
+ * to an {@link Executor} such as a shared {@link jp.oist.abcvlib.util.EventLoop} whenever there
+ * are new events, or on a thread of its own that sleeps until the next event is published. The
+ * producer never waits for consumers: if a consumer falls more than the capacity behind, the
+ * events it missed are skipped and counted, so a slow subscriber only ever holds up itself.
+ * Consumers copy a slot's fields before handling it and check the slot was not overwritten in the
+ * meantime, so an {@link Event} never mixes fields from two events.
+ * <br><br>
+ * Each consumer applies its own {@link DeliveryPolicy} before handing events on. For aggregates,
+ * the fields declared as doubles are aggregated while the rest keep the value of the latest event.
+ * <br><br>
+ * Any number of threads may publish, although events from different producers are only ordered by
+ * when they were claimed.
+ */
+public class EventRing {
+
+    public interface Handler {
+        /**
+         * Called on the consumer's thread for every event, in sequence order.
+         * @param event only valid for the duration of the call
+         */
+        void onEvent(Event event);
+    }
+
+    /**
+     * A consumer's private copy of one event.
+     */
+    public static final class Event {
+        private final long[] fields;
+        private long sequence;
+        private long publishTime;
+
+        private Event(int fieldCount) {
+            fields = new long[fieldCount];
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return {@link System#nanoTime()} at which the event was published
+         */
+        public long getPublishTime() {
+            return publishTime;
+        }
+
+        public long getLong(int field) {
+            return fields[field];
+        }
+
+        public int getInt(int field) {
+            return (int) fields[field];
+        }
+
+        public double getDouble(int field) {
+            return Double.longBitsToDouble(fields[field]);
+        }
+    }
+
+    // Number of checks a consumer makes, yielding in between, before parking
+    private static final int SPIN_TRIES = 16;
+    // Marks a slot whose fields are being written
+    private static final long WRITING = -1;
+    // Events an executor driven consumer handles per task before letting others on its executor run
+    private static final int DRAIN_BATCH = 64;
+
+    private final String name;
+    private final int fieldCount;
+    // Fields holding doubles, the ones aggregated by an aggregate DeliveryPolicy
+    private final boolean[] doubleFields;
+    private final int mask;
+    private final AtomicLongArray fields;
+    // Sequence number of the event held in each slot, or WRITING
+    private final AtomicLongArray sequences;
+    // nanoTime at which the event held in each slot was published
+    private final AtomicLongArray publishTimes;
+    // Next sequence number to claim
+    private final AtomicLong next = new AtomicLong(0);
+    private final ProcessPriorityThreadFactory threadFactory;
+    // Copied on write so the producer can walk it without locking or allocating
+    private volatile Consumer[] consumers = new Consumer[0];
+    private boolean running = false;
+
+    /**
+     * @param name used to name consumer threads
+     * @param capacity number of events held. Rounded up to the next power of two
+     * @param fieldCount number of primitive fields per event
+     * @param doubleFields indices of the fields written with {@link #putDouble(long, int, double)}
+     */
+    public EventRing(String name, int capacity, int fieldCount, int... doubleFields) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.name = name;
+        this.fieldCount = fieldCount;
+        this.doubleFields = new boolean[fieldCount];
+        for (int field : doubleFields) {
+            this.doubleFields[field] = true;
+        }
+        mask = size - 1;
+        fields = new AtomicLongArray(size * fieldCount);
+        sequences = new AtomicLongArray(size);
+        publishTimes = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, WRITING);
+        }
+        threadFactory = new ProcessPriorityThreadFactory(Thread.NORM_PRIORITY, name);
+    }
+
+    /**
+     * Claims the slot for the next event. Must be followed by {@link #publish(long)}.
+     * @return sequence number of the event
+     */
+    public long claim() {
+        long sequence = next.getAndIncrement();
+        // Invalidates the slot for consumers still reading the event a lap behind
+        sequences.set((int) sequence & mask, WRITING);
+        return sequence;
+    }
+
+    public void putLong(long sequence, int field, long value) {
+        // Ordered after the WRITING mark, so a consumer seeing this value also sees the mark
+        fields.lazySet(index(sequence, field), value);
+    }
+
+    public void putInt(long sequence, int field, int value) {
+        putLong(sequence, field, value);
+    }
+
+    public void putDouble(long sequence, int field, double value) {
+        putLong(sequence, field, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Makes the event visible to consumers and wakes any that are waiting.
+     */
+    public void publish(long sequence) {
+        int slot = (int) sequence & mask;
+        publishTimes.lazySet(slot, System.nanoTime());
+        sequences.set(slot, sequence);
+        Consumer[] current = consumers;
+        for (Consumer consumer : current) {
+            if (consumer.executor != null) {
+                consumer.schedule();
+                continue;
+            }
+            Thread thread = consumer.waiter;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * @return true if there is at least one consumer to publish to. Producers can check this to
+     * skip preparing events nobody will see.
+     */
+    public boolean hasConsumers() {
+        return consumers.length > 0;
+    }
+
+    public Consumer addConsumer(Handler handler) {
+        return addConsumer(handler, DeliveryPolicy.EVERY_SAMPLE);
+    }
+
+    /**
+     * Adds a consumer with a thread of its own, at normal priority.
+     */
+    public Consumer addConsumer(Handler handler, DeliveryPolicy policy) {
+        return addConsumer(handler, policy, null, null);
+    }
+
+    /**
+     * Adds a consumer starting at the next event published. It is started right away if the ring
+     * is running.
+     * @param executor runs the consumer whenever there are new events, so that many consumers
+     *                 can share a few threads. null for a thread of its own
+     */
+    public Consumer addConsumer(Handler handler, DeliveryPolicy policy, Executor executor) {
+        return addConsumer(handler, policy, executor, null);
+    }
+
+    /**
+     * Adds a consumer with a thread of its own in the given priority class.
+     */
+    public Consumer addConsumer(Handler handler, DeliveryPolicy policy, EventLoop.Priority priority) {
+        return addConsumer(handler, policy, null, priority);
+    }
+
+    private synchronized Consumer addConsumer(Handler handler, DeliveryPolicy policy, Executor executor,
+                                              EventLoop.Priority priority) {
+        Consumer consumer = new Consumer(handler, policy, executor, priority);
+        Consumer[] updated = Arrays.copyOf(consumers, consumers.length + 1);
+        updated[updated.length - 1] = consumer;
+        consumers = updated;
+        if (running) {
+            consumer.start();
+        }
+        return consumer;
+    }
+
+    public synchronized void removeConsumer(Consumer consumer) {
+        Consumer[] current = consumers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == consumer) {
+                Consumer[] updated = new Consumer[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                consumers = updated;
+                consumer.stop();
+                return;
+            }
+        }
+    }
+
+    public synchronized void removeAllConsumers() {
+        for (Consumer consumer : consumers) {
+            consumer.stop();
+        }
+        consumers = new Consumer[0];
+    }
+
+    /**
+     * Starts a thread for every consumer. Events published before this are skipped.
+     */
+    public synchronized void start() {
+        running = true;
+        for (Consumer consumer : consumers) {
+            consumer.start();
+        }
+    }
+
+    /**
+     * Stops all consumer threads. They finish the event they are handling but not the rest.
+     */
+    public synchronized void stop() {
+        running = false;
+        for (Consumer consumer : consumers) {
+            consumer.stop();
+        }
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the largest {@link Consumer#getLag()} of all consumers. A producer that must not lose
+     * events can wait for this to drop below the capacity before publishing
+     */
+    public long getMaxLag() {
+        long maxLag = 0;
+        for (Consumer consumer : consumers) {
+            maxLag = Math.max(maxLag, consumer.getLag());
+        }
+        return maxLag;
+    }
+
+    /**
+     * @return number of events claimed so far
+     */
+    public long getClaimedCount() {
+        return next.get();
+    }
+
+    private int index(long sequence, int field) {
+        return ((int) sequence & mask) * fieldCount + field;
+    }
+
+    /**
+     * One subscriber's position in the ring and the thread following it.
+     */
+    public final class Consumer implements Runnable {
+        private final Handler handler;
+        private final Executor executor;
+        // Priority class of a consumer with a thread of its own, or null to leave it at normal priority
+        private final EventLoop.Priority priority;
+        private final DeliveryPolicy policy;
+        private final DeliveryPolicy.Gate gate;
+        private final Event event = new Event(fieldCount);
+        // Running sum, minimum or maximum of each double field over the current aggregate window
+        private final double[] aggregates;
+        private int windowCount = 0;
+        private long windowStart = 0;
+        private volatile Thread thread;
+        private volatile Thread waiter;
+        // Whether an executor driven consumer is started, and has a task posted to its executor
+        private volatile boolean active = false;
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        // Whether the last post was rejected, so a rejecting executor is only logged once. Only
+        // touched by whoever set scheduled
+        private boolean rejecting = false;
+        private final Runnable drainTask = this::drain;
+        // Next sequence to handle. Only written by the consumer thread
+        private volatile long cursor;
+        private volatile long handledCount = 0;
+        private volatile long missedCount = 0;
+        private volatile long skippedCount = 0;
+        private volatile long rejectedCount = 0;
+
+        private Consumer(Handler handler, DeliveryPolicy policy, Executor executor,
+                         EventLoop.Priority priority) {
+            this.handler = handler;
+            this.executor = executor;
+            this.priority = priority;
+            this.policy = policy;
+            gate = policy.newGate();
+            aggregates = policy.isAggregate() ? new double[fieldCount] : null;
+        }
+
+        private void start() {
+            if (thread != null || active) {
+                return;
+            }
+            cursor = next.get();
+            windowCount = 0;
+            if (executor != null) {
+                active = true;
+                return;
+            }
+            thread = threadFactory.newThread(this);
+            thread.start();
+        }
+
+        private void stop() {
+            active = false;
+            Thread current = thread;
+            thread = null;
+            if (current != null) {
+                LockSupport.unpark(current);
+            }
+        }
+
+        @Override
+        public void run() {
+            Thread self = Thread.currentThread();
+            if (priority != null) {
+                priority.applyToCurrentThread();
+            }
+            while (thread == self) {
+                if (!handleNext()) {
+                    await(self);
+                }
+            }
+        }
+
+        /**
+         * Handles the event at the cursor, or skips ahead if lapped by the producer.
+         * @return false if the event at the cursor is not published yet
+         */
+        private boolean handleNext() {
+            if (policy.getMode() == DeliveryPolicy.Mode.LATEST_ONLY) {
+                skipToLatest();
+            }
+            if (!read(cursor)) {
+                long head = next.get();
+                if (head - cursor > mask + 1) {
+                    // Lapped by the producer. Skip to the oldest event still in the ring
+                    long oldest = head - (mask + 1);
+                    missedCount += oldest - cursor;
+                    cursor = oldest;
+                    return true;
+                }
+                return false;
+            }
+            if (admit(System.nanoTime())) {
+                try {
+                    handler.onEvent(event);
+                } catch (RuntimeException e) {
+                    Log.e(name, "Subscriber threw handling event " + cursor, e);
+                }
+                handledCount++;
+            }
+            cursor++;
+            return true;
+        }
+
+        /**
+         * Posts a drain task to the executor unless one is already posted. Called by producers.
+         */
+        private void schedule() {
+            if (!active || scheduled.get() || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            post();
+        }
+
+        /**
+         * Posts the drain task. A rejecting executor, e.g. a quit event loop, is logged rather than
+         * thrown at the producer. Events stay in the ring and are handled once a later publish
+         * gets a task through, unless lapped in the meantime.
+         */
+        private void post() {
+            try {
+                executor.execute(drainTask);
+                rejecting = false;
+            } catch (RejectedExecutionException e) {
+                rejectedCount++;
+                if (!rejecting) {
+                    rejecting = true;
+                    Log.w(name, "Consumer executor rejected its task, events wait until it accepts tasks again", e);
+                }
+                scheduled.set(false);
+            }
+        }
+
+        /**
+         * Runs on the executor. Handles events until caught up, in batches so consumers sharing
+         * the executor take turns.
+         */
+        private void drain() {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                if (!active || !handleNext()) {
+                    scheduled.set(false);
+                    // A producer publishing since the last check saw this task still scheduled
+                    if (active && isAvailable()) {
+                        schedule();
+                    }
+                    return;
+                }
+            }
+            post();
+        }
+
+        /**
+         * @return true if the event at the cursor is published, or the consumer was lapped
+         */
+        private boolean isAvailable() {
+            return sequences.get((int) cursor & mask) == cursor || next.get() - cursor > mask + 1;
+        }
+
+        private void skipToLatest() {
+            long latest = next.get() - 1;
+            if (latest > cursor && sequences.get((int) latest & mask) == latest) {
+                skippedCount += latest - cursor;
+                cursor = latest;
+            }
+        }
+
+        /**
+         * Applies the delivery policy to the event just read.
+         * @return true if event should be handed to the handler
+         */
+        private boolean admit(long now) {
+            if (aggregates == null) {
+                if (gate.admit(now)) {
+                    return true;
+                }
+                skippedCount++;
+                return false;
+            }
+            if (windowCount == 0) {
+                windowStart = now;
+            }
+            accumulate();
+            if (!policy.isWindowComplete(windowCount, windowStart, now)) {
+                skippedCount++;
+                return false;
+            }
+            // Replace the double fields of the latest event with their aggregates
+            for (int i = 0; i < fieldCount; i++) {
+                if (doubleFields[i]) {
+                    double value = policy.getAggregate() == DeliveryPolicy.Aggregate.MEAN ?
+                            aggregates[i] / windowCount : aggregates[i];
+                    event.fields[i] = Double.doubleToRawLongBits(value);
+                }
+            }
+            windowCount = 0;
+            return true;
+        }
+
+        private void accumulate() {
+            boolean first = windowCount == 0;
+            for (int i = 0; i < fieldCount; i++) {
+                if (!doubleFields[i]) {
+                    continue;
+                }
+                double value = Double.longBitsToDouble(event.fields[i]);
+                if (first) {
+                    aggregates[i] = value;
+                    continue;
+                }
+                switch (policy.getAggregate()) {
+                    case MEAN:
+                        aggregates[i] += value;
+                        break;
+                    case MIN:
+                        aggregates[i] = Math.min(aggregates[i], value);
+                        break;
+                    case MAX:
+                        aggregates[i] = Math.max(aggregates[i], value);
+                        break;
+                }
+            }
+            windowCount++;
+        }
+
+        /**
+         * Copies the fields of sequence into event.
+         * @return false if sequence is not published yet or was overwritten while being copied
+         */
+        private boolean read(long sequence) {
+            int slot = (int) sequence & mask;
+            if (sequences.get(slot) != sequence) {
+                return false;
+            }
+            int base = slot * fieldCount;
+            for (int i = 0; i < fieldCount; i++) {
+                event.fields[i] = fields.get(base + i);
+            }
+            event.publishTime = publishTimes.get(slot);
+            // A producer that started rewriting the slot has already replaced the sequence
+            if (sequences.get(slot) != sequence) {
+                return false;
+            }
+            event.sequence = sequence;
+            return true;
+        }
+
+        private void await(Thread self) {
+            int slot = (int) cursor & mask;
+            for (int i = 0; i < SPIN_TRIES; i++) {
+                if (sequences.get(slot) == cursor) {
+                    return;
+                }
+                Thread.yield();
+            }
+            waiter = self;
+            // Checked after publishing waiter so an event published in between is never missed.
+            // No timeout is needed to notice being stopped, as stop unparks the thread
+            if (sequences.get(slot) != cursor && thread == self) {
+                LockSupport.park(this);
+            }
+            waiter = null;
+        }
+
+        /**
+         * @return number of events handed to the handler
+         */
+        public long getHandledCount() {
+            return handledCount;
+        }
+
+        /**
+         * @return number of events skipped because this consumer fell more than the capacity
+         * behind
+         */
+        public long getMissedCount() {
+            return missedCount;
+        }
+
+        /**
+         * @return number of events read but not handed to the handler because of the
+         * {@link DeliveryPolicy}, including those merged into aggregates
+         */
+        public long getSkippedCount() {
+            return skippedCount;
+        }
+
+        /**
+         * @return number of times the executor refused to run this consumer, e.g. as its event
+         * loop was quit. Always 0 for a consumer with a thread of its own
+         */
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        public DeliveryPolicy getPolicy() {
+            return policy;
+        }
+
+        /**
+         * @return number of events published but not yet handled
+         */
+        public long getLag() {
+            return Math.max(0, next.get() - cursor);
+        }
+    }
+}
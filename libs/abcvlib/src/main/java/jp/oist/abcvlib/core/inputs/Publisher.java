@@ -12,8 +12,11 @@ import com.intentfilter.androidpermissions.PermissionManager;
 import com.intentfilter.androidpermissions.models.DeniedPermissions;
 
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 import jp.oist.abcvlib.core.inputs.phone.ImageDataRawSubscriber;
+import jp.oist.abcvlib.util.EventLoop;
+import jp.oist.abcvlib.util.EventLoops;
 
 /**
  * A publisher is any data stream, e.g. {@link jp.oist.abcvlib.core.inputs.microcontroller.BatteryData}, {@link jp.oist.abcvlib.core.inputs.microcontroller.WheelData}, etc.
@@ -27,9 +30,10 @@ import jp.oist.abcvlib.core.inputs.phone.ImageDataRawSubscriber;
  * After this class requests and is granted the necessary permissions, it informs the publisherManager
  * that the permission has been granted. After all you have initialized all the publishers you plan
  * to use, you can call {@link PublisherManager#initializePublishers()}. This will initialize all
- * the publisher's data streams but not yet start recording any data. This may take some time
- * especially for CPU hogs like CameraX. You can call this in a {@link Handler} or other async task
- * if you want to start initializing other things in the meantime.
+ * the publisher's data streams concurrently but not yet start recording any data. This may take
+ * some time especially for CPU hogs like CameraX. A publisher can be made to wait for others to be
+ * initialized first with {@link #dependsOn(Publisher[])}, and must call
+ * {@link PublisherManager#onPublisherInitialized(Publisher)} once its stream is up.
  * <br><br>
  * A publisher must implement the {@link #getRequiredPermissions()} abstract method and return an
  * {@link ArrayList} of Strings specifying the required permissions for that particular data stream.
@@ -37,6 +41,26 @@ import jp.oist.abcvlib.core.inputs.phone.ImageDataRawSubscriber;
  * A publisher must also implement the {@link #start()} and {@link #stop()} abstract methods to
  * specify how to properly start/stop the data stream.
  * <br><br>
+ * A publisher does not start threads of its own. It runs its callbacks, e.g. those of a sensor
+ * registered with a {@link Handler}, on the {@link EventLoop} it is assigned to in the
+ * {@link EventLoops} of its PublisherManager, see {@link #getEventLoop()}.
+ * <br><br>
+ * A publisher producing a steady stream of small samples can extend {@link RingPublisher} and
+ * publish each sample into an {@link EventRing} instead of calling its subscribers directly.
+ * Publishers extending this class directly iterate over {@link #subscribers} themselves.
+ * <br><br>
+ * A publisher whose events should be recordable by a {@link PublisherRecorder} passes the inputs
+ * of each event to {@link #publisherRecorder} when it is set, and has a public method taking those
+ * same inputs that {@link PublisherReplayer} can call.
+ * <br><br>
+ * Each subscriber can be given a {@link DeliveryPolicy} to only receive some of the samples.
+ * Publishers calling their subscribers directly must check {@link #isDue(Subscriber)} before
+ * calling each one.
+ * <br><br>
+ * Every publisher keeps {@link PublisherStats}. A publisher calls {@link #onProduced()} for every
+ * sample it gets, and one calling its subscribers directly also calls
+ * {@link #onDispatched(Subscriber, long, long)} after each call.
+ * <br><br>
  * @param <T> The {@link Subscriber} subclass that can accept the data published by your publisher.
  *           e.g. the {@link jp.oist.abcvlib.core.inputs.phone.ImageData class extends Publisher<ImageDataRawSubscriber>}
  *           where {@link ImageDataRawSubscriber} implements the
@@ -44,10 +68,28 @@ import jp.oist.abcvlib.core.inputs.phone.ImageDataRawSubscriber;
  *           method accepting the data from the last part of {@link jp.oist.abcvlib.core.inputs.phone.ImageData#analyze(ImageProxy)}
  */
 public abstract class Publisher<T extends Subscriber> implements PermissionManager.PermissionRequestListener{
-    protected ArrayList<T> subscribers = new ArrayList<>();
+    // Replaced by an updated copy rather than changed in place when subscribing, so a thread
+    // iterating over it while subscribers are added keeps going over a consistent list
+    protected volatile ArrayList<T> subscribers = new ArrayList<>();
+    // Guards replacing subscribers
+    private final Object subscriberLock = new Object();
+    // Delivery policy state of each subscriber. Absent means every sample
+    private final ConcurrentHashMap<T, DeliveryPolicy.Gate> gates = new ConcurrentHashMap<>();
+    // Stats of each subscriber
+    private final ConcurrentHashMap<T, SubscriberStats> directStats = new ConcurrentHashMap<>();
+    private final PublisherStats stats = new PublisherStats(getClass().getSimpleName());
+    // null unless recording, see PublisherRecorder
+    protected volatile PublisherRecorder publisherRecorder;
     protected Context context;
     protected Handler handler;
+    /**
+     * @deprecated not used by the publishers of this library, which run on
+     * {@link #getEventLoop()}. Kept for subclasses that start a thread of their own
+     */
+    @Deprecated
     protected HandlerThread mHandlerThread;
+    // Looked up on first use, see getEventLoop
+    private volatile EventLoop eventLoop;
     protected volatile boolean paused = true;
     protected PublisherManager publisherManager;
     protected final String TAG = getClass().getName();
@@ -68,6 +110,25 @@ public abstract class Publisher<T extends Subscriber> implements PermissionManag
     public void stop(){
         this.state = PublisherState.STOPPED;
     }
+
+    /**
+     * Starts dispatching without starting the underlying sensor or stream, so that a
+     * {@link PublisherReplayer} can feed recorded events in instead.
+     */
+    void startReplay(){
+        this.state = PublisherState.STARTED;
+        this.paused = false;
+    }
+
+    void stopReplay(){
+        this.state = PublisherState.STOPPED;
+        this.paused = true;
+    }
+
+    void setRecorder(PublisherRecorder publisherRecorder){
+        this.publisherRecorder = publisherRecorder;
+    }
+
     public abstract ArrayList<String> getRequiredPermissions();
 
     public void pause() {
@@ -84,17 +145,131 @@ public abstract class Publisher<T extends Subscriber> implements PermissionManag
         return state;
     }
 
+    /**
+     * Only start this publisher once dependencies are initialized. See
+     * {@link PublisherManager#addDependency(Publisher, Publisher)}
+     */
+    public Publisher<T> dependsOn(Publisher<?>... dependencies){
+        for (Publisher<?> dependency : dependencies){
+            publisherManager.addDependency(this, dependency);
+        }
+        return this;
+    }
+
     public Publisher<T> addSubscriber(T subscriber){
-        this.subscribers.add(subscriber);
+        return addSubscriber(subscriber, DeliveryPolicy.EVERY_SAMPLE);
+    }
+
+    /**
+     * @param policy which samples to pass on to subscriber, e.g. {@link DeliveryPolicy#maxRate(double)}
+     *               for a subscriber only updating a GUI
+     * @throws IllegalArgumentException for an aggregate policy, which needs a {@link RingPublisher}
+     */
+    public Publisher<T> addSubscriber(T subscriber, DeliveryPolicy policy){
+        if (policy.isAggregate()){
+            throw new IllegalArgumentException(getClass().getSimpleName() + " cannot aggregate samples");
+        }
+        if (policy.getMode() != DeliveryPolicy.Mode.EVERY_SAMPLE){
+            gates.put(subscriber, policy.newGate());
+        }
+        directStats.put(subscriber, stats.addSubscriber(getName(subscriber)));
+        addToSubscribers(subscriber);
         return this;
     }
 
+    /**
+     * Replaces all current subscribers with subscribers.
+     */
     public Publisher<T> addSubscribers(ArrayList<T> subscribers){
-        this.subscribers = subscribers;
+        synchronized (subscriberLock){
+            this.subscribers = new ArrayList<>();
+        }
+        gates.clear();
+        for (SubscriberStats subscriberStats : directStats.values()){
+            stats.removeSubscriber(subscriberStats);
+        }
+        directStats.clear();
+        for (T subscriber : subscribers){
+            addSubscriber(subscriber);
+        }
         permissionManager.checkPermissions(getRequiredPermissions(), this);
         return this;
     }
 
+    /**
+     * Adds subscriber to {@link #subscribers} by replacing it with an updated copy.
+     */
+    final void addToSubscribers(T subscriber){
+        synchronized (subscriberLock){
+            ArrayList<T> updated = new ArrayList<>(subscribers);
+            updated.add(subscriber);
+            subscribers = updated;
+        }
+    }
+
+    /**
+     * @return the loop this publisher's callbacks run on, as assigned in
+     * {@link PublisherManager#getEventLoops()} when first called
+     */
+    protected EventLoop getEventLoop(){
+        EventLoop current = eventLoop;
+        if (current == null){
+            current = publisherManager.getEventLoops().getLoop(getClass());
+            eventLoop = current;
+        }
+        return current;
+    }
+
+    /**
+     * For publishers calling their subscribers directly. Applies the subscriber's
+     * {@link DeliveryPolicy} to the sample about to be dispatched, so call it exactly once per
+     * subscriber per sample, from the one thread dispatching.
+     * @return true if subscriber should be called with this sample
+     */
+    protected boolean isDue(T subscriber){
+        DeliveryPolicy.Gate gate = gates.get(subscriber);
+        if (gate == null || gate.admit(System.nanoTime())){
+            return true;
+        }
+        SubscriberStats subscriberStats = directStats.get(subscriber);
+        if (subscriberStats != null){
+            subscriberStats.onSkipped();
+        }
+        return false;
+    }
+
+    /**
+     * Counts a sample the publisher got from its sensor or stream. Call it once per sample from
+     * the one thread getting them, whether or not the sample is published.
+     * @return {@link System#nanoTime()} now, to pass on to {@link #onDispatched(Subscriber, long, long)}
+     */
+    protected long onProduced(){
+        long now = System.nanoTime();
+        stats.onProduced(now);
+        return now;
+    }
+
+    /**
+     * For publishers calling their subscribers directly. Records a call to subscriber that just
+     * returned.
+     * @param publishTime as returned by {@link #onProduced()} for the sample
+     * @param start {@link System#nanoTime()} right before calling subscriber
+     */
+    protected void onDispatched(T subscriber, long publishTime, long start){
+        SubscriberStats subscriberStats = directStats.get(subscriber);
+        if (subscriberStats != null){
+            subscriberStats.onCallback(publishTime, start, System.nanoTime());
+        }
+    }
+
+    public PublisherStats getStats(){
+        return stats;
+    }
+
+    private static String getName(Subscriber subscriber){
+        return subscriber.getClass().getSimpleName();
+    }
+
     @Override
     public void onPermissionGranted() {
         publisherManager.onPublisherPermissionsGranted();
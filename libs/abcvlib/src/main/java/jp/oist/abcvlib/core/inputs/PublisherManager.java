@@ -5,29 +5,59 @@ import android.util.Log;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Phaser;
 
+import jp.oist.abcvlib.core.inputs.phone.ImageData;
+import jp.oist.abcvlib.util.EventLoops;
+import jp.oist.abcvlib.util.ProcessPriorityThreadFactory;
+
 /**
- * Manages the permission lifecycle of a group of publishers
- * In order to synchronize the lifecycle of all publishers, this creates a Phaser that waits for
- * each phase to finish for all publishers before allowing the next phase to start.
- * phase 0 = permissions of publisher objects
- * phase 1 = initialization of publisher object streams/threads
- * phase 2 = initialize publisher objects (i.e. initialize recording data)
+ * Manages the lifecycle of a group of publishers in three steps:
+ * <br><br>
+ * 1.) Permissions: A Phaser waits for the permissions of all publishers to be granted.
+ * <br><br>
+ * 2.) Initialization: {@link #initializePublishers()} starts each publisher's stream/threads on a
+ * startup thread of its own, so a slow publisher like CameraX does not hold up the others. A
+ * publisher that needs another one to be up first can declare it with
+ * {@link #addDependency(Publisher, Publisher)}, and is only started once all its dependencies
+ * are initialized. {@link #getReadyFuture(Publisher)} completes once a publisher is initialized,
+ * so e.g. a control loop only needing WheelData and OrientationData can resume those without
+ * waiting for the camera. How long each publisher took is kept in
+ * {@link #getInitDuration(Publisher)}.
+ * <br><br>
+ * 3.) Start: {@link #startPublishers()} resumes (i.e. starts recording data from) all publishers
+ * at once as soon as all of them are initialized.
+ * <br><br>
+ * Publishers run on the shared threads of {@link #getEventLoops()} rather than threads of their
+ * own. By default the camera publishers run on {@link EventLoops#BACKGROUND} and all others on
+ * {@link EventLoops#SENSOR}. Assign publishers to other loops before initializing them. The
+ * subscribers of publishers dispatching through an {@link EventRing} still get a thread each, so
+ * that one cannot hold up the others, unless they opt in to a loop.
+ * <br><br>
+ * Once running, {@link #getStats()} tells how many samples each publisher produces and how each of
+ * its subscribers keeps up with them.
  */
 public class PublisherManager {
     private final ArrayList<Publisher<?>> publishers = new ArrayList<>();
+    private final ConcurrentHashMap<Publisher<?>, Startup> startups = new ConcurrentHashMap<>();
     private final Phaser phaser = new Phaser(1);
+    private final EventLoops eventLoops = new EventLoops();
+    private volatile boolean initializing = false;
     private final String TAG = getClass().getName();
 
     public PublisherManager(){
+        eventLoops.assign(ImageData.class, EventLoops.BACKGROUND);
     }
 
-    //========================================Phase 0===============================================
+    //=====================================Permissions==============================================
     public PublisherManager add(Publisher<?> publisher){
         publishers.add(publisher);
+        startups.put(publisher, new Startup(publisher));
         phaser.register();
         return this;
     }
@@ -35,37 +65,154 @@ public class PublisherManager {
         phaser.arriveAndDeregister();
     }
 
-    //========================================Phase 1===============================================
-    private void initialize(@NotNull Publisher<?> publisher){
-        phaser.register();
-        publisher.start();
-    }
-
-    public void onPublisherInitialized() {
-        phaser.arriveAndDeregister();
+    //====================================Initialization============================================
+    /**
+     * Makes {@link #initializePublishers()} wait for dependency to be initialized before starting
+     * publisher. Both must have been added to this manager. Must be called before
+     * initializePublishers.
+     */
+    public PublisherManager addDependency(Publisher<?> publisher, Publisher<?> dependency){
+        if (initializing){
+            throw new IllegalStateException("Dependencies must be added before initializePublishers");
+        }
+        Startup startup = getStartup(publisher);
+        Startup dependencyStartup = getStartup(dependency);
+        if (startup == dependencyStartup){
+            throw new IllegalArgumentException(getName(publisher) + " cannot depend on itself");
+        }
+        startup.dependencies.add(dependencyStartup);
+        return this;
     }
 
+    /**
+     * Waits for the permissions of all publishers to be granted, then starts each publisher as
+     * soon as its dependencies are initialized. Only the permissions are waited on, the
+     * publishers are started on startup threads after this returns.
+     * @throws IllegalStateException if the dependencies form a cycle
+     */
     public void initializePublishers(){
+        checkForCycles();
+        // Loops quit by a previous stopPublishers reject tasks until started again
+        eventLoops.start();
+        initializing = true;
         phaser.arrive();
-        Log.i(TAG, "Waiting on all publishers to initialize before starting");
-        phaser.awaitAdvance(0); // Waits to initialize if not finished with initPhase
+        Log.i(TAG, "Waiting on the permissions of all publishers before initializing");
+        phaser.awaitAdvance(0); // Waits to initialize if not finished with the permissions
+        ExecutorService executor = Executors.newCachedThreadPool(
+                new ProcessPriorityThreadFactory(Thread.NORM_PRIORITY, "publisherStartup"));
         for (Publisher<?> publisher: publishers){
-            initialize(publisher);
+            Startup startup = startups.get(publisher);
+            // Kept from this initialization, as stopPublishers replaces the futures for the next
+            CompletableFuture<Void> ready = startup.ready;
+            CompletableFuture<?>[] dependencies = new CompletableFuture<?>[startup.dependencies.size()];
+            for (int i = 0; i < dependencies.length; i++){
+                dependencies[i] = startup.dependencies.get(i).ready;
+            }
+            CompletableFuture.allOf(dependencies).whenCompleteAsync((v, throwable) -> {
+                if (throwable != null){
+                    ready.completeExceptionally(new IllegalStateException(
+                            getName(publisher) + " not started as a dependency failed to initialize", throwable));
+                } else {
+                    initialize(startup, ready);
+                }
+            }, executor);
+        }
+        // Startup threads are only needed until every publisher is either initialized or failed
+        allReady().whenComplete((v, throwable) -> executor.shutdown());
+    }
+
+    private void initialize(@NotNull Startup startup, CompletableFuture<Void> ready){
+        if (ready.isDone()){
+            return; // Stopped before its dependencies were initialized
+        }
+        Log.i(TAG, "Initializing " + getName(startup.publisher));
+        startup.startTime = System.nanoTime();
+        startup.started = true;
+        try {
+            startup.publisher.start();
+        } catch (RuntimeException e){
+            Log.e(TAG, getName(startup.publisher) + " failed to initialize", e);
+            ready.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Called by each publisher once its stream is up, which may be some time after its start
+     * method returned.
+     */
+    public void onPublisherInitialized(Publisher<?> publisher) {
+        Startup startup = getStartup(publisher);
+        if (!startup.started || startup.ready.isDone()){
+            return;
         }
+        startup.initDuration = System.nanoTime() - startup.startTime;
+        Log.i(TAG, getName(publisher) + " initialized in " + (startup.initDuration / 1000000) + "ms");
+        startup.ready.complete(null);
+    }
+
+    /**
+     * @deprecated does not tell which publisher is initialized, so it is taken to be the one that
+     * was started first of those still initializing. Use {@link #onPublisherInitialized(Publisher)}
+     */
+    @Deprecated
+    public void onPublisherInitialized() {
+        Startup oldest = null;
+        for (Startup startup : startups.values()){
+            if (startup.started && !startup.ready.isDone()
+                    && (oldest == null || startup.startTime - oldest.startTime < 0)){
+                oldest = startup;
+            }
+        }
+        if (oldest == null){
+            Log.w(TAG, "onPublisherInitialized called with no publisher initializing");
+            return;
+        }
+        onPublisherInitialized(oldest.publisher);
+    }
+
+    /**
+     * @return future completing once publisher is initialized, or exceptionally if it or one of
+     * its dependencies failed to start. Completes on whichever thread initialized publisher, so
+     * use the async variants of its methods for anything slow.
+     */
+    public CompletableFuture<Void> getReadyFuture(Publisher<?> publisher){
+        // Dependent copy so callers cannot complete the one the dependencies wait on
+        return getStartup(publisher).ready.thenApply(v -> v);
     }
 
-    //========================================Phase 2===============================================
+    /**
+     * @return time in nanoseconds from starting publisher until it was initialized, or -1 if it
+     * is not initialized yet
+     */
+    public long getInitDuration(Publisher<?> publisher){
+        return getStartup(publisher).initDuration;
+    }
+
+    //========================================Start=================================================
+    /**
+     * Resumes all publishers once all are initialized. Publishers that failed to initialize are
+     * left paused.
+     */
     public void startPublishers(){
-        phaser.arrive();
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.submit(() -> {
-            Log.i(TAG, "Waiting on phase 1 to finish before starting");
-            phaser.awaitAdvance(1);
-            Log.i(TAG, "All publishers initialized. Starting publishers");
-            for (Publisher<?> publisher: publishers){
-                publisher.resume();
+        Log.i(TAG, "Waiting on all publishers to initialize before starting");
+        CompletableFuture<?>[] ready = getReadyFutures();
+        CompletableFuture.allOf(ready).whenComplete((v, throwable) -> {
+            for (CompletableFuture<?> future : ready){
+                if (future.isCancelled()){
+                    Log.i(TAG, "Publishers stopped before all initialized. Not starting them");
+                    return;
+                }
+            }
+            if (throwable != null){
+                Log.e(TAG, "Not all publishers initialized. Starting the others", throwable);
+            } else {
+                Log.i(TAG, "All publishers initialized. Starting publishers");
+            }
+            for (int i = 0; i < ready.length; i++){
+                if (!ready[i].isCompletedExceptionally()){
+                    publishers.get(i).resume();
+                }
             }
-            executor.shutdown(); // Shut down the executor after the task is completed
         });
     }
 
@@ -80,13 +227,120 @@ public class PublisherManager {
             publisher.resume();
         }
     }
+    /**
+     * Stops all publishers and quits the event loops they ran on, until
+     * {@link #initializePublishers()} is called again. Ready futures of publishers that had not
+     * initialized yet are cancelled, and those from {@link #getReadyFuture(Publisher)} after this
+     * complete on the next initialization.
+     */
     public void stopPublishers(){
         for (Publisher<?> publisher: publishers){
             publisher.stop();
         }
+        eventLoops.quit();
+        for (Startup startup : startups.values()){
+            startup.ready.cancel(false);
+            startup.reset();
+        }
+        initializing = false;
+    }
+
+    /**
+     * @return the event loops the publishers of this manager run on, e.g. to assign a publisher
+     * to a loop of its own with {@link EventLoops#assign(Class, String)}
+     */
+    public EventLoops getEventLoops(){
+        return eventLoops;
     }
     @SuppressWarnings("unused")
     public ArrayList<Publisher<?>> getPublishers() {
         return publishers;
     }
+
+    /**
+     * @return the {@link PublisherStats} of every publisher, in the order they were added
+     */
+    public ArrayList<PublisherStats> getStats(){
+        ArrayList<PublisherStats> stats = new ArrayList<>();
+        for (Publisher<?> publisher: publishers){
+            stats.add(publisher.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Logs the stats of every publisher and its subscribers, e.g. periodically from a debug build
+     */
+    public void logStats(){
+        for (Publisher<?> publisher: publishers){
+            Log.i(TAG, publisher.getStats().toString());
+        }
+    }
+
+    private CompletableFuture<Void> allReady(){
+        return CompletableFuture.allOf(getReadyFutures());
+    }
+
+    /**
+     * @return the current ready future of every publisher, in the order they were added
+     */
+    private CompletableFuture<?>[] getReadyFutures(){
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[publishers.size()];
+        for (int i = 0; i < futures.length; i++){
+            futures[i] = startups.get(publishers.get(i)).ready;
+        }
+        return futures;
+    }
+
+    private Startup getStartup(Publisher<?> publisher){
+        Startup startup = startups.get(publisher);
+        if (startup == null){
+            throw new IllegalArgumentException(getName(publisher) + " was not added to this PublisherManager");
+        }
+        return startup;
+    }
+
+    private void checkForCycles(){
+        HashSet<Startup> done = new HashSet<>();
+        for (Startup startup : startups.values()){
+            checkForCycles(startup, new HashSet<>(), done);
+        }
+    }
+
+    private void checkForCycles(Startup startup, HashSet<Startup> path, HashSet<Startup> done){
+        if (done.contains(startup)){
+            return;
+        }
+        if (!path.add(startup)){
+            throw new IllegalStateException("Publisher dependencies form a cycle through " + getName(startup.publisher));
+        }
+        for (Startup dependency : startup.dependencies){
+            checkForCycles(dependency, path, done);
+        }
+        path.remove(startup);
+        done.add(startup);
+    }
+
+    private static String getName(Publisher<?> publisher){
+        return publisher.getClass().getSimpleName();
+    }
+
+    private static final class Startup {
+        private final Publisher<?> publisher;
+        private final ArrayList<Startup> dependencies = new ArrayList<>();
+        private volatile CompletableFuture<Void> ready = new CompletableFuture<>();
+        private volatile boolean started;
+        private volatile long startTime;
+        private volatile long initDuration = -1;
+
+        private Startup(Publisher<?> publisher) {
+            this.publisher = publisher;
+        }
+
+        private void reset(){
+            ready = new CompletableFuture<>();
+            started = false;
+            initDuration = -1;
+        }
+    }
 }
@@ -0,0 +1,348 @@
+package jp.oist.abcvlib.core.inputs;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Appends every event of the publishers attached to it to a binary log on disk, so that a run on
+ * the robot can be fed back later through the same publishers with {@link PublisherReplayer},
+ * e.g. for repeatable load tests of subscribers without a robot.
+ * <br><br>
+ * Each publisher records its inputs, i.e. what it was given before computing anything, so replay
+ * recomputes the same values through the same code. The log is written through a memory-mapped
+ * window of the file that is moved along as it fills, so recording a sample is a copy into memory
+ * and does not allocate. The OS writes the pages back in the background, and each window is
+ * flushed and unmapped once the next one replaces it.
+ * <br><br>
+ * Events are appended under a lock shared by all publishers. Frames are large, so an image event
+ * only reserves its place in the log under the lock and its payload is copied in after, letting
+ * the other publishers go on recording meanwhile.
+ * <br><br>
+ * Recording never throws on the publishers' threads. If the log cannot be extended, e.g. as the
+ * disk is full, recording stops with the error logged and available from {@link #getFailure()},
+ * and the events recorded so far are kept.
+ * <br><br>
+ * Attach with {@link #attach(Publisher[])}, before starting the ImageData publishers, which only
+ * analyze frames for subscribers or a recorder present at start. Publishers without a recorder
+ * only pay for a null check. Call {@link #close()} to trim the file to the events written.
+ * <br><br>
+ * Log format (big endian): magic "ABCVREC1", int version, long nanoTime and long
+ * currentTimeMillis at the start of the recording, then per event: byte type, int payload length,
+ * long nanoTime at which the event was recorded, payload. Payloads are the arguments of the
+ * record methods in order, with booleans as a byte, arrays as an int length followed by the
+ * elements, and bitmaps as int width, int height, int byte count and ARGB_8888 pixels.
+ */
+public class PublisherRecorder implements Closeable {
+    static final byte[] MAGIC = {'A', 'B', 'C', 'V', 'R', 'E', 'C', '1'};
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = MAGIC.length + 4 + 8 + 8;
+    static final int EVENT_HEADER_LENGTH = 1 + 4 + 8;
+    // Event types
+    static final byte WHEEL = 1;
+    static final byte BATTERY_VOLTAGE = 2;
+    static final byte CHARGER_VOLTAGE = 3;
+    static final byte BATTERY_STATE = 4;
+    static final byte ORIENTATION = 5;
+    static final byte AUDIO = 6;
+    static final byte IMAGE = 7;
+
+    private static final int WINDOW_SIZE = 16 * 1024 * 1024;
+    // Unmaps a buffer right away rather than once it is collected. Android only, null elsewhere
+    private static final Method FREE_DIRECT_BUFFER = findFreeDirectBuffer();
+
+    private final String TAG = getClass().getName();
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    // All of the following are guarded by this
+    private MappedByteBuffer window;
+    // File position of the start of window
+    private long windowStart;
+    // Windows replaced while payloads were still being copied into them, see recordImage
+    private final ArrayList<MappedByteBuffer> retiredWindows = new ArrayList<>();
+    // Payloads being copied outside the lock
+    private int pendingCopies = 0;
+    private long eventCount = 0;
+    private boolean closed = false;
+    // Set if the log could not be extended, after which nothing more is recorded
+    private IOException failure;
+
+    public PublisherRecorder(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        channel = this.file.getChannel();
+        map(0, HEADER_LENGTH);
+        window.put(MAGIC);
+        window.putInt(VERSION);
+        window.putLong(System.nanoTime());
+        window.putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Starts recording the events of publishers. Only WheelData, BatteryData, OrientationData,
+     * MicrophoneData and the ImageData publishers record anything.
+     */
+    public PublisherRecorder attach(Publisher<?>... publishers) {
+        for (Publisher<?> publisher : publishers) {
+            publisher.setRecorder(this);
+        }
+        return this;
+    }
+
+    public PublisherRecorder detach(Publisher<?>... publishers) {
+        for (Publisher<?> publisher : publishers) {
+            publisher.setRecorder(null);
+        }
+        return this;
+    }
+
+    public synchronized void recordWheelData(long timestamp, int countL, int countR, byte faultL, byte faultR) {
+        if (begin(WHEEL, 8 + 4 + 4 + 1 + 1)) {
+            window.putLong(timestamp);
+            window.putInt(countL);
+            window.putInt(countR);
+            window.put(faultL);
+            window.put(faultR);
+        }
+    }
+
+    public synchronized void recordBatteryVoltage(long timestamp, double voltage) {
+        if (begin(BATTERY_VOLTAGE, 8 + 8)) {
+            window.putLong(timestamp);
+            window.putDouble(voltage);
+        }
+    }
+
+    public synchronized void recordChargerVoltage(long timestamp, double chargerVoltage, double coilVoltage) {
+        if (begin(CHARGER_VOLTAGE, 8 + 8 + 8)) {
+            window.putLong(timestamp);
+            window.putDouble(chargerVoltage);
+            window.putDouble(coilVoltage);
+        }
+    }
+
+    public synchronized void recordBatteryState(long timestamp, double voltage, double temperature,
+                                                int stateOfHealth, int safetyStatus, int flags,
+                                                double chargerVoltage, double coilVoltage,
+                                                boolean wirelessChargerAttached) {
+        if (begin(BATTERY_STATE, 8 + 8 + 8 + 4 + 4 + 4 + 8 + 8 + 1)) {
+            window.putLong(timestamp);
+            window.putDouble(voltage);
+            window.putDouble(temperature);
+            window.putInt(stateOfHealth);
+            window.putInt(safetyStatus);
+            window.putInt(flags);
+            window.putDouble(chargerVoltage);
+            window.putDouble(coilVoltage);
+            window.put((byte) (wirelessChargerAttached ? 1 : 0));
+        }
+    }
+
+    public synchronized void recordOrientation(long timestamp, double thetaRad, double angularVelocityRad,
+                                               double azimuthRad, double rollRad) {
+        if (begin(ORIENTATION, 8 + 4 * 8)) {
+            window.putLong(timestamp);
+            window.putDouble(thetaRad);
+            window.putDouble(angularVelocityRad);
+            window.putDouble(azimuthRad);
+            window.putDouble(rollRad);
+        }
+    }
+
+    /**
+     * @param audioData only the first numSamples are recorded
+     */
+    public synchronized void recordAudio(float[] audioData, int numSamples, int sampleRate,
+                                         long startFrame, long startTime, long endFrame, long endTime) {
+        int length = Math.max(0, Math.min(numSamples, audioData.length));
+        if (begin(AUDIO, 4 + 4 * length + 4 + 4 + 4 * 8)) {
+            window.putInt(length);
+            for (int i = 0; i < length; i++) {
+                window.putFloat(audioData[i]);
+            }
+            window.putInt(numSamples);
+            window.putInt(sampleRate);
+            window.putLong(startFrame);
+            window.putLong(startTime);
+            window.putLong(endFrame);
+            window.putLong(endTime);
+        }
+    }
+
+    /**
+     * @param bitmap ARGB_8888 frame, its pixels are copied straight into the log. May be null, in
+     *               which case a 0x0 bitmap without pixels is recorded
+     */
+    public void recordImage(byte[] imageData, int rotation, int format, int width,
+                            int height, long timestamp, Bitmap bitmap) {
+        int pixelBytes = bitmap != null ? bitmap.getByteCount() : 0;
+        int payloadLength = 4 + imageData.length + 4 * 4 + 8 + 3 * 4 + pixelBytes;
+        ByteBuffer payload;
+        synchronized (this) {
+            if (!begin(IMAGE, payloadLength)) {
+                return;
+            }
+            // Only reserve the payload here, the window is not released until it is written
+            payload = window.duplicate();
+            window.position(window.position() + payloadLength);
+            pendingCopies++;
+        }
+        try {
+            payload.putInt(imageData.length);
+            payload.put(imageData);
+            payload.putInt(rotation);
+            payload.putInt(format);
+            payload.putInt(width);
+            payload.putInt(height);
+            payload.putLong(timestamp);
+            payload.putInt(bitmap != null ? bitmap.getWidth() : 0);
+            payload.putInt(bitmap != null ? bitmap.getHeight() : 0);
+            payload.putInt(pixelBytes);
+            if (bitmap != null) {
+                payload.limit(payload.position() + pixelBytes);
+                bitmap.copyPixelsToBuffer(payload);
+            }
+        } finally {
+            synchronized (this) {
+                if (--pendingCopies == 0) {
+                    releaseRetiredWindows();
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Must hold this. Writes the event header and makes sure the payload fits in the window.
+     * @return false if closed or the log could not be extended, in which case nothing must be
+     * written
+     */
+    private boolean begin(byte type, int payloadLength) {
+        if (closed || failure != null) {
+            return false;
+        }
+        int length = EVENT_HEADER_LENGTH + payloadLength;
+        if (window.remaining() < length) {
+            try {
+                map(windowStart + window.position(), length);
+            } catch (IOException e) {
+                failure = e;
+                Log.e(TAG, "Could not extend the recording. Stopped recording after " +
+                        eventCount + " events", e);
+                return false;
+            }
+        }
+        window.put(type);
+        window.putInt(payloadLength);
+        window.putLong(System.nanoTime());
+        eventCount++;
+        return true;
+    }
+
+    /**
+     * Must hold this. Maps a new window starting at position holding at least length bytes in
+     * place of the current one, which is released once no payload is being copied into it.
+     * Leaves the current window in place if mapping fails.
+     */
+    private void map(long position, int length) throws IOException {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, position,
+                Math.max(WINDOW_SIZE, length));
+        if (window != null) {
+            retiredWindows.add(window);
+            if (pendingCopies == 0) {
+                releaseRetiredWindows();
+            }
+        }
+        windowStart = position;
+        window = mapped;
+    }
+
+    /**
+     * Must hold this with no payloads being copied. Flushes and unmaps the replaced windows.
+     */
+    private void releaseRetiredWindows() {
+        for (MappedByteBuffer retired : retiredWindows) {
+            release(retired);
+        }
+        retiredWindows.clear();
+    }
+
+    /**
+     * Flushes window to the file and unmaps it. Must not be used afterwards.
+     */
+    private static void release(MappedByteBuffer window) {
+        window.force();
+        if (FREE_DIRECT_BUFFER != null) {
+            try {
+                FREE_DIRECT_BUFFER.invoke(null, window);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Left to be unmapped once collected
+            }
+        }
+    }
+
+    private static Method findFreeDirectBuffer() {
+        try {
+            return Class.forName("java.nio.NioUtils").getMethod("freeDirectBuffer", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public synchronized long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return number of bytes written so far, including image payloads still being copied
+     */
+    public synchronized long getLength() {
+        return window != null ? windowStart + window.position() : windowStart;
+    }
+
+    /**
+     * @return the error the log could not be extended with, or null while recording normally
+     */
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Stops recording, flushes the log and trims the file to the events written. Detach the
+     * publishers first or their further events are dropped.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        boolean interrupted = false;
+        while (pendingCopies > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        long length = getLength();
+        releaseRetiredWindows();
+        release(window);
+        window = null;
+        windowStart = length;
+        channel.truncate(length);
+        file.close();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package jp.oist.abcvlib.core.inputs;
+
+import android.graphics.Bitmap;
+import android.media.AudioTimestamp;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+
+import jp.oist.abcvlib.core.inputs.microcontroller.BatteryData;
+import jp.oist.abcvlib.core.inputs.microcontroller.WheelData;
+import jp.oist.abcvlib.core.inputs.phone.FramePool;
+import jp.oist.abcvlib.core.inputs.phone.ImageData;
+import jp.oist.abcvlib.core.inputs.phone.MicrophoneData;
+import jp.oist.abcvlib.core.inputs.phone.OrientationData;
+import jp.oist.abcvlib.util.ProcessPriorityThreadFactory;
+
+/**
+ * Feeds a log written by {@link PublisherRecorder} back through the given publishers, so their
+ * subscribers get the same events as during the recording without any sensors, camera or robot.
+ * Events of publishers not given are skipped.
+ * <br><br>
+ * The publishers are started for replay only, i.e. without starting their sensors or streams, so
+ * do not also start them through their PublisherManager. Event timestamps are passed on as
+ * recorded. The time between events is that between when they were recorded, divided by the
+ * speed. At {@link #AS_FAST_AS_POSSIBLE} each event is replayed as soon as the subscribers of the
+ * publishers dispatching through an {@link EventRing} have room for it, so that as opposed to live
+ * data no events are lost to slow subscribers.
+ */
+public class PublisherReplayer {
+    public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+
+    private static final int WINDOW_SIZE = 16 * 1024 * 1024;
+    private final String TAG = getClass().getName();
+
+    private final File file;
+    private final double speed;
+    private final EventSink sink;
+    // Only used for its frame pool, null to replay frames into new buffers
+    private final ImageData<?> imageData;
+    private final Publisher<?>[] publishers;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private volatile Thread thread;
+    private volatile long eventCount = 0;
+    private final CompletableFuture<Long> finished = new CompletableFuture<>();
+
+    public PublisherReplayer(File file, double speed, WheelData wheelData, BatteryData batteryData,
+                             OrientationData orientationData, MicrophoneData microphoneData,
+                             ImageData<?> imageData) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("speed must be positive");
+        }
+        this.file = file;
+        this.speed = speed;
+        this.sink = new PublisherSink(wheelData, batteryData, orientationData, microphoneData, imageData);
+        this.imageData = imageData;
+        ArrayList<Publisher<?>> given = new ArrayList<>();
+        for (Publisher<?> publisher : new Publisher<?>[]{wheelData, batteryData, orientationData,
+                microphoneData, imageData}) {
+            if (publisher != null) {
+                given.add(publisher);
+            }
+        }
+        publishers = given.toArray(new Publisher<?>[0]);
+    }
+
+    /**
+     * Replays into sink rather than through any publishers, e.g. to check a log in a test.
+     */
+    PublisherReplayer(File file, double speed, EventSink sink) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("speed must be positive");
+        }
+        this.file = file;
+        this.speed = speed;
+        this.sink = sink;
+        this.imageData = null;
+        this.publishers = new Publisher<?>[0];
+    }
+
+    /**
+     * Gets the events of a log as they are replayed, with the arguments of the
+     * {@link PublisherRecorder} method that recorded them.
+     */
+    interface EventSink {
+        /**
+         * @return false to skip events of type without decoding them
+         */
+        boolean accepts(byte type);
+
+        void onWheelData(long timestamp, int countL, int countR, byte faultL, byte faultR);
+
+        void onBatteryVoltage(long timestamp, double voltage);
+
+        void onChargerVoltage(long timestamp, double chargerVoltage, double coilVoltage);
+
+        void onBatteryState(long timestamp, double voltage, double temperature, int stateOfHealth,
+                            int safetyStatus, int flags, double chargerVoltage, double coilVoltage,
+                            boolean wirelessChargerAttached);
+
+        void onOrientation(long timestamp, double thetaRad, double angularVelocityRad,
+                           double azimuthRad, double rollRad);
+
+        void onAudio(float[] audioData, int numSamples, int sampleRate, AudioTimestamp startTime,
+                     AudioTimestamp endTime);
+
+        /**
+         * @param data and bitmap are only valid during the call
+         */
+        void onImage(byte[] data, int rotation, int format, int width, int height, long timestamp,
+                     Bitmap bitmap);
+    }
+
+    /**
+     * Passes each event on to the publisher it was recorded from, if given.
+     */
+    private static class PublisherSink implements EventSink {
+        private final WheelData wheelData;
+        private final BatteryData batteryData;
+        private final OrientationData orientationData;
+        private final MicrophoneData microphoneData;
+        private final ImageData<?> imageData;
+
+        PublisherSink(WheelData wheelData, BatteryData batteryData, OrientationData orientationData,
+                      MicrophoneData microphoneData, ImageData<?> imageData) {
+            this.wheelData = wheelData;
+            this.batteryData = batteryData;
+            this.orientationData = orientationData;
+            this.microphoneData = microphoneData;
+            this.imageData = imageData;
+        }
+
+        @Override
+        public boolean accepts(byte type) {
+            switch (type) {
+                case PublisherRecorder.WHEEL:
+                    return wheelData != null;
+                case PublisherRecorder.BATTERY_VOLTAGE:
+                case PublisherRecorder.CHARGER_VOLTAGE:
+                case PublisherRecorder.BATTERY_STATE:
+                    return batteryData != null;
+                case PublisherRecorder.ORIENTATION:
+                    return orientationData != null;
+                case PublisherRecorder.AUDIO:
+                    return microphoneData != null;
+                case PublisherRecorder.IMAGE:
+                    return imageData != null;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void onWheelData(long timestamp, int countL, int countR, byte faultL, byte faultR) {
+            wheelData.onWheelDataUpdate(timestamp, countL, countR, faultL, faultR);
+        }
+
+        @Override
+        public void onBatteryVoltage(long timestamp, double voltage) {
+            batteryData.onBatteryVoltageUpdate(timestamp, voltage);
+        }
+
+        @Override
+        public void onChargerVoltage(long timestamp, double chargerVoltage, double coilVoltage) {
+            batteryData.onChargerVoltageUpdate(timestamp, chargerVoltage, coilVoltage);
+        }
+
+        @Override
+        public void onBatteryState(long timestamp, double voltage, double temperature, int stateOfHealth,
+                                   int safetyStatus, int flags, double chargerVoltage, double coilVoltage,
+                                   boolean wirelessChargerAttached) {
+            batteryData.onBatteryStateUpdate(timestamp, voltage, temperature, stateOfHealth,
+                    safetyStatus, flags, chargerVoltage, coilVoltage, wirelessChargerAttached);
+        }
+
+        @Override
+        public void onOrientation(long timestamp, double thetaRad, double angularVelocityRad,
+                                  double azimuthRad, double rollRad) {
+            orientationData.onOrientationUpdate(timestamp, thetaRad, angularVelocityRad, azimuthRad, rollRad);
+        }
+
+        @Override
+        public void onAudio(float[] audioData, int numSamples, int sampleRate, AudioTimestamp startTime,
+                            AudioTimestamp endTime) {
+            microphoneData.onMicrophoneDataUpdate(audioData, numSamples, sampleRate, startTime, endTime);
+        }
+
+        @Override
+        public void onImage(byte[] data, int rotation, int format, int width, int height, long timestamp,
+                            Bitmap bitmap) {
+            imageData.onImageDataUpdate(data, rotation, format, width, height, timestamp, bitmap);
+        }
+    }
+
+    public static class Builder {
+        private final File file;
+        private double speed = 1;
+        private WheelData wheelData;
+        private BatteryData batteryData;
+        private OrientationData orientationData;
+        private MicrophoneData microphoneData;
+        private ImageData<?> imageData;
+
+        public Builder(File file) {
+            this.file = file;
+        }
+
+        public PublisherReplayer build() {
+            return new PublisherReplayer(file, speed, wheelData, batteryData, orientationData,
+                    microphoneData, imageData);
+        }
+
+        /**
+         * @param speed 1 for real time, 2 for twice as fast, etc. or {@link #AS_FAST_AS_POSSIBLE}
+         */
+        public Builder setSpeed(double speed) {
+            this.speed = speed;
+            return this;
+        }
+
+        public Builder setWheelData(WheelData wheelData) {
+            this.wheelData = wheelData;
+            return this;
+        }
+
+        public Builder setBatteryData(BatteryData batteryData) {
+            this.batteryData = batteryData;
+            return this;
+        }
+
+        public Builder setOrientationData(OrientationData orientationData) {
+            this.orientationData = orientationData;
+            return this;
+        }
+
+        public Builder setMicrophoneData(MicrophoneData microphoneData) {
+            this.microphoneData = microphoneData;
+            return this;
+        }
+
+        /**
+         * @param imageData gets the recorded frames of whichever ImageData publisher was recorded
+         */
+        public Builder setImageData(ImageData<?> imageData) {
+            this.imageData = imageData;
+            return this;
+        }
+    }
+
+    /**
+     * Starts the publishers for replay and replays the log on a thread of its own.
+     * @return future completing with the number of events replayed once the whole log is, or
+     * exceptionally if the log could not be read
+     */
+    public synchronized CompletableFuture<Long> start() throws IOException {
+        if (thread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        randomAccessFile = new RandomAccessFile(file, "r");
+        channel = randomAccessFile.getChannel();
+        if (channel.size() < PublisherRecorder.HEADER_LENGTH) {
+            randomAccessFile.close();
+            throw new IOException(file + " is too short to be a publisher recording");
+        }
+        map(0, PublisherRecorder.HEADER_LENGTH);
+        byte[] magic = new byte[PublisherRecorder.MAGIC.length];
+        window.get(magic);
+        int version = window.getInt();
+        if (!Arrays.equals(magic, PublisherRecorder.MAGIC) || version != PublisherRecorder.VERSION) {
+            randomAccessFile.close();
+            throw new IOException(file + " is not a publisher recording of version " + PublisherRecorder.VERSION);
+        }
+        window.position(PublisherRecorder.HEADER_LENGTH);
+        for (Publisher<?> publisher : publishers) {
+            publisher.startReplay();
+        }
+        thread = new ProcessPriorityThreadFactory(Thread.MAX_PRIORITY, "publisherReplay").newThread(this::run);
+        thread.start();
+        return finished;
+    }
+
+    /**
+     * Stops replaying and stops the publishers
+     */
+    public synchronized void stop() {
+        Thread current = thread;
+        thread = null;
+        if (current != null && current != Thread.currentThread()) {
+            current.interrupt();
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Publisher<?> publisher : publishers) {
+            publisher.stopReplay();
+        }
+    }
+
+    private void run() {
+        Thread self = Thread.currentThread();
+        long firstRecordTime = 0;
+        long startTime = System.nanoTime();
+        try {
+            long length = channel.size();
+            while (thread == self && position() + PublisherRecorder.EVENT_HEADER_LENGTH <= length) {
+                if (window.remaining() < PublisherRecorder.EVENT_HEADER_LENGTH) {
+                    map(position(), PublisherRecorder.EVENT_HEADER_LENGTH);
+                }
+                byte type = window.get();
+                int payloadLength = window.getInt();
+                long recordTime = window.getLong();
+                if (position() + payloadLength > length) {
+                    break; // Cut short, e.g. the recorder was not closed
+                }
+                if (window.remaining() < payloadLength) {
+                    map(position(), payloadLength);
+                }
+                if (eventCount == 0) {
+                    firstRecordTime = recordTime;
+                }
+                if (speed != AS_FAST_AS_POSSIBLE) {
+                    waitUntil(startTime + (long) ((recordTime - firstRecordTime) / speed), self);
+                } else {
+                    waitForConsumers(self);
+                }
+                int end = window.position() + payloadLength;
+                replay(type);
+                window.position(end);
+                eventCount++;
+            }
+            randomAccessFile.close();
+            finished.complete(eventCount);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Replay failed after " + eventCount + " events", e);
+            finished.completeExceptionally(e);
+        }
+    }
+
+    private void waitUntil(long time, Thread self) {
+        long remaining;
+        while (thread == self && (remaining = time - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private void waitForConsumers(Thread self) {
+        for (Publisher<?> publisher : publishers) {
+            if (!(publisher instanceof RingPublisher)) {
+                continue;
+            }
+            EventRing eventRing = ((RingPublisher<?>) publisher).eventRing;
+            // One slot short of full, as the event about to be replayed takes one
+            while (thread == self && eventRing.getMaxLag() >= eventRing.getCapacity() - 1) {
+                LockSupport.parkNanos(100000);
+            }
+        }
+    }
+
+    private void replay(byte type) {
+        if (!sink.accepts(type)) {
+            if (type < PublisherRecorder.WHEEL || type > PublisherRecorder.IMAGE) {
+                Log.w(TAG, "Skipping event of unknown type " + type);
+            }
+            return;
+        }
+        switch (type) {
+            case PublisherRecorder.WHEEL:
+                sink.onWheelData(window.getLong(), window.getInt(), window.getInt(),
+                        window.get(), window.get());
+                break;
+            case PublisherRecorder.BATTERY_VOLTAGE:
+                sink.onBatteryVoltage(window.getLong(), window.getDouble());
+                break;
+            case PublisherRecorder.CHARGER_VOLTAGE:
+                sink.onChargerVoltage(window.getLong(), window.getDouble(), window.getDouble());
+                break;
+            case PublisherRecorder.BATTERY_STATE:
+                sink.onBatteryState(window.getLong(), window.getDouble(),
+                        window.getDouble(), window.getInt(), window.getInt(), window.getInt(),
+                        window.getDouble(), window.getDouble(), window.get() != 0);
+                break;
+            case PublisherRecorder.ORIENTATION:
+                sink.onOrientation(window.getLong(), window.getDouble(),
+                        window.getDouble(), window.getDouble(), window.getDouble());
+                break;
+            case PublisherRecorder.AUDIO:
+                replayAudio();
+                break;
+            case PublisherRecorder.IMAGE:
+                replayImage();
+                break;
+        }
+    }
+
+    private void replayAudio() {
+        // New arrays and timestamps for every event as subscribers may keep them
+        float[] audioData = new float[window.getInt()];
+        for (int i = 0; i < audioData.length; i++) {
+            audioData[i] = window.getFloat();
+        }
+        int numSamples = window.getInt();
+        int sampleRate = window.getInt();
+        AudioTimestamp startTime = new AudioTimestamp();
+        startTime.framePosition = window.getLong();
+        startTime.nanoTime = window.getLong();
+        AudioTimestamp endTime = new AudioTimestamp();
+        endTime.framePosition = window.getLong();
+        endTime.nanoTime = window.getLong();
+        sink.onAudio(audioData, numSamples, sampleRate, startTime, endTime);
+    }
+
+    /**
+     * Replays into a frame of the publisher's {@link FramePool}, or into new buffers if subscribers
+     * hold all of them or there is no publisher, as a replay must not drop recorded frames. Frames recorded without a bitmap
+     * are replayed with a null bitmap.
+     */
+    private void replayImage() {
+        int dataLength = window.getInt();
+        int dataStart = window.position();
+        window.position(dataStart + dataLength);
+        int rotation = window.getInt();
+        int format = window.getInt();
+        int width = window.getInt();
+        int height = window.getInt();
+        long timestamp = window.getLong();
+        int bitmapWidth = window.getInt();
+        int bitmapHeight = window.getInt();
+        int pixelBytes = window.getInt();
+        int pixelStart = window.position();
+        boolean hasBitmap = bitmapWidth > 0 && bitmapHeight > 0;
+        FramePool.Frame frame = imageData != null
+                ? imageData.getFramePool().acquire(dataLength, bitmapWidth, bitmapHeight, hasBitmap) : null;
+        byte[] data = frame != null ? frame.getLuminance() : new byte[dataLength];
+        Bitmap bitmap = null;
+        if (hasBitmap) {
+            bitmap = frame != null ? frame.getBitmap()
+                    : Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
+        }
+        try {
+            window.position(dataStart);
+            window.get(data);
+            if (bitmap != null) {
+                window.position(pixelStart);
+                window.limit(pixelStart + pixelBytes);
+                bitmap.copyPixelsFromBuffer(window);
+                window.limit(window.capacity());
+            }
+            window.position(pixelStart + pixelBytes);
+            sink.onImage(data, rotation, format, width, height, timestamp, bitmap);
+        } finally {
+            if (frame != null) {
+                frame.release();
+            }
+        }
+    }
+
+    private long position() {
+        return windowStart + window.position();
+    }
+
+    /**
+     * Maps a read only window of the log starting at position holding at least length bytes
+     */
+    private void map(long position, int length) throws IOException {
+        windowStart = position;
+        long size = Math.min(Math.max(WINDOW_SIZE, length), channel.size() - position);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    /**
+     * @return number of events replayed so far
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+}
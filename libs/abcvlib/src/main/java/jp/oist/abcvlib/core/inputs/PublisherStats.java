@@ -0,0 +1,129 @@
+package jp.oist.abcvlib.core.inputs;
+
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Throughput and health of one {@link Publisher}, e.g. to check a sensor delivers the rate it was
+ * asked for, or to find the subscriber holding things up. Every publisher keeps one, see
+ * {@link Publisher#getStats()} and {@link PublisherManager#getStats()}.
+ * <br><br>
+ * Produced counts the samples the publisher got from its sensor or stream, whether or not anyone
+ * was subscribed or it was paused. Everything after that is kept per subscriber in a
+ * {@link SubscriberStats}, as each subscriber has a ring consumer of its own or is called one
+ * after another, and this class only sums it up.
+ * <br><br>
+ * Counters and histograms are fixed size and updated without locks by the thread producing or
+ * dispatching, and can be read from any thread.
+ */
+public class PublisherStats {
+    private final String name;
+    private final RateMeter rate = new RateMeter();
+    private final CopyOnWriteArrayList<SubscriberStats> subscribers = new CopyOnWriteArrayList<>();
+    private volatile long producedCount = 0;
+
+    PublisherStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Single writer, i.e. the thread the publisher gets its samples on.
+     */
+    void onProduced(long time) {
+        producedCount++;
+        rate.onEvent(time);
+    }
+
+    SubscriberStats addSubscriber(String name) {
+        SubscriberStats stats = new SubscriberStats(name);
+        subscribers.add(stats);
+        return stats;
+    }
+
+    void removeSubscriber(SubscriberStats stats) {
+        subscribers.remove(stats);
+    }
+
+    /**
+     * @return class name of the publisher
+     */
+    public String getName() {
+        return name;
+    }
+
+    public long getProducedCount() {
+        return producedCount;
+    }
+
+    /**
+     * @return recent number of samples produced per second
+     */
+    public double getRate() {
+        return rate.getRate();
+    }
+
+    /**
+     * @return number of subscriber calls made, i.e. samples times subscribers called with them
+     */
+    public long getDispatchedCount() {
+        long count = 0;
+        for (SubscriberStats stats : subscribers) {
+            count += stats.getDispatchedCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of samples lost by all subscribers together because they fell behind
+     */
+    public long getDroppedCount() {
+        long count = 0;
+        for (SubscriberStats stats : subscribers) {
+            count += stats.getDroppedCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the largest {@link SubscriberStats#getQueueDepth()} of all subscribers
+     */
+    public long getMaxQueueDepth() {
+        long depth = 0;
+        for (SubscriberStats stats : subscribers) {
+            depth = Math.max(depth, stats.getQueueDepth());
+        }
+        return depth;
+    }
+
+    public ArrayList<SubscriberStats> getSubscribers() {
+        return new ArrayList<>(subscribers);
+    }
+
+    /**
+     * @return the subscriber with the highest 99th percentile callback time, or null if there are
+     * no subscribers
+     */
+    public SubscriberStats getSlowestSubscriber() {
+        SubscriberStats slowest = null;
+        for (SubscriberStats stats : subscribers) {
+            if (slowest == null || stats.getCallbackTime().getP99() > slowest.getCallbackTime().getP99()) {
+                slowest = stats;
+            }
+        }
+        return slowest;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(name)
+                .append(": produced=").append(producedCount)
+                .append(" (").append(String.format("%.1f", getRate())).append("Hz)")
+                .append(" dispatched=").append(getDispatchedCount())
+                .append(" dropped=").append(getDroppedCount())
+                .append(" queued=").append(getMaxQueueDepth());
+        for (SubscriberStats stats : subscribers) {
+            builder.append("\n  ").append(stats);
+        }
+        return builder.toString();
+    }
+}
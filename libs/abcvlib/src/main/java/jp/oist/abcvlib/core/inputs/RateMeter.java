@@ -0,0 +1,35 @@
+package jp.oist.abcvlib.core.inputs;
+
+/**
+ * Recent event rate as an exponential average of the time between events. Single writer, any
+ * reader.
+ */
+class RateMeter {
+    // Weight of the newest interval, so roughly the last 20 events count
+    private static final double ALPHA = 0.05;
+    private long lastTime = 0;
+    private volatile double meanInterval = 0; // ns
+    private volatile long lastEventTime = 0;
+
+    void onEvent(long time) {
+        if (lastTime != 0) {
+            long interval = time - lastTime;
+            meanInterval = meanInterval == 0 ? interval : meanInterval + ALPHA * (interval - meanInterval);
+        }
+        lastTime = time;
+        lastEventTime = time;
+    }
+
+    /**
+     * @return events per second, decaying towards 0 once events stop coming
+     */
+    double getRate() {
+        double interval = meanInterval;
+        if (interval <= 0) {
+            return 0;
+        }
+        // An overdue event counts as an interval at least as long as the time waited for it
+        interval = Math.max(interval, System.nanoTime() - lastEventTime);
+        return 1e9 / interval;
+    }
+}
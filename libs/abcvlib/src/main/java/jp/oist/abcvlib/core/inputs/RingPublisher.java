@@ -0,0 +1,133 @@
+package jp.oist.abcvlib.core.inputs;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import jp.oist.abcvlib.util.EventLoop;
+import jp.oist.abcvlib.util.EventLoops;
+
+/**
+ * A {@link Publisher} producing a steady stream of small samples, which it publishes into
+ * {@link #eventRing} instead of calling its subscribers directly. Every subscriber gets its own
+ * consumer reading the ring, and the publisher only has to implement
+ * {@link #dispatch(Subscriber, EventRing.Event)} to pass an event's fields on to a subscriber.
+ * <br><br>
+ * Consumers run on the publisher's event loop, see {@link #getEventLoop()}, so subscribers share
+ * its thread and priority class rather than each starting a thread. A subscriber whose class is
+ * assigned a loop in {@link EventLoops} runs on that loop instead, e.g. a controller on a loop of
+ * its own, and one whose {@link DeliveryPolicy} is {@link DeliveryPolicy#onOwnThread()} on a
+ * thread of its own in the priority class of the publisher's loop. Consumers apply
+ * their subscriber's {@link DeliveryPolicy} themselves, so every policy including aggregates can
+ * be used, and are measured around their handler in the {@link PublisherStats}.
+ * <br><br>
+ * The ring's consumers start and stop with the publisher.
+ */
+public abstract class RingPublisher<T extends Subscriber> extends Publisher<T> {
+    protected final EventRing eventRing;
+    // Stats of the ring consumers of the subscribers, as opposed to those added with addEventHandler
+    private final ArrayList<SubscriberStats> subscriberConsumers = new ArrayList<>();
+
+    /**
+     * @param eventRing the ring every sample is published into
+     */
+    public RingPublisher(Context context, PublisherManager publisherManager, EventRing eventRing){
+        super(context, publisherManager);
+        this.eventRing = eventRing;
+    }
+
+    /**
+     * Called on the loop or thread of subscriber's consumer for every event published to {@link #eventRing}
+     * while not paused.
+     * @param event only valid for the duration of the call
+     */
+    protected abstract void dispatch(T subscriber, EventRing.Event event);
+
+    @Override
+    public void start(){
+        eventRing.start();
+        super.start();
+    }
+
+    @Override
+    public void stop(){
+        eventRing.stop();
+        super.stop();
+    }
+
+    @Override
+    void startReplay(){
+        eventRing.start();
+        super.startReplay();
+    }
+
+    @Override
+    void stopReplay(){
+        eventRing.stop();
+        super.stopReplay();
+    }
+
+    /**
+     * @param policy which samples to pass on to subscriber, including aggregates
+     */
+    @Override
+    public Publisher<T> addSubscriber(T subscriber, DeliveryPolicy policy){
+        SubscriberStats subscriberStats = addConsumer(subscriber.getClass().getSimpleName(),
+                event -> dispatch(subscriber, event), policy,
+                publisherManager.getEventLoops().getAssignedLoop(subscriber.getClass()));
+        synchronized (subscriberConsumers){
+            subscriberConsumers.add(subscriberStats);
+        }
+        addToSubscribers(subscriber);
+        return this;
+    }
+
+    @Override
+    public Publisher<T> addSubscribers(ArrayList<T> subscribers){
+        synchronized (subscriberConsumers){
+            for (SubscriberStats subscriberStats : subscriberConsumers){
+                eventRing.removeConsumer(subscriberStats.consumer);
+                getStats().removeSubscriber(subscriberStats);
+            }
+            subscriberConsumers.clear();
+        }
+        return super.addSubscribers(subscribers);
+    }
+
+    /**
+     * Adds a consumer of {@link #eventRing} that is only called while not paused and applies
+     * policy. Used for subscription APIs other than T, e.g. a view over the event rather than its
+     * fields. Runs on the publisher's loop unless policy is {@link DeliveryPolicy#onOwnThread()}.
+     * @param name of the subscriber in the {@link PublisherStats}
+     */
+    protected EventRing.Consumer addEventHandler(String name, EventRing.Handler handler, DeliveryPolicy policy){
+        return addConsumer(name, handler, policy, null).consumer;
+    }
+
+    /**
+     * @param assignedLoop loop the subscriber is assigned to, or null
+     */
+    private SubscriberStats addConsumer(String name, EventRing.Handler handler, DeliveryPolicy policy,
+                                        EventLoop assignedLoop){
+        SubscriberStats subscriberStats = getStats().addSubscriber(name);
+        EventRing.Handler measured = event -> {
+            if (!paused){
+                long start = System.nanoTime();
+                handler.onEvent(event);
+                subscriberStats.onCallback(event.getPublishTime(), start, System.nanoTime());
+            }
+        };
+        if (policy.isOnOwnThread()){
+            // Looked up without fixing the publisher's loop, which may be assigned after subscribing
+            EventLoop.Priority priority = publisherManager.getEventLoops().getLoop(getClass()).getPriority();
+            subscriberStats.consumer = eventRing.addConsumer(measured, policy, priority);
+        } else {
+            // The publisher's loop is looked up when first run, for the same reason
+            Executor executor = assignedLoop != null ? assignedLoop
+                    : command -> getEventLoop().execute(command);
+            subscriberStats.consumer = eventRing.addConsumer(measured, policy, executor);
+        }
+        return subscriberStats;
+    }
+}
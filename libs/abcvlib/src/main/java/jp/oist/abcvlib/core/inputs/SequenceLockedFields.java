@@ -0,0 +1,84 @@
+package jp.oist.abcvlib.core.inputs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latest value of a fixed number of primitive fields, written by one thread and copied by any
+ * number of others under a sequence lock, so neither side ever blocks. The writer wraps each update
+ * in {@link #beginWrite()} and {@link #endWrite()}:
+ * <pre>
+ *     fields.beginWrite();
+ *     fields.putLong(TIMESTAMP, timestamp);
+ *     fields.putDouble(SPEED, speed);
+ *     fields.endWrite();
+ * </pre>
+ * A reader's {@link #read(long[])} that overlaps an update is retried, so the values it copies are
+ * always all from the same update. Doubles are stored as their raw long bits, as in
+ * {@link EventRing}.
+ */
+public class SequenceLockedFields {
+    private final AtomicLongArray fields;
+    // Odd while fields are being written. Only written by the writing thread
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    public SequenceLockedFields(int fieldCount) {
+        fields = new AtomicLongArray(fieldCount);
+    }
+
+    public int getFieldCount() {
+        return fields.length();
+    }
+
+    /**
+     * Starts an update. Only one thread may write.
+     */
+    public void beginWrite() {
+        sequence.set(sequence.get() + 1);
+    }
+
+    public void putLong(int field, long value) {
+        // Ordered after the odd sequence, so a reader seeing any of these also sees it
+        fields.lazySet(field, value);
+    }
+
+    public void putDouble(int field, double value) {
+        putLong(field, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Makes the update visible to readers as a whole.
+     */
+    public void endWrite() {
+        sequence.set(sequence.get() + 1);
+    }
+
+    /**
+     * @return the field as last written. Only consistent with the other fields on the writing
+     * thread, others must use {@link #read(long[])}
+     */
+    public long getLong(int field) {
+        return fields.get(field);
+    }
+
+    /**
+     * Copies all fields as of the latest complete update into into, from any thread.
+     * @param into at least {@link #getFieldCount()} long
+     * @return number of updates up to the one copied, 0 if there was none yet
+     */
+    public long read(long[] into) {
+        int count = fields.length();
+        while (true) {
+            long before = sequence.get();
+            if ((before & 1) == 0) {
+                for (int field = 0; field < count; field++) {
+                    into[field] = fields.get(field);
+                }
+                if (sequence.get() == before) {
+                    return before / 2;
+                }
+            }
+            Thread.yield();
+        }
+    }
+}
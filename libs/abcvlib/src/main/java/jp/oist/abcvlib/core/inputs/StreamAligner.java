@@ -0,0 +1,505 @@
+package jp.oist.abcvlib.core.inputs;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+import jp.oist.abcvlib.core.inputs.microcontroller.BatteryData;
+import jp.oist.abcvlib.core.inputs.microcontroller.WheelData;
+import jp.oist.abcvlib.core.inputs.phone.OrientationData;
+import jp.oist.abcvlib.util.ErrorHandler;
+import jp.oist.abcvlib.util.EventLoop;
+
+/**
+ * Aligns streams sampled at different rates, and possibly on different clocks, onto a common
+ * time. Each {@link Stream} keeps a short history of its samples in primitive arrays. A
+ * {@link Snapshot} then holds the value of every field of every stream at one query time, either
+ * linearly interpolated between the samples either side of it or held from the last sample
+ * before it, as chosen per field with {@link Fill}. Neither publishing a sample nor taking a
+ * snapshot allocates, and a snapshot only searches each history by bisection, so a controller can
+ * read an aligned state vector at a few hundred Hz.
+ * <br><br>
+ * Interpolation needs a sample after the query time. Querying "now" therefore holds the latest
+ * sample of each stream, while querying a little in the past, e.g. with the delay given to
+ * {@link #StreamAligner(int, long)}, interpolates at the cost of that much latency.
+ * <br><br>
+ * {@link #addWheelData(WheelData)}, {@link #addOrientationData(OrientationData)} and
+ * {@link #addBatteryData(BatteryData)} create and feed streams from those publishers. Any other
+ * publisher can be fed from its subscriber through {@link Stream#put(long, double[])}.
+ * <br><br>
+ * Each stream must only be published to from one thread at a time. Snapshots may be taken from any
+ * thread, although each Snapshot instance must only be used by one thread at a time.
+ */
+public class StreamAligner {
+
+    public enum Fill {
+        /**
+         * Linearly interpolated between the samples either side of the query time. For continuous
+         * values like angles, distances and speeds
+         */
+        LINEAR,
+        /**
+         * Value of the last sample at or before the query time. For counts, flags and anything
+         * where a value in between makes no sense
+         */
+        HOLD
+    }
+
+    // Fields of the stream added by addWheelData
+    public static final int WHEEL_COUNT_L = 0;
+    public static final int WHEEL_COUNT_R = 1;
+    public static final int WHEEL_DISTANCE_L = 2;
+    public static final int WHEEL_DISTANCE_R = 3;
+    public static final int WHEEL_SPEED_L = 4;
+    public static final int WHEEL_SPEED_R = 5;
+    // Fields of the stream added by addOrientationData
+    public static final int ORIENTATION_THETA = 0;
+    public static final int ORIENTATION_ANGULAR_VELOCITY = 1;
+    // Fields of the stream added by addBatteryData
+    public static final int BATTERY_VOLTAGE = 0;
+
+    // Shortest sampling period, as a Handler schedules in whole milliseconds
+    private static final long MIN_PERIOD = 1000000; // ns
+
+    private final int capacity;
+    private final long delay;
+    // Copied on write so snapshots can walk it without locking
+    private volatile Stream[] streams = new Stream[0];
+    private int fieldCount = 0;
+    // Loop and task of start while sampling
+    private EventLoop samplingLoop;
+    private boolean ownsSamplingLoop;
+    private Sampler sampler;
+    private final String TAG = getClass().getName();
+
+    /**
+     * @param capacity number of samples kept per stream. Must cover at least delay at the fastest
+     *                 stream's rate
+     * @param delay in ns, how far behind "now" {@link #sampleLatest(Snapshot)} and
+     *              {@link #start(double, SnapshotListener, EventLoop)} sample
+     */
+    public StreamAligner(int capacity, long delay) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2");
+        }
+        this.capacity = capacity;
+        this.delay = delay;
+    }
+
+    /**
+     * Holds the latest sample of each stream with no added latency
+     */
+    public StreamAligner() {
+        this(64, 0);
+    }
+
+    /**
+     * @param fills how each field of the stream is aligned. Its length is the number of fields
+     */
+    public synchronized Stream addStream(String name, Fill... fills) {
+        if (fills.length == 0) {
+            throw new IllegalArgumentException("A stream needs at least one field");
+        }
+        Stream stream = new Stream(name, streams.length, fieldCount, fills.clone());
+        Stream[] updated = Arrays.copyOf(streams, streams.length + 1);
+        updated[updated.length - 1] = stream;
+        fieldCount += fills.length;
+        streams = updated;
+        return stream;
+    }
+
+    /**
+     * @return stream fed with every sample of wheelData. See the WHEEL_ constants for its fields.
+     * Speeds are the buffered speeds of {@link jp.oist.abcvlib.core.inputs.microcontroller.WheelSample}
+     */
+    public Stream addWheelData(WheelData wheelData) {
+        Stream stream = addStream("wheels", Fill.HOLD, Fill.HOLD, Fill.LINEAR, Fill.LINEAR,
+                Fill.LINEAR, Fill.LINEAR);
+        double[] values = new double[6];
+        wheelData.addSampleSubscriber(sample -> {
+            values[WHEEL_COUNT_L] = sample.getEncoderCountLeft();
+            values[WHEEL_COUNT_R] = sample.getEncoderCountRight();
+            values[WHEEL_DISTANCE_L] = sample.getDistanceLeft();
+            values[WHEEL_DISTANCE_R] = sample.getDistanceRight();
+            values[WHEEL_SPEED_L] = sample.getSpeedBufferedLeft();
+            values[WHEEL_SPEED_R] = sample.getSpeedBufferedRight();
+            stream.put(sample.getTimestamp(), values);
+        });
+        return stream;
+    }
+
+    /**
+     * @return stream fed with every sample of orientationData. See the ORIENTATION_ constants for
+     * its fields. Sensor timestamps count from boot rather than {@link System#nanoTime()}, so the
+     * stream's clock offset is set to the difference between the two.
+     */
+    public Stream addOrientationData(OrientationData orientationData) {
+        Stream stream = addStream("orientation", Fill.LINEAR, Fill.LINEAR);
+        stream.setClockOffset(System.nanoTime() - SystemClock.elapsedRealtimeNanos());
+        orientationData.addSampleSubscriber(sample -> stream.put(sample.getTimestamp(),
+                sample.getThetaRad(), sample.getAngularVelocityRad()));
+        return stream;
+    }
+
+    /**
+     * @return stream fed with the battery voltage samples of batteryData. See the BATTERY_
+     * constants for its fields.
+     */
+    public Stream addBatteryData(BatteryData batteryData) {
+        Stream stream = addStream("battery", Fill.HOLD);
+        batteryData.addSampleSubscriber(sample -> {
+            if (sample.hasBatteryVoltage()) {
+                stream.put(sample.getTimestamp(), sample.getBatteryVoltage());
+            }
+        });
+        return stream;
+    }
+
+    /**
+     * @return snapshot sized for the streams added so far. Reuse it for every query
+     */
+    public synchronized Snapshot newSnapshot() {
+        return new Snapshot(streams.length, fieldCount);
+    }
+
+    /**
+     * Fills into with the value of every stream at time.
+     * @param time in ns see {@link System#nanoTime()}
+     * @throws IllegalStateException if streams were added after into was created
+     */
+    public Snapshot sample(long time, Snapshot into) {
+        Stream[] current = streams;
+        if (current.length > into.valid.length) {
+            throw new IllegalStateException("Snapshot was created before stream "
+                    + current[into.valid.length].name + " was added");
+        }
+        into.time = time;
+        for (Stream stream : current) {
+            stream.sample(time, into);
+        }
+        return into;
+    }
+
+    /**
+     * Fills into with the value of every stream as of now, less the delay this was created with.
+     */
+    public Snapshot sampleLatest(Snapshot into) {
+        return sample(System.nanoTime() - delay, into);
+    }
+
+    /**
+     * Like {@link #start(double, SnapshotListener, EventLoop)}, on a loop of this aligner's own in
+     * the {@link EventLoop.Priority#REAL_TIME_CONTROL} class, which {@link #stop()} quits.
+     */
+    public synchronized void start(double hz, SnapshotListener listener) {
+        start(hz, listener, new EventLoop("streamAligner", EventLoop.Priority.REAL_TIME_CONTROL), true);
+    }
+
+    /**
+     * Calls listener with a snapshot at a fixed rate on eventLoop, e.g. on
+     * {@link jp.oist.abcvlib.util.EventLoops#getControlLoop()} next to the controllers using the
+     * snapshots. Snapshot times lie on an exact grid 1/hz apart, less the delay this was created
+     * with, however late each call runs. Calls that are more than a period late are skipped
+     * rather than made in a burst.
+     * @param hz at most 1000, as a loop schedules in whole milliseconds
+     * @throws IllegalArgumentException if hz is not above 0 or above 1000
+     */
+    public synchronized void start(double hz, SnapshotListener listener, EventLoop eventLoop) {
+        start(hz, listener, eventLoop, false);
+    }
+
+    private void start(double hz, SnapshotListener listener, EventLoop eventLoop, boolean ownsLoop) {
+        if (!(hz > 0)) {
+            throw new IllegalArgumentException("hz must be above 0, not " + hz);
+        }
+        long period = (long) (1e9 / hz);
+        if (period < MIN_PERIOD) {
+            throw new IllegalArgumentException(hz + "Hz is above the 1000Hz an event loop can sample at");
+        }
+        if (sampler != null) {
+            throw new IllegalStateException("Already sampling");
+        }
+        samplingLoop = eventLoop;
+        ownsSamplingLoop = ownsLoop;
+        sampler = new Sampler(listener, period, eventLoop.start());
+        sampler.post();
+    }
+
+    public synchronized void stop() {
+        if (sampler != null) {
+            sampler.cancel();
+            if (ownsSamplingLoop) {
+                samplingLoop.quit();
+            }
+            sampler = null;
+            samplingLoop = null;
+        }
+    }
+
+    /**
+     * Takes a snapshot at every point of the grid on the loop of handler, starting now.
+     */
+    private final class Sampler implements Runnable {
+        private final SnapshotListener listener;
+        private final long period;
+        private final Handler handler;
+        private final Snapshot snapshot = newSnapshot();
+        // System.nanoTime of the first snapshot's run. Its query time is delay earlier
+        private final long firstRun = System.nanoTime();
+        // Grid point of the next snapshot. Only used on the loop once posted
+        private long count = 0;
+        private volatile boolean cancelled = false;
+
+        private Sampler(SnapshotListener listener, long period, Handler handler) {
+            this.listener = listener;
+            this.period = period;
+            this.handler = handler;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                listener.onSnapshot(sample(firstRun + count * period - delay, snapshot));
+            } catch (RuntimeException e) {
+                ErrorHandler.eLog(TAG, "Snapshot listener threw", e, false);
+            }
+            count++;
+            long now = System.nanoTime();
+            if (firstRun + count * period < now) {
+                // More than a period behind, e.g. after a slow listener. Stay on the grid
+                count = (now - firstRun) / period + 1;
+            }
+            if (!cancelled) {
+                post();
+            }
+        }
+
+        // Posts this at the first uptime millisecond not before the next grid point
+        private void post() {
+            long wait = Math.max(0, firstRun + count * period - System.nanoTime());
+            handler.postAtTime(this, SystemClock.uptimeMillis() + (wait + 999999) / 1000000);
+        }
+
+        private void cancel() {
+            cancelled = true;
+            handler.removeCallbacks(this);
+        }
+    }
+
+    public interface SnapshotListener {
+        /**
+         * @param snapshot reused for every call, so only valid for the duration of the call
+         */
+        void onSnapshot(Snapshot snapshot);
+    }
+
+    /**
+     * History of one stream. Samples must arrive in timestamp order; older ones are dropped.
+     */
+    public final class Stream {
+        private final String name;
+        private final int index;
+        private final int offset;
+        private final Fill[] fills;
+        private final long[] times;
+        private final double[] values;
+        private long clockOffset = 0;
+        // Slot the next sample is written to, and the number of samples held
+        private int head = 0;
+        private int size = 0;
+        private long droppedCount = 0;
+
+        private Stream(String name, int index, int offset, Fill[] fills) {
+            this.name = name;
+            this.index = index;
+            this.offset = offset;
+            this.fills = fills;
+            times = new long[capacity];
+            values = new double[capacity * fills.length];
+        }
+
+        /**
+         * @param clockOffset in ns, added to every timestamp to bring it onto the
+         *                    {@link System#nanoTime()} clock
+         */
+        public synchronized void setClockOffset(long clockOffset) {
+            this.clockOffset = clockOffset;
+        }
+
+        public void put(long timestamp, double value) {
+            synchronized (this) {
+                int slot = claim(timestamp);
+                if (slot >= 0) {
+                    values[slot * fills.length] = value;
+                }
+            }
+        }
+
+        public void put(long timestamp, double value0, double value1) {
+            synchronized (this) {
+                int slot = claim(timestamp);
+                if (slot >= 0) {
+                    values[slot * fills.length] = value0;
+                    values[slot * fills.length + 1] = value1;
+                }
+            }
+        }
+
+        /**
+         * @param values one per field, copied
+         */
+        public void put(long timestamp, double[] values) {
+            synchronized (this) {
+                int slot = claim(timestamp);
+                if (slot >= 0) {
+                    System.arraycopy(values, 0, this.values, slot * fills.length, fills.length);
+                }
+            }
+        }
+
+        /**
+         * @return slot to write the values of the sample at timestamp to, or -1 if it is older than
+         * the latest sample
+         */
+        private int claim(long timestamp) {
+            long time = timestamp + clockOffset;
+            if (size > 0 && time < times[slot(size - 1)]) {
+                droppedCount++;
+                return -1;
+            }
+            int slot = head;
+            times[slot] = time;
+            head = (head + 1) % capacity;
+            if (size < capacity) {
+                size++;
+            }
+            return slot;
+        }
+
+        /**
+         * @return ring slot of the i-th oldest sample held
+         */
+        private int slot(int i) {
+            return (head - size + i + capacity) % capacity;
+        }
+
+        private synchronized void sample(long time, Snapshot into) {
+            int fieldCount = fills.length;
+            if (size == 0) {
+                into.valid[index] = false;
+                into.sampleTimes[index] = 0;
+                Arrays.fill(into.values, offset, offset + fieldCount, Double.NaN);
+                return;
+            }
+            into.valid[index] = true;
+            // Index of the newest sample at or before time, checking the newest first as queries
+            // are usually close to now
+            int before;
+            if (times[slot(size - 1)] <= time) {
+                before = size - 1;
+            } else if (time < times[slot(0)]) {
+                before = -1;
+            } else {
+                int low = 0;
+                int high = size - 1; // times[slot(low)] <= time < times[slot(high)]
+                while (high - low > 1) {
+                    int mid = (low + high) >>> 1;
+                    if (times[slot(mid)] <= time) {
+                        low = mid;
+                    } else {
+                        high = mid;
+                    }
+                }
+                before = low;
+            }
+            if (before < 0 || before == size - 1) {
+                // Outside the history, hold the nearest sample rather than extrapolate
+                int slot = slot(Math.max(before, 0));
+                into.sampleTimes[index] = times[slot];
+                System.arraycopy(values, slot * fieldCount, into.values, offset, fieldCount);
+                return;
+            }
+            int slot0 = slot(before);
+            int slot1 = slot(before + 1);
+            long t0 = times[slot0];
+            double fraction = (double) (time - t0) / (times[slot1] - t0);
+            into.sampleTimes[index] = t0;
+            for (int i = 0; i < fieldCount; i++) {
+                double value0 = values[slot0 * fieldCount + i];
+                into.values[offset + i] = fills[i] == Fill.HOLD ? value0 :
+                        value0 + fraction * (values[slot1 * fieldCount + i] - value0);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getFieldCount() {
+            return fills.length;
+        }
+
+        /**
+         * @return number of samples dropped for arriving out of order
+         */
+        public synchronized long getDroppedCount() {
+            return droppedCount;
+        }
+    }
+
+    /**
+     * Values of all streams at one time, filled by {@link #sample(long, Snapshot)}. Fields are laid
+     * out stream after stream in the order the streams were added, so {@link #getValues()} can be
+     * used directly as a state vector.
+     */
+    public static final class Snapshot {
+        private long time;
+        private final double[] values;
+        private final long[] sampleTimes;
+        private final boolean[] valid;
+
+        private Snapshot(int streamCount, int fieldCount) {
+            values = new double[fieldCount];
+            sampleTimes = new long[streamCount];
+            valid = new boolean[streamCount];
+            Arrays.fill(values, Double.NaN);
+        }
+
+        /**
+         * @return query time in ns see {@link System#nanoTime()}
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public double get(Stream stream, int field) {
+            return values[stream.offset + field];
+        }
+
+        /**
+         * @return all values. Do not modify
+         */
+        public double[] getValues() {
+            return values;
+        }
+
+        /**
+         * @return false if stream had no samples yet, in which case its values are NaN
+         */
+        public boolean isValid(Stream stream) {
+            return valid[stream.index];
+        }
+
+        /**
+         * @return in ns, how long before the query time the last sample of stream used was taken.
+         * Negative if the query time is before the oldest sample held
+         */
+        public long getAge(Stream stream) {
+            return time - sampleTimes[stream.index];
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package jp.oist.abcvlib.core.inputs;
+
+import jp.oist.abcvlib.util.LatencyHistogram;
+
+/**
+ * Delivery statistics of one subscriber of a {@link Publisher}, see {@link PublisherStats}.
+ * <br><br>
+ * Callback time is how long the subscriber's callback took. Latency is from the publisher
+ * publishing a sample until the subscriber returned from it, so it includes the time spent queued
+ * behind earlier samples and, for publishers calling their subscribers directly, behind the
+ * subscribers called before this one. A slow subscriber shows a long callback time of its own,
+ * whereas one held up by others only shows a long latency.
+ * <br><br>
+ * Updated on the thread calling the subscriber and can be read from any thread.
+ */
+public class SubscriberStats {
+    private final String name;
+    private final LatencyHistogram callbackTime = new LatencyHistogram();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final RateMeter rate = new RateMeter();
+    // null for subscribers called directly by their publisher
+    volatile EventRing.Consumer consumer;
+    private volatile long skippedCount = 0;
+
+    SubscriberStats(String name) {
+        this.name = name;
+    }
+
+    void onCallback(long publishTime, long start, long end) {
+        callbackTime.record(end - start);
+        latency.record(end - publishTime);
+        rate.onEvent(end);
+    }
+
+    void onSkipped() {
+        skippedCount++;
+    }
+
+    /**
+     * @return class name of the subscriber
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of samples the subscriber was called with
+     */
+    public long getDispatchedCount() {
+        return callbackTime.getCount();
+    }
+
+    /**
+     * @return recent number of samples the subscriber was called with per second
+     */
+    public double getRate() {
+        return rate.getRate();
+    }
+
+    public LatencyHistogram getCallbackTime() {
+        return callbackTime;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return number of samples lost because the subscriber fell more than the ring capacity behind
+     */
+    public long getDroppedCount() {
+        EventRing.Consumer consumer = this.consumer;
+        return consumer == null ? 0 : consumer.getMissedCount();
+    }
+
+    /**
+     * @return number of samples not passed on because of the subscriber's {@link DeliveryPolicy}
+     */
+    public long getSkippedCount() {
+        EventRing.Consumer consumer = this.consumer;
+        return consumer == null ? skippedCount : consumer.getSkippedCount();
+    }
+
+    /**
+     * @return number of samples published but not yet handled by the subscriber. Always 0 for
+     * subscribers called directly by their publisher
+     */
+    public long getQueueDepth() {
+        EventRing.Consumer consumer = this.consumer;
+        return consumer == null ? 0 : consumer.getLag();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + String.format("%.1f", getRate()) + "Hz" +
+                ", callback " + callbackTime +
+                ", latency " + latency +
+                ", queued=" + getQueueDepth() +
+                " dropped=" + getDroppedCount() +
+                " skipped=" + getSkippedCount();
+    }
+}
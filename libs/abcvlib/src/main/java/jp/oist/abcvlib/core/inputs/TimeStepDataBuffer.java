@@ -15,6 +15,7 @@ import java.util.concurrent.Future;
 
 import jp.oist.abcvlib.core.inputs.microcontroller.BatteryDataSubscriber;
 import jp.oist.abcvlib.core.inputs.microcontroller.WheelDataSubscriber;
+import jp.oist.abcvlib.core.inputs.phone.FramePool;
 import jp.oist.abcvlib.core.inputs.phone.ImageDataRawSubscriber;
 import jp.oist.abcvlib.core.inputs.phone.MicrophoneDataSubscriber;
 import jp.oist.abcvlib.core.inputs.phone.OrientationDataSubscriber;
@@ -109,10 +110,20 @@ public class TimeStepDataBuffer implements BatteryDataSubscriber, WheelDataSubsc
 
     @Override
     public void onImageDataRawUpdate(long timestamp, int width, int height, Bitmap bitmap) {
-        getWriteData().getImageData().add(timestamp, width, height, bitmap, null);
+        // Camera frames are pooled, so keep this one until compressed but do not store it
+        FramePool.Frame frame = FramePool.retain(bitmap);
+        getWriteData().getImageData().add(timestamp, width, height, frame == null ? bitmap : null, null);
         // Handler to compress and put images into buffer
         synchronized (imgCompFuturesTimeStep){
-            imgCompFuturesTimeStep.add(imageCompressionExecutor.submit(() -> ImageOps.addCompressedImage2Buffer(writeIndex, timestamp, bitmap, buffer)));
+            imgCompFuturesTimeStep.add(imageCompressionExecutor.submit(() -> {
+                try {
+                    ImageOps.addCompressedImage2Buffer(writeIndex, timestamp, bitmap, buffer);
+                } finally {
+                    if (frame != null){
+                        frame.release();
+                    }
+                }
+            }));
         }
     }
 
@@ -414,6 +425,10 @@ public class TimeStepDataBuffer implements BatteryDataSubscriber, WheelDataSubsc
                     this.webpImage = webpImage;
                 }
 
+                /**
+                 * @return null for pooled camera frames, whose bitmap is reused once
+                 * compressed, see {@link #getWebpImage()}
+                 */
                 public Bitmap getBitmap() {
                     return bitmap;
                 }
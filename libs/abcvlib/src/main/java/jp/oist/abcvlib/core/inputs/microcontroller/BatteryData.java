@@ -1,19 +1,23 @@
 package jp.oist.abcvlib.core.inputs.microcontroller;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.HandlerThread;
 
 import java.util.ArrayList;
 
-import jp.oist.abcvlib.core.AbcvlibLooper;
+import jp.oist.abcvlib.core.inputs.DeliveryPolicy;
+import jp.oist.abcvlib.core.inputs.EventRing;
 import jp.oist.abcvlib.core.inputs.PublisherManager;
-import jp.oist.abcvlib.core.inputs.Publisher;
+import jp.oist.abcvlib.core.inputs.PublisherRecorder;
+import jp.oist.abcvlib.core.inputs.RingPublisher;
 
-public class BatteryData extends Publisher<BatteryDataSubscriber> {
+public class BatteryData extends RingPublisher<BatteryDataSubscriber> {
+    // Event layout in the eventRing, see BatterySample
+    private static final int TYPE = BatterySample.TYPE;
+    private static final int TIMESTAMP = BatterySample.TIMESTAMP;
 
     public BatteryData(Context context, PublisherManager publisherManager){
-        super(context, publisherManager);
+        super(context, publisherManager, new EventRing("batteryThread", 256,
+                BatterySample.FIELD_COUNT, BatterySample.DOUBLE_FIELDS));
     }
 
     public static class Builder{
@@ -31,39 +35,114 @@ public class BatteryData extends Publisher<BatteryDataSubscriber> {
     }
 
     public void onBatteryVoltageUpdate(long timestamp, double voltage) {
-        for (BatteryDataSubscriber subscriber: subscribers){
-            handler.post(() -> {
-                if (!paused){
-                    subscriber.onBatteryVoltageUpdate(timestamp, voltage);
-                }
-            });
+        onProduced();
+        PublisherRecorder publisherRecorder = this.publisherRecorder;
+        if (publisherRecorder != null){
+            publisherRecorder.recordBatteryVoltage(timestamp, voltage);
         }
+        if (!eventRing.hasConsumers()){
+            return;
+        }
+        long sequence = eventRing.claim();
+        putSample(sequence, BatterySample.TYPE_BATTERY, timestamp, voltage, Double.NaN, Double.NaN,
+                Double.NaN, 0, 0, 0, false);
+        eventRing.publish(sequence);
     }
 
     public void onChargerVoltageUpdate(long timestamp, double chargerVoltage, double coilVoltage) {
-        for (BatteryDataSubscriber subscriber: subscribers){
-            handler.post(() -> {
-                if (!paused){
-                    subscriber.onChargerVoltageUpdate(timestamp, chargerVoltage, coilVoltage);
-                }
-            });
+        onProduced();
+        PublisherRecorder publisherRecorder = this.publisherRecorder;
+        if (publisherRecorder != null){
+            publisherRecorder.recordChargerVoltage(timestamp, chargerVoltage, coilVoltage);
+        }
+        if (!eventRing.hasConsumers()){
+            return;
         }
+        long sequence = eventRing.claim();
+        putSample(sequence, BatterySample.TYPE_CHARGER, timestamp, Double.NaN, chargerVoltage,
+                coilVoltage, Double.NaN, 0, 0, 0, false);
+        eventRing.publish(sequence);
+    }
+
+    /**
+     * Publishes everything the rp2040 reports about the battery and chargers as one sample.
+     * {@link BatteryDataSubscriber}s get both their onBatteryVoltageUpdate and
+     * onChargerVoltageUpdate called for it, {@link BatterySampleSubscriber}s get all of it.
+     * @param voltage battery voltage in V
+     * @param temperature fuel gauge temperature reading divided by 10
+     * @param chargerVoltage usb charger voltage in V
+     * @param coilVoltage wireless charger coil (vrect) voltage in V
+     */
+    public void onBatteryStateUpdate(long timestamp, double voltage, double temperature,
+                                     int stateOfHealth, int safetyStatus, int flags,
+                                     double chargerVoltage, double coilVoltage,
+                                     boolean wirelessChargerAttached) {
+        onProduced();
+        PublisherRecorder publisherRecorder = this.publisherRecorder;
+        if (publisherRecorder != null){
+            publisherRecorder.recordBatteryState(timestamp, voltage, temperature, stateOfHealth, safetyStatus,
+                    flags, chargerVoltage, coilVoltage, wirelessChargerAttached);
+        }
+        if (!eventRing.hasConsumers()){
+            return;
+        }
+        long sequence = eventRing.claim();
+        putSample(sequence, BatterySample.TYPE_STATE, timestamp, voltage, chargerVoltage,
+                coilVoltage, temperature, stateOfHealth, safetyStatus, flags,
+                wirelessChargerAttached);
+        eventRing.publish(sequence);
+    }
+
+    // Every field is written as ring slots are reused
+    private void putSample(long sequence, int type, long timestamp, double voltage,
+                           double chargerVoltage, double coilVoltage, double temperature,
+                           int stateOfHealth, int safetyStatus, int flags,
+                           boolean wirelessChargerAttached) {
+        eventRing.putInt(sequence, TYPE, type);
+        eventRing.putLong(sequence, TIMESTAMP, timestamp);
+        eventRing.putDouble(sequence, BatterySample.VOLTAGE, voltage);
+        eventRing.putDouble(sequence, BatterySample.CHARGER_VOLTAGE, chargerVoltage);
+        eventRing.putDouble(sequence, BatterySample.COIL_VOLTAGE, coilVoltage);
+        eventRing.putDouble(sequence, BatterySample.TEMPERATURE, temperature);
+        eventRing.putInt(sequence, BatterySample.STATE_OF_HEALTH, stateOfHealth);
+        eventRing.putInt(sequence, BatterySample.SAFETY_STATUS, safetyStatus);
+        eventRing.putInt(sequence, BatterySample.FLAGS, flags);
+        eventRing.putInt(sequence, BatterySample.WIRELESS_ATTACHED, wirelessChargerAttached ? 1 : 0);
     }
 
     @Override
-    public void start() {
-        mHandlerThread = new HandlerThread("batteryThread");
-        mHandlerThread.start();
-        handler = new Handler(mHandlerThread.getLooper());
-        publisherManager.onPublisherInitialized();
-        super.start();
+    protected void dispatch(BatteryDataSubscriber subscriber, EventRing.Event event) {
+        int type = event.getInt(TYPE);
+        if (type != BatterySample.TYPE_CHARGER){
+            subscriber.onBatteryVoltageUpdate(event.getLong(TIMESTAMP),
+                    event.getDouble(BatterySample.VOLTAGE));
+        }
+        if (type != BatterySample.TYPE_BATTERY){
+            subscriber.onChargerVoltageUpdate(event.getLong(TIMESTAMP),
+                    event.getDouble(BatterySample.CHARGER_VOLTAGE),
+                    event.getDouble(BatterySample.COIL_VOLTAGE));
+        }
+    }
+
+    /**
+     * Subscribes to every sample as a reusable {@link BatterySample} view rather than separate
+     * arguments. The subscriber is called on this publisher's event loop.
+     */
+    public BatteryData addSampleSubscriber(BatterySampleSubscriber subscriber) {
+        return addSampleSubscriber(subscriber, DeliveryPolicy.EVERY_SAMPLE);
+    }
+
+    public BatteryData addSampleSubscriber(BatterySampleSubscriber subscriber, DeliveryPolicy policy) {
+        BatterySample sample = new BatterySample();
+        addEventHandler(subscriber.getClass().getSimpleName(),
+                event -> subscriber.onBatterySample(sample.wrap(event)), policy);
+        return this;
     }
 
     @Override
-    public void stop() {
-        mHandlerThread.quitSafely();
-        handler = null;
-        super.stop();
+    public void start() {
+        super.start();
+        publisherManager.onPublisherInitialized(this);
     }
 
     @Override
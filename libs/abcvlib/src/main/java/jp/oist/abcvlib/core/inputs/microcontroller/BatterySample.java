@@ -0,0 +1,130 @@
+package jp.oist.abcvlib.core.inputs.microcontroller;
+
+import jp.oist.abcvlib.core.inputs.EventRing;
+
+/**
+ * Read-only view of one battery sample passed to a {@link BatterySampleSubscriber}. Each
+ * subscriber gets one instance that is pointed at every new sample in turn, so nothing is
+ * allocated per sample. Do not keep a reference to it beyond the callback.
+ * <br><br>
+ * Samples published through {@link BatteryData#onBatteryVoltageUpdate(long, double)} or
+ * {@link BatteryData#onChargerVoltageUpdate(long, double, double)} only carry part of the fields.
+ * Check {@link #hasBatteryVoltage()}, {@link #hasChargerVoltage()} and {@link #hasDetails()}
+ * before reading the rest, which are NaN or 0 otherwise.
+ * <br><br>
+ * With an aggregate {@link jp.oist.abcvlib.core.inputs.DeliveryPolicy} the voltages and
+ * temperature are aggregated over the window, while the rest are those of the latest sample in it.
+ * A window mixing samples with and without a value gives NaN for it.
+ */
+public final class BatterySample {
+    // Event layout in the BatteryData eventRing
+    static final int TYPE = 0;
+    static final int TIMESTAMP = 1;
+    static final int VOLTAGE = 2;
+    static final int CHARGER_VOLTAGE = 3;
+    static final int COIL_VOLTAGE = 4;
+    static final int TEMPERATURE = 5;
+    static final int STATE_OF_HEALTH = 6;
+    static final int SAFETY_STATUS = 7;
+    static final int FLAGS = 8;
+    static final int WIRELESS_ATTACHED = 9;
+    static final int FIELD_COUNT = 10;
+    static final int[] DOUBLE_FIELDS = {VOLTAGE, CHARGER_VOLTAGE, COIL_VOLTAGE, TEMPERATURE};
+    // Values of TYPE
+    static final int TYPE_BATTERY = 0;
+    static final int TYPE_CHARGER = 1;
+    static final int TYPE_STATE = 2;
+
+    private EventRing.Event event;
+
+    BatterySample() {
+    }
+
+    BatterySample wrap(EventRing.Event event) {
+        this.event = event;
+        return this;
+    }
+
+    /**
+     * @return ever increasing number of this sample. Gaps mean samples were skipped as the
+     * subscriber fell behind.
+     */
+    public long getSequence() {
+        return event.getSequence();
+    }
+
+    /**
+     * @return in nanoseconds see {@link java.lang.System#nanoTime()}
+     */
+    public long getTimestamp() {
+        return event.getLong(TIMESTAMP);
+    }
+
+    public boolean hasBatteryVoltage() {
+        return event.getInt(TYPE) != TYPE_CHARGER;
+    }
+
+    public boolean hasChargerVoltage() {
+        return event.getInt(TYPE) != TYPE_BATTERY;
+    }
+
+    /**
+     * @return true if the fuel gauge and charger details below are included
+     */
+    public boolean hasDetails() {
+        return event.getInt(TYPE) == TYPE_STATE;
+    }
+
+    /**
+     * @return in V
+     */
+    public double getBatteryVoltage() {
+        return event.getDouble(VOLTAGE);
+    }
+
+    /**
+     * @return usb charger voltage in V
+     */
+    public double getChargerVoltage() {
+        return event.getDouble(CHARGER_VOLTAGE);
+    }
+
+    /**
+     * @return wireless charger coil (vrect) voltage in V
+     */
+    public double getCoilVoltage() {
+        return event.getDouble(COIL_VOLTAGE);
+    }
+
+    /**
+     * @return fuel gauge temperature reading divided by 10
+     */
+    public double getTemperature() {
+        return event.getDouble(TEMPERATURE);
+    }
+
+    /**
+     * @return fuel gauge state of health in percent
+     */
+    public int getStateOfHealth() {
+        return event.getInt(STATE_OF_HEALTH);
+    }
+
+    /**
+     * @return fuel gauge safety status register
+     */
+    public int getSafetyStatus() {
+        return event.getInt(SAFETY_STATUS);
+    }
+
+    /**
+     * @return fuel gauge flags register
+     */
+    public int getFlags() {
+        return event.getInt(FLAGS);
+    }
+
+    public boolean isWirelessChargerAttached() {
+        return event.getInt(WIRELESS_ATTACHED) != 0;
+    }
+}
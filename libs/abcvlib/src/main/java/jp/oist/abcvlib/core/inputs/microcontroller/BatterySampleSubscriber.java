@@ -0,0 +1,14 @@
+package jp.oist.abcvlib.core.inputs.microcontroller;
+
+/**
+ * Alternative to {@link BatteryDataSubscriber} receiving each sample as a {@link BatterySample},
+ * including the fuel gauge and charger details the rp2040 reports. Register with
+ * {@link BatteryData#addSampleSubscriber(BatterySampleSubscriber)}.
+ */
+public interface BatterySampleSubscriber {
+    /**
+     * Called on this subscriber's consumer loop or thread for every battery sample.
+     * @param sample only valid for the duration of the call
+     */
+    void onBatterySample(BatterySample sample);
+}
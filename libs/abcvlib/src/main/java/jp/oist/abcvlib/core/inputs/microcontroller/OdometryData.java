@@ -0,0 +1,270 @@
+package jp.oist.abcvlib.core.inputs.microcontroller;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+import jp.oist.abcvlib.core.inputs.EventRing;
+import jp.oist.abcvlib.core.inputs.RingPublisher;
+import jp.oist.abcvlib.core.inputs.PublisherManager;
+import jp.oist.abcvlib.core.inputs.phone.OrientationData;
+import jp.oist.abcvlib.core.inputs.phone.OrientationSample;
+
+/**
+ * Differential drive odometry built on {@link WheelData}, so controllers can subscribe to the
+ * robot's pose and body velocities instead of each integrating wheel distances themselves.
+ * <br><br>
+ * Every wheel sample advances the pose (x, y, heading) by the change in distance of each wheel
+ * since the previous sample, moving along the arc between them, so the state is a handful of
+ * doubles however long it runs. Distances come from the encoder counts, so samples missed in
+ * between only make the arc coarser and do not lose distance. Body velocities are taken from the
+ * buffered wheel speeds of {@link WheelData}. Odometry is published at the encoder rate.
+ * <br><br>
+ * Wheel odometry drifts in heading as wheels slip. Given an {@link OrientationData}, the heading
+ * is pulled towards the phone's azimuth with a complementary filter of the given time constant, so
+ * the wheels decide short term turns and the phone the long term heading. This assumes the
+ * phone's azimuth follows the robot's yaw, i.e. the phone is not mounted near vertical. An
+ * OrientationData in {@link OrientationData.Mode#COMPLEMENTARY} mode has no azimuth, so the heading
+ * is then left to the wheels and a warning is logged.
+ * <br><br>
+ * The wheel base (distance between the wheel contact points) must be set, see
+ * {@link Builder#setWheelBase(double)}.
+ */
+public class OdometryData extends RingPublisher<OdometryDataSubscriber> {
+    // Event layout in the eventRing
+    private static final int TIMESTAMP = 0;
+    private static final int X = 1;
+    private static final int Y = 2;
+    private static final int HEADING = 3;
+    private static final int LINEAR_VELOCITY = 4;
+    private static final int ANGULAR_VELOCITY = 5;
+    private static final int FIELD_COUNT = 6;
+    // Heading wraps around at +-Pi so it is not aggregated
+    private static final int[] DOUBLE_FIELDS = {X, Y, LINEAR_VELOCITY, ANGULAR_VELOCITY};
+
+    private final double wheelBase;
+    private final Integrator integrator;
+
+    // Integration state. Only touched by onWheelSample, i.e. on the event loop of WheelData
+    private boolean hasPrevious = false;
+    private double previousDistanceL;
+    private double previousDistanceR;
+    private long previousTimestamp;
+
+    // Written by the OrientationData callback
+    private volatile double azimuth = Double.NaN;
+    private volatile boolean resetRequested = false;
+    private boolean warnedNoAzimuth = false;
+
+    /**
+     * @param wheelBase in mm
+     * @param orientationData to fuse the heading with, or null for wheels only
+     * @param headingTimeConstant in seconds, see {@link Builder#setOrientationData(OrientationData, double)}
+     */
+    public OdometryData(Context context, PublisherManager publisherManager, WheelData wheelData,
+                        double wheelBase, OrientationData orientationData, double headingTimeConstant){
+        super(context, publisherManager, new EventRing("odometryThread", 256, FIELD_COUNT,
+                DOUBLE_FIELDS));
+        if (!(wheelBase > 0)){
+            throw new IllegalArgumentException("wheelBase must be set to the distance between the wheels in mm");
+        }
+        this.wheelBase = wheelBase;
+        this.integrator = new Integrator(wheelBase, headingTimeConstant);
+        wheelData.addSampleSubscriber(this::onWheelSample);
+        dependsOn(wheelData);
+        if (orientationData != null){
+            orientationData.addSampleSubscriber(this::onOrientationSample);
+        }
+    }
+
+    public static class Builder{
+        private final Context context;
+        private final PublisherManager publisherManager;
+        private final WheelData wheelData;
+        private double wheelBase = 0;
+        private OrientationData orientationData;
+        private double headingTimeConstant = 1;
+
+        public Builder(Context context, PublisherManager publisherManager, WheelData wheelData){
+            this.context = context;
+            this.publisherManager = publisherManager;
+            this.wheelData = wheelData;
+        }
+
+        public OdometryData build(){
+            return new OdometryData(context, publisherManager, wheelData, wheelBase,
+                    orientationData, headingTimeConstant);
+        }
+
+        /**
+         * @param wheelBase distance between the wheel contact points in mm. Required
+         */
+        public OdometryData.Builder setWheelBase(double wheelBase){
+            this.wheelBase = wheelBase;
+            return this;
+        }
+
+        /**
+         * Fuses the heading with the azimuth of orientationData. Has no effect if orientationData
+         * is in {@link OrientationData.Mode#COMPLEMENTARY} mode, which has no azimuth.
+         * @param headingTimeConstant in seconds. Heading differences between the wheels and the
+         *                            phone lasting longer than this are mostly corrected
+         */
+        public OdometryData.Builder setOrientationData(OrientationData orientationData,
+                                                       double headingTimeConstant){
+            this.orientationData = orientationData;
+            this.headingTimeConstant = headingTimeConstant;
+            return this;
+        }
+    }
+
+    /**
+     * Called by the consumer this publisher added to the ring of WheelData, so on the event loop
+     * of WheelData rather than that of this publisher, and only while WheelData is not paused.
+     * Samples that consumer was lapped on are skipped, which only makes the arc coarser.
+     */
+    private void onWheelSample(WheelSample sample){
+        onProduced();
+        long timestamp = sample.getTimestamp();
+        double distanceL = sample.getDistanceLeft();
+        double distanceR = sample.getDistanceRight();
+        if (resetRequested){
+            resetRequested = false;
+            integrator.reset();
+        }
+        if (hasPrevious){
+            integrator.integrate(distanceL - previousDistanceL, distanceR - previousDistanceR,
+                    (timestamp - previousTimestamp) / 1e9, azimuth);
+        }
+        hasPrevious = true;
+        previousDistanceL = distanceL;
+        previousDistanceR = distanceR;
+        previousTimestamp = timestamp;
+        if (paused || !eventRing.hasConsumers()){
+            return;
+        }
+        double speedL = sample.getSpeedBufferedLeft();
+        double speedR = sample.getSpeedBufferedRight();
+        long sequence = eventRing.claim();
+        eventRing.putLong(sequence, TIMESTAMP, timestamp);
+        eventRing.putDouble(sequence, X, integrator.getX());
+        eventRing.putDouble(sequence, Y, integrator.getY());
+        eventRing.putDouble(sequence, HEADING, integrator.getHeading());
+        eventRing.putDouble(sequence, LINEAR_VELOCITY, (speedL + speedR) / 2);
+        eventRing.putDouble(sequence, ANGULAR_VELOCITY, (speedR - speedL) / wheelBase);
+        eventRing.publish(sequence);
+    }
+
+    /**
+     * Called on the event loop of OrientationData for every orientation sample.
+     */
+    private void onOrientationSample(OrientationSample sample){
+        double azimuthRad = sample.getAzimuthRad();
+        if (Double.isNaN(azimuthRad) && !warnedNoAzimuth){
+            warnedNoAzimuth = true;
+            Log.w(TAG, "OrientationData gives no azimuth, e.g. in COMPLEMENTARY mode. The heading " +
+                    "is taken from the wheels alone");
+        }
+        azimuth = azimuthRad;
+    }
+
+    /**
+     * The pose integrated from wheel distances and fused with the azimuth, kept apart from the
+     * publisher so the math can be checked without one.
+     */
+    static final class Integrator {
+        private final double wheelBase;
+        private final double headingTimeConstant;
+        private double x = 0;
+        private double y = 0;
+        private double heading = 0;
+        // Azimuth that corresponds to a heading of 0, set from the first azimuth fused
+        private double azimuthOffset = Double.NaN;
+
+        /**
+         * @param wheelBase in the unit of the wheel distances
+         * @param headingTimeConstant in seconds
+         */
+        Integrator(double wheelBase, double headingTimeConstant){
+            this.wheelBase = wheelBase;
+            this.headingTimeConstant = headingTimeConstant;
+        }
+
+        /**
+         * Moves the pose along the arc given by the distance each wheel moved.
+         * @param dt seconds since the previous sample
+         * @param azimuth latest azimuth of the phone in radians, or NaN for wheels only
+         */
+        void integrate(double deltaL, double deltaR, double dt, double azimuth){
+            double delta = (deltaL + deltaR) / 2;
+            double deltaHeading = (deltaR - deltaL) / wheelBase;
+            // Midpoint heading is exact for a constant turn rate up to the chord/arc difference
+            double midHeading = heading + deltaHeading / 2;
+            x += delta * Math.cos(midHeading);
+            y += delta * Math.sin(midHeading);
+            heading = wrap(heading + deltaHeading);
+            if (!Double.isNaN(azimuth)){
+                if (Double.isNaN(azimuthOffset)){
+                    azimuthOffset = heading + azimuth;
+                }
+                // Azimuth is clockwise, heading counterclockwise
+                double measured = azimuthOffset - azimuth;
+                double weight = dt > 0 ? dt / (headingTimeConstant + dt) : 0;
+                heading = wrap(heading + weight * wrap(measured - heading));
+            }
+        }
+
+        void reset(){
+            x = 0;
+            y = 0;
+            heading = 0;
+            azimuthOffset = Double.NaN;
+        }
+
+        double getX(){
+            return x;
+        }
+
+        double getY(){
+            return y;
+        }
+
+        /**
+         * @return heading in radians counterclockwise from the start, within +-Pi
+         */
+        double getHeading(){
+            return heading;
+        }
+
+        private static double wrap(double angle){
+            return Math.atan2(Math.sin(angle), Math.cos(angle));
+        }
+    }
+
+    /**
+     * Makes the current position the origin and the current heading 0, from the next wheel
+     * sample on.
+     */
+    public void reset(){
+        resetRequested = true;
+    }
+
+    @Override
+    protected void dispatch(OdometryDataSubscriber subscriber, EventRing.Event event) {
+        subscriber.onOdometryUpdate(event.getLong(TIMESTAMP), event.getDouble(X),
+                event.getDouble(Y), event.getDouble(HEADING), event.getDouble(LINEAR_VELOCITY),
+                event.getDouble(ANGULAR_VELOCITY));
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        publisherManager.onPublisherInitialized(this);
+    }
+
+    @Override
+    public ArrayList<String> getRequiredPermissions() {
+        return new ArrayList<>();
+    }
+}
@@ -0,0 +1,20 @@
+package jp.oist.abcvlib.core.inputs.microcontroller;
+
+import jp.oist.abcvlib.core.inputs.Subscriber;
+
+public interface OdometryDataSubscriber extends Subscriber {
+
+    /**
+     * Called for every wheel sample with the pose integrated up to it. The pose is relative to
+     * where the robot was when {@link OdometryData} was created or last reset, with x pointing
+     * forward and y to the left at that moment.
+     * @param timestamp of the wheel sample in nanoseconds see {@link java.lang.System#nanoTime()}
+     * @param x in mm
+     * @param y in mm
+     * @param heading in radians counterclockwise from the x axis, in [-Pi, Pi]
+     * @param linearVelocity forward speed in mm/s
+     * @param angularVelocity counterclockwise turn rate in rad/s
+     */
+    void onOdometryUpdate(long timestamp, double x, double y, double heading,
+                          double linearVelocity, double angularVelocity);
+}
@@ -1,30 +1,48 @@
 package jp.oist.abcvlib.core.inputs.microcontroller;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 
 import jp.oist.abcvlib.core.AbcvlibLooper;
+import jp.oist.abcvlib.core.inputs.DeliveryPolicy;
+import jp.oist.abcvlib.core.inputs.EventRing;
 import jp.oist.abcvlib.core.inputs.PublisherManager;
-import jp.oist.abcvlib.core.inputs.Publisher;
+import jp.oist.abcvlib.core.inputs.PublisherRecorder;
+import jp.oist.abcvlib.core.inputs.RingPublisher;
+import jp.oist.abcvlib.core.inputs.SequenceLockedFields;
+import jp.oist.abcvlib.util.DSP;
 
 import static jp.oist.abcvlib.util.DSP.exponentialAvg;
 
-public class WheelData extends Publisher<WheelDataSubscriber> {
+public class WheelData extends RingPublisher<WheelDataSubscriber> {
     //----------------------------------- Wheel speed metrics --------------------------------------
     private final SingleWheelData rightWheel;
     private final SingleWheelData leftWheel;
+    // Latest values of both wheels in the WheelSample layout. Only written by the thread calling
+    // onWheelDataUpdate
+    private final SequenceLockedFields latest = new SequenceLockedFields(WheelSample.FIELD_COUNT);
 
     public WheelData(Context context, PublisherManager publisherManager,
                      int bufferLength, double expWeight){
-        super(context, publisherManager);
+        this(context, publisherManager, bufferLength, expWeight, null);
+    }
 
-        rightWheel = new SingleWheelData(bufferLength, expWeight);
-        leftWheel = new SingleWheelData(bufferLength, expWeight);
+    /**
+     * @param speedFilter creates the filter applied to the buffered speed of each wheel, or null
+     *                    for none. See {@link Builder#setSpeedFilter(DSP.FilterFactory)}
+     */
+    public WheelData(Context context, PublisherManager publisherManager,
+                     int bufferLength, double expWeight, DSP.FilterFactory speedFilter){
+        super(context, publisherManager, new EventRing("wheelDataThread", 256,
+                WheelSample.FIELD_COUNT, WheelSample.DOUBLE_FIELDS));
+
+        rightWheel = new SingleWheelData(bufferLength, expWeight,
+                speedFilter != null ? speedFilter.create() : null);
+        leftWheel = new SingleWheelData(bufferLength, expWeight,
+                speedFilter != null ? speedFilter.create() : null);
     }
 
     public static class Builder{
@@ -32,6 +50,7 @@ public class WheelData extends Publisher<WheelDataSubscriber> {
         private final PublisherManager publisherManager;
         private int bufferLength = 50;
         private double expWeight = 0.01;
+        private DSP.FilterFactory speedFilter = null;
 
         public Builder(Context context, PublisherManager publisherManager){
             this.context = context;
@@ -39,7 +58,7 @@ public class WheelData extends Publisher<WheelDataSubscriber> {
         }
 
         public WheelData build(){
-            return new WheelData(context, publisherManager, bufferLength, expWeight);
+            return new WheelData(context, publisherManager, bufferLength, expWeight, speedFilter);
         }
         public WheelData.Builder setBufferLength(int bufferLength){
             this.bufferLength = bufferLength;
@@ -49,6 +68,15 @@ public class WheelData extends Publisher<WheelDataSubscriber> {
             this.expWeight = expWeight;
             return this;
         }
+        /**
+         * Filters the buffered speed of each wheel, e.g. {@code () -> new DSP.Median(5)} to drop
+         * the spikes of a missed encoder reading. The exponential average is then taken of the
+         * filtered speed. Unfiltered by default.
+         */
+        public WheelData.Builder setSpeedFilter(DSP.FilterFactory speedFilter){
+            this.speedFilter = speedFilter;
+            return this;
+        }
     }
 
     /**
@@ -74,46 +102,100 @@ public class WheelData extends Publisher<WheelDataSubscriber> {
      * can be set via the {@link WheelData#WheelData(Context, PublisherManager, int, double)} constructor or via the
      * {@link WheelData.Builder#setExpWeight(double)} builder method when creating an instance of
      * WheelData.<br><br>
+     * If a filter is set with {@link WheelData.Builder#setSpeedFilter(DSP.FilterFactory)}, 2.) is
+     * filtered before 3.) is calculated from it.<br><br>
      *
      * Finally, this method then acts as
      * a publisher to any subscribers/listeners that implement the {@link WheelDataSubscriber}
-     * interface and passes this quadrature encoder pin state to <br><br>
+     * interface and passes this quadrature encoder pin state to. The metrics are calculated on
+     * the calling thread, published for {@link #getState(WheelState)} and written to the
+     * eventRing, from which each subscriber is called on
+     * this publisher's event loop, see {@link jp.oist.abcvlib.core.inputs.RingPublisher}.<br><br>
      * See the jp.oist.abcvlib.basicsubscriber.MainActivity for an example of this subscription
      * framework
      */
     public void onWheelDataUpdate(long timestamp, int countL, int countR) {
-        handler.post(() -> {
-            rightWheel.update(timestamp, countR);
-            leftWheel.update(timestamp, countL);
-            if (!paused){
-                for (WheelDataSubscriber subscriber:subscribers){
-                    subscriber.onWheelDataUpdate(timestamp, leftWheel.getLatestEncoderCount(),
-                            -rightWheel.getLatestEncoderCount(), leftWheel.getLatestDistance(),
-                            -rightWheel.getLatestDistance(), leftWheel.getSpeedInstantaneous(),
-                            -rightWheel.getSpeedInstantaneous(), leftWheel.getSpeedBuffered(),
-                            -rightWheel.getSpeedBuffered(), leftWheel.getSpeedExponentialAvg(),
-                            -rightWheel.getSpeedExponentialAvg());
-                }
+        onWheelDataUpdate(timestamp, countL, countR, (byte) 0, (byte) 0);
+    }
+
+    /**
+     * See {@link #onWheelDataUpdate(long, int, int)}. The motor driver fault registers are passed
+     * on to {@link WheelSampleSubscriber}s only.
+     */
+    public void onWheelDataUpdate(long timestamp, int countL, int countR, byte faultL, byte faultR) {
+        onProduced();
+        PublisherRecorder publisherRecorder = this.publisherRecorder;
+        if (publisherRecorder != null){
+            publisherRecorder.recordWheelData(timestamp, countL, countR, faultL, faultR);
+        }
+        rightWheel.update(timestamp, countR);
+        leftWheel.update(timestamp, countL);
+        latest.beginWrite();
+        latest.putLong(WheelSample.TIMESTAMP, timestamp);
+        latest.putLong(WheelSample.COUNT_L, leftWheel.getLatestEncoderCount());
+        latest.putLong(WheelSample.COUNT_R, -rightWheel.getLatestEncoderCount());
+        latest.putDouble(WheelSample.DISTANCE_L, leftWheel.getLatestDistance());
+        latest.putDouble(WheelSample.DISTANCE_R, -rightWheel.getLatestDistance());
+        latest.putDouble(WheelSample.SPEED_INSTANT_L, leftWheel.getSpeedInstantaneous());
+        latest.putDouble(WheelSample.SPEED_INSTANT_R, -rightWheel.getSpeedInstantaneous());
+        latest.putDouble(WheelSample.SPEED_BUFFERED_L, leftWheel.getSpeedBuffered());
+        latest.putDouble(WheelSample.SPEED_BUFFERED_R, -rightWheel.getSpeedBuffered());
+        latest.putDouble(WheelSample.SPEED_EXP_AVG_L, leftWheel.getSpeedExponentialAvg());
+        latest.putDouble(WheelSample.SPEED_EXP_AVG_R, -rightWheel.getSpeedExponentialAvg());
+        latest.putLong(WheelSample.FAULT_L, faultL);
+        latest.putLong(WheelSample.FAULT_R, faultR);
+        latest.endWrite();
+        if (eventRing.hasConsumers()){
+            long sequence = eventRing.claim();
+            for (int field = 0; field < WheelSample.FIELD_COUNT; field++){
+                eventRing.putLong(sequence, field, latest.getLong(field));
             }
-            rightWheel.updateIndex();
-            leftWheel.updateIndex();
-        });
+            eventRing.publish(sequence);
+        }
+        rightWheel.updateIndex();
+        leftWheel.updateIndex();
+    }
+
+    /**
+     * Copies the latest state of both wheels into state, from any thread and without locking. A
+     * read overlapping an update is retried, so the values are always all from the same sample.
+     * @return state
+     */
+    public WheelState getState(WheelState state){
+        state.setVersion(latest.read(state.getFields()));
+        return state;
     }
 
     @Override
-    public void start() {
-        mHandlerThread = new HandlerThread("wheelDataThread");
-        mHandlerThread.start();
-        handler = new Handler(mHandlerThread.getLooper());
-        publisherManager.onPublisherInitialized();
-        super.start();
+    protected void dispatch(WheelDataSubscriber subscriber, EventRing.Event event) {
+        subscriber.onWheelDataUpdate(event.getLong(WheelSample.TIMESTAMP),
+                event.getInt(WheelSample.COUNT_L), event.getInt(WheelSample.COUNT_R),
+                event.getDouble(WheelSample.DISTANCE_L), event.getDouble(WheelSample.DISTANCE_R),
+                event.getDouble(WheelSample.SPEED_INSTANT_L), event.getDouble(WheelSample.SPEED_INSTANT_R),
+                event.getDouble(WheelSample.SPEED_BUFFERED_L), event.getDouble(WheelSample.SPEED_BUFFERED_R),
+                event.getDouble(WheelSample.SPEED_EXP_AVG_L), event.getDouble(WheelSample.SPEED_EXP_AVG_R));
+    }
+
+    /**
+     * Subscribes to every sample as a reusable {@link WheelSample} view rather than the eleven
+     * arguments of {@link WheelDataSubscriber}. The subscriber is called on this publisher's event
+     * loop.
+     */
+    public WheelData addSampleSubscriber(WheelSampleSubscriber subscriber) {
+        return addSampleSubscriber(subscriber, DeliveryPolicy.EVERY_SAMPLE);
+    }
+
+    public WheelData addSampleSubscriber(WheelSampleSubscriber subscriber, DeliveryPolicy policy) {
+        WheelSample sample = new WheelSample();
+        addEventHandler(subscriber.getClass().getSimpleName(),
+                event -> subscriber.onWheelSample(sample.wrap(event)), policy);
+        return this;
     }
 
     @Override
-    public void stop() {
-        mHandlerThread.quitSafely();
-        handler = null;
-        super.stop();
+    public void start() {
+        super.start();
+        publisherManager.onPublisherInitialized(this);
     }
 
     @Override
@@ -132,6 +214,9 @@ public class WheelData extends Publisher<WheelDataSubscriber> {
      * stored in circular buffers in order to avoid rapid shifts in speed measurements due to
      * several identical readings even when moving at full speed. This is due to a very fast sampling
      * rate compared to the rate of change on the quadrature encoders.
+     * <br><br>
+     * Only used by the thread calling onWheelDataUpdate. Other threads read the values published
+     * by it through getState instead.
      */
     private static class SingleWheelData {
         private final int bufferLength;
@@ -150,11 +235,14 @@ public class WheelData extends Publisher<WheelDataSubscriber> {
         private double speedExponentialAvg = 0;
         private final long[] timestamps;
         private double expWeight;
+        // Applied to speedBuffered, or null
+        private final DSP.Filter speedFilter;
         double mmPerCount = (2 * Math.PI * 30) / 128;
 
-        public SingleWheelData(int bufferLength, double expWeight){
+        public SingleWheelData(int bufferLength, double expWeight, DSP.Filter speedFilter){
             this.bufferLength = bufferLength;
             this.expWeight = expWeight;
+            this.speedFilter = speedFilter;
             idxHead = bufferLength - 1;
             idxHeadPrev = idxHead - 1;
             encoderCount = new int[bufferLength];
@@ -190,17 +278,17 @@ public class WheelData extends Publisher<WheelDataSubscriber> {
 
          See: <a href="http://www.creative-robotics.com/quadrature-intro">http://www.creative-robotics.com/quadrature-intro</a>
          */
-        private synchronized void update(long timestamp, int count){
+        private void update(long timestamp, int count){
             encoderCount[idxHead] = count;
             updateDistance();
             updateWheelSpeed(timestamp);
         }
 
-        private synchronized void updateDistance(){
+        private void updateDistance(){
             distance[idxHead] = encoderCount[idxHead] * mmPerCount;
         }
 
-        private synchronized void updateWheelSpeed(long timestamp) {
+        private void updateWheelSpeed(long timestamp) {
             timestamps[idxHead] = timestamp;
             double dt_buffer = (timestamps[idxHead] - timestamps[idxTail]) / 1000000000f;
 
@@ -208,6 +296,10 @@ public class WheelData extends Publisher<WheelDataSubscriber> {
                 // Calculate the speed of each wheel in mm/s.
                 speedInstantaneous = (distance[idxHead] - distance[idxHeadPrev]) / 1000000000f;
                 speedBuffered = (distance[idxHead] - distance[idxTail]) / dt_buffer;
+                if (speedFilter != null) {
+                    double dt = (timestamps[idxHead] - timestamps[idxHeadPrev]) / 1000000000.0;
+                    speedBuffered = speedFilter.filter(speedBuffered, dt);
+                }
                 speedExponentialAvg = exponentialAvg(speedBuffered, speedExponentialAvg, expWeight);
             }
             else{
@@ -215,7 +307,7 @@ public class WheelData extends Publisher<WheelDataSubscriber> {
             }
         }
 
-        private synchronized void updateIndex(){
+        private void updateIndex(){
             idxHeadPrev = idxHead;
             idxHead++;
             idxTail++;
@@ -223,27 +315,27 @@ public class WheelData extends Publisher<WheelDataSubscriber> {
             idxTail = idxTail % bufferLength;
         }
 
-        public synchronized int getLatestEncoderCount() {
+        public int getLatestEncoderCount() {
             return encoderCount[idxHead];
         }
 
-        public synchronized double getLatestDistance() {
+        public double getLatestDistance() {
             return distance[idxHead];
         }
 
-        public synchronized double getSpeedBuffered() {
+        public double getSpeedBuffered() {
             return speedBuffered;
         }
 
-        public synchronized double getSpeedExponentialAvg() {
+        public double getSpeedExponentialAvg() {
             return speedExponentialAvg;
         }
 
-        public synchronized double getSpeedInstantaneous() {
+        public double getSpeedInstantaneous() {
             return speedInstantaneous;
         }
 
-        public synchronized void setExpWeight(double expWeight){this.expWeight = expWeight;}
+        public void setExpWeight(double expWeight){this.expWeight = expWeight;}
 
         public void resetCount(){
             Arrays.fill(this.encoderCount, 0);
@@ -0,0 +1,123 @@
+package jp.oist.abcvlib.core.inputs.microcontroller;
+
+import jp.oist.abcvlib.core.inputs.EventRing;
+
+/**
+ * Read-only view of one wheel sample passed to a {@link WheelSampleSubscriber}. Each subscriber
+ * gets one instance that is pointed at every new sample in turn, so nothing is allocated per
+ * sample. Do not keep a reference to it beyond the callback; copy out whatever you need instead.
+ * <br><br>
+ * Right wheel values are already sign corrected so that positive means forward on both wheels, as
+ * in {@link WheelDataSubscriber}.
+ * <br><br>
+ * With an aggregate {@link jp.oist.abcvlib.core.inputs.DeliveryPolicy} the distances and speeds
+ * are aggregated over the window, while the timestamp, counts and faults are those of the latest
+ * sample in it.
+ */
+public final class WheelSample {
+    // Event layout in the WheelData eventRing
+    static final int TIMESTAMP = 0;
+    static final int COUNT_L = 1;
+    static final int COUNT_R = 2;
+    static final int DISTANCE_L = 3;
+    static final int DISTANCE_R = 4;
+    static final int SPEED_INSTANT_L = 5;
+    static final int SPEED_INSTANT_R = 6;
+    static final int SPEED_BUFFERED_L = 7;
+    static final int SPEED_BUFFERED_R = 8;
+    static final int SPEED_EXP_AVG_L = 9;
+    static final int SPEED_EXP_AVG_R = 10;
+    static final int FAULT_L = 11;
+    static final int FAULT_R = 12;
+    static final int FIELD_COUNT = 13;
+    static final int[] DOUBLE_FIELDS = {DISTANCE_L, DISTANCE_R, SPEED_INSTANT_L, SPEED_INSTANT_R,
+            SPEED_BUFFERED_L, SPEED_BUFFERED_R, SPEED_EXP_AVG_L, SPEED_EXP_AVG_R};
+
+    private EventRing.Event event;
+
+    WheelSample() {
+    }
+
+    WheelSample wrap(EventRing.Event event) {
+        this.event = event;
+        return this;
+    }
+
+    /**
+     * @return ever increasing number of this sample. Gaps mean samples were skipped as the
+     * subscriber fell behind.
+     */
+    public long getSequence() {
+        return event.getSequence();
+    }
+
+    /**
+     * @return in nanoseconds see {@link java.lang.System#nanoTime()}
+     */
+    public long getTimestamp() {
+        return event.getLong(TIMESTAMP);
+    }
+
+    public int getEncoderCountLeft() {
+        return event.getInt(COUNT_L);
+    }
+
+    public int getEncoderCountRight() {
+        return event.getInt(COUNT_R);
+    }
+
+    /**
+     * @return in mm since the counts were last reset
+     */
+    public double getDistanceLeft() {
+        return event.getDouble(DISTANCE_L);
+    }
+
+    public double getDistanceRight() {
+        return event.getDouble(DISTANCE_R);
+    }
+
+    /**
+     * @return in mm/s between this and the previous sample. Very noisy
+     */
+    public double getSpeedInstantaneousLeft() {
+        return event.getDouble(SPEED_INSTANT_L);
+    }
+
+    public double getSpeedInstantaneousRight() {
+        return event.getDouble(SPEED_INSTANT_R);
+    }
+
+    /**
+     * @return in mm/s over the WheelData buffer length
+     */
+    public double getSpeedBufferedLeft() {
+        return event.getDouble(SPEED_BUFFERED_L);
+    }
+
+    public double getSpeedBufferedRight() {
+        return event.getDouble(SPEED_BUFFERED_R);
+    }
+
+    /**
+     * @return in mm/s, exponential average of the buffered speed
+     */
+    public double getSpeedExponentialAvgLeft() {
+        return event.getDouble(SPEED_EXP_AVG_L);
+    }
+
+    public double getSpeedExponentialAvgRight() {
+        return event.getDouble(SPEED_EXP_AVG_R);
+    }
+
+    /**
+     * @return DRV8830 fault register of the left motor driver, or 0 if not reported
+     */
+    public byte getFaultLeft() {
+        return (byte) event.getInt(FAULT_L);
+    }
+
+    public byte getFaultRight() {
+        return (byte) event.getInt(FAULT_R);
+    }
+}
@@ -0,0 +1,14 @@
+package jp.oist.abcvlib.core.inputs.microcontroller;
+
+/**
+ * Alternative to {@link WheelDataSubscriber} receiving each sample as a {@link WheelSample}, so
+ * new fields can be added without changing this interface. Register with
+ * {@link WheelData#addSampleSubscriber(WheelSampleSubscriber)}.
+ */
+public interface WheelSampleSubscriber {
+    /**
+     * Called on this subscriber's consumer loop or thread for every wheel sample.
+     * @param sample only valid for the duration of the call
+     */
+    void onWheelSample(WheelSample sample);
+}
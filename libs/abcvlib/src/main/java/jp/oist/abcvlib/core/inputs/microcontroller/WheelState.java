@@ -0,0 +1,107 @@
+package jp.oist.abcvlib.core.inputs.microcontroller;
+
+/**
+ * Copy of the latest state of both wheels, filled by {@link WheelData#getState(WheelState)} from
+ * any thread. Reuse one instance per reading thread so nothing is allocated per read. Unlike a
+ * {@link WheelSample}, it stays valid until filled again.
+ * <br><br>
+ * Values are those of {@link WheelSample}, so right wheel values are sign corrected so that
+ * positive means forward on both wheels.
+ */
+public final class WheelState {
+    private final long[] fields = new long[WheelSample.FIELD_COUNT];
+    private long version = 0;
+
+    public WheelState() {
+    }
+
+    long[] getFields() {
+        return fields;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * @return number of wheel updates up to this one, so unchanged between two reads means there
+     * was no new sample in between. 0 if there was no sample yet.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return in nanoseconds see {@link java.lang.System#nanoTime()}
+     */
+    public long getTimestamp() {
+        return fields[WheelSample.TIMESTAMP];
+    }
+
+    public int getEncoderCountLeft() {
+        return (int) fields[WheelSample.COUNT_L];
+    }
+
+    public int getEncoderCountRight() {
+        return (int) fields[WheelSample.COUNT_R];
+    }
+
+    /**
+     * @return in mm since the counts were last reset
+     */
+    public double getDistanceLeft() {
+        return getDouble(WheelSample.DISTANCE_L);
+    }
+
+    public double getDistanceRight() {
+        return getDouble(WheelSample.DISTANCE_R);
+    }
+
+    /**
+     * @return in mm/s between this and the previous sample. Very noisy
+     */
+    public double getSpeedInstantaneousLeft() {
+        return getDouble(WheelSample.SPEED_INSTANT_L);
+    }
+
+    public double getSpeedInstantaneousRight() {
+        return getDouble(WheelSample.SPEED_INSTANT_R);
+    }
+
+    /**
+     * @return in mm/s over the WheelData buffer length
+     */
+    public double getSpeedBufferedLeft() {
+        return getDouble(WheelSample.SPEED_BUFFERED_L);
+    }
+
+    public double getSpeedBufferedRight() {
+        return getDouble(WheelSample.SPEED_BUFFERED_R);
+    }
+
+    /**
+     * @return in mm/s, exponential average of the buffered speed
+     */
+    public double getSpeedExponentialAvgLeft() {
+        return getDouble(WheelSample.SPEED_EXP_AVG_L);
+    }
+
+    public double getSpeedExponentialAvgRight() {
+        return getDouble(WheelSample.SPEED_EXP_AVG_R);
+    }
+
+    /**
+     * @return DRV8830 fault register of the left motor driver, or 0 if not reported
+     */
+    public byte getFaultLeft() {
+        return (byte) fields[WheelSample.FAULT_L];
+    }
+
+    public byte getFaultRight() {
+        return (byte) fields[WheelSample.FAULT_R];
+    }
+
+    private double getDouble(int field) {
+        return Double.longBitsToDouble(fields[field]);
+    }
+}
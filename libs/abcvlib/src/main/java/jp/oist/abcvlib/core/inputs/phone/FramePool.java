@@ -0,0 +1,189 @@
+package jp.oist.abcvlib.core.inputs.phone;
+
+import android.graphics.Bitmap;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed set of reusable camera frames, each a luminance buffer and an ARGB_8888 {@link Bitmap},
+ * so {@link ImageData} does not allocate a new copy of every frame. Buffers are only allocated
+ * again when the frame size changes.
+ * <br><br>
+ * Frames are reference counted. {@link #acquire(int, int, int, boolean)} hands out a free frame
+ * with one reference, held by the publisher while its subscribers are called. A subscriber that
+ * keeps the bitmap beyond its callback, e.g. to compress it on another thread, must take a
+ * reference of its own with {@link #retain(Bitmap)} during the callback and
+ * {@link Frame#release()} it when done. A frame returns to the pool when its last reference is
+ * released, after which its buffers are overwritten by a later frame.
+ * <br><br>
+ * When all frames are held, {@link #acquire(int, int, int, boolean)} returns null and the camera
+ * frame is dropped rather than allocating, see {@link #getDroppedCount()}.
+ */
+public class FramePool {
+    // Every pool that may hold a bitmap handed to subscribers, for retain(Bitmap)
+    private static final CopyOnWriteArrayList<FramePool> pools = new CopyOnWriteArrayList<>();
+
+    private final Frame[] frames;
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    // Whether this pool is in pools
+    private volatile boolean registered = false;
+
+    public FramePool(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+        frames = new Frame[size];
+        for (int i = 0; i < size; i++) {
+            frames[i] = new Frame();
+        }
+    }
+
+    /**
+     * Takes a free frame and sizes its buffers.
+     * @param luminanceLength length the luminance buffer must have
+     * @param withBitmap false to leave the frame without a bitmap, e.g. when no subscriber
+     *                   needs RGB, in which case {@link Frame#getBitmap()} is null
+     * @return the frame with one reference, or null if all frames are held
+     */
+    public Frame acquire(int luminanceLength, int width, int height, boolean withBitmap) {
+        if (!registered) {
+            registered = true;
+            pools.addIfAbsent(this);
+        }
+        for (Frame frame : frames) {
+            if (frame.references.compareAndSet(0, 1)) {
+                frame.prepare(luminanceLength, width, height, withBitmap);
+                return frame;
+            }
+        }
+        droppedCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Takes a reference to the pooled frame holding bitmap, so its contents are kept until
+     * {@link Frame#release()}. Only call this while bitmap is still referenced by whoever passed it
+     * on, e.g. within the subscriber callback it was passed to.
+     * @return the frame, or null if bitmap is not from a pool and so is never reused anyway
+     */
+    public static Frame retain(Bitmap bitmap) {
+        if (bitmap == null) {
+            return null;
+        }
+        for (FramePool pool : pools) {
+            for (Frame frame : pool.frames) {
+                if (frame.hasBitmap && frame.bitmap == bitmap && frame.tryRetain()) {
+                    return frame;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return number of frames dropped as all frames were held
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return number of frames not currently held
+     */
+    public int getFreeCount() {
+        int free = 0;
+        for (Frame frame : frames) {
+            if (frame.references.get() == 0) {
+                free++;
+            }
+        }
+        return free;
+    }
+
+    /**
+     * Stops bitmaps of this pool from being found by {@link #retain(Bitmap)} until the next
+     * {@link #acquire(int, int, int, boolean)}, so an unused pool can be garbage collected. Frames
+     * still held stay valid until released.
+     */
+    public void close() {
+        registered = false;
+        pools.remove(this);
+    }
+
+    public static final class Frame {
+        private static final byte[] EMPTY = new byte[0];
+
+        private final AtomicInteger references = new AtomicInteger(0);
+        private byte[] luminance = EMPTY;
+        // Read by retain(Bitmap) from any thread
+        private volatile Bitmap bitmap;
+        // Whether bitmap is part of the current frame
+        private volatile boolean hasBitmap = false;
+
+        private Frame() {
+        }
+
+        private void prepare(int luminanceLength, int width, int height, boolean withBitmap) {
+            if (luminance.length != luminanceLength) {
+                luminance = new byte[luminanceLength];
+            }
+            hasBitmap = withBitmap;
+            if (withBitmap && (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height)) {
+                if (bitmap != null) {
+                    bitmap.recycle();
+                }
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+        }
+
+        /**
+         * @return the plane 0 (Y) bytes of the frame
+         */
+        public byte[] getLuminance() {
+            return luminance;
+        }
+
+        /**
+         * @return ARGB_8888 bitmap of the frame, or null if acquired without one
+         */
+        public Bitmap getBitmap() {
+            return hasBitmap ? bitmap : null;
+        }
+
+        /**
+         * Takes another reference to a frame already held.
+         * @throws IllegalStateException if the frame was already returned to the pool
+         */
+        public Frame retain() {
+            if (!tryRetain()) {
+                throw new IllegalStateException("Frame was already released to the pool");
+            }
+            return this;
+        }
+
+        private boolean tryRetain() {
+            while (true) {
+                int current = references.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Drops one reference, returning the frame to the pool with the last one.
+         * @throws IllegalStateException if released more often than acquired and retained
+         */
+        public void release() {
+            if (references.decrementAndGet() < 0) {
+                references.incrementAndGet();
+                throw new IllegalStateException("Frame released more often than retained");
+            }
+        }
+    }
+}
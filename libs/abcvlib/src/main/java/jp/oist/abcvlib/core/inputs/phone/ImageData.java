@@ -29,22 +29,29 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import jp.oist.abcvlib.core.inputs.Publisher;
 import jp.oist.abcvlib.core.inputs.PublisherManager;
+import jp.oist.abcvlib.core.inputs.PublisherRecorder;
 import jp.oist.abcvlib.core.inputs.Subscriber;
-import jp.oist.abcvlib.util.ProcessPriorityThreadFactory;
 import jp.oist.abcvlib.util.YuvToRgbConverter;
 
 public abstract class ImageData<S extends Subscriber> extends Publisher<S> implements ImageAnalysis.Analyzer {
+    // Frames in flight at once, i.e. being analyzed or kept by subscribers, before frames are dropped
+    private static final int FRAME_POOL_SIZE = 4;
 
     protected ImageAnalysis imageAnalysis;
     private YuvToRgbConverter yuvToRgbConverter;
     private PreviewView previewView;
     protected final LifecycleOwner lifecycleOwner;
-    protected ExecutorService imageExecutor;
+    // Defaults to the publisher's event loop
+    protected Executor imageExecutor;
+    // When the frame being analyzed was produced, for measuring the latency of subscribers
+    protected long publishTime;
+    private final FramePool framePool = new FramePool(FRAME_POOL_SIZE);
 
     private ListenableFuture<ProcessCameraProvider> mCameraProviderFuture;
 
@@ -111,28 +118,78 @@ public abstract class ImageData<S extends Subscriber> extends Publisher<S> imple
     @Override
     public void analyze(@NonNull ImageProxy imageProxy) {
         countDownLatch.countDown();
-        if (subscribers.size() > 0 && !paused){
+        // Read once, so the frame is converted for the same recorder it is then recorded by
+        PublisherRecorder publisherRecorder = this.publisherRecorder;
+        if ((subscribers.size() > 0 || publisherRecorder != null) && !paused){
             Image image = imageProxy.getImage();
             int rotation = imageProxy.getImageInfo().getRotationDegrees();
             if (image != null) {
-                // Copy the image buffer, as it appears to get overwritten or read from externally
                 ByteBuffer byteBuffer = image.getPlanes()[0].getBuffer();
-                byte[] imageData = new byte[byteBuffer.capacity()];
-                byteBuffer.get(imageData);
                 int format = image.getFormat();
                 int width = image.getWidth();
                 int height = image.getHeight();
                 long timestamp = image.getTimestamp();
-                Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-                yuvToRgbConverter.yuvToRgb(image, bitmap);
-                customAnalysis(imageData, rotation, format, width, height, timestamp, bitmap);
+                boolean convert = needsBitmap() || publisherRecorder != null;
+                // Copy the image buffer into a pooled frame, as it appears to get overwritten or
+                // read from externally. Dropped if subscribers still hold every frame
+                FramePool.Frame frame = framePool.acquire(byteBuffer.capacity(), width, height, convert);
+                if (frame != null) {
+                    try {
+                        byteBuffer.get(frame.getLuminance());
+                        if (convert) {
+                            yuvToRgbConverter.yuvToRgb(image, frame.getBitmap());
+                        }
+                        publish(frame.getLuminance(), rotation, format, width, height,
+                                timestamp, frame.getBitmap(), publisherRecorder);
+                    } finally {
+                        frame.release();
+                    }
+                }
             }
         }
         imageProxy.close(); // You must call these two lines at the end of the child's analyze method
     }
 
+    /**
+     * Publishes one frame, as converted by {@link #analyze(ImageProxy)} or replayed by a
+     * {@link jp.oist.abcvlib.core.inputs.PublisherReplayer}.
+     * @param bitmap ARGB_8888
+     */
+    public void onImageDataUpdate(byte[] imageData, int rotation, int format, int width, int height,
+                                  long timestamp, Bitmap bitmap){
+        publish(imageData, rotation, format, width, height, timestamp, bitmap, this.publisherRecorder);
+    }
+
+    private void publish(byte[] imageData, int rotation, int format, int width, int height,
+                         long timestamp, Bitmap bitmap, PublisherRecorder publisherRecorder){
+        publishTime = onProduced();
+        if (publisherRecorder != null){
+            publisherRecorder.recordImage(imageData, rotation, format, width, height, timestamp, bitmap);
+        }
+        if (subscribers.size() > 0){
+            customAnalysis(imageData, rotation, format, width, height, timestamp, bitmap);
+        }
+    }
+
     protected abstract void customAnalysis(byte[] imageData, int rotation, int format, int width, int height, long timestamp, Bitmap bitmap);
 
+    /**
+     * @return false if {@link #customAnalysis} only uses the luminance bytes, in which case frames
+     * are not converted to RGB unless recorded and bitmap is null
+     */
+    protected boolean needsBitmap() {
+        return true;
+    }
+
+    /**
+     * @return the pool camera frames are copied into. imageData and bitmap passed to
+     * {@link #customAnalysis} and on to subscribers are reused for later frames once the call
+     * returns, see {@link FramePool#retain(Bitmap)} to keep them longer
+     */
+    public FramePool getFramePool() {
+        return framePool;
+    }
+
     protected void setDefaultImageAnalysis(){
         imageAnalysis =
                 new ImageAnalysis.Builder()
@@ -149,9 +206,10 @@ public abstract class ImageData<S extends Subscriber> extends Publisher<S> imple
             setDefaultImageAnalysis();
         }
         if (imageExecutor == null){
-            imageExecutor = Executors.newCachedThreadPool(new ProcessPriorityThreadFactory(1, "imageAnalysis"));
+            imageExecutor = getEventLoop();
         }
-        if (subscribers.size() > 0){
+        // Frames are only analyzed for subscribers or a recorder present at start
+        if (subscribers.size() > 0 || publisherRecorder != null){
             yuvToRgbConverter = new YuvToRgbConverter(context);
             imageAnalysis.setAnalyzer(imageExecutor, this);
         }
@@ -166,7 +224,7 @@ public abstract class ImageData<S extends Subscriber> extends Publisher<S> imple
                 Log.i(TAG, "Waiting for preview and analysis to start");
                 countDownLatch.await();
                 Log.i(TAG, "Preview and analysis started");
-                publisherManager.onPublisherInitialized();
+                publisherManager.onPublisherInitialized(ImageData.this);
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
@@ -179,8 +237,11 @@ public abstract class ImageData<S extends Subscriber> extends Publisher<S> imple
     public void stop() {
         imageAnalysis.clearAnalyzer();
         imageAnalysis = null;
-        imageExecutor.shutdown();
+        if (imageExecutor instanceof ExecutorService){
+            ((ExecutorService) imageExecutor).shutdown();
+        }
         yuvToRgbConverter = null;
+        framePool.close();
         previewView = null;
         mCameraProviderFuture.cancel(false);
         cameraProvider.unbindAll();
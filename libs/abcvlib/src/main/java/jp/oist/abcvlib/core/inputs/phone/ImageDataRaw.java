@@ -53,7 +53,11 @@ public class ImageDataRaw extends ImageData<ImageDataRawSubscriber> implements I
     @Override
     protected void customAnalysis(byte[] imageData, int rotation, int format, int width, int height, long timestamp, Bitmap bitmap) {
         for (ImageDataRawSubscriber subscriber:subscribers){
-            subscriber.onImageDataRawUpdate(timestamp, width, height, bitmap);
+            if (isDue(subscriber)){
+                long start = System.nanoTime();
+                subscriber.onImageDataRawUpdate(timestamp, width, height, bitmap);
+                onDispatched(subscriber, publishTime, start);
+            }
         }
     }
 }
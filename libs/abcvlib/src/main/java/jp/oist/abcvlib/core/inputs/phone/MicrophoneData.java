@@ -7,8 +7,6 @@ import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.AudioTimestamp;
 import android.media.MediaRecorder;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.util.Log;
 
 import com.intentfilter.androidpermissions.models.DeniedPermissions;
@@ -16,16 +14,14 @@ import com.intentfilter.androidpermissions.models.DeniedPermissions;
 import java.util.ArrayList;
 
 import jp.oist.abcvlib.core.inputs.PublisherManager;
+import jp.oist.abcvlib.core.inputs.PublisherRecorder;
 import jp.oist.abcvlib.core.inputs.Publisher;
 import jp.oist.abcvlib.util.ErrorHandler;
-import jp.oist.abcvlib.util.ProcessPriorityThreadFactory;
-import jp.oist.abcvlib.util.ScheduledExecutorServiceWithException;
 
 public class MicrophoneData extends Publisher<MicrophoneDataSubscriber> implements AudioRecord.OnRecordPositionUpdateListener{
 
     private final AudioTimestamp startTime = new AudioTimestamp();
     private final AudioTimestamp endTime = new AudioTimestamp();
-    private ScheduledExecutorServiceWithException audioExecutor;
 
     private AudioRecord recorder;
 
@@ -54,20 +50,20 @@ public class MicrophoneData extends Publisher<MicrophoneDataSubscriber> implemen
 
     @Override
     public void start(){
+        recorder.setRecordPositionUpdateListener(this, getEventLoop().getHandler());
         recorder.startRecording();
 
         while (recorder.getTimestamp(startTime, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.ERROR_INVALID_OPERATION){
             recorder.getTimestamp(startTime, AudioTimestamp.TIMEBASE_MONOTONIC);
         }
         Log.i("microphone_start", "StartFrame:" + startTime.framePosition + " NanoTime: " + startTime.nanoTime);
-        publisherManager.onPublisherInitialized();
         super.start();
+        publisherManager.onPublisherInitialized(this);
     }
 
     public void stop(){
         recorder.stop();
         recorder.setRecordPositionUpdateListener(null);
-        audioExecutor.shutdownNow();
         recorder.release();
         recorder = null;
         super.stop();
@@ -106,45 +102,55 @@ public class MicrophoneData extends Publisher<MicrophoneDataSubscriber> implemen
      * You can verify it is not blocking by checking the log for "Missed some audio samples"
      * You can verify if the buffer writer is overflowing by checking the log for:
      * "W/AudioFlinger: RecordThread: buffer overflow"
+     * Runs on the publisher's event loop.
      * @param audioRecord
      */
     @Override
     public void onPeriodicNotification(AudioRecord audioRecord) {
         try{
-            audioExecutor.execute(() -> {
-                int readBufferSize = audioRecord.getPositionNotificationPeriod();
-                float[] audioData = new float[readBufferSize];
-                @SuppressLint("WrongConstant") int numSamples = audioRecord.read(audioData, 0,
-                        readBufferSize, AudioRecord.READ_NON_BLOCKING);
-                if (numSamples < readBufferSize){
-                    Log.w("microphone", "Missed some audio samples");
-                }
-                onNewAudioData(audioData, numSamples);
-            });
+            int readBufferSize = audioRecord.getPositionNotificationPeriod();
+            float[] audioData = new float[readBufferSize];
+            @SuppressLint("WrongConstant") int numSamples = audioRecord.read(audioData, 0,
+                    readBufferSize, AudioRecord.READ_NON_BLOCKING);
+            if (numSamples < readBufferSize){
+                Log.w("microphone", "Missed some audio samples");
+            }
+            onNewAudioData(audioData, numSamples);
         }catch (Exception e){
             ErrorHandler.eLog("onPeriodicNotification", "sadfkjsdhf", e, true);
         }
     }
 
     protected void onNewAudioData(float[] audioData, int numSamples){
-        if (subscribers.size() > 0 && !paused){
-            android.media.AudioTimestamp startTime = getStartTime();
-            android.media.AudioTimestamp endTime = getEndTime();
-            int sampleRate = getSampleRate();
-            for (MicrophoneDataSubscriber subscriber:subscribers){
+        if ((subscribers.size() > 0 || publisherRecorder != null) && !paused){
+            onMicrophoneDataUpdate(audioData, numSamples, getSampleRate(), getStartTime(), getEndTime());
+            setStartTime();
+        }
+    }
+
+    /**
+     * Publishes one buffer of audio, as read by {@link #onPeriodicNotification(AudioRecord)} or
+     * replayed by a {@link jp.oist.abcvlib.core.inputs.PublisherReplayer}.
+     */
+    public void onMicrophoneDataUpdate(float[] audioData, int numSamples, int sampleRate,
+                                       AudioTimestamp startTime, AudioTimestamp endTime){
+        long publishTime = onProduced();
+        PublisherRecorder publisherRecorder = this.publisherRecorder;
+        if (publisherRecorder != null){
+            publisherRecorder.recordAudio(audioData, numSamples, sampleRate, startTime.framePosition,
+                    startTime.nanoTime, endTime.framePosition, endTime.nanoTime);
+        }
+        for (MicrophoneDataSubscriber subscriber:subscribers){
+            if (isDue(subscriber)){
+                long start = System.nanoTime();
                 subscriber.onMicrophoneDataUpdate(audioData, numSamples, sampleRate, startTime, endTime);
+                onDispatched(subscriber, publishTime, start);
             }
-            setStartTime();
         }
     }
 
     @Override
     public void onPermissionGranted() {
-        audioExecutor = new ScheduledExecutorServiceWithException(1, new ProcessPriorityThreadFactory(10, "dataGatherer"));
-        HandlerThread handlerThread = new HandlerThread("audioHandlerThread");
-        handlerThread.start();
-        Handler handler = new Handler(handlerThread.getLooper());
-
         int mAudioSource = MediaRecorder.AudioSource.UNPROCESSED;
         int mSampleRate = 8000;
         int mChannelConfig = AudioFormat.CHANNEL_IN_MONO;
@@ -168,7 +174,6 @@ public class MicrophoneData extends Publisher<MicrophoneDataSubscriber> implemen
         int framePerBuffer = bufferSize / bytesPerFrame; // # of frames that can be kept in a bufferSize dimension
         int framePeriod = framePerBuffer / 2; // Read from buffer two times per full buffer.
         recorder.setPositionNotificationPeriod(framePeriod);
-        recorder.setRecordPositionUpdateListener(this, handler);
         publisherManager.onPublisherPermissionsGranted();
     }
 
@@ -145,7 +145,11 @@ public class ObjectDetectorData extends ImageData<ObjectDetectorDataSubscriber>
         inferenceTime = SystemClock.uptimeMillis() - inferenceTime;
 
         for (ObjectDetectorDataSubscriber subscriber:subscribers){
-            subscriber.onObjectsDetected(bitmap, tensorImage, results, inferenceTime, height, width);
+            if (isDue(subscriber)){
+                long start = System.nanoTime();
+                subscriber.onObjectsDetected(bitmap, tensorImage, results, inferenceTime, height, width);
+                onDispatched(subscriber, publishTime, start);
+            }
         }
     }
 
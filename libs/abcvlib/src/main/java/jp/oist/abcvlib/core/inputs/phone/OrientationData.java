@@ -7,13 +7,16 @@ import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Build;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.util.Log;
 
 import java.util.ArrayList;
 
+import jp.oist.abcvlib.core.inputs.DeliveryPolicy;
+import jp.oist.abcvlib.core.inputs.EventRing;
 import jp.oist.abcvlib.core.inputs.PublisherManager;
-import jp.oist.abcvlib.core.inputs.Publisher;
+import jp.oist.abcvlib.core.inputs.PublisherRecorder;
+import jp.oist.abcvlib.core.inputs.RingPublisher;
+import jp.oist.abcvlib.util.DSP;
 
 /**
  * MotionSensors reads and processes the data from the Android phone gryoscope and
@@ -32,10 +35,32 @@ import jp.oist.abcvlib.core.inputs.Publisher;
  *
  * A counter is keep track of the number of sensor change events via sensorChangeCount.
  *
+ * The tilt is taken from the OS rotation vector by default. {@link Mode#COMPLEMENTARY} computes
+ * it from the gyroscope and accelerometer directly instead, see {@link Builder#setMode(Mode)}.
+ * Either way subscribers are called once per new sample of the sensor the tilt comes from.
+ *
  * @author Jiexin Wang https://github.com/ha5ha6
  * @author Christopher Buckley https://github.com/topherbuckley
  */
-public class OrientationData extends Publisher<OrientationDataSubscriber> implements SensorEventListener {
+public class OrientationData extends RingPublisher<OrientationDataSubscriber> implements SensorEventListener {
+
+    /**
+     * Where the tilt angle and angular velocity come from.
+     */
+    public enum Mode {
+        /**
+         * The OS rotation vector sensor, differentiated for the angular velocity. Also gives
+         * azimuth and roll, but the OS fusion adds latency.
+         */
+        ROTATION_VECTOR,
+        /**
+         * Complementary filter of the gyroscope and accelerometer, published on every gyroscope
+         * sample. The angular velocity is the gyroscope rate itself, so it is neither delayed nor
+         * differentiated, which suits latency bound controllers like balancing. Azimuth is NaN as
+         * there is no magnetometer, and roll comes from the accelerometer alone.
+         */
+        COMPLEMENTARY
+    }
 
     /*
      * Keeps track of current history index.
@@ -101,13 +126,51 @@ public class OrientationData extends Publisher<OrientationDataSubscriber> implem
     int indexHistoryOldest = 0; // Keeps track of oldest history index.
     double dt = 0;
 
+    // Applied to the pitch, or null
+    private final DSP.Filter thetaFilter;
+    // Derives angularVelocityRad from the (filtered) pitch
+    private final DSP.Filter angularVelocityFilter;
+
+    private final Mode mode;
+    private final double fusionTimeConstant;
+    // Complementary filter state, only touched on the sensor thread
+    private final float[] gravity = new float[3];
+    private boolean hasGravity = false;
+    private long previousGyroTimestamp = 0;
+    private double fusedPitch = 0;
+
     /**
      * Constructor that sets up Android Sensor Service and creates Sensor objects for both
      * accelerometer and gyroscope. Then registers both sensors such that their onSensorChanged
      * events will call the onSensorChanged method within this class.
      */
     public OrientationData(Context context, PublisherManager publisherManager){
-        super(context, publisherManager);
+        this(context, publisherManager, null, null);
+    }
+
+    /**
+     * @param thetaFilter see {@link Builder#setThetaFilter(DSP.FilterFactory)}, or null
+     * @param angularVelocityFilter see {@link Builder#setAngularVelocityFilter(DSP.FilterFactory)},
+     *                              or null for the default
+     */
+    public OrientationData(Context context, PublisherManager publisherManager,
+                           DSP.FilterFactory thetaFilter, DSP.FilterFactory angularVelocityFilter){
+        this(context, publisherManager, Mode.ROTATION_VECTOR, 0, thetaFilter, angularVelocityFilter);
+    }
+
+    /**
+     * @param fusionTimeConstant see {@link Builder#setFusionTimeConstant(double)}
+     */
+    public OrientationData(Context context, PublisherManager publisherManager, Mode mode,
+                           double fusionTimeConstant, DSP.FilterFactory thetaFilter,
+                           DSP.FilterFactory angularVelocityFilter){
+        super(context, publisherManager, new EventRing("orientationThread", 256,
+                OrientationSample.FIELD_COUNT, OrientationSample.DOUBLE_FIELDS));
+        this.mode = mode;
+        this.fusionTimeConstant = fusionTimeConstant;
+        this.thetaFilter = thetaFilter != null ? thetaFilter.create() : null;
+        this.angularVelocityFilter = angularVelocityFilter != null ? angularVelocityFilter.create()
+                : new DSP.FiniteDifference();
         sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
         gyroscope = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
         rotation_sensor = sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
@@ -120,6 +183,10 @@ public class OrientationData extends Publisher<OrientationDataSubscriber> implem
     public static class Builder{
         private final Context context;
         private final PublisherManager publisherManager;
+        private DSP.FilterFactory thetaFilter = null;
+        private DSP.FilterFactory angularVelocityFilter = null;
+        private Mode mode = Mode.ROTATION_VECTOR;
+        private double fusionTimeConstant = 0.25;
 
         public Builder(Context context, PublisherManager publisherManager){
             this.context = context;
@@ -127,7 +194,48 @@ public class OrientationData extends Publisher<OrientationDataSubscriber> implem
         }
 
         public OrientationData build(){
-            return new OrientationData(context, publisherManager);
+            return new OrientationData(context, publisherManager, mode, fusionTimeConstant,
+                    thetaFilter, angularVelocityFilter);
+        }
+
+        /**
+         * @param mode {@link Mode#ROTATION_VECTOR} by default
+         */
+        public OrientationData.Builder setMode(Mode mode){
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * @param fusionTimeConstant in seconds, for {@link Mode#COMPLEMENTARY}. Tilt changes faster
+         *                           than this follow the gyroscope, slower ones the accelerometer.
+         *                           Longer rejects more of the robot's own acceleration, shorter
+         *                           corrects gyroscope drift sooner. 0.25 by default
+         */
+        public OrientationData.Builder setFusionTimeConstant(double fusionTimeConstant){
+            this.fusionTimeConstant = fusionTimeConstant;
+            return this;
+        }
+
+        /**
+         * Filters the pitch (thetaRad) before it is published and differentiated, e.g.
+         * {@code () -> new DSP.OnePole(0.01)}. Unfiltered by default.
+         */
+        public OrientationData.Builder setThetaFilter(DSP.FilterFactory thetaFilter){
+            this.thetaFilter = thetaFilter;
+            return this;
+        }
+
+        /**
+         * Derivative filter turning the pitch into angularVelocityRad in
+         * {@link Mode#ROTATION_VECTOR}. Defaults to
+         * {@link DSP.FiniteDifference}, i.e. the difference to the previous sample over dt, which
+         * is very noisy at high sample rates. {@link DSP.SavitzkyGolayDerivative} trades a few
+         * samples of delay for much less noise.
+         */
+        public OrientationData.Builder setAngularVelocityFilter(DSP.FilterFactory angularVelocityFilter){
+            this.angularVelocityFilter = angularVelocityFilter;
+            return this;
         }
     }
 
@@ -144,12 +252,24 @@ public class OrientationData extends Publisher<OrientationDataSubscriber> implem
     /**
      * This is called every time a registered sensor provides data. Sensor must be registered before
      * it will fire the event which calls this method. If statements handle differentiating between
-     * accelerometer and gyrscope events.
+     * accelerometer and gyrscope events. Only events of the sensor the tilt comes from publish a
+     * sample, see {@link Mode}.
      * @param event SensorEvent object that has updated its output
      */
     @Override
     public void onSensorChanged(SensorEvent event){
         Sensor sensor = event.sensor;
+        timerCount ++;
+
+        if (mode == Mode.COMPLEMENTARY){
+            if (sensor.getType() == Sensor.TYPE_ACCELEROMETER){
+                System.arraycopy(event.values, 0, gravity, 0, gravity.length);
+                hasGravity = true;
+            } else if (sensor.getType() == Sensor.TYPE_GYROSCOPE){
+                onGyroscopeChanged(event);
+            }
+            return;
+        }
 
 //        if(sensor.getType()==Sensor.TYPE_GYROSCOPE){
 //            indexCurrentGyro = sensorChangeCountGyro % windowLength;
@@ -176,52 +296,119 @@ public class OrientationData extends Publisher<OrientationDataSubscriber> implem
             SensorManager.getRotationMatrixFromVector(rotationMatrix , event.values);
             SensorManager.remapCoordinateSystem(rotationMatrix, SensorManager.AXIS_MINUS_X, SensorManager.AXIS_Z, rotationMatrixRemap);
             SensorManager.getOrientation(rotationMatrixRemap, orientation);
-            thetaRad[indexCurrentRotation] = orientation[1]; //Pitch
-            angularVelocityRad[indexCurrentRotation] = (thetaRad[indexCurrentRotation] - thetaRad[indexPreviousRotation]) / dt;
+            double pitch = orientation[1];
+            if (thetaFilter != null){
+                pitch = thetaFilter.filter(pitch, dt);
+            }
+            thetaRad[indexCurrentRotation] = pitch;
+            angularVelocityRad[indexCurrentRotation] = angularVelocityFilter.filter(pitch, dt);
 
             // Update all previous variables with current ones
             sensorChangeCountRotation++;
+
+            onOrientationUpdate(timeStamps[indexCurrentRotation], thetaRad[indexCurrentRotation],
+                    angularVelocityRad[indexCurrentRotation], orientation[0], orientation[2]);
         }
+    }
 
-        timerCount ++;
+    /**
+     * {@link Mode#COMPLEMENTARY}: integrates the gyroscope rate about the tilt axis and pulls the
+     * result towards the tilt of the latest accelerometer reading. Angles are those of the
+     * remapped rotation vector, i.e. the tilt axis is the phone's x axis and the tilt is 0 with the
+     * screen vertical.
+     */
+    private void onGyroscopeChanged(SensorEvent event){
+        if (!hasGravity){
+            return;
+        }
+        double ax = gravity[0];
+        double ay = gravity[1];
+        double az = gravity[2];
+        double accelerometerPitch = Math.atan2(-az, Math.sqrt(ax * ax + ay * ay));
+        double roll = Math.atan2(ax, ay);
+        double rate = event.values[0];
+        double dtGyro = 0;
+        if (previousGyroTimestamp == 0){
+            fusedPitch = accelerometerPitch;
+        } else {
+            dtGyro = (event.timestamp - previousGyroTimestamp) / 1000000000.0;
+            double weight = fusionTimeConstant / (fusionTimeConstant + dtGyro);
+            fusedPitch = weight * (fusedPitch + rate * dtGyro) + (1 - weight) * accelerometerPitch;
+        }
+        previousGyroTimestamp = event.timestamp;
+        double pitch = fusedPitch;
+        if (thetaFilter != null){
+            pitch = thetaFilter.filter(pitch, dtGyro);
+        }
+        onOrientationUpdate(event.timestamp, pitch, rate, Double.NaN, roll);
+    }
 
-        if(!paused){
-            for (OrientationDataSubscriber subscriber:subscribers){
-                subscriber.onOrientationUpdate(timeStamps[indexCurrentRotation],
-                        thetaRad[indexCurrentRotation],
-                        angularVelocityRad[indexCurrentRotation]);
-            }
+    /**
+     * Publishes one sample, as computed by {@link #onSensorChanged(SensorEvent)} or replayed by a
+     * {@link jp.oist.abcvlib.core.inputs.PublisherReplayer}.
+     * @param timestamp sensor timestamp in ns, see {@link SensorEvent#timestamp}
+     */
+    public void onOrientationUpdate(long timestamp, double thetaRad, double angularVelocityRad,
+                                    double azimuthRad, double rollRad){
+        onProduced();
+        PublisherRecorder publisherRecorder = this.publisherRecorder;
+        if (publisherRecorder != null){
+            publisherRecorder.recordOrientation(timestamp, thetaRad, angularVelocityRad, azimuthRad, rollRad);
+        }
+        if(!paused && eventRing.hasConsumers()){
+            long sequence = eventRing.claim();
+            eventRing.putLong(sequence, OrientationSample.TIMESTAMP, timestamp);
+            eventRing.putDouble(sequence, OrientationSample.THETA, thetaRad);
+            eventRing.putDouble(sequence, OrientationSample.ANGULAR_VELOCITY, angularVelocityRad);
+            eventRing.putDouble(sequence, OrientationSample.AZIMUTH, azimuthRad);
+            eventRing.putDouble(sequence, OrientationSample.ROLL, rollRad);
+            eventRing.publish(sequence);
         }
     }
 
+    @Override
+    protected void dispatch(OrientationDataSubscriber subscriber, EventRing.Event event) {
+        subscriber.onOrientationUpdate(event.getLong(OrientationSample.TIMESTAMP),
+                event.getDouble(OrientationSample.THETA),
+                event.getDouble(OrientationSample.ANGULAR_VELOCITY));
+    }
+
+    /**
+     * Subscribes to every sample as a reusable {@link OrientationSample} view rather than separate
+     * arguments. The subscriber is called on this publisher's event loop.
+     */
+    public OrientationData addSampleSubscriber(OrientationSampleSubscriber subscriber){
+        return addSampleSubscriber(subscriber, DeliveryPolicy.EVERY_SAMPLE);
+    }
+
+    public OrientationData addSampleSubscriber(OrientationSampleSubscriber subscriber, DeliveryPolicy policy){
+        OrientationSample sample = new OrientationSample();
+        addEventHandler(subscriber.getClass().getSimpleName(),
+                event -> subscriber.onOrientationSample(sample.wrap(event)), policy);
+        return this;
+    }
+
     /**
-     Registering sensorEventListeners for accelerometer and gyroscope only.
+     Registering sensorEventListeners for the sensors the {@link Mode} uses only.
      */
     public void register(Handler handler){
+        if (mode == Mode.COMPLEMENTARY){
+            hasGravity = false;
+            previousGyroTimestamp = 0;
+            if (gyroscope != null && accelerometer != null){
+                sensorManager.registerListener(this, gyroscope, SensorManager.SENSOR_DELAY_FASTEST, handler);
+                sensorManager.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_FASTEST, handler);
+            } else {
+                Log.e("SensorTesting", "No Default gyroscope or accelerometer Available.");
+            }
+            return;
+        }
         // Check if rotation_sensor exists before trying to turn on the listener
         if (rotation_sensor != null){
             sensorManager.registerListener(this, rotation_sensor, SensorManager.SENSOR_DELAY_FASTEST, handler);
         } else {
             Log.e("SensorTesting", "No Default rotation_sensor Available.");
         }
-        // Check if gyro exists before trying to turn on the listener
-        if (gyroscope != null){
-            sensorManager.registerListener(this, gyroscope, SensorManager.SENSOR_DELAY_FASTEST, handler);
-        } else {
-            Log.e("SensorTesting", "No Default gyroscope Available.");
-        }
-        // Check if rotation_sensor exists before trying to turn on the listener
-        if (accelerometer != null){
-            sensorManager.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_FASTEST, handler);
-        } else {
-            Log.e("SensorTesting", "No Default accelerometer Available.");
-        }
-        // Check if rotation_sensor exists before trying to turn on the listener
-        if (accelerometer_uncalibrated != null){
-            sensorManager.registerListener(this, accelerometer_uncalibrated, SensorManager.SENSOR_DELAY_FASTEST, handler);
-        } else {
-            Log.e("SensorTesting", "No Default accelerometer_uncalibrated Available.");
-        }
     }
 
 //    /**
@@ -271,17 +458,14 @@ public class OrientationData extends Publisher<OrientationDataSubscriber> implem
 
     @Override
     public void start() {
-        mHandlerThread = new HandlerThread("sensorThread");
-        mHandlerThread.start();
-        handler = new Handler(mHandlerThread.getLooper());
+        handler = getEventLoop().getHandler();
         register(handler);
-        publisherManager.onPublisherInitialized();
         super.start();
+        publisherManager.onPublisherInitialized(this);
     }
 
     @Override
     public void stop() {
-        mHandlerThread.quitSafely();
         unregister();
         handler = null;
         super.stop();
@@ -0,0 +1,77 @@
+package jp.oist.abcvlib.core.inputs.phone;
+
+import jp.oist.abcvlib.core.inputs.EventRing;
+
+/**
+ * Read-only view of one orientation sample passed to an {@link OrientationSampleSubscriber}. Each
+ * subscriber gets one instance that is pointed at every new sample in turn, so nothing is
+ * allocated per sample. Do not keep a reference to it beyond the callback.
+ * <br><br>
+ * With an aggregate {@link jp.oist.abcvlib.core.inputs.DeliveryPolicy} the tilt angle and angular
+ * velocity are aggregated over the window. Azimuth and roll wrap around at +-Pi, so they are not
+ * aggregated and are those of the latest sample in it, as is the timestamp.
+ */
+public final class OrientationSample {
+    // Event layout in the OrientationData eventRing
+    static final int TIMESTAMP = 0;
+    static final int THETA = 1;
+    static final int ANGULAR_VELOCITY = 2;
+    static final int AZIMUTH = 3;
+    static final int ROLL = 4;
+    static final int FIELD_COUNT = 5;
+    static final int[] DOUBLE_FIELDS = {THETA, ANGULAR_VELOCITY};
+
+    private EventRing.Event event;
+
+    OrientationSample() {
+    }
+
+    OrientationSample wrap(EventRing.Event event) {
+        this.event = event;
+        return this;
+    }
+
+    /**
+     * @return ever increasing number of this sample. Gaps mean samples were skipped as the
+     * subscriber fell behind.
+     */
+    public long getSequence() {
+        return event.getSequence();
+    }
+
+    /**
+     * @return in nanoseconds see {@link java.lang.System#nanoTime()}
+     */
+    public long getTimestamp() {
+        return event.getLong(TIMESTAMP);
+    }
+
+    /**
+     * @return tilt (pitch) angle in radians. See {@link OrientationData#getThetaDeg(double)} for
+     * degrees
+     */
+    public double getThetaRad() {
+        return event.getDouble(THETA);
+    }
+
+    /**
+     * @return tilt angular velocity in rad/s
+     */
+    public double getAngularVelocityRad() {
+        return event.getDouble(ANGULAR_VELOCITY);
+    }
+
+    /**
+     * @return azimuth in radians of the remapped rotation vector
+     */
+    public double getAzimuthRad() {
+        return event.getDouble(AZIMUTH);
+    }
+
+    /**
+     * @return roll in radians of the remapped rotation vector
+     */
+    public double getRollRad() {
+        return event.getDouble(ROLL);
+    }
+}
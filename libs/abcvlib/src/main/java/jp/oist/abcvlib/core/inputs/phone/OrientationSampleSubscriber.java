@@ -0,0 +1,15 @@
+package jp.oist.abcvlib.core.inputs.phone;
+
+/**
+ * Alternative to {@link OrientationDataSubscriber} receiving each sample as an
+ * {@link OrientationSample}, so new fields can be added without changing this interface. Register
+ * with {@link OrientationData#addSampleSubscriber(OrientationSampleSubscriber)}.
+ */
+public interface OrientationSampleSubscriber {
+    /**
+     * Called on the subscriber's consumer loop or thread for every sample, or as set by its
+     * {@link jp.oist.abcvlib.core.inputs.DeliveryPolicy}.
+     * @param sample only valid for the duration of the call
+     */
+    void onOrientationSample(OrientationSample sample);
+}
@@ -69,7 +69,11 @@ public class QRCodeData extends ImageData<QRCodeDataSubscriber>{
                 Result result = new QRCodeReader().decode(binaryBitmap);
                 qrDecodedData = result.getText();
                 for (QRCodeDataSubscriber subscriber:subscribers){
-                    subscriber.onQRCodeDetected(qrDecodedData);
+                    if (isDue(subscriber)){
+                        long start = System.nanoTime();
+                        subscriber.onQRCodeDetected(qrDecodedData);
+                        onDispatched(subscriber, publishTime, start);
+                    }
                 }
             } catch (FormatException e) {
                 Log.v("qrcode", "QR Code cannot be decoded");
@@ -82,6 +86,12 @@ public class QRCodeData extends ImageData<QRCodeDataSubscriber>{
         }
     }
 
+    @Override
+    protected boolean needsBitmap() {
+        // Decodes from the luminance bytes alone
+        return false;
+    }
+
     @Override
     protected void setDefaultImageAnalysis(){
         imageAnalysis =
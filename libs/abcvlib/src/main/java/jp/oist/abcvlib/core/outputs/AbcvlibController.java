@@ -1,12 +1,18 @@
 package jp.oist.abcvlib.core.outputs;
 
+import android.os.Handler;
+import android.os.SystemClock;
+
 import java.util.concurrent.TimeUnit;
 
 import jp.oist.abcvlib.util.ErrorHandler;
+import jp.oist.abcvlib.util.EventLoop;
 import jp.oist.abcvlib.util.ProcessPriorityThreadFactory;
 import jp.oist.abcvlib.util.ScheduledExecutorServiceWithException;
 
 public abstract class AbcvlibController implements Runnable{
+    // Shortest time step on an event loop, as a Handler schedules in whole milliseconds
+    private static final long MIN_LOOP_TIME_STEP = 1000000; // ns
 
     private String name;
     private int threadCount = 1;
@@ -15,8 +21,16 @@ public abstract class AbcvlibController implements Runnable{
     private int timeStep;
     private TimeUnit timeUnit;
     private ScheduledExecutorServiceWithException executor;
+    // When set, runs on this loop instead of executor
+    private EventLoop eventLoop;
+    // Handler of eventLoop while started. Posting to it after the loop is quit does nothing
+    private volatile Handler loopHandler;
+    private final Runnable loopTask = this::runOnLoop;
+    // System.nanoTime at which the next run on eventLoop is due. Only used on eventLoop once started
+    private long nextRun;
+    private long loopTimeStep; // ns
     private final String TAG = getClass().getName();
-    private boolean isRunning = false;
+    private volatile boolean isRunning = false;
 
     public AbcvlibController(){}
 
@@ -50,7 +64,34 @@ public abstract class AbcvlibController implements Runnable{
         return this;
     }
 
+    /**
+     * Runs the controller on eventLoop rather than on threads of its own, e.g. on
+     * {@link jp.oist.abcvlib.util.EventLoops#getControlLoop()} to pin it to the real-time thread
+     * nothing but controllers run on. The thread count and priority are then not used. Must be set
+     * before {@link #startController()}, which starts eventLoop again if it was quit.
+     * <br><br>
+     * On a loop, runs are due at a fixed rate of one per time step, which must be at least 1ms. A
+     * run is never early, and is late by less than a millisecond plus whatever else runs on the
+     * loop, without the lateness adding up over runs.
+     */
+    public AbcvlibController setEventLoop(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+        return this;
+    }
+
     public void startController(){
+        if (eventLoop != null){
+            loopTimeStep = timeUnit.toNanos(timeStep);
+            if (loopTimeStep < MIN_LOOP_TIME_STEP){
+                throw new IllegalArgumentException("Time step of " + timeStep + " " + timeUnit
+                        + " is below the 1ms a controller on an event loop can run at");
+            }
+            isRunning = true;
+            loopHandler = eventLoop.start();
+            nextRun = System.nanoTime() + timeUnit.toNanos(initDelay);
+            postAtNextRun();
+            return;
+        }
         executor = new ScheduledExecutorServiceWithException(
                 threadCount, new ProcessPriorityThreadFactory(threadPriority,
                 name));
@@ -60,8 +101,43 @@ public abstract class AbcvlibController implements Runnable{
 
     public void stopController(){
         setOutput(0,0);
-        executor.shutdown();
         isRunning = false;
+        if (eventLoop != null){
+            Handler handler = loopHandler;
+            if (handler != null){
+                handler.removeCallbacks(loopTask);
+            }
+        } else {
+            executor.shutdown();
+        }
+    }
+
+    private void runOnLoop(){
+        if (!isRunning){
+            return;
+        }
+        try {
+            run();
+        } catch (RuntimeException e){
+            ErrorHandler.eLog(TAG, "Controller " + name + " threw", e, false);
+        }
+        if (isRunning){
+            nextRun += loopTimeStep;
+            long now = System.nanoTime();
+            if (nextRun < now){
+                // More than a step behind, e.g. after a slow run. Skip the missed runs rather
+                // than catching up in a burst
+                nextRun = now + loopTimeStep;
+            }
+            postAtNextRun();
+        }
+    }
+
+    // Posts loopTask at the first uptime millisecond not before nextRun. Rounding only delays this
+    // run, as nextRun itself moves on in nanoseconds
+    private void postAtNextRun(){
+        long delay = Math.max(0, nextRun - System.nanoTime());
+        loopHandler.postAtTime(loopTask, SystemClock.uptimeMillis() + (delay + 999999) / 1000000);
     }
 
     public Output output = new Output();
@@ -5,32 +5,37 @@ import java.util.concurrent.TimeUnit;
 import ioio.lib.api.exception.ConnectionLostException;
 import jp.oist.abcvlib.core.AbcvlibLooper;
 import jp.oist.abcvlib.core.Switches;
-import jp.oist.abcvlib.util.ProcessPriorityThreadFactory;
-import jp.oist.abcvlib.util.ScheduledExecutorServiceWithException;
+import jp.oist.abcvlib.util.EventLoops;
 import jp.oist.abcvlib.util.SerialCommManager;
 
 public class Outputs {
 
     public Motion motion;
     private final MasterController masterController;
-    private final ScheduledExecutorServiceWithException threadPoolExecutor;
     private final SerialCommManager serialCommManager;
 
     public Outputs(Switches switches, SerialCommManager serialCommManager){
-        // Determine number of necessary threads.
-        int threadCount = 1; // At least one for the MasterController
         this.serialCommManager = serialCommManager;
-        ProcessPriorityThreadFactory processPriorityThreadFactory = new ProcessPriorityThreadFactory(Thread.MAX_PRIORITY, "Outputs");
-        threadPoolExecutor = new ScheduledExecutorServiceWithException(threadCount, processPriorityThreadFactory);
 
         //BalancePIDController Controller
         motion = new Motion(switches);
 
+        // Pinned to the reserved real-time control loop rather than a thread of its own
         masterController = new MasterController(switches, serialCommManager);
+        masterController.setName("MasterController").setInitDelay(0).setTimestep(1)
+                .setTimeUnit(TimeUnit.MILLISECONDS).setEventLoop(EventLoops.getControlLoop());
     }
 
+    /**
+     * Starts sending the summed outputs of the controllers added to the MasterController every
+     * 1ms, on {@link EventLoops#getControlLoop()}.
+     */
     public void startMasterController(){
-        threadPoolExecutor.scheduleWithFixedDelay(masterController, 0, 1, TimeUnit.MILLISECONDS);
+        masterController.startController();
+    }
+
+    public void stopMasterController(){
+        masterController.stopController();
     }
 
     /**
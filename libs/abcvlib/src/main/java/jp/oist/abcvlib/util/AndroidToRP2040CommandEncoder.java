@@ -0,0 +1,190 @@
+package jp.oist.abcvlib.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Encodes the commands sent to the rp2040 into pooled {@link AndroidToRP2040Packet}s without
+ * allocating.
+ * <br><br>
+ * Motor levels are quantized to DRV8830 control values through a table computed once: the control
+ * value only changes at about 130 levels over the whole range, so those levels are found up front
+ * and each command is a binary search over them rather than the float voltage conversion. The
+ * table gives exactly the same control values as the direct conversion.
+ * <br><br>
+ * Packets come from a fixed pool and return to it once released by everyone holding them. If
+ * every packet is held (e.g. a large maxInFlight with replies going missing), a new one is
+ * allocated rather than holding up the command, and counted in
+ * {@link #getAllocatedPacketCount()}. Thread safe.
+ */
+class AndroidToRP2040CommandEncoder {
+    private static final byte DRV8830_IN1_BIT = 0;
+    private static final byte DRV8830_IN2_BIT = 1;
+    private static final byte BRAKE = (1 << DRV8830_IN1_BIT) | (1 << DRV8830_IN2_BIT);
+    // Spacing of the levels scanned for changes. Must be finer than the 0.016 level step between
+    // control values, so that at most one change lies between neighbouring scan points
+    private static final float SCAN_STEP = 1f / 4096;
+    // CONTROL_VALUES[i] applies from THRESHOLDS[i - 1] (inclusive) up to THRESHOLDS[i], brakes off
+    private static final float[] THRESHOLDS;
+    private static final byte[] CONTROL_VALUES;
+
+    static {
+        float[] thresholds = new float[512];
+        byte[] controlValues = new byte[thresholds.length + 1];
+        int count = 0;
+        float previous = -1;
+        controlValues[0] = toControlValue(previous);
+        for (int i = 1; i <= 2 / SCAN_STEP; i++) {
+            float level = -1 + i * SCAN_STEP;
+            byte controlValue = toControlValue(level);
+            if (controlValue != controlValues[count]) {
+                // Bisect down to the first float level giving the new control value
+                float low = previous;
+                float high = level;
+                float middle = low + (high - low) / 2;
+                while (middle != low && middle != high) {
+                    if (toControlValue(middle) == controlValues[count]) {
+                        low = middle;
+                    } else {
+                        high = middle;
+                    }
+                    middle = low + (high - low) / 2;
+                }
+                thresholds[count++] = high;
+                controlValues[count] = controlValue;
+            }
+            previous = level;
+        }
+        THRESHOLDS = Arrays.copyOf(thresholds, count);
+        CONTROL_VALUES = Arrays.copyOf(controlValues, count + 1);
+    }
+
+    private final ArrayBlockingQueue<AndroidToRP2040Packet> free;
+    private volatile long allocatedPacketCount = 0;
+
+    /**
+     * @param poolSize number of packets preallocated. Needs to cover the packets queued (at most
+     *                 one per command as newer ones replace older ones), in flight and being
+     *                 written at any one time.
+     */
+    AndroidToRP2040CommandEncoder(int poolSize) {
+        free = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            free.add(new AndroidToRP2040Packet(this));
+        }
+    }
+
+    AndroidToRP2040CommandEncoder() {
+        this(16);
+    }
+
+    /**
+     * @param left [-1,1] representing full speed backward to full speed forward
+     * @param right same as left
+     * @return packet holding one reference owned by the caller
+     */
+    AndroidToRP2040Packet encodeSetMotorLevels(float left, float right, boolean leftBrake,
+                                               boolean rightBrake) {
+        return encode(AndroidToRP2040Command.SET_MOTOR_LEVELS,
+                lookupControlValue(left, leftBrake), lookupControlValue(right, rightBrake));
+    }
+
+    AndroidToRP2040Packet encodeGetLog() {
+        return encode(AndroidToRP2040Command.GET_LOG, (byte) 0, (byte) 0);
+    }
+
+    AndroidToRP2040Packet encodeGetState() {
+        return encode(AndroidToRP2040Command.GET_STATE, (byte) 0, (byte) 0);
+    }
+
+    private AndroidToRP2040Packet encode(AndroidToRP2040Command command, byte left, byte right) {
+        AndroidToRP2040Packet packet = free.poll();
+        if (packet == null) {
+            allocatedPacketCount++;
+            packet = new AndroidToRP2040Packet(null);
+        }
+        packet.set(command, left, right);
+        packet.acquire();
+        return packet;
+    }
+
+    void recycle(AndroidToRP2040Packet packet) {
+        if (!free.offer(packet)) {
+            throw new IllegalStateException("AndroidToRP2040Packet recycled more than once");
+        }
+    }
+
+    /**
+     * @return number of packets allocated because the pool was empty. Should stay at 0.
+     */
+    long getAllocatedPacketCount() {
+        return allocatedPacketCount;
+    }
+
+    int available() {
+        return free.size();
+    }
+
+    private static byte lookupControlValue(float level, boolean brake) {
+        byte controlValue;
+        if (Float.isNaN(level)) {
+            controlValue = 0;
+        } else {
+            // Number of thresholds at or below level
+            int low = 0;
+            int high = THRESHOLDS.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (THRESHOLDS[middle] <= level) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            controlValue = CONTROL_VALUES[low];
+        }
+        if (brake) {
+            // Braking keeps the voltage bits but sets both IN1 and IN2
+            controlValue |= BRAKE;
+        }
+        return controlValue;
+    }
+
+    /**
+     * Direct conversion of a motor level to a DRV8830 control value with both brakes off. Only
+     * used to build the table.
+     */
+    private static byte toControlValue(float level) {
+        final float LOWER_LIMIT = 0.49f;
+
+        // Normalize [-1,1] to [-5.06,5.06] as this is the range accepted by the chip
+        // Note - signs are to invert the direction of the motors as the motors are mounted in a
+        // polar opposite direction.
+        float voltage = -level * 5.06f;
+
+        byte controlValue = 0;
+        // Exclude or truncate voltages between -0.48V and 0.48V to 0V
+        // Changing to 0.49 as the scaling function would result in 0x05h for 0.48V and
+        // cause the rp2040 to perform unexpectely as it is a reserved register value
+        if (voltage < -LOWER_LIMIT || voltage > LOWER_LIMIT) {
+            // Clamp the voltage within the valid range
+            // Need to clamp here rather than at byte representation to prevent overflow
+            float absVoltage = Math.min(Math.abs(voltage), 5.06f);
+            // Convert voltage to control value (0x00 to 0x3F)
+            controlValue = (byte) (((64 * absVoltage) / (4 * 1.285)) - 1);
+            // voltage is defined by bits 2-7. Shift the control value to the correct position
+            controlValue = (byte) (controlValue << 2);
+        }
+        // Set the IN1 and IN2 bits based on the sign of the voltage. Note this is the voltage
+        // before truncation, so levels within the dead band still set the direction bit
+        if (voltage < 0) {
+            controlValue |= (1 << DRV8830_IN1_BIT);
+        } else if (voltage > 0) {
+            controlValue |= (1 << DRV8830_IN2_BIT);
+        } else {
+            // Standby/Coast: Both IN1 and IN2 set to 0
+            controlValue = 0;
+        }
+        return controlValue;
+    }
+}
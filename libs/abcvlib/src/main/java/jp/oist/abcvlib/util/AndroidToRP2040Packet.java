@@ -1,49 +1,75 @@
 package jp.oist.abcvlib.util;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
 packet[0] = START marker
 packet[1] = AndroidToRP2040Command
-packet[2..9] = payload
-packet[10] = STOP marker
+packet[2..3] = payload (left and right control values)
+packet[4] = STOP marker
 
+ */
+/**
+ * A command packet on its way to the rp2040. Instances are owned by an
+ * {@link AndroidToRP2040CommandEncoder} and reused, so the bytes of a packet are only valid while
+ * a reference to it is held. The {@link SerialRequest} carrying the packet holds one until it is
+ * answered, failed or cancelled, and the writer thread holds another while the bytes are written,
+ * so a packet is only reused once neither needs it anymore.
  */
 class AndroidToRP2040Packet {
     // (2) 1 byte for each wheel, and + 1 for command
     public static final int AndroidToRP2040PayloadSize = 2 + 1;
     // Making room for start and stop marks
-    public static int packetSize = AndroidToRP2040PayloadSize + 2;
-    private AndroidToRP2040Command command;
-    // make room for packet_type, and start and stop marks
-    protected ByteBuffer payload = ByteBuffer.allocate(AndroidToRP2040PayloadSize);
-    private ByteBuffer packet = ByteBuffer.allocate(packetSize);
-
-    public AndroidToRP2040Packet(){
-        //rp2040 is little endian whereas Java is big endian. This is to ensure that the bytes are
-        //written in the correct order for parsing on the rp2040
-        payload.order(ByteOrder.LITTLE_ENDIAN);
-        packet.order(ByteOrder.LITTLE_ENDIAN);
-        packet.put(AndroidToRP2040Command.START.getHexValue());
+    public static final int packetSize = AndroidToRP2040PayloadSize + 2;
+    private static final int COMMAND = 1;
+    private static final int LEFT = 2;
+    private static final int RIGHT = 3;
+
+    private final byte[] bytes = new byte[packetSize];
+    private final AtomicInteger references = new AtomicInteger(0);
+    // null for packets allocated because the pool was empty, which are left to the GC
+    private final AndroidToRP2040CommandEncoder owner;
+
+    AndroidToRP2040Packet(AndroidToRP2040CommandEncoder owner) {
+        this.owner = owner;
+        bytes[0] = AndroidToRP2040Command.START.getHexValue();
+        bytes[packetSize - 1] = AndroidToRP2040Command.STOP.getHexValue();
+    }
+
+    /**
+     * Fills in the command and payload. The start and stop marks never change.
+     */
+    void set(AndroidToRP2040Command command, byte left, byte right) {
+        bytes[COMMAND] = command.getHexValue();
+        bytes[LEFT] = left;
+        bytes[RIGHT] = right;
+    }
+
+    byte[] getBytes() {
+        return bytes;
     }
 
-    protected void setCommand(AndroidToRP2040Command command){
-        this.command = command;
-        payload.put(this.command.getHexValue());
+    /**
+     * Called by the encoder when handing out the packet. The caller owns the first reference.
+     */
+    void acquire() {
+        references.set(1);
     }
 
-    // Add data to packet then the end mark
-    protected byte[] packetTobytes(){
-        payload.rewind();
-        packet.put(payload);
-        packet.put(AndroidToRP2040Command.STOP.getHexValue());
-        return packet.array();
+    void retain() {
+        references.incrementAndGet();
     }
 
-    protected void clear(){
-        packet.clear();
-        packet.put(AndroidToRP2040Command.START.getHexValue());
-        payload.clear();
+    /**
+     * Drops a reference, returning the packet to its encoder's pool once none are left.
+     */
+    void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining < 0) {
+            throw new IllegalStateException("AndroidToRP2040Packet released more than once");
+        }
+        if (remaining == 0 && owner != null) {
+            owner.recycle(this);
+        }
     }
 }
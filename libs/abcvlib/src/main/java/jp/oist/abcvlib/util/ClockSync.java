@@ -0,0 +1,186 @@
+package jp.oist.abcvlib.util;
+
+/**
+ * Estimates the offset and drift between the rp2040 microsecond clock and the phone's
+ * {@link System#nanoTime()} from request/reply pairs, in the style of NTP.
+ * <br><br>
+ * Each sample is the phone time a request was written (t1), the rp2040 time stamped into its reply
+ * (t2) and the phone time the reply arrived (t4). Assuming the rp2040 stamps the reply as it
+ * handles the request and the link delay is symmetric, the rp2040 clock read t2 at the phone time
+ * (t1 + t4) / 2, give or take half the round trip t4 - t1. Samples with the shortest round trip
+ * are the least affected by USB and queueing delay, so as in the NTP clock filter the offset is
+ * anchored on the shortest round trip in a sliding window, while the drift is a least squares fit
+ * over the samples whose round trip is close to that minimum.
+ * <br><br>
+ * The estimator never reads a clock itself. Given the same samples it gives the same estimates,
+ * so it can be driven from a recording or the rp2040 emulator of the tests. Not thread safe beyond
+ * single writer, multiple readers of the getters.
+ * <br><br>
+ * Depends on firmware support: samples only come from state replies carrying the rp2040 time,
+ * declared by {@link RP2040ToAndroidPacket.StateOffsets#STATE_VERSION_MCU_TIME}. That layout is an
+ * extension defined on this side of the link which the current rp2040 firmware does not send, so
+ * against it the {@link SerialCommManager} never adds samples, {@link #isSynchronized()} stays
+ * false and state timestamps fall back to the middle of the round trip. Only the emulator sends
+ * it until the firmware appends the version byte and timestamp to its state.
+ */
+public class ClockSync {
+    // Samples needed before estimates are used
+    private static final int MIN_SAMPLES = 4;
+    // Drift is only fitted once the samples span at least this long, as a short span is dominated
+    // by jitter
+    private static final long MIN_DRIFT_SPAN = 1000000000L; // ns
+    // Samples with a round trip within this factor of the minimum are used to fit the drift
+    private static final double DELAY_TOLERANCE = 1.5;
+
+    private final long[] phoneTimes; // (t1 + t4) / 2 in ns
+    private final long[] offsets; // t2 - (t1 + t4) / 2 in ns
+    private final long[] delays; // t4 - t1 in ns
+    private int next = 0;
+    private int size = 0;
+    private long sampleCount = 0;
+
+    // Model: rp2040 time (ns) = phone time + offset + drift * (phone time - reference time)
+    private volatile long referenceTime = 0;
+    private volatile long offset = 0;
+    private volatile double drift = 0;
+    private volatile long minDelay = 0;
+
+    /**
+     * @param window number of most recent samples considered. The drift can only be followed as
+     *               fast as this many samples span.
+     */
+    public ClockSync(int window) {
+        phoneTimes = new long[window];
+        offsets = new long[window];
+        delays = new long[window];
+    }
+
+    public ClockSync() {
+        this(256);
+    }
+
+    /**
+     * @param sentTime phone nanoTime at which the request was written
+     * @param mcuTime rp2040 time in microseconds stamped into the reply
+     * @param receivedTime phone nanoTime at which the reply arrived
+     */
+    public void addSample(long sentTime, long mcuTime, long receivedTime) {
+        long delay = receivedTime - sentTime;
+        if (delay < 0) {
+            return;
+        }
+        long phoneTime = sentTime + delay / 2;
+        phoneTimes[next] = phoneTime;
+        offsets[next] = mcuTime * 1000L - phoneTime;
+        delays[next] = delay;
+        next = (next + 1) % phoneTimes.length;
+        if (size < phoneTimes.length) {
+            size++;
+        }
+        sampleCount++;
+        update();
+    }
+
+    private void update() {
+        int best = 0;
+        for (int i = 1; i < size; i++) {
+            if (delays[i] < delays[best]) {
+                best = i;
+            }
+        }
+        long bestDelay = delays[best];
+        long reference = phoneTimes[best];
+        long bestOffset = offsets[best];
+
+        // Least squares slope of offset against phone time over the low delay samples, centred
+        // on the reference sample to keep the sums small
+        long threshold = (long) (bestDelay * DELAY_TOLERANCE) + 1000;
+        int n = 0;
+        double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            if (delays[i] > threshold) {
+                continue;
+            }
+            double x = phoneTimes[i] - reference;
+            double y = offsets[i] - bestOffset;
+            n++;
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+            first = Math.min(first, phoneTimes[i]);
+            last = Math.max(last, phoneTimes[i]);
+        }
+        double slope = drift;
+        double denominator = n * sumXX - sumX * sumX;
+        if (n >= 2 && last - first >= MIN_DRIFT_SPAN && denominator > 0) {
+            slope = (n * sumXY - sumX * sumY) / denominator;
+        }
+
+        referenceTime = reference;
+        offset = bestOffset;
+        drift = slope;
+        minDelay = bestDelay;
+    }
+
+    /**
+     * @return true once enough samples have been added for the estimates to be used
+     */
+    public boolean isSynchronized() {
+        return sampleCount >= MIN_SAMPLES;
+    }
+
+    /**
+     * @param mcuTime rp2040 time in microseconds
+     * @return the corresponding phone {@link System#nanoTime()}
+     */
+    public long toPhoneTime(long mcuTime) {
+        // Solve mcuTime * 1000 = t + offset + drift * (t - referenceTime) for t
+        long reference = referenceTime;
+        double relative = mcuTime * 1000L - reference - offset;
+        return reference + Math.round(relative / (1 + drift));
+    }
+
+    /**
+     * @param phoneTime phone {@link System#nanoTime()}
+     * @return the corresponding rp2040 time in microseconds
+     */
+    public long toMcuTime(long phoneTime) {
+        long relative = phoneTime - referenceTime;
+        return (phoneTime + offset + Math.round(drift * relative)) / 1000L;
+    }
+
+    /**
+     * @return rp2040 clock minus phone clock in nanoseconds at {@link #getReferenceTime()}
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return phone nanoTime of the sample the offset is anchored on
+     */
+    public long getReferenceTime() {
+        return referenceTime;
+    }
+
+    /**
+     * @return rate at which the rp2040 clock gains on the phone clock in parts per million
+     */
+    public double getDriftPpm() {
+        return drift * 1e6;
+    }
+
+    /**
+     * @return shortest round trip in the window in nanoseconds. Half of it bounds the error of the
+     * offset.
+     */
+    public long getMinDelay() {
+        return minDelay;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+}
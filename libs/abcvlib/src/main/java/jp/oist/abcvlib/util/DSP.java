@@ -1,8 +1,417 @@
 package jp.oist.abcvlib.util;
 
+/**
+ * Signal processing helpers for sensor streams.
+ * <br><br>
+ * The {@link Filter}s are streaming: each is fed one sample at a time and keeps only the state it
+ * needs in primitive fields and arrays allocated when it is created, so filtering a sample never
+ * allocates. A filter instance belongs to one stream and one thread. Publishers that let a stream
+ * be filtered take a {@link FilterFactory} in their builder, e.g.
+ * {@code setSpeedFilter(() -> new DSP.Median(5))}, so each stream gets a filter of its own.
+ */
 public class DSP {
     public static double exponentialAvg(double sample, double expAvg, double weighting){
         expAvg = (1.0 - weighting) * expAvg + (weighting * sample);
         return expAvg;
     }
+
+    /**
+     * One stream of samples in, one filtered or derived value out per sample.
+     */
+    public interface Filter {
+        /**
+         * @param sample the next sample of the stream
+         * @param dt seconds since the previous sample. Filters assuming a fixed sample rate
+         *           ignore it
+         * @return the filtered value, or for derivatives the rate of change per second
+         */
+        double filter(double sample, double dt);
+
+        /**
+         * Forgets all previous samples, as if newly created.
+         */
+        void reset();
+    }
+
+    /**
+     * Creates a new {@link Filter} for each stream it is used on.
+     */
+    public interface FilterFactory {
+        Filter create();
+    }
+
+    /**
+     * Mean of the last length samples, from a running sum so each sample costs the same whatever
+     * the length. Until length samples are seen it is the mean of those there are.
+     */
+    public static final class MovingAverage implements Filter {
+        private final double[] window;
+        private int index = 0;
+        private int count = 0;
+        private double sum = 0;
+
+        public MovingAverage(int length){
+            if (length < 1){
+                throw new IllegalArgumentException("length must be at least 1");
+            }
+            window = new double[length];
+        }
+
+        @Override
+        public double filter(double sample, double dt){
+            if (count == window.length){
+                sum -= window[index];
+            } else {
+                count++;
+            }
+            window[index] = sample;
+            sum += sample;
+            index = (index + 1) % window.length;
+            if (index == 0){
+                // Recompute once per window so rounding errors of the running sum do not add up
+                sum = 0;
+                for (double value : window){
+                    sum += value;
+                }
+            }
+            return sum / count;
+        }
+
+        @Override
+        public void reset(){
+            index = 0;
+            count = 0;
+            sum = 0;
+        }
+    }
+
+    /**
+     * First order low pass, i.e. an exponential average whose weight follows the time between
+     * samples, so it behaves the same for irregular sample rates. The first sample is passed
+     * through as is.
+     */
+    public static final class OnePole implements Filter {
+        private final double timeConstant;
+        private double value = 0;
+        private boolean hasValue = false;
+
+        /**
+         * @param timeConstant in seconds. Steps in the input reach 63% in this time. Cutoff
+         *                     frequency is 1 / (2 Pi timeConstant)
+         */
+        public OnePole(double timeConstant){
+            if (!(timeConstant >= 0)){
+                throw new IllegalArgumentException("timeConstant must not be negative");
+            }
+            this.timeConstant = timeConstant;
+        }
+
+        @Override
+        public double filter(double sample, double dt){
+            if (!hasValue){
+                hasValue = true;
+                value = sample;
+            } else if (dt > 0){
+                value = exponentialAvg(sample, value, dt / (timeConstant + dt));
+            }
+            return value;
+        }
+
+        @Override
+        public void reset(){
+            value = 0;
+            hasValue = false;
+        }
+    }
+
+    /**
+     * Second order IIR section in transposed direct form II, for a fixed sample rate. Use
+     * {@link #lowPass(double, double, double)} or {@link #highPass(double, double, double)} for
+     * the usual Butterworth like responses, or the constructor for coefficients designed
+     * elsewhere.
+     */
+    public static final class Biquad implements Filter {
+        private final double b0, b1, b2, a1, a2;
+        private double z1 = 0;
+        private double z2 = 0;
+
+        /**
+         * Coefficients normalized so a0 is 1, i.e.
+         * y[n] = b0 x[n] + b1 x[n-1] + b2 x[n-2] - a1 y[n-1] - a2 y[n-2]
+         */
+        public Biquad(double b0, double b1, double b2, double a1, double a2){
+            this.b0 = b0;
+            this.b1 = b1;
+            this.b2 = b2;
+            this.a1 = a1;
+            this.a2 = a2;
+        }
+
+        /**
+         * @param q 1/sqrt(2) for a Butterworth response
+         */
+        public static Biquad lowPass(double cutoffHz, double sampleRateHz, double q){
+            double w0 = 2 * Math.PI * cutoffHz / sampleRateHz;
+            double cos = Math.cos(w0);
+            double alpha = Math.sin(w0) / (2 * q);
+            double a0 = 1 + alpha;
+            return new Biquad((1 - cos) / 2 / a0, (1 - cos) / a0, (1 - cos) / 2 / a0,
+                    -2 * cos / a0, (1 - alpha) / a0);
+        }
+
+        /**
+         * @param q 1/sqrt(2) for a Butterworth response
+         */
+        public static Biquad highPass(double cutoffHz, double sampleRateHz, double q){
+            double w0 = 2 * Math.PI * cutoffHz / sampleRateHz;
+            double cos = Math.cos(w0);
+            double alpha = Math.sin(w0) / (2 * q);
+            double a0 = 1 + alpha;
+            return new Biquad((1 + cos) / 2 / a0, -(1 + cos) / a0, (1 + cos) / 2 / a0,
+                    -2 * cos / a0, (1 - alpha) / a0);
+        }
+
+        @Override
+        public double filter(double sample, double dt){
+            double output = b0 * sample + z1;
+            z1 = b1 * sample - a1 * output + z2;
+            z2 = b2 * sample - a2 * output;
+            return output;
+        }
+
+        @Override
+        public void reset(){
+            z1 = 0;
+            z2 = 0;
+        }
+    }
+
+    /**
+     * Derivative from the last two samples, (x[n] - x[n-1]) / dt. Noisy, but without delay. 0
+     * for the first sample and whenever dt is not positive.
+     */
+    public static final class FiniteDifference implements Filter {
+        private double previous = 0;
+        private boolean hasPrevious = false;
+
+        @Override
+        public double filter(double sample, double dt){
+            double derivative = hasPrevious && dt > 0 ? (sample - previous) / dt : 0;
+            previous = sample;
+            hasPrevious = true;
+            return derivative;
+        }
+
+        @Override
+        public void reset(){
+            previous = 0;
+            hasPrevious = false;
+        }
+    }
+
+    /**
+     * Savitzky-Golay derivative, i.e. the slope of the least squares line (or parabola, which
+     * gives the same slope at the center) through the last 2 halfWindow + 1 samples. Much less
+     * noisy than {@link FiniteDifference}, at the cost of a delay of halfWindow samples. Assumes
+     * samples are about evenly spaced, and uses the mean dt over the window. 0 until the window
+     * is full.
+     */
+    public static final class SavitzkyGolayDerivative implements Filter {
+        private final int halfWindow;
+        private final double[] samples;
+        private final double[] dts;
+        private final double sumSquares;
+        private int index = 0;
+        private int count = 0;
+        private double dtSum = 0;
+
+        public SavitzkyGolayDerivative(int halfWindow){
+            if (halfWindow < 1){
+                throw new IllegalArgumentException("halfWindow must be at least 1");
+            }
+            this.halfWindow = halfWindow;
+            samples = new double[2 * halfWindow + 1];
+            dts = new double[samples.length];
+            double sum = 0;
+            for (int k = 1; k <= halfWindow; k++){
+                sum += 2.0 * k * k;
+            }
+            sumSquares = sum;
+        }
+
+        @Override
+        public double filter(double sample, double dt){
+            if (count == samples.length){
+                dtSum -= dts[index];
+            } else {
+                count++;
+            }
+            samples[index] = sample;
+            // The oldest dt is to a sample no longer in the window, so is not summed
+            dts[index] = count > 1 ? dt : 0;
+            dtSum += dts[index];
+            index = (index + 1) % samples.length;
+            if (count < samples.length || !(dtSum > 0)){
+                return 0;
+            }
+            // index is now the oldest sample, weighted -halfWindow
+            double weighted = 0;
+            int i = index;
+            for (int k = -halfWindow; k <= halfWindow; k++){
+                weighted += k * samples[i];
+                i = i + 1 == samples.length ? 0 : i + 1;
+            }
+            double meanDt = (dtSum - dts[index]) / (samples.length - 1);
+            return meanDt > 0 ? weighted / sumSquares / meanDt : 0;
+        }
+
+        @Override
+        public void reset(){
+            index = 0;
+            count = 0;
+            dtSum = 0;
+        }
+    }
+
+    /**
+     * Median of the last length samples, removing single sample spikes (up to length / 2 in a
+     * row) that averaging would only spread out. Each sample costs O(length), so keep length
+     * small, e.g. 3 to 9. Until length samples are seen it is the median of those there are.
+     */
+    public static final class Median implements Filter {
+        private final double[] window;
+        // The samples of window, sorted
+        private final double[] sorted;
+        private int index = 0;
+        private int count = 0;
+
+        public Median(int length){
+            if (length < 1){
+                throw new IllegalArgumentException("length must be at least 1");
+            }
+            window = new double[length];
+            sorted = new double[length];
+        }
+
+        @Override
+        public double filter(double sample, double dt){
+            int position;
+            if (count == window.length){
+                // Replace the oldest sample in place and move it to where the new one belongs
+                position = indexOf(window[index]);
+                while (position > 0 && sorted[position - 1] > sample){
+                    sorted[position] = sorted[position - 1];
+                    position--;
+                }
+                while (position < count - 1 && sorted[position + 1] < sample){
+                    sorted[position] = sorted[position + 1];
+                    position++;
+                }
+            } else {
+                position = count;
+                while (position > 0 && sorted[position - 1] > sample){
+                    sorted[position] = sorted[position - 1];
+                    position--;
+                }
+                count++;
+            }
+            sorted[position] = sample;
+            window[index] = sample;
+            index = (index + 1) % window.length;
+            int middle = count / 2;
+            return count % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+        }
+
+        private int indexOf(double value){
+            for (int i = 0; i < count; i++){
+                if (Double.compare(sorted[i], value) == 0){
+                    return i;
+                }
+            }
+            // Not reached, the oldest sample is always among the sorted ones
+            return count - 1;
+        }
+
+        @Override
+        public void reset(){
+            index = 0;
+            count = 0;
+        }
+    }
+
+    /**
+     * Kalman filter for a value moving at a roughly constant rate, e.g. a wheel distance or tilt
+     * angle, measured with noise. {@link #filter(double, double)} returns the estimated value, and
+     * {@link #getRate()} its estimated rate of change, which is far less noisy than differencing
+     * the samples. State and covariance are a handful of doubles.
+     */
+    public static final class ConstantVelocityKalman implements Filter {
+        private final double processNoise;
+        private final double measurementNoise;
+        private double value = 0;
+        private double rate = 0;
+        // Covariance of (value, rate)
+        private double p00, p01, p11;
+        private boolean initialized = false;
+
+        /**
+         * @param processNoise spectral density of the unmodelled changes of rate, in
+         *                     (units/s^2)^2/Hz. Higher follows changes of rate faster
+         * @param measurementNoise variance of the samples, in units^2
+         */
+        public ConstantVelocityKalman(double processNoise, double measurementNoise){
+            if (!(processNoise >= 0) || !(measurementNoise > 0)){
+                throw new IllegalArgumentException("processNoise must not be negative and measurementNoise must be positive");
+            }
+            this.processNoise = processNoise;
+            this.measurementNoise = measurementNoise;
+        }
+
+        @Override
+        public double filter(double sample, double dt){
+            if (!initialized){
+                initialized = true;
+                value = sample;
+                rate = 0;
+                p00 = measurementNoise;
+                p01 = 0;
+                // Nothing is known about the rate yet
+                p11 = 1e6 * measurementNoise;
+                return value;
+            }
+            if (dt > 0){
+                // Predict: value += rate dt, P = F P F' + Q for white noise acceleration
+                value += rate * dt;
+                double dt2 = dt * dt;
+                p00 += dt * (2 * p01 + dt * p11) + processNoise * dt2 * dt / 3;
+                p01 += dt * p11 + processNoise * dt2 / 2;
+                p11 += processNoise * dt;
+            }
+            // Update with the measured value
+            double innovation = sample - value;
+            double s = p00 + measurementNoise;
+            double k0 = p00 / s;
+            double k1 = p01 / s;
+            value += k0 * innovation;
+            rate += k1 * innovation;
+            p11 -= k1 * p01;
+            p01 -= k1 * p00;
+            p00 -= k0 * p00;
+            return value;
+        }
+
+        /**
+         * @return estimated rate of change per second as of the last sample
+         */
+        public double getRate(){
+            return rate;
+        }
+
+        @Override
+        public void reset(){
+            value = 0;
+            rate = 0;
+            initialized = false;
+        }
+    }
 }
@@ -0,0 +1,192 @@
+package jp.oist.abcvlib.util;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A named thread running an Android {@link Looper}, shared by everything assigned to it instead
+ * of each publisher or controller starting a thread of its own. Tasks posted to a loop run one
+ * after another in order, so anything slow on a loop delays everything else on it.
+ * <br><br>
+ * The thread is started by {@link #start()}, or on first use of a loop that was never quit. Once
+ * {@link #quit()} is called the loop stays stopped until {@link #start()} is called again:
+ * {@link #execute(Runnable)} rejects tasks and {@link #getHandler()} throws in the meantime, so
+ * nothing posted after quitting runs by silently bringing the thread back. Loops are usually taken
+ * from an {@link EventLoops} rather than created directly.
+ */
+public class EventLoop implements Executor {
+
+    /**
+     * Scheduling class of a loop, mapped to a Linux nice value through
+     * {@link Process#setThreadPriority(int)}. Where the system refuses a value, the thread keeps
+     * {@link Thread#MAX_PRIORITY} or {@link Thread#MIN_PRIORITY} instead.
+     */
+    public enum Priority {
+        /** Control loops that must keep their timing under load */
+        REAL_TIME_CONTROL(Process.THREAD_PRIORITY_URGENT_AUDIO, Thread.MAX_PRIORITY),
+        /** Sensor callbacks and their subscribers */
+        SENSOR(Process.THREAD_PRIORITY_DISPLAY, Thread.MAX_PRIORITY),
+        /** Heavy work that should only use what is left, e.g. image analysis */
+        BACKGROUND(Process.THREAD_PRIORITY_BACKGROUND, Thread.MIN_PRIORITY);
+
+        private final int threadPriority;
+        private final int fallbackPriority;
+
+        Priority(int threadPriority, int fallbackPriority) {
+            this.threadPriority = threadPriority;
+            this.fallbackPriority = fallbackPriority;
+        }
+
+        /**
+         * Puts the calling thread in this class.
+         */
+        public void applyToCurrentThread() {
+            try {
+                Process.setThreadPriority(threadPriority);
+            } catch (IllegalArgumentException | SecurityException e) {
+                Thread thread = Thread.currentThread();
+                Log.w(EventLoop.class.getName(), "Could not set " + thread.getName() + " to " + this
+                        + ", using thread priority " + fallbackPriority, e);
+                thread.setPriority(fallbackPriority);
+            }
+        }
+    }
+
+    private final String name;
+    private final Priority priority;
+    private final boolean reserved;
+    private HandlerThread thread;
+    private volatile Handler handler;
+    // Set by quit and cleared by start. Guarded by this
+    private boolean quit = false;
+
+    /**
+     * @param reserved see {@link #isReserved()}
+     */
+    public EventLoop(String name, Priority priority, boolean reserved) {
+        this.name = name;
+        this.priority = priority;
+        this.reserved = reserved;
+    }
+
+    public EventLoop(String name, Priority priority) {
+        this(name, priority, false);
+    }
+
+    /**
+     * @return handler posting to this loop, starting its thread on first use
+     * @throws IllegalStateException if the loop was quit and not started again
+     */
+    public Handler getHandler() {
+        Handler current = handler;
+        return current != null ? current : startOnFirstUse();
+    }
+
+    public Looper getLooper() {
+        return getHandler().getLooper();
+    }
+
+    private synchronized Handler startOnFirstUse() {
+        if (quit) {
+            throw new IllegalStateException(name + " was quit and not started again");
+        }
+        return start();
+    }
+
+    /**
+     * Starts the thread if not running, including after {@link #quit()}.
+     * @return handler posting to this loop
+     */
+    public synchronized Handler start() {
+        quit = false;
+        if (handler == null) {
+            thread = new HandlerThread(name) {
+                @Override
+                protected void onLooperPrepared() {
+                    priority.applyToCurrentThread();
+                }
+            };
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+
+    /**
+     * Posts command to run on this loop, starting its thread on first use.
+     * @throws RejectedExecutionException if the loop was quit and not started again
+     */
+    @Override
+    public void execute(Runnable command) {
+        Handler current = handler;
+        if (current == null) {
+            synchronized (this) {
+                if (quit) {
+                    throw new RejectedExecutionException(name + " was quit and not started again");
+                }
+                current = start();
+            }
+        }
+        // Fails if quit after handler was read
+        if (!current.post(command)) {
+            throw new RejectedExecutionException(name + " is quitting");
+        }
+    }
+
+    /**
+     * @return true if started and not quit since
+     */
+    public boolean isRunning() {
+        return handler != null;
+    }
+
+    /**
+     * @return true if quit and not started again since, in which case tasks are rejected
+     */
+    public synchronized boolean isQuit() {
+        return quit;
+    }
+
+    /**
+     * @return true if called from this loop's thread
+     */
+    public boolean isCurrentThread() {
+        Handler current = handler;
+        return current != null && current.getLooper() == Looper.myLooper();
+    }
+
+    /**
+     * Stops the thread once the tasks already posted have run. Tasks posted after this are
+     * rejected until {@link #start()} is called.
+     */
+    public synchronized void quit() {
+        quit = true;
+        if (thread != null) {
+            thread.quitSafely();
+            thread = null;
+            handler = null;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return true if the loop is kept for whatever is explicitly pinned to it, e.g. a control
+     * loop, and no publisher can be assigned to it
+     */
+    public boolean isReserved() {
+        return reserved;
+    }
+}
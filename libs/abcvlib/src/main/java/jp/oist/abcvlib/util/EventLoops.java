@@ -0,0 +1,144 @@
+package jp.oist.abcvlib.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The named {@link EventLoop}s of an app and which classes, usually publishers, run on which.
+ * Three loops are there from the start:
+ * <br><br>
+ * {@link #CONTROL}: reserved {@link EventLoop.Priority#REAL_TIME_CONTROL} loop, for pinning the
+ * control-critical loop to a thread nothing else runs on, see
+ * {@link jp.oist.abcvlib.core.outputs.AbcvlibController#setEventLoop(EventLoop)}. It is the same
+ * loop in every EventLoops, see {@link #getControlLoop()}, so a process has one real-time thread
+ * however many it creates.
+ * <br><br>
+ * {@link #SENSOR}: {@link EventLoop.Priority#SENSOR} loop everything runs on unless assigned
+ * elsewhere.
+ * <br><br>
+ * {@link #BACKGROUND}: {@link EventLoop.Priority#BACKGROUND} loop for heavy work.
+ * <br><br>
+ * More loops can be added with {@link #addLoop(String, EventLoop.Priority)}, e.g. to give a
+ * publisher with slow subscribers a loop of its own. Subscribers of a
+ * {@link jp.oist.abcvlib.core.inputs.RingPublisher} run on the publisher's loop unless their class
+ * is assigned a loop here. Assignments are looked up by class and then
+ * by superclass, so assigning a base class covers all its subclasses not assigned themselves.
+ * Configure loops and assignments before starting what runs on them, as each looks up its loop
+ * once when first using it.
+ */
+public class EventLoops {
+    public static final String CONTROL = "control";
+    public static final String SENSOR = "sensor";
+    public static final String BACKGROUND = "background";
+
+    // Shared by every instance. Being reserved, quit() never stops it
+    private static final EventLoop controlLoop = new EventLoop(CONTROL,
+            EventLoop.Priority.REAL_TIME_CONTROL, true);
+
+    private final HashMap<String, EventLoop> loops = new HashMap<>();
+    private final HashMap<Class<?>, EventLoop> assignments = new HashMap<>();
+
+    public EventLoops() {
+        addLoop(controlLoop);
+        addLoop(new EventLoop(SENSOR, EventLoop.Priority.SENSOR));
+        addLoop(new EventLoop(BACKGROUND, EventLoop.Priority.BACKGROUND));
+    }
+
+    /**
+     * @return the reserved {@link #CONTROL} loop, which the MasterController of
+     * {@link jp.oist.abcvlib.core.outputs.Outputs} runs on. Controllers that set their outputs
+     * from it can run on it too, before any {@link EventLoops} is created
+     */
+    public static EventLoop getControlLoop() {
+        return controlLoop;
+    }
+
+    public EventLoops addLoop(String name, EventLoop.Priority priority) {
+        return addLoop(new EventLoop(name, priority));
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is already a loop of that name
+     */
+    public synchronized EventLoops addLoop(EventLoop loop) {
+        if (loops.containsKey(loop.getName())) {
+            throw new IllegalArgumentException("There is already an event loop named " + loop.getName());
+        }
+        loops.put(loop.getName(), loop);
+        return this;
+    }
+
+    /**
+     * Runs type and its subclasses on the loop named loopName.
+     * @throws IllegalArgumentException if there is no such loop or it is reserved
+     */
+    public synchronized EventLoops assign(Class<?> type, String loopName) {
+        EventLoop loop = getLoop(loopName);
+        if (loop.isReserved()) {
+            throw new IllegalArgumentException(loopName + " is reserved and cannot be assigned to " + type.getSimpleName());
+        }
+        assignments.put(type, loop);
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is no such loop
+     */
+    public synchronized EventLoop getLoop(String name) {
+        EventLoop loop = loops.get(name);
+        if (loop == null) {
+            throw new IllegalArgumentException("There is no event loop named " + name);
+        }
+        return loop;
+    }
+
+    /**
+     * @return the loop type or its nearest assigned superclass is assigned to, or {@link #SENSOR}
+     */
+    public synchronized EventLoop getLoop(Class<?> type) {
+        EventLoop loop = getAssignedLoop(type);
+        return loop != null ? loop : loops.get(SENSOR);
+    }
+
+    /**
+     * @return the loop type or its nearest assigned superclass is assigned to, or null if neither
+     * is assigned
+     */
+    public synchronized EventLoop getAssignedLoop(Class<?> type) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            EventLoop loop = assignments.get(c);
+            if (loop != null) {
+                return loop;
+            }
+        }
+        return null;
+    }
+
+    public synchronized ArrayList<EventLoop> getLoops() {
+        return new ArrayList<>(loops.values());
+    }
+
+    /**
+     * Starts again the loops quit by {@link #quit()}. Loops never quit are left to start on first
+     * use.
+     */
+    public synchronized void start() {
+        for (EventLoop loop : loops.values()) {
+            if (loop.isQuit()) {
+                loop.start();
+            }
+        }
+    }
+
+    /**
+     * Quits every loop that is not reserved, e.g. once all publishers are stopped. They reject
+     * tasks until started again with {@link #start()} or {@link EventLoop#start()}.
+     */
+    public synchronized void quit() {
+        for (EventLoop loop : loops.values()) {
+            if (!loop.isReserved()) {
+                loop.quit();
+            }
+        }
+    }
+}
@@ -1,19 +1,60 @@
 package jp.oist.abcvlib.util;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A single packet received from the rp2040. Instances are owned by a {@link PacketBufferPool} and
+ * their payload is a slice of the pool's backing buffer rather than a copy. Whoever takes a
+ * FifoQueuePair out of the fifoQueue must call {@link #release()} once it is done reading the
+ * payload so the slot can be reused for the next packet.
+ */
 public class FifoQueuePair {
     private AndroidToRP2040Command androidToRP2040Command;
-    private byte[] byteArray;
+    private final ByteBuffer payload;
+    private final PacketBufferPool pool;
+    private long receivedTime;
 
-    public FifoQueuePair(AndroidToRP2040Command androidToRP2040Command, byte[] byteArray) {
-        this.androidToRP2040Command = androidToRP2040Command;
-        this.byteArray = byteArray;
+    FifoQueuePair(ByteBuffer payload, PacketBufferPool pool) {
+        this.payload = payload;
+        this.payload.order(ByteOrder.LITTLE_ENDIAN);
+        this.pool = pool;
     }
 
     public AndroidToRP2040Command getAndroidToRP2040Command() {
         return androidToRP2040Command;
     }
 
-    public byte[] getByteArray() {
-        return byteArray;
+    /**
+     * @return the payload of this packet (i.e. everything between the data size and the stop
+     * mark) with position 0 and limit set to the payload length. Little endian to match the rp2040.
+     * Only valid until {@link #release()} is called.
+     */
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} at which the usb chunk completing this packet arrived,
+     * i.e. before any time spent waiting in the fifoQueue
+     */
+    public long getReceivedTime() {
+        return receivedTime;
+    }
+
+    void setReceivedTime(long receivedTime) {
+        this.receivedTime = receivedTime;
+    }
+
+    /**
+     * Returns this packet to the pool it was taken from. Do not touch the payload afterwards.
+     */
+    public void release() {
+        pool.release(this);
+    }
+
+    void reset(AndroidToRP2040Command androidToRP2040Command) {
+        this.androidToRP2040Command = androidToRP2040Command;
+        payload.clear();
     }
 }
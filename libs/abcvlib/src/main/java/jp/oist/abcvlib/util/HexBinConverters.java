@@ -1,5 +1,7 @@
 package jp.oist.abcvlib.util;
 
+import java.nio.ByteBuffer;
+
 public class HexBinConverters {
     private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
     public static String bytesToHex(byte[] bytes) {
@@ -16,4 +18,14 @@ public class HexBinConverters {
         }
         return new String(hexChars);
     }
+
+    /**
+     * Same as {@link #bytesToHex(byte[])} for the bytes between position and limit. The position
+     * of the buffer is left untouched.
+     */
+    public static String bytesToHex(ByteBuffer bytes) {
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.duplicate().get(copy);
+        return bytesToHex(copy);
+    }
 }
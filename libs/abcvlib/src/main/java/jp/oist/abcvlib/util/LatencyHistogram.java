@@ -0,0 +1,118 @@
+package jp.oist.abcvlib.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory histogram of durations in nanoseconds. Buckets are logarithmic with 8 linear
+ * sub-buckets per power of two, so any recorded value is reported to within 12.5% across the whole
+ * range of a long, using under 4KB regardless of how many values are recorded.
+ * <br><br>
+ * Values must be recorded from a single thread. Any thread may read, and readers see a
+ * consistent enough view for monitoring, but not an atomic snapshot across buckets.
+ */
+public class LatencyHistogram {
+    // 2^SUB_BUCKET_BITS linear sub-buckets per power of two
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below this each get their own bucket
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private volatile long count = 0;
+    private volatile long total = 0;
+    private volatile long max = 0;
+
+    /**
+     * Single writer only.
+     * @param value duration in nanoseconds. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int index = bucketIndex(value);
+        counts.lazySet(index, counts.get(index) + 1);
+        total += value;
+        if (value > max) {
+            max = value;
+        }
+        count++;
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return LINEAR_LIMIT + (exponent - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value that falls in the bucket at index
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return subBucket * width + width - 1;
+    }
+
+    /**
+     * @param percentile in [0,100]
+     * @return the value in nanoseconds below which percentile percent of recorded values fall,
+     * rounded up to its bucket and never more than {@link #getMax()}. 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long n = count;
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long getP50() {
+        return getPercentile(50);
+    }
+
+    public long getP99() {
+        return getPercentile(99);
+    }
+
+    /**
+     * @return largest value recorded in nanoseconds
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return mean of all values recorded in nanoseconds
+     */
+    public long getMean() {
+        long n = count;
+        return n == 0 ? 0 : total / n;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + " p50=" + getP50() / 1000 + "us p99=" + getP99() / 1000 +
+                "us max=" + getMax() / 1000 + "us";
+    }
+}
@@ -0,0 +1,56 @@
+package jp.oist.abcvlib.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed set of {@link FifoQueuePair} slots sharing one preallocated backing buffer. Each slot's
+ * payload is a slice of that buffer so packets can be handed from the serial thread to the
+ * SerialCommManager without allocating or copying per packet.
+ */
+class PacketBufferPool {
+    private final ArrayBlockingQueue<FifoQueuePair> free;
+    private final int slotCount;
+    private final int slotSize;
+
+    PacketBufferPool(int slotCount, int slotSize) {
+        this.slotCount = slotCount;
+        this.slotSize = slotSize;
+        free = new ArrayBlockingQueue<>(slotCount);
+        ByteBuffer backing = ByteBuffer.allocate(slotCount * slotSize);
+        for (int i = 0; i < slotCount; i++) {
+            backing.limit((i + 1) * slotSize);
+            backing.position(i * slotSize);
+            free.add(new FifoQueuePair(backing.slice(), this));
+        }
+    }
+
+    /**
+     * @return a free slot or null if every slot is still held by a consumer.
+     */
+    FifoQueuePair acquire(AndroidToRP2040Command command) {
+        FifoQueuePair slot = free.poll();
+        if (slot != null) {
+            slot.reset(command);
+        }
+        return slot;
+    }
+
+    void release(FifoQueuePair slot) {
+        if (!free.offer(slot)) {
+            throw new IllegalStateException("FifoQueuePair released more than once");
+        }
+    }
+
+    int available() {
+        return free.size();
+    }
+
+    int getSlotCount() {
+        return slotCount;
+    }
+
+    int getSlotSize() {
+        return slotSize;
+    }
+}
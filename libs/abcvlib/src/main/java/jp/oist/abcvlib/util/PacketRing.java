@@ -0,0 +1,141 @@
+package jp.oist.abcvlib.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer queue handing decoded packets from the
+ * SerialInputOutputManager thread (producer) to the SerialCommManager reader thread (consumer).
+ * <br><br>
+ * Publishing never blocks or takes a lock: the producer writes the slot and then advances the tail.
+ * If the ring is full the packet is refused and counted rather than throwing, and it is up to the
+ * producer to release it. The consumer spins briefly and then parks when the ring is empty, and is
+ * only unparked by the producer while it is actually parked.
+ * <br><br>
+ * Each UsbSerial owns its own ring, so several serial devices in one process never wake each
+ * other up.
+ */
+class PacketRing {
+    // Number of empty checks the consumer makes, yielding in between, before parking
+    private static final int SPIN_TRIES = 16;
+
+    private final FifoQueuePair[] slots;
+    private final int mask;
+    // Next slot to read. Only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // Next slot to write. Only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+    // Producer's last seen value of head, to avoid reading the consumer's counter on every offer
+    private long cachedHead = 0;
+    private volatile Thread waiter;
+
+    private volatile long offeredCount = 0;
+    private volatile long droppedCount = 0;
+    private volatile long highWaterMark = 0;
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    PacketRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new FifoQueuePair[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Producer only.
+     * @return false if the ring was full and the packet was not queued. The caller still owns it.
+     */
+    boolean offer(FifoQueuePair packet) {
+        offeredCount++;
+        long t = tail.get();
+        if (t - cachedHead >= slots.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= slots.length) {
+                droppedCount++;
+                return false;
+            }
+        }
+        slots[(int) t & mask] = packet;
+        // A volatile write (not lazySet) so that the read of waiter below cannot be reordered
+        // before it, otherwise a consumer about to park could be missed.
+        tail.set(t + 1);
+        long depth = t + 1 - cachedHead;
+        if (depth > highWaterMark) {
+            highWaterMark = depth;
+        }
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     * @return the oldest packet, or null if the ring is empty
+     */
+    FifoQueuePair poll() {
+        long h = head.get();
+        if (h >= tail.get()) {
+            return null;
+        }
+        int index = (int) h & mask;
+        FifoQueuePair packet = slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1);
+        return packet;
+    }
+
+    boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    /**
+     * Consumer only. Returns as soon as the ring is not empty, or once timeout has elapsed.
+     * @return true if a packet is available
+     */
+    boolean await(long timeoutNanos) {
+        for (int i = 0; i < SPIN_TRIES; i++) {
+            if (!isEmpty()) {
+                return true;
+            }
+            Thread.yield();
+        }
+        final long deadline = System.nanoTime() + timeoutNanos;
+        waiter = Thread.currentThread();
+        try {
+            long remaining = timeoutNanos;
+            // Checked after publishing waiter so a packet offered in between is never missed
+            while (isEmpty() && remaining > 0) {
+                LockSupport.parkNanos(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        } finally {
+            waiter = null;
+        }
+        return !isEmpty();
+    }
+
+    int getCapacity() {
+        return slots.length;
+    }
+
+    long getOfferedCount() {
+        return offeredCount;
+    }
+
+    /**
+     * @return number of packets refused because the ring was full
+     */
+    long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return the most packets that have been queued at once
+     */
+    long getHighWaterMark() {
+        return highWaterMark;
+    }
+}
@@ -0,0 +1,166 @@
+package jp.oist.abcvlib.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Bounded ring of the log lines returned by the rp2040 in GET_LOG replies.
+ * <br><br>
+ * Replies are scanned byte by byte for line breaks (\n, with a preceding \r dropped) and the text
+ * is copied straight into preallocated line slots, so decoding allocates nothing. A line split
+ * between two replies is held until the rest of it arrives. Lines longer than the slot size are
+ * broken up over several slots. Once the ring is full the oldest lines are overwritten.
+ * <br><br>
+ * Each line gets an ever increasing sequence number. Listeners are called on the
+ * SerialCommManager reader thread as each line completes, or lines can be pulled from any thread
+ * with {@link #getLines(long, List)}.
+ */
+public class RP2040LogBuffer {
+
+    public interface LogListener {
+        /**
+         * @param line only valid for the duration of the call. Use toString() to keep it.
+         */
+        void onLogLine(long sequence, long timestamp, CharSequence line);
+    }
+
+    private final byte[][] lines;
+    private final int[] lengths;
+    private final long[] timestamps;
+    // Sequence number of the next line to complete. The oldest held is nextSequence - size
+    private long nextSequence = 0;
+    private int size = 0;
+    // Line being assembled, possibly across several GET_LOG replies. Reader thread only
+    private final byte[] pending;
+    private int pendingLength = 0;
+    private final LineView lineView = new LineView();
+    private final CopyOnWriteArrayList<LogListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param capacity number of lines held
+     * @param maxLineLength longer lines are broken up
+     */
+    public RP2040LogBuffer(int capacity, int maxLineLength) {
+        lines = new byte[capacity][maxLineLength];
+        lengths = new int[capacity];
+        timestamps = new long[capacity];
+        pending = new byte[maxLineLength];
+    }
+
+    public RP2040LogBuffer() {
+        this(512, 256);
+    }
+
+    /**
+     * Reader thread only. Consumes the remaining bytes of a GET_LOG reply.
+     */
+    void decode(ByteBuffer bytes) {
+        long timestamp = System.nanoTime();
+        while (bytes.hasRemaining()) {
+            byte b = bytes.get();
+            if (b == '\n') {
+                // Strip the \r of a \r\n, even if it came at the end of the previous reply
+                if (pendingLength > 0 && pending[pendingLength - 1] == '\r') {
+                    pendingLength--;
+                }
+                commit(timestamp);
+            } else if (b != 0) {
+                // The log is NUL padded after the last line
+                if (pendingLength == pending.length) {
+                    commit(timestamp);
+                }
+                pending[pendingLength++] = b;
+            }
+        }
+    }
+
+    private void commit(long timestamp) {
+        long sequence;
+        int slot;
+        synchronized (this) {
+            sequence = nextSequence++;
+            slot = (int) (sequence % lines.length);
+            System.arraycopy(pending, 0, lines[slot], 0, pendingLength);
+            lengths[slot] = pendingLength;
+            timestamps[slot] = timestamp;
+            if (size < lines.length) {
+                size++;
+            }
+        }
+        pendingLength = 0;
+        if (!listeners.isEmpty()) {
+            // Slots are only written by this thread, so the slot is stable until we return
+            lineView.set(lines[slot], lengths[slot]);
+            for (LogListener listener : listeners) {
+                listener.onLogLine(sequence, timestamp, lineView);
+            }
+        }
+    }
+
+    /**
+     * Appends every line held with a sequence number of at least fromSequence to out, oldest first.
+     * Lines already overwritten are skipped.
+     * @return the sequence number to pass next time to only get newer lines
+     */
+    public synchronized long getLines(long fromSequence, List<String> out) {
+        long oldest = nextSequence - size;
+        for (long sequence = Math.max(fromSequence, oldest); sequence < nextSequence; sequence++) {
+            int slot = (int) (sequence % lines.length);
+            out.add(new String(lines[slot], 0, lengths[slot], StandardCharsets.US_ASCII));
+        }
+        return nextSequence;
+    }
+
+    /**
+     * @return sequence number the next completed line will get
+     */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    public void addListener(LogListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(LogListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * ASCII bytes viewed as a CharSequence without copying.
+     */
+    private static class LineView implements CharSequence {
+        private byte[] bytes;
+        private int length;
+
+        void set(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+            }
+            return (char) (bytes[index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -122,14 +122,41 @@ public class RP2040State {
         this.wheelData = wheelData;
     }
 
-    protected void updatePublishers(){
+    /**
+     * Copies the fields of a received state packet into this state. Control values are not copied
+     * as they are what was last commanded rather than something measured on the rp2040.
+     */
+    protected void update(RP2040StateView view){
+        motorsState.faults.left = view.getFaultLeft();
+        motorsState.faults.right = view.getFaultRight();
+        motorsState.encoderCounts.left = view.getEncoderCountLeft();
+        motorsState.encoderCounts.right = view.getEncoderCountRight();
+        batteryDetails.voltage = view.getBatteryVoltageRaw();
+        batteryDetails.safety_status = view.getBatterySafetyStatus();
+        batteryDetails.temperature = view.getBatteryTemperatureRaw();
+        batteryDetails.state_of_health = view.getBatteryStateOfHealth();
+        batteryDetails.flags = view.getBatteryFlags();
+        chargeSideUSB.max77976_chg_details = view.getMax77976ChgDetails();
+        chargeSideUSB.ncp3901_wireless_charger_attached = view.isWirelessChargerAttached();
+        chargeSideUSB.usb_charger_voltage = view.getUsbChargerVoltageRaw();
+        chargeSideUSB.wireless_charger_vrect = view.getWirelessChargerVrectRaw();
+    }
+
+    /**
+     * @param ts {@link System#nanoTime()} at which the rp2040 sampled this state, as best known
+     */
+    protected void updatePublishers(long ts){
         if (batteryData.getState() != PublisherState.STARTED || wheelData.getState() != PublisherState.STARTED){
             return;
         }
-        long ts = System.nanoTime();
-        batteryData.onBatteryVoltageUpdate(ts, batteryDetails.getVoltage());
         //Todo need to implement coilVoltage get from rp2040
-        batteryData.onChargerVoltageUpdate(ts, chargeSideUSB.getUsbChargerVoltage(), chargeSideUSB.getWirelessChargerVrect());
-        wheelData.onWheelDataUpdate(ts, motorsState.getEncoderCounts().getLeft(), motorsState.getEncoderCounts().getRight());
+        batteryData.onBatteryStateUpdate(ts, batteryDetails.getVoltage(),
+                batteryDetails.getTemperature(), batteryDetails.getStateOfHealth() & 0xFF,
+                batteryDetails.getSafetyStatus() & 0xFF, batteryDetails.getFlags() & 0xFFFF,
+                chargeSideUSB.getUsbChargerVoltage(), chargeSideUSB.getWirelessChargerVrect(),
+                chargeSideUSB.isWirelessChargerAttached());
+        wheelData.onWheelDataUpdate(ts, motorsState.getEncoderCounts().getLeft(),
+                motorsState.getEncoderCounts().getRight(), motorsState.getFaults().getLeft(),
+                motorsState.getFaults().getRight());
     }
 }
@@ -0,0 +1,13 @@
+package jp.oist.abcvlib.util;
+
+public interface RP2040StateListener {
+    /**
+     * Called on the SerialCommManager reader thread for every state packet received from an rp2040.
+     * The view is only valid for the duration of the call, so copy out whatever is needed rather
+     * than keeping a reference to it.
+     * @param deviceId id of the usb device the state came from, see {@link UsbSerial#getDeviceId()}
+     * @param timestamp best estimate of the {@link System#nanoTime()} at which the rp2040 sampled
+     *                  the state, see {@link SerialCommManager#getClockSync()}
+     */
+    void onRP2040State(String deviceId, long timestamp, RP2040StateView state);
+}
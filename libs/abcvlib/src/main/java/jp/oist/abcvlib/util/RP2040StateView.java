@@ -0,0 +1,138 @@
+package jp.oist.abcvlib.util;
+
+import java.nio.ByteBuffer;
+
+import jp.oist.abcvlib.util.RP2040ToAndroidPacket.StateOffsets;
+
+/**
+ * Flyweight view over the data section of an rp2040 state packet as described by
+ * {@link StateOffsets}. Nothing is copied or allocated: each getter reads straight from the
+ * wrapped buffer with an absolute get, so a single instance can be re-wrapped around every
+ * received packet. The view is only valid as long as the wrapped buffer is, i.e. until the
+ * {@link FifoQueuePair} it came from is released.
+ */
+public class RP2040StateView {
+    private ByteBuffer buffer;
+    private int base;
+
+    /**
+     * @param buffer little endian buffer whose position is the first byte of the state data
+     */
+    RP2040StateView wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.base = buffer.position();
+        return this;
+    }
+
+    /**
+     * @return true if the wrapped buffer holds at least {@link StateOffsets#SIZE} bytes
+     */
+    public boolean isComplete() {
+        return buffer != null && buffer.limit() - base >= StateOffsets.SIZE;
+    }
+
+    /**
+     * @return true if the packet carries the rp2040 time it was produced at, i.e. the firmware
+     * declared it with {@link StateOffsets#STATE_VERSION_MCU_TIME}. The packet length alone is
+     * not taken as a sign, as the extra bytes could be anything
+     */
+    public boolean hasMcuTime() {
+        return buffer.limit() - base >= StateOffsets.SIZE_WITH_MCU_TIME
+                && buffer.get(base + StateOffsets.STATE_VERSION) == StateOffsets.STATE_VERSION_MCU_TIME;
+    }
+
+    /**
+     * @return rp2040 time in microseconds. Only valid if {@link #hasMcuTime()}
+     */
+    public long getMcuTime() {
+        return buffer.getLong(base + StateOffsets.MCU_TIME);
+    }
+
+    public byte getControlValueLeft() {
+        return buffer.get(base + StateOffsets.CONTROL_VALUE_LEFT);
+    }
+
+    public byte getControlValueRight() {
+        return buffer.get(base + StateOffsets.CONTROL_VALUE_RIGHT);
+    }
+
+    public byte getFaultLeft() {
+        return buffer.get(base + StateOffsets.FAULT_LEFT);
+    }
+
+    public byte getFaultRight() {
+        return buffer.get(base + StateOffsets.FAULT_RIGHT);
+    }
+
+    public int getEncoderCountLeft() {
+        return buffer.getInt(base + StateOffsets.ENCODER_COUNT_LEFT);
+    }
+
+    public int getEncoderCountRight() {
+        return buffer.getInt(base + StateOffsets.ENCODER_COUNT_RIGHT);
+    }
+
+    /**
+     * @return raw battery voltage in mV. See bq27441-G1 Technical Reference Manual, Section 4.1.5
+     */
+    public short getBatteryVoltageRaw() {
+        return buffer.getShort(base + StateOffsets.BATTERY_VOLTAGE);
+    }
+
+    /**
+     * @return battery voltage in V
+     */
+    public float getBatteryVoltage() {
+        return getBatteryVoltageRaw() / 1000f;
+    }
+
+    public byte getBatterySafetyStatus() {
+        return buffer.get(base + StateOffsets.BATTERY_SAFETY_STATUS);
+    }
+
+    public short getBatteryTemperatureRaw() {
+        return buffer.getShort(base + StateOffsets.BATTERY_TEMPERATURE);
+    }
+
+    public float getBatteryTemperature() {
+        return getBatteryTemperatureRaw() / 10f;
+    }
+
+    public byte getBatteryStateOfHealth() {
+        return buffer.get(base + StateOffsets.BATTERY_STATE_OF_HEALTH);
+    }
+
+    public short getBatteryFlags() {
+        return buffer.getShort(base + StateOffsets.BATTERY_FLAGS);
+    }
+
+    public int getMax77976ChgDetails() {
+        return buffer.getInt(base + StateOffsets.MAX77976_CHG_DETAILS);
+    }
+
+    public boolean isWirelessChargerAttached() {
+        return buffer.get(base + StateOffsets.NCP3901_WIRELESS_CHARGER_ATTACHED) == 1;
+    }
+
+    public short getUsbChargerVoltageRaw() {
+        return buffer.getShort(base + StateOffsets.USB_CHARGER_VOLTAGE);
+    }
+
+    /**
+     * @return usb charger voltage in V
+     */
+    public float getUsbChargerVoltage() {
+        return getUsbChargerVoltageRaw() / 1000f;
+    }
+
+    public short getWirelessChargerVrectRaw() {
+        return buffer.getShort(base + StateOffsets.WIRELESS_CHARGER_VRECT);
+    }
+
+    /**
+     * @return wireless charger rectified voltage in V
+     */
+    public float getWirelessChargerVrect() {
+        return getWirelessChargerVrectRaw() / 1000f;
+    }
+}
@@ -14,5 +14,42 @@ public class RP2040ToAndroidPacket {
         public static final int PACKET_TYPE = 1;
         public static final int DATA_SIZE = 2;
         public static final int END_MARKER = 1;
+        // Largest data size accepted from the rp2040. GET_LOG replies are the largest at ~1024 bytes
+        public static final int MAX_DATA = 2048;
+    }
+
+    /**
+     * Layout of the data section of GET_STATE, SET_MOTOR_LEVELS and RESET_STATE replies. All
+     * multi-byte fields are little endian. This is the single description of the state packet,
+     * used both by {@link RP2040StateView} to decode it and by anything producing state packets.
+     */
+    public static class StateOffsets {
+        public static final int CONTROL_VALUE_LEFT = 0;
+        public static final int CONTROL_VALUE_RIGHT = 1;
+        public static final int FAULT_LEFT = 2;
+        public static final int FAULT_RIGHT = 3;
+        public static final int ENCODER_COUNT_LEFT = 4; // int
+        public static final int ENCODER_COUNT_RIGHT = 8; // int
+        public static final int BATTERY_VOLTAGE = 12; // short, mV
+        public static final int BATTERY_SAFETY_STATUS = 14;
+        public static final int BATTERY_TEMPERATURE = 15; // short, 0.1K
+        public static final int BATTERY_STATE_OF_HEALTH = 17;
+        public static final int BATTERY_FLAGS = 18; // short
+        public static final int MAX77976_CHG_DETAILS = 20; // int
+        public static final int NCP3901_WIRELESS_CHARGER_ATTACHED = 24; // 1 if attached
+        public static final int USB_CHARGER_VOLTAGE = 25; // short, mV
+        public static final int WIRELESS_CHARGER_VRECT = 27; // short, mV
+        // Minimum data size of a state packet
+        public static final int SIZE = 29;
+        // Optional extension, not sent by the current rp2040 firmware, which ends its state at
+        // SIZE. Firmware that appends fields to the state declares them with a version byte here. Anything after SIZE without a known version is ignored, so padding
+        // or a longer packet from other firmware is never misread as one of these fields
+        public static final int STATE_VERSION = 29;
+        // Version whose state carries MCU_TIME. Unlikely to be a stray byte
+        public static final byte STATE_VERSION_MCU_TIME = (byte) 0xA1;
+        // Only with STATE_VERSION_MCU_TIME: the rp2040 time in microseconds at which it handled
+        // the request (long). Used by {@link ClockSync}
+        public static final int MCU_TIME = 30;
+        public static final int SIZE_WITH_MCU_TIME = 38;
     }
 }
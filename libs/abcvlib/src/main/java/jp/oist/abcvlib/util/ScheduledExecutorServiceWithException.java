@@ -4,6 +4,7 @@ import android.util.Log;
 
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -56,7 +57,8 @@ public class ScheduledExecutorServiceWithException {
     }
 
     private void catchErrors(ScheduledFuture<?> scheduledFuture){
-        Executors.newSingleThreadExecutor().execute(new Runnable() {
+        ExecutorService watcher = Executors.newSingleThreadExecutor();
+        watcher.execute(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -71,6 +73,8 @@ public class ScheduledExecutorServiceWithException {
                 }
             }
         });
+        // Lets the watcher thread end once the future is done
+        watcher.shutdown();
     }
 
     public void shutdownNow(){
@@ -78,4 +82,8 @@ public class ScheduledExecutorServiceWithException {
     }
 
     public void shutdown(){executor.shutdown();}
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
 }
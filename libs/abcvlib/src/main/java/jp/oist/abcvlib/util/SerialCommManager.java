@@ -6,9 +6,12 @@ import com.hoho.android.usbserial.driver.SerialTimeoutException;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -24,56 +27,109 @@ public class SerialCommManager {
     onReceive()
      */
 
-    private final UsbSerial usbSerial;
+    private final SerialLink serialLink;
     // fifoQueue is used to store the commands that are sent from the mcu to be executed
     // on the Android phone
 
-    // Preallocated bytebuffer to write motor levels to
-    private final AndroidToRP2040Packet androidToRP2040Packet = new AndroidToRP2040Packet();
+    // Encodes commands into pooled packets, so concurrent callers never share packet bytes
+    private final AndroidToRP2040CommandEncoder encoder = new AndroidToRP2040CommandEncoder();
     private final RP2040State rp2040State;
-    private boolean shutdown = false;
-    private byte[] command = null;
+    // Reused for every state packet received. Only touched by the pi2AndroidReader thread
+    private final RP2040StateView stateView = new RP2040StateView();
+    private volatile boolean traceEnabled = false;
+    private volatile RP2040StateListener stateListener;
+    private volatile boolean shutdown = false;
     private final Object commandLock = new Object();
-
-    long startTimeAndroid;
-    int cnt = 0;
-    long durationAndroid;
+    // Requests waiting to be written. Guarded by commandLock
+    private final SerialCommandScheduler scheduler = new SerialCommandScheduler();
+    private final SerialLinkStats linkStats;
+    private final RP2040LogBuffer rp2040Log = new RP2040LogBuffer();
+    private final ClockSync clockSync = new ClockSync();
+    // Requests written but not yet replied to, oldest first. Guarded by commandLock
+    private final ArrayDeque<SerialRequest> inFlight = new ArrayDeque<>();
+    private long nextSequenceNumber = 0;
+    private int maxInFlight = 2;
+    private long requestTimeout = 100; // ms
+    private int maxRetries = 2;
+    // How often the reader checks in-flight requests for timeouts when nothing is received
+    private static final long READER_POLL_INTERVAL = 5; // ms
+    private ScheduledExecutorServiceWithException writerExecutor;
+    private ScheduledExecutorServiceWithException readerExecutor;
 
     private final Runnable android2PiWriter = new Runnable() {
         @Override
         public void run() {
-            startTimeAndroid = System.nanoTime();
-            while (!shutdown) {
+            while (true) {
+                SerialRequest request = null;
+                AndroidToRP2040Packet packet;
                 synchronized (commandLock) {
                     try {
-                        // this results in getState commands every 10ms unless another command
-                        // (e.g. setMotorLevels) is set, which which case wait will return immediately
-                        commandLock.wait(10);
-                        if (command == null) {
-                            command = generateGetStateCmd();
+                        while (request == null) {
+                            long now = System.nanoTime();
+                            if (shutdown) {
+                                // Flush anything already queued (e.g. the final brake command)
+                                request = scheduler.pollAny();
+                                break;
+                            }
+                            long waitNs;
+                            if (inFlight.size() < maxInFlight) {
+                                request = scheduler.pollCommand(now);
+                                if (request == null && scheduler.isStatePollDue(now)) {
+                                    request = newRequest(AndroidToRP2040Command.GET_STATE, encoder.encodeGetState());
+                                }
+                                waitNs = scheduler.nanosUntilNextDeadline(now);
+                            } else {
+                                waitNs = requestTimeout * 1000000L;
+                            }
+                            if (request == null && waitNs > 0) {
+                                // Woken early by new commands, replies, or timeouts
+                                commandLock.wait(waitNs / 1000000L, (int) (waitNs % 1000000L));
+                            }
                         }
-                        sendPacket(command);
-                        command = null;
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
+                    if (request == null) {
+                        break;
+                    }
+                    long now = System.nanoTime();
+                    request.onSend(now);
+                    scheduler.onSend(request, now);
+                    inFlight.add(request);
+                    // The request may be answered, timed out or cancelled while being written
+                    packet = request.getPacket();
+                    packet.retain();
                 }
-                cnt++;
-                if (cnt == 100) {
-                    durationAndroid = (System.nanoTime() - startTimeAndroid) / 100;
-                    cnt = 0;
-                    // convert from nanoseconds to microseconds
-                    Log.i("AndroidSide", "Average time per command: " + durationAndroid / 1000 + "us");
+                try {
+                    sendPacket(packet.getBytes());
+                } finally {
+                    packet.release();
+                }
+            }
+            cancelAll();
+        }
+    };
+
+    private final Runnable pi2AndroidReader = new Runnable() {
+        @Override
+        public void run() {
+            while (!shutdown) {
+                serialLink.awaitPacketReceived((int) READER_POLL_INTERVAL);
+                //Note this is actually calling the functions like parseLog, parseStatus, etc.
+                while (parseFifoPacket()) {
+                    // drain everything received so far
                 }
+                expireRequests(System.nanoTime());
             }
         }
     };
 
     // Constructor to initialize SerialCommManager
-    public SerialCommManager(UsbSerial usbSerial,
+    public SerialCommManager(SerialLink serialLink,
                              BatteryData batteryData,
                              WheelData wheelData) {
-        this.usbSerial = usbSerial;
+        this.serialLink = serialLink;
+        this.linkStats = new SerialLinkStats(serialLink, scheduler);
         if (batteryData == null || wheelData == null){
             Log.w("serial", "batteryData or wheelData was null. " +
                     "Ignoring all rp2040 state values. You must initialize both to use rp2040 state");
@@ -83,8 +139,8 @@ public class SerialCommManager {
         }
     }
 
-    public SerialCommManager(UsbSerial usbSerial){
-        this(usbSerial, null, null);
+    public SerialCommManager(SerialLink serialLink){
+        this(serialLink, null, null);
     }
 
     // Start method to start the thread
@@ -92,83 +148,379 @@ public class SerialCommManager {
         ProcessPriorityThreadFactory serialCommManager_Android2Pi_factory =
                 new ProcessPriorityThreadFactory(Thread.MAX_PRIORITY,
                         "SerialCommManager_Android2Pi");
-        ScheduledExecutorServiceWithException scheduledExecutorServiceWithException =
-                new ScheduledExecutorServiceWithException(1, serialCommManager_Android2Pi_factory);
-        scheduledExecutorServiceWithException.scheduleWithFixedDelay(android2PiWriter, initialDelay, delay, java.util.concurrent.TimeUnit.MILLISECONDS);
+        writerExecutor = new ScheduledExecutorServiceWithException(1, serialCommManager_Android2Pi_factory);
+        writerExecutor.scheduleWithFixedDelay(android2PiWriter, initialDelay, delay, java.util.concurrent.TimeUnit.MILLISECONDS);
+        ProcessPriorityThreadFactory serialCommManager_Pi2Android_factory =
+                new ProcessPriorityThreadFactory(Thread.MAX_PRIORITY,
+                        "SerialCommManager_Pi2Android");
+        readerExecutor = new ScheduledExecutorServiceWithException(1, serialCommManager_Pi2Android_factory);
+        readerExecutor.execute(pi2AndroidReader);
     }
 
     public void start() {
         start(0, 10);
     }
 
+    /**
+     * Stops the link and its writer and reader threads. Requests already queued, e.g. a final brake
+     * command, are still written first, waiting up to the request timeout for that, so the port
+     * can be closed once this returns.
+     */
     public void stop() {
-        shutdown = true;
+        long timeout;
+        synchronized (commandLock) {
+            shutdown = true;
+            timeout = requestTimeout;
+            commandLock.notifyAll();
+        }
+        if (writerExecutor != null) {
+            // The writer flushes the queue and returns, and is not scheduled again after shutdown
+            writerExecutor.shutdown();
+            try {
+                if (!writerExecutor.awaitTermination(timeout, java.util.concurrent.TimeUnit.MILLISECONDS)) {
+                    Log.w("serial", "Writer did not finish flushing within " + timeout + "ms");
+                    writerExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                writerExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (readerExecutor != null) {
+            readerExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Maximum number of requests written to the rp2040 without having received their reply yet.
+     * A value of 1 results in strict request/response. Defaults to 2.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        synchronized (commandLock) {
+            this.maxInFlight = maxInFlight;
+            commandLock.notifyAll();
+        }
+    }
+
+    /**
+     * @param requestTimeout time in milliseconds to wait for the reply to each attempt of a
+     *                       request before retrying it. Defaults to 100ms.
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        synchronized (commandLock) {
+            this.requestTimeout = requestTimeout;
+        }
+    }
+
+    public long getRequestTimeout() {
+        synchronized (commandLock) {
+            return requestTimeout;
+        }
+    }
+
+    /**
+     * @param statePollInterval time in milliseconds between GET_STATE requests. Motor commands also
+     *                          return the rp2040 state, so polls are skipped while motor commands
+     *                          are being sent at least this often. Defaults to 10ms.
+     */
+    public void setStatePollInterval(long statePollInterval) {
+        synchronized (commandLock) {
+            scheduler.setStatePollInterval(statePollInterval * 1000000L);
+            commandLock.notifyAll();
+        }
+    }
+
+    /**
+     * @param commandInterval minimum time in milliseconds between writing queued commands such as
+     *                        setMotorLevels. Commands queued in between are merged with only the
+     *                        latest one sent. Defaults to 0 (as fast as the window allows).
+     */
+    public void setCommandInterval(long commandInterval) {
+        synchronized (commandLock) {
+            scheduler.setCommandInterval(commandInterval * 1000000L);
+            commandLock.notifyAll();
+        }
+    }
+
+    /**
+     * @param traceEnabled when true, every received packet type and decoded state is logged at verbose
+     *                     level. Off by default as building these strings on every packet is
+     *                     costly at the rates the rp2040 is polled.
+     */
+    public void setTraceEnabled(boolean traceEnabled) {
+        this.traceEnabled = traceEnabled;
+    }
+
+    /**
+     * @param stateListener called with every state packet received, in addition to updating the
+     *                      BatteryData and WheelData publishers if given. Pass null to remove.
+     */
+    public void setStateListener(RP2040StateListener stateListener) {
+        this.stateListener = stateListener;
+    }
+
+    /**
+     * @return the link this manager sends commands over
+     */
+    public SerialLink getSerialLink() {
+        return serialLink;
+    }
+
+    /**
+     * @return the lines returned by {@link #getLog()}. Add a listener to be notified of new lines,
+     * e.g. to forward them to logcat.
+     */
+    public RP2040LogBuffer getRP2040Log() {
+        return rp2040Log;
+    }
+
+    /**
+     * @return offset and drift between the rp2040 and phone clocks. Only updated if the firmware
+     * declares timestamped state replies, see
+     * {@link RP2040ToAndroidPacket.StateOffsets#STATE_VERSION_MCU_TIME}, which the current firmware
+     * does not, so for now it is only synchronized against the emulator. State replies are also only
+     * parsed with the wheel and battery data or a state listener set.
+     */
+    public ClockSync getClockSync() {
+        return clockSync;
+    }
+
+    /**
+     * @return per command round trip latencies and error counters for this link
+     */
+    public SerialLinkStats getLinkStats() {
+        return linkStats;
+    }
+
+    /**
+     * @return counters on merged commands and how long commands waited before being sent
+     */
+    public SerialCommandScheduler getCommandScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @param maxRetries number of times a request that timed out or whose reply was lost is
+     *                   resent before its future completes with a {@link TimeoutException}.
+     *                   Defaults to 2.
+     */
+    public void setMaxRetries(int maxRetries) {
+        synchronized (commandLock) {
+            this.maxRetries = maxRetries;
+        }
     }
 
     //TODO paseFifoPacket() should call the various SerialResponseListener methods.
-    protected void parseFifoPacket() {
+    /**
+     * @return true if a packet was taken from the fifoQueue, false if it was empty
+     */
+    protected boolean parseFifoPacket() {
         int result = 0;
         FifoQueuePair fifoQueuePair;
-        byte[] packet = null;
-        // Run the command on a thread handler to allow the queue to keep being added to
-        synchronized (usbSerial.fifoQueue) {
-            fifoQueuePair = usbSerial.fifoQueue.poll();
-        }
-            // Check if there is a packet in the queue (fifoQueue
+        ByteBuffer packet = null;
+        // Lock free. The pi2AndroidReader is the only consumer of the fifoQueue
+        fifoQueuePair = serialLink.pollPacket();
+        // Check if there is a packet in the queue (fifoQueue)
         if (fifoQueuePair != null) {
-            packet = fifoQueuePair.getByteArray();
+            // The payload is a slice of a pooled buffer and must be released once parsed
+            try {
+                packet = fifoQueuePair.getPayload();
+
+                // The first byte after the start mark is the command
+                AndroidToRP2040Command command = fifoQueuePair.getAndroidToRP2040Command();
+                if (traceEnabled) {
+                    // For the raw bytes use SerialLink.setTrafficRecorder instead
+                    Log.v(Thread.currentThread().getName(), "Received " + command + " from pi (" +
+                            packet.remaining() + " bytes)");
+                }
+                if (command == null){
+                    Log.e("Pi2AndroidReader", "Command not found");
+                    return true;
+                }
+                long receivedTime = fifoQueuePair.getReceivedTime();
+                SerialRequest match;
+                if (command == AndroidToRP2040Command.NACK || command == AndroidToRP2040Command.ACK) {
+                    match = takeInFlight(getAnsweredCommand(packet));
+                } else {
+                    match = takeInFlight(command);
+                }
+                switch (command) {
+                    case GET_LOG:
+                        parseLog(packet);
+                        result = 1;
+                        break;
+                    case SET_MOTOR_LEVELS:
+                    case GET_STATE:
+                    case RESET_STATE:
+                        parseStatus(packet, match, receivedTime);
+                        result = 1;
+                        break;
+                    case NACK:
+                        linkStats.onNack();
+                        onNack(packet);
+                        Log.w("Pi2AndroidReader", "Nack issued from device");
+                        result = -1;
+                        break;
+                    case ACK:
+                        onAck(packet);
+                        result = 1;
+                        Log.d("Pi2AndroidReader", "parseAck");
+                        break;
+                    case START:
+                        Log.e("Pi2AndroidReader", "parseStart. Start should never be a command");
+                        result = -1;
+                        break;
+                    case STOP:
+                        Log.e("Pi2AndroidReader", "parseStop. Stop should never be a command");
+                        result = -1;
+                        break;
+                    default:
+                        Log.e("Pi2AndroidReader", "parsePacket. Command not found");
+                        result = -1;
+                        break;
+                }
+                if (match != null) {
+                    completeRequest(match, result, receivedTime);
+                }
+            } finally {
+                fifoQueuePair.release();
+            }
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
 
-            // Log packet as an array of hex bytes
-            Log.i(Thread.currentThread().getName(), "Received packet: " + HexBinConverters.bytesToHex(packet));
+    /**
+     * An ACK or NACK may name the command it answers in its first data byte. Without one it
+     * answers the oldest request in flight, as the rp2040 replies in order.
+     * @return the command named by packet, or null if it names none
+     */
+    private static AndroidToRP2040Command getAnsweredCommand(ByteBuffer packet) {
+        if (!packet.hasRemaining()) {
+            return null;
+        }
+        return AndroidToRP2040Command.getEnumByValue(packet.get(packet.position()));
+    }
 
-            // The first byte after the start mark is the command
-            AndroidToRP2040Command command = fifoQueuePair.getAndroidToRP2040Command();
-            Log.i(Thread.currentThread().getName(), "Received " + command + " from pi");
-            if (command == null){
-                Log.e("Pi2AndroidReader", "Command not found");
-                return;
-            }
-            switch (command) {
-                case GET_LOG:
-                    parseLog(packet);
-                    result = 1;
-                    break;
-                case SET_MOTOR_LEVELS:
-                case GET_STATE:
-                case RESET_STATE:
-                    parseStatus(packet);
-                    result = 1;
-                    break;
-                case NACK:
-                    onNack(packet);
-                    Log.w("Pi2AndroidReader", "Nack issued from device");
-                    result = -1;
-                    break;
-                case ACK:
-                    onAck(packet);
-                    result = 1;
-                    Log.d("Pi2AndroidReader", "parseAck");
-                    break;
-                case START:
-                    Log.e("Pi2AndroidReader", "parseStart. Start should never be a command");
-                    result = -1;
-                    break;
-                case STOP:
-                    Log.e("Pi2AndroidReader", "parseStop. Stop should never be a command");
-                    result = -1;
-                    break;
-                default:
-                    Log.e("Pi2AndroidReader", "parsePacket. Command not found");
-                    result = -1;
+    /**
+     * Removes and returns the oldest in-flight request for command. Any in-flight request older
+     * than it can no longer be answered as the rp2040 replies in order, so those are retried.
+     * @param command null for the oldest in-flight request of any command
+     * @return null if there is no request for command in flight
+     */
+    private SerialRequest takeInFlight(AndroidToRP2040Command command) {
+        SerialRequest match = null;
+        synchronized (commandLock) {
+            for (SerialRequest request : inFlight) {
+                if (command == null || request.getCommand() == command) {
+                    match = request;
                     break;
+                }
             }
+            if (match == null) {
+                linkStats.onUnmatchedReply();
+                Log.w("Pi2AndroidReader", "Received reply to " + (command == null ? "any command" : command) +
+                        " with no matching request in flight");
+                return null;
+            }
+            SerialRequest lost;
+            while ((lost = inFlight.poll()) != match) {
+                Log.w("Pi2AndroidReader", "Reply to " + lost.getCommand() + " #" +
+                        lost.getSequenceNumber() + " lost");
+                linkStats.onLostReply();
+                retryOrFail(lost);
+            }
+            commandLock.notifyAll();
         }
-        else {
-            Log.i(Thread.currentThread().getName(), "No packet in queue");
-            result = 0;
+        return match;
+    }
+
+    private void completeRequest(SerialRequest match, int result, long receivedTime) {
+        match.onReply(receivedTime);
+        linkStats.onReply(match);
+        if (result < 0) {
+            match.fail(new IOException("rp2040 rejected " + match.getCommand() + " #" + match.getSequenceNumber()));
+        } else {
+            match.complete();
         }
     }
 
+    private void expireRequests(long now) {
+        synchronized (commandLock) {
+            long timeoutNs = requestTimeout * 1000000L;
+            Iterator<SerialRequest> iterator = inFlight.iterator();
+            boolean expired = false;
+            while (iterator.hasNext()) {
+                SerialRequest request = iterator.next();
+                if (now - request.getSentTime() > timeoutNs) {
+                    iterator.remove();
+                    Log.w("Pi2AndroidReader", request.getCommand() + " #" +
+                            request.getSequenceNumber() + " timed out");
+                    linkStats.onTimeout();
+                    retryOrFail(request);
+                    expired = true;
+                }
+            }
+            if (expired) {
+                commandLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Must hold commandLock. Puts the request back at the front of the scheduler if it has retries
+     * left, otherwise fails its future.
+     */
+    private void retryOrFail(SerialRequest request) {
+        if (!shutdown && request.getAttempts() <= maxRetries) {
+            if (scheduler.requeue(request, inFlight)) {
+                linkStats.onRetry();
+            } else {
+                // A newer request of the same command is queued or written and supersedes this one
+                request.cancel();
+            }
+        } else {
+            linkStats.onFailed();
+            request.fail(new TimeoutException(request.getCommand() +
+                    " #" + request.getSequenceNumber() + " not answered after " +
+                    request.getAttempts() + " attempts"));
+        }
+    }
+
+    private void cancelAll() {
+        synchronized (commandLock) {
+            for (SerialRequest request : inFlight) {
+                request.cancel();
+            }
+            inFlight.clear();
+            scheduler.cancelAll();
+        }
+    }
+
+    /**
+     * Must hold commandLock.
+     * @param packet from the encoder. The request takes over its reference.
+     */
+    private SerialRequest newRequest(AndroidToRP2040Command command, AndroidToRP2040Packet packet) {
+        return new SerialRequest(nextSequenceNumber++, command, packet);
+    }
+
+    /**
+     * Queues a request to be written by the android2PiWriter. A newer request for the same command
+     * replaces one that has not been written yet, so e.g. only the latest motor levels are sent.
+     * Must hold commandLock.
+     */
+    private CompletableFuture<SerialRequest> enqueue(SerialRequest request) {
+        scheduler.enqueue(request, System.nanoTime());
+        commandLock.notifyAll();
+        return request.getFuture();
+    }
+
 
     /**
      * Do not use this method unless you are very familiar with the protocol on both the rp2040 and
@@ -184,106 +536,16 @@ public class SerialCommManager {
             throw new IllegalArgumentException("Input byte array must have a length of " + AndroidToRP2040Packet.packetSize);
         }
         try {
-            this.usbSerial.send(bytes, 10000);
+            this.serialLink.send(bytes, 10000);
         } catch (SerialTimeoutException e){
             throw new RuntimeException("SerialTimeoutException on send. The serial connection " +
                     "with the rp2040 is not working as expected and timed out");
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        receivePacket();
         return 0;
     }
 
-    private void receivePacket() {
-        int receivedStatus = usbSerial.awaitPacketReceived(10000);
-        if (receivedStatus == 1){
-            //Note this is actually calling the functions like parseLog, parseStatus, etc.
-            parseFifoPacket();
-        }
-    }
-
-    private byte[] generateSetMotorLevels(AndroidToRP2040Packet androidToRP2040Packet,
-                                          float left, float right, boolean leftBrake,
-                                          boolean rightBrake) {
-        androidToRP2040Packet.clear();
-        androidToRP2040Packet.setCommand(AndroidToRP2040Command.SET_MOTOR_LEVELS);
-
-        final float LOWER_LIMIT = 0.49f;
-
-        // Normalize [-1,1] to [-5.06,5.06] as this is the range accepted by the chip
-        // Note - signs are to invert the direction of the motors as the motors are mounted in a
-        // polar opposite direction.
-        left = -left * 5.06f;
-        right = -right * 5.06f;
-
-        byte DRV8830_IN1_BIT = 0;
-        byte DRV8830_IN2_BIT = 1;
-
-        float[] voltages = new float[]{left, right};
-        float[] abs_voltages = new float[2];
-        byte[] control_values = new byte[2];
-        boolean[] brakes = new boolean[]{leftBrake, rightBrake};
-
-        for (int i = 0; i < voltages.length; i++) {
-            float voltage = voltages[i]; // Get the current voltage
-            control_values[i] = 0; // Reset the control value
-            // Exclude or truncate voltages between -0.48V and 0.48V to 0V
-            // Changing to 0.49 as the scaling function would result in 0x05h for 0.48V and
-            // cause the rp2040 to perform unexpectely as it is a reserved register value
-            if (voltage >= -LOWER_LIMIT && voltage <= LOWER_LIMIT) {
-                voltages[i] = 0.0f; // Update the value in the array
-            }else{
-                // Clamp the voltage within the valid range
-                // Need to clamp here rather than at byte representation to prevent overflow
-                if (voltages[i] < -5.06) {
-                    voltages[i] = -5.06f; // Update the value in the array
-                }
-                else if (voltages[i] > 5.06) {
-                    voltages[i] = 5.06f; // Update the value in the array
-                }
-
-                abs_voltages[i] = Math.abs(voltages[i]);
-                // Convert voltage to control value (-0x3F to 0x3F)
-                control_values[i] = (byte)(((64 * abs_voltages[i]) / (4 * 1.285)) - 1);
-                // voltage is defined by bits 2-7. Shift the control value to the correct position
-                control_values[i] = (byte) (control_values[i] << 2);
-            }
-
-
-            // Set the IN1 and IN2 bits based on the sign of the voltage
-            if (brakes[i]) {
-                control_values[i] |= (1 << DRV8830_IN1_BIT);
-                control_values[i] |= (1 << DRV8830_IN2_BIT);
-            }else{
-                if (voltage < 0) {
-                    control_values[i] |= (1 << DRV8830_IN1_BIT);
-                    control_values[i] &= ~(1 << DRV8830_IN2_BIT);
-                } else if (voltage > 0) {
-                    control_values[i] |= (1 << DRV8830_IN2_BIT);
-                    control_values[i] &= ~(1 << DRV8830_IN1_BIT);
-                } else {
-                    // Standby/Coast: Both IN1 and IN2 set to 0
-                    control_values[i] = 0;
-                }
-            }
-            androidToRP2040Packet.payload.put(control_values[i]);
-        }
-        return androidToRP2040Packet.packetTobytes();
-    }
-
-    private byte[] generateGetLogCmd(){
-        androidToRP2040Packet.clear();
-        androidToRP2040Packet.setCommand(AndroidToRP2040Command.GET_LOG);
-        return androidToRP2040Packet.packetTobytes();
-    }
-
-    private byte[] generateGetStateCmd(){
-        androidToRP2040Packet.clear();
-        androidToRP2040Packet.setCommand(AndroidToRP2040Command.GET_STATE);
-        return androidToRP2040Packet.packetTobytes();
-    }
-
     //-------------------------------------------------------------------///
     // ---- API function calls for requesting something from the mcu ----///
     //-------------------------------------------------------------------///
@@ -298,17 +560,18 @@ public class SerialCommManager {
     float: left [-1,1] representing full speed backward to full speed forward
     float: right (same as left)
     */
-    public void setMotorLevels(float left, float right, boolean leftBrake, boolean rightBrake) {
+    public CompletableFuture<SerialRequest> setMotorLevels(float left, float right, boolean leftBrake, boolean rightBrake) {
+        // Encoded outside the lock as every call gets its own packet
+        AndroidToRP2040Packet packet = encoder.encodeSetMotorLevels(left, right, leftBrake, rightBrake);
         synchronized (commandLock){
-            command = generateSetMotorLevels(androidToRP2040Packet, left, right, leftBrake, rightBrake);
-            commandLock.notify();
+            return enqueue(newRequest(AndroidToRP2040Command.SET_MOTOR_LEVELS, packet));
         }
     }
 
-    public void getLog(){
+    public CompletableFuture<SerialRequest> getLog(){
+        AndroidToRP2040Packet packet = encoder.encodeGetLog();
         synchronized (commandLock){
-            command = generateGetLogCmd();
-            commandLock.notify();
+            return enqueue(newRequest(AndroidToRP2040Command.GET_LOG, packet));
         }
     }
 
@@ -316,53 +579,68 @@ public class SerialCommManager {
     // ---- Handlers for when data is returned from the mcu ----///
     // ---- Override these defaults with your own handlers -----///
     //----------------------------------------------------------///
-    private void parseLog(byte[] bytes) {
-        Log.d("serial", "parseLogs");
-        String string = new String(bytes, StandardCharsets.US_ASCII);
-        String[] lines = string.split("\\r?\\n");
-        for (String line : lines) {
-            Log.i("rp2040Log", line);
-        }
+    private void parseLog(ByteBuffer bytes) {
+        rp2040Log.decode(bytes);
     }
-    private void parseStatus(byte[] bytes) {
-        Log.d("serial", "parseStatus");
+    /**
+     * @param request the request this state is the reply to, or null if unknown
+     * @param receivedTime nanoTime at which the reply arrived
+     */
+    private void parseStatus(ByteBuffer byteBuffer, SerialRequest request, long receivedTime) {
+        RP2040StateListener listener = stateListener;
+        if (rp2040State == null && listener == null){
+            return;
+        }
+        // Fields are read in place from the pooled buffer. Nothing is allocated per packet
+        RP2040StateView view = stateView.wrap(byteBuffer);
+        if (!view.isComplete()){
+            Log.e("serial", "State packet too short. Expected " +
+                    RP2040ToAndroidPacket.StateOffsets.SIZE + " bytes, got " + byteBuffer.remaining());
+            return;
+        }
+        long sampleTime = estimateSampleTime(view, request, receivedTime);
+        if (listener != null){
+            listener.onRP2040State(serialLink.getDeviceId(), sampleTime, view);
+        }
         if (rp2040State != null){
-            ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-            byteBuffer.order(java.nio.ByteOrder.LITTLE_ENDIAN);
-            if (rp2040State.motorsState.controlValues.left != byteBuffer.get()){
+            if (rp2040State.motorsState.controlValues.left != view.getControlValueLeft()){
                 Log.e("serial", "Left control value mismatch");
             }
-            if (rp2040State.motorsState.controlValues.right != byteBuffer.get()){
+            if (rp2040State.motorsState.controlValues.right != view.getControlValueRight()){
                 Log.e("serial", "Right control value mismatch");
             }
-            rp2040State.motorsState.faults.left = byteBuffer.get();
-            rp2040State.motorsState.faults.right = byteBuffer.get();
-            Log.v("serial", "left motor fault: " + rp2040State.motorsState.faults.left);
-            Log.v("serial", "right motor fault: " + rp2040State.motorsState.faults.right);
-            rp2040State.motorsState.encoderCounts.left = byteBuffer.getInt();
-            rp2040State.motorsState.encoderCounts.right = byteBuffer.getInt();
-            Log.v("serial", "Left encoder count: " + rp2040State.motorsState.encoderCounts.left);
-            Log.v("serial", "Right encoder count: " + rp2040State.motorsState.encoderCounts.right);
-            rp2040State.batteryDetails.voltage = byteBuffer.getShort();
-            rp2040State.batteryDetails.safety_status = byteBuffer.get();
-            rp2040State.batteryDetails.temperature = byteBuffer.getShort();
-            rp2040State.batteryDetails.state_of_health = byteBuffer.get();
-            rp2040State.batteryDetails.flags = byteBuffer.getShort();
-            Log.v("serial", "Battery voltage: " + rp2040State.batteryDetails.voltage);
-            Log.v("serial", "Battery voltage in V: " + rp2040State.batteryDetails.getVoltage());
-            rp2040State.chargeSideUSB.max77976_chg_details = byteBuffer.getInt();
-            rp2040State.chargeSideUSB.ncp3901_wireless_charger_attached = byteBuffer.get() == 1;
-            Log.v("serial", "ncp3901_wireless_charger_attached: " + rp2040State.chargeSideUSB.ncp3901_wireless_charger_attached);
-            rp2040State.chargeSideUSB.usb_charger_voltage = byteBuffer.getShort();
-            rp2040State.chargeSideUSB.wireless_charger_vrect = byteBuffer.getShort();
-            //Log.v("serial", "usb_charger_voltage: " + rp2040State.chargeSideUSB.usb_charger_voltage);
-            rp2040State.updatePublishers();
+            rp2040State.update(view);
+            if (traceEnabled){
+                Log.v("serial", "motor faults: " + view.getFaultLeft() + ", " + view.getFaultRight() +
+                        " encoder counts: " + view.getEncoderCountLeft() + ", " + view.getEncoderCountRight() +
+                        " battery voltage: " + view.getBatteryVoltage() + "V" +
+                        " ncp3901_wireless_charger_attached: " + view.isWirelessChargerAttached());
+            }
+            rp2040State.updatePublishers(sampleTime);
+        }
+    }
+    /**
+     * @return best estimate of the phone nanoTime at which the rp2040 sampled the state in view
+     */
+    private long estimateSampleTime(RP2040StateView view, SerialRequest request, long receivedTime) {
+        if (request == null) {
+            return receivedTime;
+        }
+        if (view.hasMcuTime()) {
+            long mcuTime = view.getMcuTime();
+            clockSync.addSample(request.getSentTime(), mcuTime, receivedTime);
+            if (clockSync.isSynchronized()) {
+                return clockSync.toPhoneTime(mcuTime);
+            }
         }
+        // Without an rp2040 timestamp assume the state was sampled half way through the round trip
+        return request.getSentTime() + (receivedTime - request.getSentTime()) / 2;
     }
-    private void onNack(byte[] bytes) {
+
+    private void onNack(ByteBuffer bytes) {
         Log.d("serial", "parseNack");
     }
-    private void onAck(byte[] bytes) {
+    private void onAck(ByteBuffer bytes) {
         Log.d("serial", "parseAck");
     }
 
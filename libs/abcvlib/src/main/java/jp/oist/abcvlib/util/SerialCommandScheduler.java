@@ -0,0 +1,208 @@
+package jp.oist.abcvlib.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides what the {@link SerialCommManager} writes next and when.
+ * <br><br>
+ * Commands queued by the application are merged so that the latest one of each type wins, e.g. a
+ * burst of setMotorLevels calls from the MasterController (every 1ms) and abcvlibMainLoop (every
+ * 5ms) results in only the newest levels being sent. Queued commands are sent no more often than
+ * the command interval. State polling has its own interval and is piggybacked on commands: the
+ * rp2040 replies to SET_MOTOR_LEVELS and RESET_STATE with its full state, so a GET_STATE is only
+ * sent when no such reply has been requested within the state poll interval.
+ * <br><br>
+ * Not thread safe. All methods other than the stat getters must be called while holding the
+ * SerialCommManager's command lock. The stat getters can be read from any thread.
+ */
+public class SerialCommandScheduler {
+    private final ArrayDeque<SerialRequest> sendQueue = new ArrayDeque<>();
+    private long statePollInterval = 10000000L; // ns
+    private long commandInterval = 0; // ns
+    // nanoTime of the last request sent whose reply carries the rp2040 state
+    private long lastStateRequest;
+    private long lastCommandSent;
+
+    private volatile long sentCommandCount = 0;
+    private volatile long mergedCommandCount = 0;
+    private volatile long statePollCount = 0;
+    private volatile long lastCommandAge = 0;
+    private volatile long maxCommandAge = 0;
+    private volatile long totalCommandAge = 0;
+
+    SerialCommandScheduler() {
+        // Far enough in the past that both a command and a state poll are due immediately
+        long past = System.nanoTime() - TimeUnit.HOURS.toNanos(1);
+        lastStateRequest = past;
+        lastCommandSent = past;
+    }
+
+    /**
+     * Queues a request, replacing (and cancelling the future of) any not yet sent request of the
+     * same command.
+     */
+    void enqueue(SerialRequest request, long now) {
+        request.onQueued(now);
+        Iterator<SerialRequest> iterator = sendQueue.iterator();
+        while (iterator.hasNext()) {
+            SerialRequest queued = iterator.next();
+            if (queued.getCommand() == request.getCommand()) {
+                iterator.remove();
+                queued.cancel();
+                mergedCommandCount++;
+            }
+        }
+        sendQueue.add(request);
+    }
+
+    /**
+     * Puts a request that timed out back at the front of the queue, unless a newer request of the
+     * same command has been queued or written in the meantime. Resending it after a newer one was
+     * written would make the rp2040 apply the older values last.
+     * @param inFlight requests written but not yet replied to, not including request
+     * @return false if the request was superseded instead
+     */
+    boolean requeue(SerialRequest request, Iterable<SerialRequest> inFlight) {
+        if (isSuperseded(request, sendQueue) || isSuperseded(request, inFlight)) {
+            return false;
+        }
+        sendQueue.addFirst(request);
+        return true;
+    }
+
+    private static boolean isSuperseded(SerialRequest request, Iterable<SerialRequest> requests) {
+        for (SerialRequest other : requests) {
+            if (other.getCommand() == request.getCommand()
+                    && other.getSequenceNumber() > request.getSequenceNumber()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the queued request that is due at now, or null if there is none
+     */
+    SerialRequest pollCommand(long now) {
+        if (sendQueue.isEmpty() || now - lastCommandSent < commandInterval) {
+            return null;
+        }
+        return sendQueue.poll();
+    }
+
+    /**
+     * @return any queued request regardless of the command interval. Used to flush on shutdown.
+     */
+    SerialRequest pollAny() {
+        return sendQueue.poll();
+    }
+
+    boolean isStatePollDue(long now) {
+        return now - lastStateRequest >= statePollInterval;
+    }
+
+    /**
+     * @return nanoseconds until either a queued command or a state poll becomes due
+     */
+    long nanosUntilNextDeadline(long now) {
+        long untilPoll = lastStateRequest + statePollInterval - now;
+        if (sendQueue.isEmpty()) {
+            return Math.max(0, untilPoll);
+        }
+        long untilCommand = lastCommandSent + commandInterval - now;
+        return Math.max(0, Math.min(untilPoll, untilCommand));
+    }
+
+    /**
+     * Must be called after {@link SerialRequest#onSend(long)} for every request written, including
+     * the state polls created by the SerialCommManager.
+     */
+    void onSend(SerialRequest request, long now) {
+        switch (request.getCommand()) {
+            case GET_STATE:
+                statePollCount++;
+                lastStateRequest = now;
+                return;
+            case SET_MOTOR_LEVELS:
+            case RESET_STATE:
+                lastStateRequest = now;
+                break;
+            default:
+                break;
+        }
+        lastCommandSent = now;
+        if (request.getAttempts() > 1) {
+            // Retries were already counted on their first attempt
+            return;
+        }
+        long age = now - request.getQueuedTime();
+        lastCommandAge = age;
+        if (age > maxCommandAge) {
+            maxCommandAge = age;
+        }
+        totalCommandAge += age;
+        sentCommandCount++;
+    }
+
+    void cancelAll() {
+        for (SerialRequest request : sendQueue) {
+            request.cancel();
+        }
+        sendQueue.clear();
+    }
+
+    void setStatePollInterval(long statePollInterval) {
+        this.statePollInterval = statePollInterval;
+    }
+
+    void setCommandInterval(long commandInterval) {
+        this.commandInterval = commandInterval;
+    }
+
+    /**
+     * @return number of queued commands (not state polls) that have been written
+     */
+    public long getSentCommandCount() {
+        return sentCommandCount;
+    }
+
+    /**
+     * @return number of queued commands that were replaced by a newer command of the same type
+     * before being written
+     */
+    public long getMergedCommandCount() {
+        return mergedCommandCount;
+    }
+
+    /**
+     * @return number of GET_STATE requests written. State polls skipped because a motor command
+     * already requested the state are not counted.
+     */
+    public long getStatePollCount() {
+        return statePollCount;
+    }
+
+    /**
+     * @return time in nanoseconds the most recently written command waited in the queue
+     */
+    public long getLastCommandAge() {
+        return lastCommandAge;
+    }
+
+    /**
+     * @return longest time in nanoseconds any command waited in the queue
+     */
+    public long getMaxCommandAge() {
+        return maxCommandAge;
+    }
+
+    /**
+     * @return mean time in nanoseconds commands waited in the queue
+     */
+    public long getMeanCommandAge() {
+        long sent = sentCommandCount;
+        return sent == 0 ? 0 : totalCommandAge / sent;
+    }
+}
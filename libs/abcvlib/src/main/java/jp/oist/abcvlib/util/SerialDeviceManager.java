@@ -0,0 +1,224 @@
+package jp.oist.abcvlib.util;
+
+import android.content.Context;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Manages one independent serial link per attached microcontroller. Each link is its own
+ * {@link SerialLink} (port, I/O thread, packet framer and fifoQueue) with its own
+ * {@link SerialCommManager} (writer and reader threads), so a slow or misbehaving board never
+ * holds up another. Links are addressed by device id, for usb the device name as returned by
+ * {@link UsbSerial#getDeviceId()}.
+ * <br><br>
+ * {@link #connectAll()} opens a {@link UsbSerial} to every supported usb device, while links of
+ * any other kind are handed over with {@link #addLink(SerialLink)}. Commands are routed to the
+ * link for a given device id, and state packets from all links are passed to the registered
+ * {@link RP2040StateListener}s along with the id they came from.
+ * <br><br>
+ * {@link jp.oist.abcvlib.core.AbcvlibActivity} uses one when
+ * {@link jp.oist.abcvlib.core.AbcvlibActivity#setMultipleDevices(boolean)} is set.
+ */
+public class SerialDeviceManager implements SerialReadyListener {
+
+    public interface DeviceListener {
+        /**
+         * Called once a device's link is open and its SerialCommManager has been started. May be
+         * called on the main thread (device already permitted) or from the usb permission
+         * broadcast.
+         */
+        void onDeviceReady(String deviceId, SerialCommManager serialCommManager);
+    }
+
+    public interface SerialCommManagerFactory {
+        /**
+         * Use this to give a device a SerialCommManager with its own BatteryData or WheelData.
+         */
+        SerialCommManager create(SerialLink serialLink);
+    }
+
+    private final String TAG = getClass().getSimpleName();
+    private final Context context;
+    private final UsbManager usbManager;
+    private final SerialCommManagerFactory serialCommManagerFactory;
+    private final DeviceListener deviceListener;
+    private final ConcurrentHashMap<String, SerialLink> links = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, SerialCommManager> serialCommManagers = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<RP2040StateListener> stateListeners = new CopyOnWriteArrayList<>();
+    // Registered with every SerialCommManager and fans state out to all stateListeners
+    private final RP2040StateListener stateRouter = new RP2040StateListener() {
+        @Override
+        public void onRP2040State(String deviceId, long timestamp, RP2040StateView state) {
+            for (RP2040StateListener listener : stateListeners) {
+                listener.onRP2040State(deviceId, timestamp, state);
+            }
+        }
+    };
+
+    private SerialDeviceManager(Context context, UsbManager usbManager,
+                                SerialCommManagerFactory serialCommManagerFactory,
+                                DeviceListener deviceListener) {
+        this.context = context;
+        this.usbManager = usbManager;
+        this.serialCommManagerFactory = serialCommManagerFactory;
+        this.deviceListener = deviceListener;
+    }
+
+    public static class Builder {
+        private final Context context;
+        private final UsbManager usbManager;
+        private SerialCommManagerFactory serialCommManagerFactory = SerialCommManager::new;
+        private DeviceListener deviceListener = null;
+
+        public Builder(Context context, UsbManager usbManager){
+            this.context = context;
+            this.usbManager = usbManager;
+        }
+
+        public SerialDeviceManager build(){
+            return new SerialDeviceManager(context, usbManager, serialCommManagerFactory, deviceListener);
+        }
+
+        public Builder setSerialCommManagerFactory(SerialCommManagerFactory serialCommManagerFactory){
+            this.serialCommManagerFactory = serialCommManagerFactory;
+            return this;
+        }
+
+        public Builder setDeviceListener(DeviceListener deviceListener){
+            this.deviceListener = deviceListener;
+            return this;
+        }
+    }
+
+    /**
+     * Opens a link to every supported device attached that is not already connected. Devices
+     * without usb permission are connected once the user grants it.
+     * @return number of new devices found
+     */
+    public int connectAll() throws IOException {
+        int found = 0;
+        for (UsbDevice device : usbManager.getDeviceList().values()) {
+            if (!UsbSerial.isSupported(device) || links.containsKey(device.getDeviceName())) {
+                continue;
+            }
+            Log.i(TAG, "Found a " + device.getProductName() + " at " + device.getDeviceName() +
+                    ". Connecting...");
+            links.put(device.getDeviceName(), new UsbSerial(context, usbManager, device, this));
+            found++;
+        }
+        if (found == 0 && links.isEmpty()) {
+            throw new IOException("No supported USB devices found");
+        }
+        return found;
+    }
+
+    @Override
+    public void onSerialReady(UsbSerial usbSerial) {
+        // May be called from within the UsbSerial constructor, before connectAll has stored it
+        addLink(usbSerial);
+    }
+
+    /**
+     * Starts a SerialCommManager on serialLink, which must already be open, and makes it
+     * addressable by its device id. A link already added for that id is replaced, and it and its
+     * SerialCommManager stopped.
+     * @throws IllegalArgumentException if serialLink has no device id
+     */
+    public void addLink(SerialLink serialLink) {
+        String deviceId = serialLink.getDeviceId();
+        if (deviceId == null) {
+            throw new IllegalArgumentException("A link needs a device id to be addressed by");
+        }
+        SerialLink previousLink = links.put(deviceId, serialLink);
+        SerialCommManager serialCommManager = serialCommManagerFactory.create(serialLink);
+        serialCommManager.setStateListener(stateRouter);
+        SerialCommManager previous = serialCommManagers.put(deviceId, serialCommManager);
+        if (previous != null) {
+            previous.stop();
+        }
+        if (previousLink != null && previousLink != serialLink) {
+            previousLink.close();
+        }
+        serialCommManager.start();
+        Log.i(TAG, "Serial link to " + deviceId + " ready");
+        if (deviceListener != null) {
+            deviceListener.onDeviceReady(deviceId, serialCommManager);
+        }
+    }
+
+    /**
+     * @return ids of all devices whose link is ready
+     */
+    public Set<String> getDeviceIds() {
+        return Collections.unmodifiableSet(serialCommManagers.keySet());
+    }
+
+    /**
+     * @throws IllegalArgumentException if no link is ready for deviceId
+     */
+    public SerialCommManager getSerialCommManager(String deviceId) {
+        SerialCommManager serialCommManager = serialCommManagers.get(deviceId);
+        if (serialCommManager == null) {
+            throw new IllegalArgumentException("No serial link ready for device " + deviceId);
+        }
+        return serialCommManager;
+    }
+
+    public CompletableFuture<SerialRequest> setMotorLevels(String deviceId, float left, float right,
+                                                           boolean leftBrake, boolean rightBrake) {
+        return getSerialCommManager(deviceId).setMotorLevels(left, right, leftBrake, rightBrake);
+    }
+
+    public CompletableFuture<SerialRequest> getLog(String deviceId) {
+        return getSerialCommManager(deviceId).getLog();
+    }
+
+    public void addStateListener(RP2040StateListener listener) {
+        stateListeners.add(listener);
+    }
+
+    public void removeStateListener(RP2040StateListener listener) {
+        stateListeners.remove(listener);
+    }
+
+    /**
+     * Brakes and stops every link. Waits up to the request timeout of each link for the rp2040 to
+     * confirm the brake, and for the brake to be written in any case, before closing the ports.
+     */
+    public void stop() {
+        HashMap<String, CompletableFuture<SerialRequest>> brakes = new HashMap<>();
+        for (Map.Entry<String, SerialCommManager> entry : serialCommManagers.entrySet()) {
+            brakes.put(entry.getKey(), entry.getValue().setMotorLevels(0, 0, true, true));
+        }
+        for (Map.Entry<String, SerialCommManager> entry : serialCommManagers.entrySet()) {
+            SerialCommManager serialCommManager = entry.getValue();
+            try {
+                brakes.get(entry.getKey()).get(serialCommManager.getRequestTimeout(), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException | CancellationException e) {
+                Log.w(TAG, "Brake not confirmed by " + entry.getKey(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            serialCommManager.stop();
+        }
+        serialCommManagers.clear();
+        for (SerialLink serialLink : links.values()) {
+            serialLink.close();
+        }
+        links.clear();
+    }
+}
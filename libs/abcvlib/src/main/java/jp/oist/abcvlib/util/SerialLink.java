@@ -0,0 +1,139 @@
+package jp.oist.abcvlib.util;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The byte stream to and from a microcontroller that a {@link SerialCommManager} talks over.
+ * Received bytes are passed to {@link #onNewData(byte[])}, which splits them into packets and
+ * queues those for the SerialCommManager reader thread. Subclasses provide the transport by
+ * implementing {@link #send(byte[], int)} and {@link #close()}, e.g. {@link UsbSerial} for a
+ * microcontroller attached over usb.
+ */
+public abstract class SerialLink {
+    // Number of received packets that can be held by the fifoQueue and SerialCommManager at once
+    private static final int PACKET_POOL_SIZE = 32;
+    private final PacketBufferPool packetBufferPool =
+            new PacketBufferPool(PACKET_POOL_SIZE, RP2040ToAndroidPacket.Sizes.MAX_DATA);
+    private final SerialPacketFramer packetFramer =
+            new SerialPacketFramer(packetBufferPool, new FramerListener());
+    // Hands complete packets to the SerialCommManager reader thread. As large as the pool, so it
+    // only fills up if pool slots leak. Otherwise running out of pool slots is the backpressure
+    // point and those packets are dropped and counted by the packetFramer.
+    private final PacketRing fifoQueue = new PacketRing(PACKET_POOL_SIZE);
+    // null unless capture has been turned on
+    private volatile SerialTrafficRecorder trafficRecorder;
+
+    /**
+     * @return the name of the device this link is connected to, or null if there is none
+     */
+    public String getDeviceId(){
+        return null;
+    }
+
+    /**
+     * Stops receiving and closes the transport. Received packets still in the fifoQueue are left
+     * for the SerialCommManager to drain.
+     */
+    public abstract void close();
+
+    /**
+     * Writes a packet to the microcontroller. Called from the SerialCommManager writer thread only.
+     * Implementations pass packet to the traffic recorder, if any, with {@link #recordTx(byte[])}.
+     * @param timeout in milliseconds
+     */
+    protected abstract void send(byte[] packet, int timeout) throws IOException;
+
+    /**
+     * Called with the bytes received from the microcontroller, in order, from a single thread.
+     */
+    public void onNewData(byte[] data) {
+        SerialTrafficRecorder recorder = trafficRecorder;
+        if (recorder != null){
+            recorder.recordRx(data);
+        }
+
+        // Only the bytes in data are scanned. Any number of complete packets may come out of it,
+        // and each wakes the reader as it is added to the fifoQueue
+        packetFramer.onNewData(data);
+    }
+
+    /**
+     * Passes a packet about to be sent to the traffic recorder, if capturing.
+     */
+    protected void recordTx(byte[] packet) {
+        SerialTrafficRecorder recorder = trafficRecorder;
+        if (recorder != null){
+            recorder.recordTx(packet);
+        }
+    }
+
+    /**
+     * Starts capturing all raw traffic on this link into recorder, or stops capturing if null.
+     * Off by default.
+     */
+    public void setTrafficRecorder(SerialTrafficRecorder recorder){
+        this.trafficRecorder = recorder;
+    }
+
+    public SerialTrafficRecorder getTrafficRecorder(){
+        return trafficRecorder;
+    }
+
+    /**
+     * Blocks until a response is received, or returns immediately if the fifoQueue already holds one.
+     * Must only be called from the single thread that also calls {@link #pollPacket()}.
+     * @return 1 if a packet is available, -1 on timeout
+     */
+    protected int awaitPacketReceived(int timeout) {
+        return fifoQueue.await(TimeUnit.MILLISECONDS.toNanos(timeout)) ? 1 : -1;
+    }
+
+    /**
+     * Must only be called from a single consumer thread. The caller must release the packet.
+     * @return the oldest received packet, or null if there is none
+     */
+    protected FifoQueuePair pollPacket() {
+        return fifoQueue.poll();
+    }
+
+    /**
+     * @return number of complete packets received from the rp2040
+     */
+    public long getReceivedPacketCount() {
+        return packetFramer.getPacketCount();
+    }
+
+    /**
+     * @return number of packets discarded for a missing stop mark, unknown type or bad size
+     */
+    public long getBadPacketCount() {
+        return packetFramer.getBadPacketCount();
+    }
+
+    /**
+     * @return number of valid packets dropped because the reader was not keeping up, either as no
+     * pool slots were free or the fifoQueue was full
+     */
+    public long getDroppedPacketCount() {
+        return packetFramer.getDroppedPacketCount() + fifoQueue.getDroppedCount();
+    }
+
+    private class FramerListener implements SerialPacketFramer.Listener {
+        @Override
+        public void onPacket(FifoQueuePair packet) {
+            if (!fifoQueue.offer(packet)) {
+                Log.e("serial", "fifoQueue is full. Dropping " + packet.getAndroidToRP2040Command() +
+                        " packet");
+                packet.release();
+            }
+        }
+
+        @Override
+        public void onBadPacket() {
+            Log.e("serial", "Bad packet received. Dropping it and waiting for the next start mark.");
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package jp.oist.abcvlib.util;
+
+/**
+ * Health of the link between a {@link SerialCommManager} and its rp2040, for applications that
+ * want to monitor or alert on it. Round trip latency, from writing a request to parsing its reply,
+ * is recorded separately per command. It is measured from the most recent attempt only, so retries
+ * show up in the counters rather than inflating the latencies.
+ * <br><br>
+ * Everything is updated on the SerialCommManager reader thread and can be read from any thread.
+ */
+public class SerialLinkStats {
+    private final LatencyHistogram getStateLatency = new LatencyHistogram();
+    private final LatencyHistogram setMotorLevelsLatency = new LatencyHistogram();
+    private final LatencyHistogram getLogLatency = new LatencyHistogram();
+    private final LatencyHistogram resetStateLatency = new LatencyHistogram();
+    private final SerialLink serialLink;
+    private final SerialCommandScheduler scheduler;
+
+    private volatile long timeoutCount = 0;
+    private volatile long lostReplyCount = 0;
+    private volatile long retryCount = 0;
+    private volatile long failedCount = 0;
+    private volatile long nackCount = 0;
+    private volatile long unmatchedReplyCount = 0;
+
+    SerialLinkStats(SerialLink serialLink, SerialCommandScheduler scheduler) {
+        this.serialLink = serialLink;
+        this.scheduler = scheduler;
+    }
+
+    void onReply(SerialRequest request) {
+        LatencyHistogram histogram = getHistogram(request.getCommand());
+        if (histogram != null) {
+            histogram.record(request.getRoundTripTime());
+        }
+    }
+
+    void onTimeout() {
+        timeoutCount++;
+    }
+
+    void onLostReply() {
+        lostReplyCount++;
+    }
+
+    void onRetry() {
+        retryCount++;
+    }
+
+    void onFailed() {
+        failedCount++;
+    }
+
+    void onNack() {
+        nackCount++;
+    }
+
+    void onUnmatchedReply() {
+        unmatchedReplyCount++;
+    }
+
+    private LatencyHistogram getHistogram(AndroidToRP2040Command command) {
+        switch (command) {
+            case GET_STATE:
+                return getStateLatency;
+            case SET_MOTOR_LEVELS:
+                return setMotorLevelsLatency;
+            case GET_LOG:
+                return getLogLatency;
+            case RESET_STATE:
+                return resetStateLatency;
+            default:
+                return null;
+        }
+    }
+
+    public LatencyHistogram getGetStateLatency() {
+        return getStateLatency;
+    }
+
+    public LatencyHistogram getSetMotorLevelsLatency() {
+        return setMotorLevelsLatency;
+    }
+
+    public LatencyHistogram getGetLogLatency() {
+        return getLogLatency;
+    }
+
+    public LatencyHistogram getResetStateLatency() {
+        return resetStateLatency;
+    }
+
+    /**
+     * @return number of attempts that got no reply within the request timeout
+     */
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * @return number of attempts whose reply never came although a later request was answered
+     */
+    public long getLostReplyCount() {
+        return lostReplyCount;
+    }
+
+    public long getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * @return number of requests that failed after running out of retries
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    public long getNackCount() {
+        return nackCount;
+    }
+
+    /**
+     * @return number of replies received with no request of that command in flight
+     */
+    public long getUnmatchedReplyCount() {
+        return unmatchedReplyCount;
+    }
+
+    /**
+     * @return number of packets from the rp2040 dropped as malformed
+     */
+    public long getBadPacketCount() {
+        return serialLink.getBadPacketCount();
+    }
+
+    /**
+     * @return number of well formed packets from the rp2040 dropped as the reader fell behind
+     */
+    public long getDroppedPacketCount() {
+        return serialLink.getDroppedPacketCount();
+    }
+
+    /**
+     * @return number of commands replaced by a newer command of the same type before being sent
+     */
+    public long getMergedCommandCount() {
+        return scheduler.getMergedCommandCount();
+    }
+
+    @Override
+    public String toString() {
+        return "GET_STATE " + getStateLatency +
+                ", SET_MOTOR_LEVELS " + setMotorLevelsLatency +
+                ", GET_LOG " + getLogLatency +
+                ", RESET_STATE " + resetStateLatency +
+                ", timeouts=" + timeoutCount +
+                " lost=" + lostReplyCount +
+                " retries=" + retryCount +
+                " failed=" + failedCount +
+                " nacks=" + nackCount +
+                " bad=" + getBadPacketCount() +
+                " dropped=" + getDroppedPacketCount() +
+                " merged=" + getMergedCommandCount();
+    }
+}
@@ -0,0 +1,219 @@
+package jp.oist.abcvlib.util;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming state machine that splits the raw bytes coming from the rp2040 into packets of the form
+ * <br><br>
+ * START | packet type | data size (little endian short) | data | STOP
+ * <br><br>
+ * Every call to {@link #onNewData(byte[], int, int, long)} only looks at the newly arrived bytes,
+ * so the cost per chunk is proportional to the chunk and not to whatever has been buffered so far.
+ * A chunk may contain the tail of one packet, several complete packets and the head of another. Completed
+ * packets are handed to the {@link Listener} as {@link FifoQueuePair} slots taken from a
+ * {@link PacketBufferPool}, so the only copy made is from the USB chunk into the pooled slot.
+ * <br><br>
+ * Not thread safe. It is meant to be driven only from the SerialInputOutputManager thread.
+ */
+class SerialPacketFramer {
+
+    interface Listener {
+        /**
+         * Called once per complete packet. The receiver takes ownership of the packet and must
+         * eventually call {@link FifoQueuePair#release()}.
+         */
+        void onPacket(FifoQueuePair packet);
+
+        /**
+         * Called when a packet was dropped due to a missing stop mark, unknown packet type or a
+         * data size larger than the pool slots.
+         */
+        void onBadPacket();
+    }
+
+    private enum State {
+        START,
+        PACKET_TYPE,
+        DATA_SIZE_LSB,
+        DATA_SIZE_MSB,
+        DATA,
+        STOP
+    }
+
+    private final String TAG = "SerialPacketFramer";
+    private final PacketBufferPool pool;
+    private final Listener listener;
+
+    private State state = State.START;
+    private AndroidToRP2040Command packetType;
+    private int dataSize;
+    private int dataRemaining;
+    // null while skipping over a packet that did not fit into the pool
+    private FifoQueuePair current;
+    private ByteBuffer currentPayload;
+
+    // Only written by the SerialInputOutputManager thread, volatile so they can be read from others
+    private volatile long packetCount = 0;
+    private volatile long badPacketCount = 0;
+    private volatile long droppedPacketCount = 0;
+
+    SerialPacketFramer(PacketBufferPool pool, Listener listener) {
+        this.pool = pool;
+        this.listener = listener;
+    }
+
+    int onNewData(byte[] data) {
+        return onNewData(data, 0, data.length, System.nanoTime());
+    }
+
+    /**
+     * @param timestamp {@link System#nanoTime()} at which the chunk arrived
+     * @return the number of packets resolved by this chunk, i.e. either passed to the listener or
+     * rejected as bad. Anyone waiting on a reply should be woken up in both cases.
+     */
+    int onNewData(byte[] data, int offset, int length, long timestamp) {
+        int completed = 0;
+        int i = offset;
+        final int end = offset + length;
+        while (i < end) {
+            byte value = data[i];
+            switch (state) {
+                case START:
+                    if (value == AndroidToRP2040Command.START.getHexValue()) {
+                        state = State.PACKET_TYPE;
+                    }
+                    i++;
+                    break;
+                case PACKET_TYPE:
+                    packetType = AndroidToRP2040Command.getEnumByValue(value);
+                    if (isReplyType(packetType)) {
+                        state = State.DATA_SIZE_LSB;
+                        i++;
+                    } else {
+                        Log.e(TAG, "Unknown packetType: " + String.format("%02X", value));
+                        badPacket();
+                        completed++;
+                        // The byte may itself be the start of the next packet so do not consume it
+                        if (value != AndroidToRP2040Command.START.getHexValue()) {
+                            i++;
+                        }
+                    }
+                    break;
+                case DATA_SIZE_LSB:
+                    dataSize = value & 0xFF;
+                    state = State.DATA_SIZE_MSB;
+                    i++;
+                    break;
+                case DATA_SIZE_MSB:
+                    dataSize |= (value & 0xFF) << 8;
+                    i++;
+                    if (!beginData()) {
+                        completed++;
+                    }
+                    break;
+                case DATA:
+                    int n = Math.min(dataRemaining, end - i);
+                    if (current != null) {
+                        currentPayload.put(data, i, n);
+                    }
+                    dataRemaining -= n;
+                    i += n;
+                    if (dataRemaining == 0) {
+                        state = State.STOP;
+                    }
+                    break;
+                case STOP:
+                    if (value == AndroidToRP2040Command.STOP.getHexValue()) {
+                        i++;
+                        completePacket(timestamp);
+                        completed++;
+                    } else {
+                        Log.e(TAG, "Stop mark missing after " + dataSize + " bytes of " + packetType);
+                        badPacket();
+                        completed++;
+                        // Do not consume, as this byte may be the start mark of the next packet
+                    }
+                    break;
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * @return false if the data size can never fit in a pool slot and the packet was rejected
+     */
+    private boolean beginData() {
+        if (dataSize > pool.getSlotSize()) {
+            Log.e(TAG, packetType + " data size of " + dataSize + " exceeds the maximum of " +
+                    pool.getSlotSize());
+            badPacket();
+            return false;
+        }
+        current = pool.acquire(packetType);
+        if (current != null) {
+            currentPayload = current.getPayload();
+        } else {
+            droppedPacketCount++;
+            Log.e(TAG, "No free packet buffers. Dropping " + packetType + " packet");
+        }
+        dataRemaining = dataSize;
+        state = dataSize == 0 ? State.STOP : State.DATA;
+        return true;
+    }
+
+    private void completePacket(long timestamp) {
+        state = State.START;
+        if (current == null) {
+            return;
+        }
+        currentPayload.flip();
+        current.setReceivedTime(timestamp);
+        FifoQueuePair packet = current;
+        current = null;
+        currentPayload = null;
+        packetCount++;
+        listener.onPacket(packet);
+    }
+
+    private void badPacket() {
+        if (current != null) {
+            current.release();
+            current = null;
+            currentPayload = null;
+        }
+        badPacketCount++;
+        state = State.START;
+        listener.onBadPacket();
+    }
+
+    private static boolean isReplyType(AndroidToRP2040Command command) {
+        if (command == null) {
+            return false;
+        }
+        switch (command) {
+            case GET_LOG:
+            case SET_MOTOR_LEVELS:
+            case RESET_STATE:
+            case GET_STATE:
+            case NACK:
+            case ACK:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    long getPacketCount() {
+        return packetCount;
+    }
+
+    long getBadPacketCount() {
+        return badPacketCount;
+    }
+
+    long getDroppedPacketCount() {
+        return droppedPacketCount;
+    }
+}
@@ -0,0 +1,133 @@
+package jp.oist.abcvlib.util;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A single command sent to the rp2040 by the {@link SerialCommManager}. Each request gets a
+ * sequence number when it is created and a {@link CompletableFuture} that completes with the
+ * request itself once the matching reply has been parsed out of the fifoQueue, or exceptionally
+ * with an {@link java.io.IOException} once the rp2040 rejects it with a NACK, or with a
+ * {@link java.util.concurrent.TimeoutException} once it has timed out more than the configured
+ * number of retries. A rejected request is not retried, as the rp2040 would reject it again.
+ * <br><br>
+ * The rp2040 protocol does not echo sequence numbers, so replies are matched to the oldest
+ * in-flight request with the same command. The rp2040 answers commands in the order received, so
+ * any older in-flight request still waiting at that point is treated as lost.
+ * <br><br>
+ * Futures are completed on the SerialCommManager reader thread. Keep any callbacks short or hand
+ * them off to your own executor.
+ */
+public class SerialRequest {
+    private final long sequenceNumber;
+    private final AndroidToRP2040Command command;
+    private final AndroidToRP2040Packet packet;
+    private final CompletableFuture<SerialRequest> future = new CompletableFuture<>();
+    private int attempts = 0;
+    private long queuedTime = 0;
+    private long sentTime = 0;
+    private long replyTime = 0;
+
+    SerialRequest(long sequenceNumber, AndroidToRP2040Command command, AndroidToRP2040Packet packet) {
+        this.sequenceNumber = sequenceNumber;
+        this.command = command;
+        this.packet = packet;
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public String getCommandName() {
+        return command.name();
+    }
+
+    AndroidToRP2040Command getCommand() {
+        return command;
+    }
+
+    /**
+     * @return the encoded command. Only valid until the request is completed, failed or cancelled
+     */
+    AndroidToRP2040Packet getPacket() {
+        return packet;
+    }
+
+    public CompletableFuture<SerialRequest> getFuture() {
+        return future;
+    }
+
+    /**
+     * @return number of times this request has been written to the serial port
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} at which the request was queued for sending
+     */
+    public long getQueuedTime() {
+        return queuedTime;
+    }
+
+    /**
+     * @return time in nanoseconds between being queued and the most recent write to the serial port
+     */
+    public long getQueueDelay() {
+        return sentTime - queuedTime;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} of the most recent send
+     */
+    public long getSentTime() {
+        return sentTime;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} at which the reply was parsed, or 0 if not yet replied
+     */
+    public long getReplyTime() {
+        return replyTime;
+    }
+
+    /**
+     * @return time in nanoseconds between the most recent send and the reply being parsed
+     */
+    public long getRoundTripTime() {
+        return replyTime - sentTime;
+    }
+
+    void onQueued(long timestamp) {
+        queuedTime = timestamp;
+    }
+
+    void onSend(long timestamp) {
+        attempts++;
+        sentTime = timestamp;
+    }
+
+    void onReply(long timestamp) {
+        replyTime = timestamp;
+    }
+
+    /*
+    Each request is ended exactly once through one of the following, which also hands back its
+    packet to be reused.
+     */
+
+    void complete() {
+        packet.release();
+        future.complete(this);
+    }
+
+    void fail(Throwable throwable) {
+        packet.release();
+        future.completeExceptionally(throwable);
+    }
+
+    void cancel() {
+        packet.release();
+        future.cancel(false);
+    }
+}
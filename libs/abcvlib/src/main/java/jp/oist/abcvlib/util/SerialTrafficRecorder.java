@@ -0,0 +1,158 @@
+package jp.oist.abcvlib.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Captures the raw bytes going over a serial link into a fixed size, preallocated ring so that
+ * the last few seconds of traffic can be dumped to a file on demand, e.g. after a bad packet or a
+ * timeout, and decoded offline with util/serialdump.
+ * <br><br>
+ * Each frame holds a {@link System#nanoTime()} timestamp, the direction, the command and the
+ * bytes. Transmitted frames are whole command packets. Received frames are the chunks exactly as
+ * handed over by the usb-serial library, before framing, so corrupted or split packets can be
+ * replayed through the framer. Once either the frame slots or the data ring are full the oldest
+ * frames are overwritten. Recording copies into the ring and does not allocate.
+ * <br><br>
+ * Attach with {@link UsbSerial#setTrafficRecorder(SerialTrafficRecorder)}. When none is attached
+ * the serial threads only pay for a null check.
+ * <br><br>
+ * Dump format (big endian): magic "ABCVSER1", int version, long nanoTime and long
+ * currentTimeMillis at the time of the dump (to map frame timestamps to wall clock), int frame
+ * count, then per frame: long nanoTime, byte direction, byte command, int length, bytes.
+ */
+public class SerialTrafficRecorder {
+    public static final byte DIRECTION_RX = 0;
+    public static final byte DIRECTION_TX = 1;
+    // Command of received chunks, which may hold any number of packets. STOP is never a command
+    public static final byte COMMAND_NONE = AndroidToRP2040Command.STOP.getHexValue();
+
+    private static final byte[] MAGIC = {'A', 'B', 'C', 'V', 'S', 'E', 'R', '1'};
+    private static final int VERSION = 1;
+
+    private final byte[] data;
+    private final long[] timestamps;
+    private final byte[] directions;
+    private final byte[] commands;
+    private final long[] starts;
+    private final int[] lengths;
+    // Total bytes ever written to data. The ring position is writePosition % data.length
+    private long writePosition = 0;
+    // Oldest frame still held and the next frame to write, as ever increasing counters
+    private long firstFrame = 0;
+    private long nextFrame = 0;
+    private long overwrittenFrameCount = 0;
+
+    /**
+     * @param maxFrames number of frames held before the oldest is overwritten
+     * @param dataCapacity number of bytes held across all frames before the oldest is overwritten
+     */
+    public SerialTrafficRecorder(int maxFrames, int dataCapacity) {
+        data = new byte[dataCapacity];
+        timestamps = new long[maxFrames];
+        directions = new byte[maxFrames];
+        commands = new byte[maxFrames];
+        starts = new long[maxFrames];
+        lengths = new int[maxFrames];
+    }
+
+    /**
+     * 4096 frames or 256KB, roughly several seconds of traffic at a 10ms state poll.
+     */
+    public SerialTrafficRecorder() {
+        this(4096, 256 * 1024);
+    }
+
+    void recordTx(byte[] packet) {
+        byte command = packet.length > 1 ? packet[1] : COMMAND_NONE;
+        record(DIRECTION_TX, command, packet, 0, packet.length);
+    }
+
+    void recordRx(byte[] chunk) {
+        record(DIRECTION_RX, COMMAND_NONE, chunk, 0, chunk.length);
+    }
+
+    synchronized void record(byte direction, byte command, byte[] bytes, int offset, int length) {
+        long timestamp = System.nanoTime();
+        // A frame larger than the whole ring only keeps its tail
+        if (length > data.length) {
+            offset += length - data.length;
+            length = data.length;
+        }
+        // Evict until there is a free frame slot and enough room in the data ring
+        while (nextFrame - firstFrame >= timestamps.length ||
+                (nextFrame > firstFrame &&
+                        writePosition + length - starts[slot(firstFrame)] > data.length)) {
+            firstFrame++;
+            overwrittenFrameCount++;
+        }
+        int slot = slot(nextFrame);
+        timestamps[slot] = timestamp;
+        directions[slot] = direction;
+        commands[slot] = command;
+        starts[slot] = writePosition;
+        lengths[slot] = length;
+        int position = (int) (writePosition % data.length);
+        int firstPart = Math.min(length, data.length - position);
+        System.arraycopy(bytes, offset, data, position, firstPart);
+        System.arraycopy(bytes, offset + firstPart, data, 0, length - firstPart);
+        writePosition += length;
+        nextFrame++;
+    }
+
+    private int slot(long frame) {
+        return (int) (frame % timestamps.length);
+    }
+
+    /**
+     * Writes all frames currently held, oldest first. Recording continues while dumping but is
+     * blocked until the frames have been copied out.
+     */
+    public void dump(OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        synchronized (this) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.nanoTime());
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt((int) (nextFrame - firstFrame));
+            for (long frame = firstFrame; frame < nextFrame; frame++) {
+                int slot = slot(frame);
+                out.writeLong(timestamps[slot]);
+                out.writeByte(directions[slot]);
+                out.writeByte(commands[slot]);
+                out.writeInt(lengths[slot]);
+                int position = (int) (starts[slot] % data.length);
+                int firstPart = Math.min(lengths[slot], data.length - position);
+                out.write(data, position, firstPart);
+                out.write(data, 0, lengths[slot] - firstPart);
+            }
+        }
+        out.flush();
+    }
+
+    public void dump(File file) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            dump(outputStream);
+        }
+    }
+
+    public synchronized void clear() {
+        firstFrame = nextFrame;
+    }
+
+    public synchronized int getFrameCount() {
+        return (int) (nextFrame - firstFrame);
+    }
+
+    /**
+     * @return number of frames lost to the ring wrapping around
+     */
+    public synchronized long getOverwrittenFrameCount() {
+        return overwrittenFrameCount;
+    }
+}
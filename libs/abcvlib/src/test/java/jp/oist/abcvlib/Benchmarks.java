@@ -0,0 +1,36 @@
+package jp.oist.abcvlib;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of the unit test sources, which are skipped in a normal test run. Pass a
+ * regular expression matching the benchmarks to run, e.g.
+ * <pre>
+ *     ./gradlew :abcvlib:testDebugUnitTest --tests jp.oist.abcvlib.Benchmarks -Pbenchmark=DSPBenchmark
+ * </pre>
+ * Add {@code -PbenchmarkProfiler=gc} to also measure allocations per operation. Benchmarks run
+ * in the test JVM rather than a forked one, on the same mockable android.jar as the unit tests, so
+ * results are for comparing variants against each other on one machine.
+ */
+public class Benchmarks {
+
+    @Test
+    public void run() throws RunnerException {
+        String include = System.getProperty("abcvlib.benchmark", "");
+        Assume.assumeTrue("Benchmarks only run with -Pbenchmark=<regex>", !include.isEmpty());
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(include)
+                // The Gradle test worker's classpath is not one a forked JVM could be started with
+                .forks(0);
+        String profiler = System.getProperty("abcvlib.benchmark.profiler", "");
+        if (!profiler.isEmpty()) {
+            options.addProfiler(profiler);
+        }
+        new Runner(options.build()).run();
+    }
+}
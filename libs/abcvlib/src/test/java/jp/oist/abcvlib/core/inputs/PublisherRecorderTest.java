@@ -0,0 +1,191 @@
+package jp.oist.abcvlib.core.inputs;
+
+import android.graphics.Bitmap;
+import android.media.AudioTimestamp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records events with {@link PublisherRecorder} and replays them with {@link PublisherReplayer},
+ * which must give back every event as recorded and in the same order.
+ */
+public class PublisherRecorderTest {
+    private static final long TIMEOUT = 10; // s
+
+    private File file;
+
+    @Before
+    public void createFile() throws Exception {
+        file = File.createTempFile("recording", ".abcvrec");
+    }
+
+    @After
+    public void deleteFile(){
+        file.delete();
+    }
+
+    /**
+     * Keeps every replayed event as a string of its arguments.
+     */
+    private static class RecordingSink implements PublisherReplayer.EventSink {
+        final ArrayList<String> events = new ArrayList<>();
+
+        @Override
+        public boolean accepts(byte type){
+            return true;
+        }
+
+        @Override
+        public void onWheelData(long timestamp, int countL, int countR, byte faultL, byte faultR){
+            events.add("wheel " + timestamp + " " + countL + " " + countR + " " + faultL + " " + faultR);
+        }
+
+        @Override
+        public void onBatteryVoltage(long timestamp, double voltage){
+            events.add("battery " + timestamp + " " + voltage);
+        }
+
+        @Override
+        public void onChargerVoltage(long timestamp, double chargerVoltage, double coilVoltage){
+            events.add("charger " + timestamp + " " + chargerVoltage + " " + coilVoltage);
+        }
+
+        @Override
+        public void onBatteryState(long timestamp, double voltage, double temperature, int stateOfHealth,
+                                   int safetyStatus, int flags, double chargerVoltage, double coilVoltage,
+                                   boolean wirelessChargerAttached){
+            events.add("state " + timestamp + " " + voltage + " " + temperature + " " + stateOfHealth +
+                    " " + safetyStatus + " " + flags + " " + chargerVoltage + " " + coilVoltage +
+                    " " + wirelessChargerAttached);
+        }
+
+        @Override
+        public void onOrientation(long timestamp, double thetaRad, double angularVelocityRad,
+                                  double azimuthRad, double rollRad){
+            events.add("orientation " + timestamp + " " + thetaRad + " " + angularVelocityRad +
+                    " " + azimuthRad + " " + rollRad);
+        }
+
+        @Override
+        public void onAudio(float[] audioData, int numSamples, int sampleRate, AudioTimestamp startTime,
+                            AudioTimestamp endTime){
+            events.add("audio " + Arrays.toString(audioData) + " " + numSamples + " " + sampleRate +
+                    " " + startTime.framePosition + " " + startTime.nanoTime + " " +
+                    endTime.framePosition + " " + endTime.nanoTime);
+        }
+
+        @Override
+        public void onImage(byte[] data, int rotation, int format, int width, int height, long timestamp,
+                            Bitmap bitmap){
+            events.add("image " + Arrays.hashCode(data) + " " + data.length + " " + rotation + " " +
+                    format + " " + width + " " + height + " " + timestamp + " " + (bitmap != null));
+        }
+    }
+
+    private ArrayList<String> replay() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        long replayed = new PublisherReplayer(file, PublisherReplayer.AS_FAST_AS_POSSIBLE, sink)
+                .start().get(TIMEOUT, TimeUnit.SECONDS);
+        assertEquals(sink.events.size(), replayed);
+        return sink.events;
+    }
+
+    @Test
+    public void everyEventTypeIsReplayedAsRecorded() throws Exception {
+        RecordingSink expected = new RecordingSink();
+        AudioTimestamp startTime = new AudioTimestamp();
+        startTime.framePosition = 1000;
+        startTime.nanoTime = 2000;
+        AudioTimestamp endTime = new AudioTimestamp();
+        endTime.framePosition = 1004;
+        endTime.nanoTime = 2500;
+        byte[] frame = {1, 2, 3, 4, 5, 6};
+        try (PublisherRecorder recorder = new PublisherRecorder(file)){
+            recorder.recordWheelData(1, 10, -10, (byte) 0, (byte) 1);
+            expected.onWheelData(1, 10, -10, (byte) 0, (byte) 1);
+            recorder.recordBatteryVoltage(2, 3.9);
+            expected.onBatteryVoltage(2, 3.9);
+            recorder.recordChargerVoltage(3, 5.0, 0.5);
+            expected.onChargerVoltage(3, 5.0, 0.5);
+            recorder.recordBatteryState(4, 3.8, 298.1, 100, 1, 2, 5.1, 0.6, true);
+            expected.onBatteryState(4, 3.8, 298.1, 100, 1, 2, 5.1, 0.6, true);
+            recorder.recordOrientation(5, 0.1, -0.2, Double.NaN, 0.3);
+            expected.onOrientation(5, 0.1, -0.2, Double.NaN, 0.3);
+            // Only the first numSamples are kept
+            recorder.recordAudio(new float[]{0.5f, -0.5f, 0.25f, 9}, 3, 48000, 1000, 2000, 1004, 2500);
+            expected.onAudio(new float[]{0.5f, -0.5f, 0.25f}, 3, 48000, startTime, endTime);
+            recorder.recordImage(frame, 90, 35, 3, 2, 6, null);
+            expected.onImage(frame, 90, 35, 3, 2, 6, null);
+            assertEquals(7, recorder.getEventCount());
+        }
+        assertEquals(expected.events, replay());
+    }
+
+    @Test
+    public void concurrentStreamsAcrossWindowsAreAllReplayed() throws Exception {
+        // 1MB frames, so the log spans several 16MB windows
+        int frames = 40;
+        byte[] frame = new byte[1024 * 1024];
+        PublisherRecorder recorder = new PublisherRecorder(file);
+        Thread images = new Thread(() -> {
+            for (int i = 0; i < frames; i++){
+                Arrays.fill(frame, (byte) i);
+                recorder.recordImage(frame, 0, 35, 1024, 1024, i, null);
+            }
+        });
+        Thread wheels = new Thread(() -> {
+            for (int i = 0; i < 10000; i++){
+                recorder.recordWheelData(i, i, -i, (byte) 0, (byte) 0);
+            }
+        });
+        images.start();
+        wheels.start();
+        images.join();
+        wheels.join();
+        recorder.close();
+        assertNull(recorder.getFailure());
+        assertEquals(recorder.getLength(), file.length());
+        assertTrue(file.length() > 2 * 16 * 1024 * 1024);
+
+        ArrayList<String> events = replay();
+        assertEquals(frames + 10000, events.size());
+        // Each stream in the order it was recorded
+        int image = 0;
+        int wheel = 0;
+        for (String event : events){
+            if (event.startsWith("image")){
+                Arrays.fill(frame, (byte) image);
+                assertEquals("image " + Arrays.hashCode(frame) + " " + frame.length + " 0 35 1024 1024 "
+                        + image + " false", event);
+                image++;
+            } else {
+                assertEquals("wheel " + wheel + " " + wheel + " " + -wheel + " 0 0", event);
+                wheel++;
+            }
+        }
+        assertEquals(frames, image);
+    }
+
+    @Test
+    public void nothingIsRecordedAfterClosing() throws Exception {
+        PublisherRecorder recorder = new PublisherRecorder(file);
+        recorder.recordBatteryVoltage(1, 3.7);
+        recorder.close();
+        recorder.recordBatteryVoltage(2, 3.6);
+        recorder.recordImage(new byte[16], 0, 35, 4, 4, 3, null);
+        assertEquals(1, recorder.getEventCount());
+        assertEquals(recorder.getLength(), file.length());
+        assertEquals(1, replay().size());
+    }
+}
@@ -0,0 +1,97 @@
+package jp.oist.abcvlib.core.inputs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of publishing the latest wheel state through {@link SequenceLockedFields}, as
+ * {@link jp.oist.abcvlib.core.inputs.microcontroller.WheelData} does, against guarding the same
+ * fields with a monitor. Each group has one thread writing updates, as the wheel data thread does,
+ * and three copying the latest one, as controllers do. Reported per write and per read. Run with
+ * {@link jp.oist.abcvlib.Benchmarks}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SequenceLockedFieldsBenchmark {
+    // Fields of a WheelSample
+    private static final int FIELD_COUNT = 13;
+
+    @State(Scope.Group)
+    public static class SequenceLocked {
+        final SequenceLockedFields fields = new SequenceLockedFields(FIELD_COUNT);
+    }
+
+    @State(Scope.Group)
+    public static class Locked {
+        private final long[] fields = new long[FIELD_COUNT];
+        private long version = 0;
+
+        synchronized void write(long value){
+            for (int field = 0; field < FIELD_COUNT; field++){
+                fields[field] = value;
+            }
+            version++;
+        }
+
+        synchronized long read(long[] into){
+            System.arraycopy(fields, 0, into, 0, FIELD_COUNT);
+            return version;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        long value = 0;
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+        final long[] values = new long[FIELD_COUNT];
+    }
+
+    @Benchmark
+    @Group("sequenceLock")
+    @GroupThreads(1)
+    public void sequenceLockWrite(SequenceLocked state, Writer writer){
+        SequenceLockedFields fields = state.fields;
+        long value = ++writer.value;
+        fields.beginWrite();
+        for (int field = 0; field < FIELD_COUNT; field++){
+            fields.putLong(field, value);
+        }
+        fields.endWrite();
+    }
+
+    @Benchmark
+    @Group("sequenceLock")
+    @GroupThreads(3)
+    public long sequenceLockRead(SequenceLocked state, Reader reader){
+        return state.fields.read(reader.values);
+    }
+
+    @Benchmark
+    @Group("monitor")
+    @GroupThreads(1)
+    public void monitorWrite(Locked state, Writer writer){
+        state.write(++writer.value);
+    }
+
+    @Benchmark
+    @Group("monitor")
+    @GroupThreads(3)
+    public long monitorRead(Locked state, Reader reader){
+        return state.read(reader.values);
+    }
+}
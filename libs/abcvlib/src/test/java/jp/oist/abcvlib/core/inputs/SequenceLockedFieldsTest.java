@@ -0,0 +1,87 @@
+package jp.oist.abcvlib.core.inputs;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Consistency of {@link SequenceLockedFields} reads. See {@link SequenceLockedFieldsBenchmark}
+ * for how it compares to locking.
+ */
+public class SequenceLockedFieldsTest {
+    private static final int FIELD_COUNT = 13;
+
+    @Test
+    public void readReturnsTheLatestUpdateAndItsVersion(){
+        SequenceLockedFields fields = new SequenceLockedFields(3);
+        long[] values = new long[3];
+        assertEquals(0, fields.read(values));
+        fields.beginWrite();
+        fields.putLong(0, 42);
+        fields.putLong(1, -7);
+        fields.putDouble(2, 1.5);
+        fields.endWrite();
+        assertEquals(1, fields.read(values));
+        assertEquals(42, values[0]);
+        assertEquals(-7, values[1]);
+        assertEquals(1.5, Double.longBitsToDouble(values[2]), 0);
+        fields.beginWrite();
+        fields.putLong(0, 43);
+        fields.endWrite();
+        assertEquals(2, fields.read(values));
+        assertEquals(43, values[0]);
+        assertEquals(-7, values[1]);
+    }
+
+    @Test
+    public void concurrentReadsAreNeverTorn() throws Exception {
+        SequenceLockedFields fields = new SequenceLockedFields(FIELD_COUNT);
+        AtomicReference<String> torn = new AtomicReference<>();
+        AtomicLong reads = new AtomicLong();
+        Thread writer = new Thread(() -> {
+            for (long update = 1; update <= 1000000; update++){
+                fields.beginWrite();
+                for (int field = 0; field < FIELD_COUNT; field++){
+                    fields.putLong(field, update);
+                }
+                fields.endWrite();
+            }
+        });
+        Thread[] readers = new Thread[3];
+        for (int i = 0; i < readers.length; i++){
+            readers[i] = new Thread(() -> {
+                long[] values = new long[FIELD_COUNT];
+                long lastVersion = 0;
+                do {
+                    long version = fields.read(values);
+                    for (int field = 0; field < FIELD_COUNT; field++){
+                        // Every field of update n holds n, and update n has version n
+                        if (values[field] != version){
+                            torn.compareAndSet(null, "field " + field + " is " + values[field] + " in version " + version);
+                        }
+                    }
+                    if (version < lastVersion){
+                        torn.compareAndSet(null, "version went back from " + lastVersion + " to " + version);
+                    }
+                    lastVersion = version;
+                    reads.incrementAndGet();
+                } while (writer.isAlive() && torn.get() == null);
+            });
+        }
+        writer.start();
+        for (Thread reader : readers){
+            reader.start();
+        }
+        writer.join();
+        for (Thread reader : readers){
+            reader.join();
+        }
+        assertNull(torn.get());
+        assertTrue(reads.get() > 0);
+    }
+}
@@ -0,0 +1,171 @@
+package jp.oist.abcvlib.core.inputs;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jp.oist.abcvlib.util.EventLoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Snapshots of {@link StreamAligner} over streams fed with samples at chosen times, so every
+ * expected value can be worked out by hand, and the fixed rate sampling of
+ * {@link StreamAligner#start(double, StreamAligner.SnapshotListener)}.
+ */
+public class StreamAlignerTest {
+    private static final double DELTA = 1e-9;
+
+    private final StreamAligner aligner = new StreamAligner(8, 0);
+
+    @After
+    public void stop(){
+        aligner.stop();
+    }
+
+    @Test
+    public void linearFieldsAreInterpolatedAndHeldFieldsHeld(){
+        StreamAligner.Stream stream = aligner.addStream("stream", StreamAligner.Fill.LINEAR,
+                StreamAligner.Fill.HOLD);
+        stream.put(1000, 0, 5);
+        stream.put(2000, 10, 7);
+        StreamAligner.Snapshot snapshot = aligner.sample(1250, aligner.newSnapshot());
+        assertTrue(snapshot.isValid(stream));
+        assertEquals(2.5, snapshot.get(stream, 0), DELTA);
+        assertEquals(5, snapshot.get(stream, 1), DELTA);
+        assertEquals(250, snapshot.getAge(stream));
+
+        // On a sample its values exactly
+        aligner.sample(2000, snapshot);
+        assertEquals(10, snapshot.get(stream, 0), DELTA);
+        assertEquals(7, snapshot.get(stream, 1), DELTA);
+        assertEquals(0, snapshot.getAge(stream));
+    }
+
+    @Test
+    public void outsideTheHistoryTheNearestSampleIsHeld(){
+        StreamAligner.Stream stream = aligner.addStream("stream", StreamAligner.Fill.LINEAR);
+        StreamAligner.Snapshot snapshot = aligner.sample(1000, aligner.newSnapshot());
+        assertFalse(snapshot.isValid(stream));
+        assertTrue(Double.isNaN(snapshot.get(stream, 0)));
+
+        stream.put(1000, 1);
+        stream.put(2000, 2);
+        // Not extrapolated past the latest sample, as when querying "now"
+        aligner.sample(5000, snapshot);
+        assertEquals(2, snapshot.get(stream, 0), DELTA);
+        assertEquals(3000, snapshot.getAge(stream));
+        // Nor before the oldest
+        aligner.sample(500, snapshot);
+        assertEquals(1, snapshot.get(stream, 0), DELTA);
+        assertEquals(-500, snapshot.getAge(stream));
+    }
+
+    @Test
+    public void streamsAtDifferentRatesAreAlignedOnOneTime(){
+        StreamAligner.Stream fast = aligner.addStream("fast", StreamAligner.Fill.LINEAR);
+        StreamAligner.Stream slow = aligner.addStream("slow", StreamAligner.Fill.LINEAR,
+                StreamAligner.Fill.HOLD);
+        StreamAligner.Stream shifted = aligner.addStream("shifted", StreamAligner.Fill.LINEAR);
+        // A ramp of slope 1 every 100ns, more than the capacity so older samples are overwritten
+        for (long t = 0; t <= 1000; t += 100){
+            fast.put(t, t);
+        }
+        slow.put(0, 0, 1);
+        slow.put(1000, -100, 2);
+        // Sampled on a clock 5000ns behind
+        shifted.setClockOffset(5000);
+        shifted.put(-5000, 0);
+        shifted.put(-4000, 1000);
+
+        StreamAligner.Snapshot snapshot = aligner.sample(650, aligner.newSnapshot());
+        assertEquals(650, snapshot.get(fast, 0), DELTA);
+        assertEquals(-65, snapshot.get(slow, 0), DELTA);
+        assertEquals(1, snapshot.get(slow, 1), DELTA);
+        assertEquals(650, snapshot.get(shifted, 0), DELTA);
+        // Laid out stream after stream in the order added
+        assertEquals(4, snapshot.getValues().length);
+        assertEquals(650, snapshot.getValues()[0], DELTA);
+        assertEquals(-65, snapshot.getValues()[1], DELTA);
+        assertEquals(1, snapshot.getValues()[2], DELTA);
+        assertEquals(650, snapshot.getValues()[3], DELTA);
+
+        // Only the last 8 samples of the fast stream are held
+        aligner.sample(0, snapshot);
+        assertEquals(300, snapshot.get(fast, 0), DELTA);
+    }
+
+    @Test
+    public void samplesOutOfOrderAreDropped(){
+        StreamAligner.Stream stream = aligner.addStream("stream", StreamAligner.Fill.LINEAR);
+        stream.put(2000, 2);
+        stream.put(1000, 1);
+        assertEquals(1, stream.getDroppedCount());
+        StreamAligner.Snapshot snapshot = aligner.sample(1000, aligner.newSnapshot());
+        assertEquals(2, snapshot.get(stream, 0), DELTA);
+    }
+
+    @Test
+    public void snapshotsMustCoverEveryStream(){
+        aligner.addStream("first", StreamAligner.Fill.LINEAR);
+        StreamAligner.Snapshot snapshot = aligner.newSnapshot();
+        aligner.addStream("second", StreamAligner.Fill.LINEAR);
+        try {
+            aligner.sample(0, snapshot);
+            fail("Sampled into a snapshot missing a stream");
+        } catch (IllegalStateException expected){
+            // Taken before the second stream was added
+        }
+    }
+
+    @Test
+    public void onlyRatesAnEventLoopCanKeepAreAccepted(){
+        for (double hz : new double[]{0, -10, Double.NaN, 2000}){
+            try {
+                aligner.start(hz, snapshot -> {});
+                fail("Started at " + hz + "Hz");
+            } catch (IllegalArgumentException expected){
+                // Not sampling, so it can still be started
+            }
+        }
+        aligner.start(1000, snapshot -> {});
+    }
+
+    @Test
+    public void snapshotsAreTakenOnAGridAtTheGivenRate() throws Exception {
+        StreamAligner.Stream stream = aligner.addStream("stream", StreamAligner.Fill.LINEAR);
+        stream.put(0, 0);
+        stream.put(Long.MAX_VALUE / 2, 1);
+        int count = 20;
+        long period = 5000000;
+        ArrayList<Long> times = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(count);
+        EventLoop loop = new EventLoop("test", EventLoop.Priority.SENSOR);
+        try {
+            aligner.start(200, snapshot -> {
+                assertTrue(snapshot.isValid(stream));
+                assertTrue(snapshot.getTime() <= System.nanoTime());
+                if (times.size() < count){
+                    times.add(snapshot.getTime());
+                    done.countDown();
+                }
+            }, loop);
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            aligner.stop();
+        } finally {
+            loop.quit();
+        }
+        // Skipped grid points only ever make a gap a whole number of periods
+        for (int i = 1; i < times.size(); i++){
+            long gap = times.get(i) - times.get(i - 1);
+            assertEquals(0, gap % period);
+            assertTrue(gap > 0);
+        }
+    }
+}
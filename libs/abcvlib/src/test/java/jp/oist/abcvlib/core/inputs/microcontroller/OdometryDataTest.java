@@ -0,0 +1,95 @@
+package jp.oist.abcvlib.core.inputs.microcontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Poses integrated by {@link OdometryData.Integrator} from wheel distances split into many small
+ * samples, as the encoders deliver them, against the closed form of each motion.
+ */
+public class OdometryDataTest {
+    private static final double WHEEL_BASE = 100; // mm
+    private static final double DELTA = 1e-6;
+    private static final int STEPS = 1000;
+    private static final double DT = 0.005; // s
+
+    private static OdometryData.Integrator integrate(double distanceL, double distanceR){
+        OdometryData.Integrator integrator = new OdometryData.Integrator(WHEEL_BASE, 1);
+        for (int i = 0; i < STEPS; i++){
+            integrator.integrate(distanceL / STEPS, distanceR / STEPS, DT, Double.NaN);
+        }
+        return integrator;
+    }
+
+    @Test
+    public void equalDistancesDriveStraightAhead(){
+        OdometryData.Integrator integrator = integrate(500, 500);
+        assertEquals(500, integrator.getX(), DELTA);
+        assertEquals(0, integrator.getY(), DELTA);
+        assertEquals(0, integrator.getHeading(), DELTA);
+
+        integrator = integrate(-200, -200);
+        assertEquals(-200, integrator.getX(), DELTA);
+        assertEquals(0, integrator.getY(), DELTA);
+        assertEquals(0, integrator.getHeading(), DELTA);
+    }
+
+    @Test
+    public void oppositeDistancesRotateInPlace(){
+        // A quarter turn counterclockwise, each wheel on a circle of half the wheel base
+        double quarter = Math.PI / 2 * WHEEL_BASE / 2;
+        OdometryData.Integrator integrator = integrate(-quarter, quarter);
+        assertEquals(0, integrator.getX(), DELTA);
+        assertEquals(0, integrator.getY(), DELTA);
+        assertEquals(Math.PI / 2, integrator.getHeading(), DELTA);
+
+        // Past a half turn the heading wraps around to the other side of +-Pi
+        integrator = integrate(3 * quarter, -3 * quarter);
+        assertEquals(0, integrator.getX(), DELTA);
+        assertEquals(0, integrator.getY(), DELTA);
+        assertEquals(Math.PI / 2, integrator.getHeading(), DELTA);
+    }
+
+    @Test
+    public void unequalDistancesFollowAnArc(){
+        // A quarter of a circle of radius 300mm counterclockwise, the wheels half the base either side
+        double radius = 300;
+        double angle = Math.PI / 2;
+        OdometryData.Integrator integrator = integrate(angle * (radius - WHEEL_BASE / 2),
+                angle * (radius + WHEEL_BASE / 2));
+        // Each step moves along its chord by the arc length, which is too far by the arc/chord
+        // difference, a relative 1e-7 for steps of 1.6mrad
+        assertEquals(radius * Math.sin(angle), integrator.getX(), 1e-4);
+        assertEquals(radius * (1 - Math.cos(angle)), integrator.getY(), 1e-4);
+        assertEquals(angle, integrator.getHeading(), DELTA);
+
+        // So a single step, e.g. after samples were skipped, keeps the heading but overshoots
+        // the arc's end by that difference along its chord
+        OdometryData.Integrator coarse = new OdometryData.Integrator(WHEEL_BASE, 1);
+        coarse.integrate(angle * (radius - WHEEL_BASE / 2), angle * (radius + WHEEL_BASE / 2), DT,
+                Double.NaN);
+        assertEquals(angle, coarse.getHeading(), DELTA);
+        assertEquals(angle * radius * Math.cos(angle / 2), coarse.getX(), DELTA);
+        assertEquals(angle * radius * Math.sin(angle / 2), coarse.getY(), DELTA);
+    }
+
+    @Test
+    public void headingIsPulledTowardsTheAzimuth(){
+        OdometryData.Integrator integrator = new OdometryData.Integrator(WHEEL_BASE, 1);
+        // The first azimuth fused marks a heading of 0
+        integrator.integrate(0, 0, DT, 1);
+        assertEquals(0, integrator.getHeading(), DELTA);
+        // The phone turned 0.5rad clockwise while the wheels slipped. After 5 time constants the
+        // heading is within 1% of the phone's
+        for (int i = 0; i < 5 / DT; i++){
+            integrator.integrate(0, 0, DT, 1.5);
+        }
+        assertEquals(-0.5, integrator.getHeading(), 0.005);
+
+        integrator.reset();
+        assertEquals(0, integrator.getX(), 0);
+        assertEquals(0, integrator.getY(), 0);
+        assertEquals(0, integrator.getHeading(), 0);
+    }
+}
@@ -0,0 +1,38 @@
+package jp.oist.abcvlib.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding a motor command into a pooled packet and returning it to the pool. Run with
+ * {@link jp.oist.abcvlib.Benchmarks} and the gc profiler, which should report no allocation per
+ * operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AndroidToRP2040CommandEncoderBenchmark {
+    private final AndroidToRP2040CommandEncoder encoder = new AndroidToRP2040CommandEncoder();
+    private int step = 0;
+
+    @Benchmark
+    public byte setMotorLevels(){
+        // Sweep the whole range so the table search is not always the same
+        step = (step + 1) & 1023;
+        float level = step / 512f - 1;
+        AndroidToRP2040Packet packet = encoder.encodeSetMotorLevels(level, -level, false, false);
+        byte left = packet.getBytes()[2];
+        packet.release();
+        return left;
+    }
+}
@@ -0,0 +1,86 @@
+package jp.oist.abcvlib.util;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class AndroidToRP2040CommandEncoderTest {
+
+    private static byte[] encodeMotorLevels(AndroidToRP2040CommandEncoder encoder, float left, float right,
+                                            boolean leftBrake, boolean rightBrake){
+        AndroidToRP2040Packet packet = encoder.encodeSetMotorLevels(left, right, leftBrake, rightBrake);
+        byte[] bytes = packet.getBytes().clone();
+        packet.release();
+        return bytes;
+    }
+
+    @Test
+    public void motorLevelsAreEncodedAsDrv8830ControlValues(){
+        AndroidToRP2040CommandEncoder encoder = new AndroidToRP2040CommandEncoder();
+        // Voltage bits 2-7, IN1 bit 0 and IN2 bit 1, inverted as the motors are mounted reversed
+        byte[] full = encodeMotorLevels(encoder, 1, -1, false, false);
+        assertEquals(AndroidToRP2040Command.START.getHexValue(), full[0]);
+        assertEquals(AndroidToRP2040Command.SET_MOTOR_LEVELS.getHexValue(), full[1]);
+        assertEquals((byte) (62 << 2 | 1), full[2]);
+        assertEquals((byte) (62 << 2 | 2), full[3]);
+        assertEquals(AndroidToRP2040Command.STOP.getHexValue(), full[4]);
+        // (64 * 0.5 * 5.06 / (4 * 1.285)) - 1 = 30.5
+        byte[] half = encodeMotorLevels(encoder, 0.5f, -0.5f, false, false);
+        assertEquals((byte) (30 << 2 | 1), half[2]);
+        assertEquals((byte) (30 << 2 | 2), half[3]);
+        // Inside the 0.49V dead band only the direction is kept, and 0 coasts
+        byte[] deadBand = encodeMotorLevels(encoder, 0.05f, 0, false, false);
+        assertEquals(1, deadBand[2]);
+        assertEquals(0, deadBand[3]);
+    }
+
+    @Test
+    public void brakeSetsBothInputs(){
+        AndroidToRP2040CommandEncoder encoder = new AndroidToRP2040CommandEncoder();
+        byte[] bytes = encodeMotorLevels(encoder, 1, 0.3f, true, true);
+        assertEquals(3, bytes[2] & 0x03);
+        assertEquals(3, bytes[3] & 0x03);
+    }
+
+    @Test
+    public void packetsAreOnlyReusedOnceReleased(){
+        AndroidToRP2040CommandEncoder encoder = new AndroidToRP2040CommandEncoder(2);
+        AndroidToRP2040Packet first = encoder.encodeGetLog();
+        first.retain(); // e.g. held by the writer thread as well as its request
+        first.release();
+        AndroidToRP2040Packet second = encoder.encodeGetState();
+        assertNotSame(first, second);
+        assertEquals(AndroidToRP2040Command.GET_LOG.getHexValue(), first.getBytes()[1]);
+        first.release();
+        second.release();
+        assertEquals(2, encoder.available());
+        assertEquals(0, encoder.getAllocatedPacketCount());
+    }
+
+    @Test
+    public void encodingDoesNotAllocate(){
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        AndroidToRP2040CommandEncoder encoder = new AndroidToRP2040CommandEncoder();
+        // Warm up so the measurement does not include class loading or the interpreter
+        for (int i = 0; i < 100000; i++){
+            encoder.encodeSetMotorLevels(i % 200 / 100f - 1, 0.5f, false, false).release();
+        }
+        long thread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++){
+            encoder.encodeSetMotorLevels(i % 200 / 100f - 1, 0.5f, false, false).release();
+        }
+        long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+        // Far less than a single byte per command, whatever the measurement itself allocates
+        assertTrue(allocated + " bytes allocated for 100000 commands", allocated < 10000);
+        assertEquals(0, encoder.getAllocatedPacketCount());
+    }
+}
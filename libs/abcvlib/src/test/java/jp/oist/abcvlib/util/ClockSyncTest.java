@@ -0,0 +1,116 @@
+package jp.oist.abcvlib.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Estimates of {@link ClockSync} against the clock of an {@link RP2040Emulator} with a configured
+ * offset and drift. Samples are generated at chosen phone times rather than read from the clock,
+ * so the estimates are the same on every run, apart from a last check through a
+ * {@link SerialCommManager} connected to the emulator.
+ */
+public class ClockSyncTest {
+    private static final long MCU_OFFSET = 123456789; // us
+    private static final double DRIFT_PPM = 250;
+
+    private SerialCommManager manager;
+    private EmulatedSerialLink serialLink;
+
+    @After
+    public void close(){
+        if (manager != null){
+            manager.stop();
+        }
+        if (serialLink != null){
+            serialLink.close();
+        }
+    }
+
+    /**
+     * Adds a sample of a request written at sentTime, stamped by emulator after uplink and
+     * answered after a further downlink, all in ns.
+     */
+    private static void addSample(ClockSync clockSync, RP2040Emulator emulator, long sentTime,
+                                  long uplink, long downlink){
+        long mcuTime = emulator.getMcuTime(sentTime + uplink);
+        clockSync.addSample(sentTime, mcuTime, sentTime + uplink + downlink);
+    }
+
+    @Test
+    public void symmetricDelaysGiveTheConfiguredOffsetAndDrift(){
+        RP2040Emulator emulator = new RP2040Emulator.Builder().setMcuClock(MCU_OFFSET, DRIFT_PPM).build();
+        ClockSync clockSync = new ClockSync();
+        long start = System.nanoTime();
+        assertFalse(clockSync.isSynchronized());
+        // A sample every 10ms over 2s, each with a 400us round trip split evenly
+        for (int i = 0; i < 200; i++){
+            addSample(clockSync, emulator, start + i * 10000000L, 200000, 200000);
+        }
+        assertTrue(clockSync.isSynchronized());
+        assertEquals(DRIFT_PPM, clockSync.getDriftPpm(), 1);
+        long reference = clockSync.getReferenceTime();
+        // Within the microsecond rounding of the rp2040 timestamps
+        assertEquals(emulator.getMcuTime(reference) * 1000L - reference, clockSync.getOffset(), 1000);
+        // The emulator clock reads the configured offset when created, just before start
+        long mcuStart = clockSync.toMcuTime(start);
+        assertTrue(mcuStart >= MCU_OFFSET && mcuStart < MCU_OFFSET + 10000);
+        long later = start + TimeUnit.SECONDS.toNanos(1);
+        assertEquals(emulator.getMcuTime(later), clockSync.toMcuTime(later), 2);
+        assertEquals(later, clockSync.toPhoneTime(emulator.getMcuTime(later)), 2000);
+    }
+
+    @Test
+    public void offsetIsAnchoredOnTheShortestRoundTrip(){
+        RP2040Emulator emulator = new RP2040Emulator.Builder().setMcuClock(MCU_OFFSET, DRIFT_PPM).build();
+        ClockSync clockSync = new ClockSync();
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        long minDelay = Long.MAX_VALUE;
+        long minAsymmetry = 0;
+        // Uplink and downlink of 500us plus up to 300us of USB and queueing jitter each
+        for (int i = 0; i < 200; i++){
+            long uplink = 500000 + random.nextInt(300000);
+            long downlink = 500000 + random.nextInt(300000);
+            if (uplink + downlink < minDelay){
+                minDelay = uplink + downlink;
+                minAsymmetry = uplink - downlink;
+            }
+            addSample(clockSync, emulator, start + i * 10000000L, uplink, downlink);
+        }
+        assertEquals(minDelay, clockSync.getMinDelay());
+        // Off by half the asymmetry of the sample it is anchored on, so by at most half its round trip
+        long reference = clockSync.getReferenceTime();
+        long error = clockSync.getOffset() - (emulator.getMcuTime(reference) * 1000L - reference);
+        assertEquals(minAsymmetry / 2, error, 1000);
+        assertTrue(Math.abs(error) <= minDelay / 2 + 1000);
+        // Samples within 1.5 times the shortest round trip fit the drift despite the jitter
+        assertEquals(DRIFT_PPM, clockSync.getDriftPpm(), 50);
+    }
+
+    @Test
+    public void serialCommManagerSynchronizesWithTheEmulator() throws Exception {
+        RP2040Emulator emulator = new RP2040Emulator.Builder().setMcuClock(MCU_OFFSET, DRIFT_PPM)
+                .setLatency(200, 100).setSeed(1).build();
+        serialLink = new EmulatedSerialLink(emulator);
+        manager = new SerialCommManager(serialLink);
+        // State replies are only parsed, and their timestamps sampled, with somewhere to send them
+        manager.setStateListener((deviceId, timestamp, state) -> {});
+        manager.start();
+        ClockSync clockSync = manager.getClockSync();
+        for (int i = 0; i < 20; i++){
+            manager.setMotorLevels(0, 0, false, false).get(1000, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(clockSync.isSynchronized());
+        // Real clocks and threads, so only as close as the link delays allow
+        long now = System.nanoTime();
+        long error = clockSync.toMcuTime(now) - emulator.getMcuTime(now);
+        assertTrue("Off by " + error + "us", Math.abs(error) <= clockSync.getMinDelay() / 2000 + 100);
+    }
+}
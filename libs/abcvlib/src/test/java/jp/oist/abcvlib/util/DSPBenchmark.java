@@ -0,0 +1,94 @@
+package jp.oist.abcvlib.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one sample through each {@link DSP} filter, fed a noisy ramp as from a wheel encoder at
+ * 100Hz. Run with {@link jp.oist.abcvlib.Benchmarks}, with the gc profiler to confirm filtering
+ * allocates nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DSPBenchmark {
+    private static final double DT = 0.01;
+
+    private final double[] samples = new double[1024];
+    private int index = 0;
+
+    private DSP.MovingAverage movingAverage;
+    private DSP.OnePole onePole;
+    private DSP.Biquad biquad;
+    private DSP.FiniteDifference finiteDifference;
+    private DSP.SavitzkyGolayDerivative savitzkyGolay;
+    private DSP.Median median;
+    private DSP.ConstantVelocityKalman kalman;
+
+    @Setup
+    public void setup(){
+        Random random = new Random(1);
+        for (int i = 0; i < samples.length; i++){
+            samples[i] = 3 * i * DT + random.nextGaussian() * 0.1;
+        }
+        movingAverage = new DSP.MovingAverage(16);
+        onePole = new DSP.OnePole(0.1);
+        biquad = DSP.Biquad.lowPass(10, 100, 1 / Math.sqrt(2));
+        finiteDifference = new DSP.FiniteDifference();
+        savitzkyGolay = new DSP.SavitzkyGolayDerivative(4);
+        median = new DSP.Median(5);
+        kalman = new DSP.ConstantVelocityKalman(0.5, 0.01);
+    }
+
+    private double next(){
+        index = (index + 1) & (samples.length - 1);
+        return samples[index];
+    }
+
+    @Benchmark
+    public double movingAverage(){
+        return movingAverage.filter(next(), DT);
+    }
+
+    @Benchmark
+    public double onePole(){
+        return onePole.filter(next(), DT);
+    }
+
+    @Benchmark
+    public double biquad(){
+        return biquad.filter(next(), DT);
+    }
+
+    @Benchmark
+    public double finiteDifference(){
+        return finiteDifference.filter(next(), DT);
+    }
+
+    @Benchmark
+    public double savitzkyGolayDerivative(){
+        return savitzkyGolay.filter(next(), DT);
+    }
+
+    @Benchmark
+    public double median(){
+        return median.filter(next(), DT);
+    }
+
+    @Benchmark
+    public double constantVelocityKalman(){
+        return kalman.filter(next(), DT) + kalman.getRate();
+    }
+}
@@ -0,0 +1,187 @@
+package jp.oist.abcvlib.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reference values for the {@link DSP} filters. Expected values are worked out by hand, or where
+ * noted computed independently of DSP, e.g. from the textbook form of the filter.
+ */
+public class DSPTest {
+    private static final double EPSILON = 1e-12;
+
+    private static double[] run(DSP.Filter filter, double dt, double... samples){
+        double[] output = new double[samples.length];
+        for (int i = 0; i < samples.length; i++){
+            output[i] = filter.filter(samples[i], dt);
+        }
+        return output;
+    }
+
+    @Test
+    public void exponentialAvg(){
+        assertEquals(2.5, DSP.exponentialAvg(4, 2, 0.25), EPSILON);
+    }
+
+    @Test
+    public void movingAverage(){
+        DSP.MovingAverage filter = new DSP.MovingAverage(3);
+        assertArrayEquals(new double[]{1, 1.5, 2, 3, 4}, run(filter, 0, 1, 2, 3, 4, 5));
+        filter.reset();
+        assertArrayEquals(new double[]{10, 15}, run(filter, 0, 10, 20));
+    }
+
+    @Test
+    public void movingAverageDoesNotDrift(){
+        DSP.MovingAverage filter = new DSP.MovingAverage(7);
+        double output = 0;
+        for (int i = 0; i < 100000; i++){
+            output = filter.filter(i % 2 == 0 ? 0.1 : 1e6 + 0.1, 0);
+        }
+        // 7 samples ending on an odd one: 3 of 0.1 and 4 of 1e6 + 0.1
+        assertEquals((4 * 1e6) / 7 + 0.1, output, 1e-6);
+    }
+
+    @Test
+    public void onePole(){
+        DSP.OnePole filter = new DSP.OnePole(1);
+        // First sample passes through, then weight dt / (timeConstant + dt) = 0.5
+        assertArrayEquals(new double[]{0, 0.5, 0.75}, run(filter, 1, 0, 1, 1));
+        // dt of 0 leaves the value as is
+        assertEquals(0.75, filter.filter(100, 0), EPSILON);
+    }
+
+    @Test
+    public void onePoleStepReachesTwoThirdsInOneTimeConstant(){
+        DSP.OnePole filter = new DSP.OnePole(0.5);
+        filter.filter(0, 0);
+        double output = 0;
+        for (int i = 0; i < 500; i++){
+            output = filter.filter(1, 0.001);
+        }
+        assertEquals(1 - Math.exp(-1), output, 1e-3);
+    }
+
+    @Test
+    public void biquadDifferenceEquation(){
+        // y[n] = x[n] + 0.5 y[n-1]
+        DSP.Biquad feedback = new DSP.Biquad(1, 0, 0, -0.5, 0);
+        assertArrayEquals(new double[]{1, 0.5, 0.25, 0.125}, run(feedback, 0, 1, 0, 0, 0));
+        // y[n] = (x[n] + x[n-1]) / 2
+        DSP.Biquad average = new DSP.Biquad(0.5, 0.5, 0, 0, 0);
+        assertArrayEquals(new double[]{1, 3, 5}, run(average, 0, 2, 4, 6));
+    }
+
+    @Test
+    public void biquadLowPassImpulseResponse(){
+        // Butterworth, 10Hz at 100Hz, from the bilinear transform with K = tan(Pi fc / fs)
+        double[] expected = {0.06745527388907191, 0.2120106106268419, 0.281933623305706,
+                0.23472631556874185, 0.15190495187045572, 0.07672900004518605,
+                0.02499314414018211, -0.003107177389577793};
+        DSP.Biquad filter = DSP.Biquad.lowPass(10, 100, 1 / Math.sqrt(2));
+        assertArrayEquals(expected, run(filter, 0.01, 1, 0, 0, 0, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void biquadHighPassImpulseResponse(){
+        double[] expected = {0.6389455251590225, -0.5475887728761644, -0.2506954995302367,
+                -0.06049454749474997, 0.03434341454513076, 0.06422609909766828,
+                0.059232162614520516, 0.04118857064466816};
+        DSP.Biquad filter = DSP.Biquad.highPass(10, 100, 1 / Math.sqrt(2));
+        assertArrayEquals(expected, run(filter, 0.01, 1, 0, 0, 0, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void biquadLowPassGain(){
+        DSP.Biquad constant = DSP.Biquad.lowPass(10, 100, 1 / Math.sqrt(2));
+        DSP.Biquad nyquist = DSP.Biquad.lowPass(10, 100, 1 / Math.sqrt(2));
+        double dc = 0;
+        double alternating = 0;
+        for (int i = 0; i < 1000; i++){
+            dc = constant.filter(1, 0.01);
+            alternating = nyquist.filter(i % 2 == 0 ? 1 : -1, 0.01);
+        }
+        assertEquals(1, dc, 1e-9);
+        assertEquals(0, alternating, 1e-9);
+    }
+
+    @Test
+    public void finiteDifference(){
+        DSP.FiniteDifference filter = new DSP.FiniteDifference();
+        assertEquals(0, filter.filter(1, 0.5), EPSILON);
+        assertEquals(4, filter.filter(3, 0.5), EPSILON);
+        assertEquals(0, filter.filter(5, 0), EPSILON);
+        filter.reset();
+        assertEquals(0, filter.filter(10, 0.5), EPSILON);
+    }
+
+    @Test
+    public void savitzkyGolayDerivativeOfLine(){
+        DSP.SavitzkyGolayDerivative filter = new DSP.SavitzkyGolayDerivative(2);
+        // x = 2t sampled every 0.1s. 0 until the 5 sample window is full
+        assertArrayEquals(new double[]{0, 0, 0, 0, 2, 2, 2}, run(filter, 0.1, 0, 0.2, 0.4, 0.6, 0.8, 1.0, 1.2));
+    }
+
+    @Test
+    public void savitzkyGolayDerivativeOfParabolaIsExactAtCenter(){
+        DSP.SavitzkyGolayDerivative filter = new DSP.SavitzkyGolayDerivative(2);
+        double output = 0;
+        for (int i = 0; i < 5; i++){
+            double t = i * 0.1;
+            output = filter.filter(t * t, 0.1);
+        }
+        // Delayed by halfWindow samples, i.e. the derivative 2t at t = 0.2
+        assertEquals(0.4, output, 1e-9);
+    }
+
+    @Test
+    public void median(){
+        DSP.Median filter = new DSP.Median(3);
+        assertArrayEquals(new double[]{1, 3, 2, 5, 3, 4}, run(filter, 0, 1, 5, 2, 100, 3, 4));
+        filter.reset();
+        assertArrayEquals(new double[]{2, 2, 2, 2, 7}, run(filter, 0, 2, 2, 2, 7, 7));
+    }
+
+    @Test
+    public void medianRejectsSpikes(){
+        DSP.Median filter = new DSP.Median(5);
+        double[] output = run(filter, 0, 1, 1, 1, 1, 50, 1, -50, 1, 1);
+        for (int i = 4; i < output.length; i++){
+            assertEquals(1, output[i], EPSILON);
+        }
+    }
+
+    @Test
+    public void constantVelocityKalman(){
+        // From the matrix form x = F x, P = F P F' + Q, K = P H' / (H P H' + R), P = (I - K H) P
+        double[][] expected = {
+                {0.0, 0.0},
+                {0.3099690062116717, 3.0993807699373583},
+                {0.5866429490755811, 2.8994401043610787},
+                {0.9140464723221862, 3.061458983291902},
+                {1.2019578645404405, 2.9989994627756182},
+                {1.5115185651305585, 3.027014868811782}};
+        double[] samples = {0.0, 0.31, 0.58, 0.93, 1.19, 1.52};
+        DSP.ConstantVelocityKalman filter = new DSP.ConstantVelocityKalman(0.5, 0.04);
+        for (int i = 0; i < samples.length; i++){
+            assertEquals(expected[i][0], filter.filter(samples[i], i == 0 ? 0 : 0.1), 1e-9);
+            assertEquals(expected[i][1], filter.getRate(), 1e-9);
+        }
+    }
+
+    @Test
+    public void constantVelocityKalmanTracksRamp(){
+        DSP.ConstantVelocityKalman filter = new DSP.ConstantVelocityKalman(0.1, 0.01);
+        double value = 0;
+        for (int i = 0; i < 500; i++){
+            value = filter.filter(3 * i * 0.01, 0.01);
+        }
+        assertEquals(3 * 499 * 0.01, value, 1e-6);
+        assertEquals(3, filter.getRate(), 1e-6);
+    }
+
+    private static void assertArrayEquals(double[] expected, double[] actual){
+        org.junit.Assert.assertArrayEquals(expected, actual, EPSILON);
+    }
+}
@@ -0,0 +1,46 @@
+package jp.oist.abcvlib.util;
+
+/**
+ * {@link SerialLink} connected to an {@link RP2040Emulator} instead of a usb device. Everything
+ * above the port (packet framing, the fifoQueue and the {@link SerialCommManager}) is the same code
+ * that runs against the real rp2040, so this can be used to measure throughput and round trip
+ * latency of the serial stack, or to reproduce corrupted and fragmented packets, without a robot
+ * attached.
+ */
+public class EmulatedSerialLink extends SerialLink {
+    private final RP2040Emulator emulator;
+    private final String deviceId;
+
+    /**
+     * @param deviceId returned by {@link #getDeviceId()} in place of a usb device name
+     */
+    public EmulatedSerialLink(RP2040Emulator emulator, String deviceId) {
+        this.emulator = emulator;
+        this.deviceId = deviceId;
+        emulator.start(this::onNewData);
+    }
+
+    public EmulatedSerialLink(RP2040Emulator emulator) {
+        this(emulator, null);
+    }
+
+    @Override
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    @Override
+    protected void send(byte[] packet, int timeout) {
+        recordTx(packet);
+        emulator.write(packet);
+    }
+
+    public RP2040Emulator getEmulator() {
+        return emulator;
+    }
+
+    @Override
+    public void close() {
+        emulator.stop();
+    }
+}
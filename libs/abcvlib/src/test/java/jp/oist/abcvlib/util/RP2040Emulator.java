@@ -0,0 +1,423 @@
+package jp.oist.abcvlib.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import jp.oist.abcvlib.util.RP2040ToAndroidPacket.StateOffsets;
+
+/**
+ * In-process stand-in for the rp2040 firmware. Commands written by the Android side are parsed as
+ * START | command | left | right | STOP and answered with START | type | data size | data | STOP
+ * packets, with state replies laid out as in {@link StateOffsets} including the optional rp2040
+ * timestamp, which the current firmware does not send. Replies are handed to a receiver from a
+ * separate thread, just as the usb-serial library's SerialInputOutputManager does, so the whole
+ * serial stack above the port (framing, parsing, scheduling) can be run and measured without a
+ * device. See {@link EmulatedSerialLink}.
+ * <br><br>
+ * The link can be made to misbehave: replies can be delayed, split into random chunks, and have
+ * individual bytes corrupted or dropped, and commands can be rejected with a NACK. All randomness
+ * comes from a seeded {@link Random} so a given configuration replays the same faults.
+ * <br><br>
+ * Does not use any Android APIs so it runs on a plain JVM.
+ */
+public class RP2040Emulator {
+
+    private final long latency; // ns
+    private final long latencyJitter; // ns
+    private final int maxChunkSize;
+    private final long chunkInterval; // ns
+    private final double corruptionRate;
+    private final double dropRate;
+    private final double nackRate;
+    private final Random random;
+    private final byte[] logMessage;
+
+    private Consumer<byte[]> receiver;
+    // A plain executor rather than ScheduledExecutorServiceWithException, as that starts a
+    // watcher thread per scheduled task and every reply chunk is a task
+    private ScheduledExecutorService executor;
+    // Guarded by this. Ensures chunks are delivered in order even with jitter
+    private long lastDeliveryTime = 0;
+    // Chunks not delivered yet, oldest first. Guarded by this. Each scheduled task delivers the
+    // oldest one rather than its own, as the executor can run tasks due at about the same time out
+    // of the order they were scheduled in
+    private final ArrayDeque<byte[]> pendingChunks = new ArrayDeque<>();
+
+    // Simulated rp2040 state. Guarded by this
+    private final ByteBuffer state = ByteBuffer.allocate(StateOffsets.SIZE_WITH_MCU_TIME).order(ByteOrder.LITTLE_ENDIAN);
+    // The rp2040 clock runs from its own epoch and at its own rate
+    private final long mcuClockStart = System.nanoTime();
+    private final long mcuClockOffset; // us
+    private final double mcuClockDrift;
+    private final double countsPerSecond;
+    private double encoderLeft = 0;
+    private double encoderRight = 0;
+    private long lastStateUpdate = System.nanoTime();
+
+    private final AtomicLong commandCount = new AtomicLong();
+    private final AtomicLong invalidCommandCount = new AtomicLong();
+    private final AtomicLong replyCount = new AtomicLong();
+    private final AtomicLong nackCount = new AtomicLong();
+    private final AtomicLong chunkCount = new AtomicLong();
+    private final AtomicLong corruptedByteCount = new AtomicLong();
+    private final AtomicLong droppedByteCount = new AtomicLong();
+
+    private RP2040Emulator(Builder builder) {
+        this.latency = builder.latency;
+        this.latencyJitter = builder.latencyJitter;
+        this.maxChunkSize = builder.maxChunkSize;
+        this.chunkInterval = builder.chunkInterval;
+        this.corruptionRate = builder.corruptionRate;
+        this.dropRate = builder.dropRate;
+        this.nackRate = builder.nackRate;
+        this.random = new Random(builder.seed);
+        this.logMessage = builder.logMessage.getBytes(StandardCharsets.US_ASCII);
+        this.countsPerSecond = builder.countsPerSecond;
+        this.mcuClockOffset = builder.mcuClockOffset;
+        this.mcuClockDrift = builder.mcuClockDriftPpm / 1e6;
+        state.put(StateOffsets.STATE_VERSION, StateOffsets.STATE_VERSION_MCU_TIME);
+        state.putShort(StateOffsets.BATTERY_VOLTAGE, builder.batteryVoltage);
+        state.putShort(StateOffsets.BATTERY_TEMPERATURE, (short) 2981); // 25C in 0.1K
+        state.put(StateOffsets.BATTERY_STATE_OF_HEALTH, (byte) 100);
+        state.putShort(StateOffsets.USB_CHARGER_VOLTAGE, builder.usbChargerVoltage);
+    }
+
+    /**
+     * Starts the reply thread, handing replies to receiver as the SerialInputOutputManager would
+     * hand received bytes to a {@link SerialLink}.
+     */
+    public synchronized void start(Consumer<byte[]> receiver) {
+        this.receiver = receiver;
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ProcessPriorityThreadFactory(Thread.MAX_PRIORITY, "RP2040Emulator"));
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        pendingChunks.clear();
+    }
+
+    /**
+     * Called with the bytes the Android side writes to the serial port.
+     */
+    public void write(byte[] packet) {
+        commandCount.incrementAndGet();
+        if (packet.length != AndroidToRP2040Packet.packetSize
+                || packet[0] != AndroidToRP2040Command.START.getHexValue()
+                || packet[packet.length - 1] != AndroidToRP2040Command.STOP.getHexValue()) {
+            invalidCommandCount.incrementAndGet();
+            return;
+        }
+        AndroidToRP2040Command command = AndroidToRP2040Command.getEnumByValue(packet[1]);
+        if (command == null) {
+            invalidCommandCount.incrementAndGet();
+            return;
+        }
+        byte[] reply;
+        synchronized (this) {
+            long now = System.nanoTime();
+            updateEncoders(now);
+            state.putLong(StateOffsets.MCU_TIME, getMcuTime(now));
+            if (nackRate > 0 && random.nextDouble() < nackRate) {
+                // Rejected without being applied. The NACK names the command it answers
+                nackCount.incrementAndGet();
+                replyCount.incrementAndGet();
+                deliver(encodeReply(AndroidToRP2040Command.NACK, new byte[]{packet[1]}));
+                return;
+            }
+            switch (command) {
+                case SET_MOTOR_LEVELS:
+                    state.put(StateOffsets.CONTROL_VALUE_LEFT, packet[2]);
+                    state.put(StateOffsets.CONTROL_VALUE_RIGHT, packet[3]);
+                    reply = encodeReply(command, state.array());
+                    break;
+                case RESET_STATE:
+                    encoderLeft = 0;
+                    encoderRight = 0;
+                    updateEncoders(System.nanoTime());
+                    reply = encodeReply(command, state.array());
+                    break;
+                case GET_STATE:
+                    reply = encodeReply(command, state.array());
+                    break;
+                case GET_LOG:
+                    reply = encodeReply(command, logMessage);
+                    break;
+                default:
+                    invalidCommandCount.incrementAndGet();
+                    return;
+            }
+            replyCount.incrementAndGet();
+            deliver(reply);
+        }
+    }
+
+    private static byte[] encodeReply(AndroidToRP2040Command type, byte[] data) {
+        ByteBuffer reply = ByteBuffer.allocate(RP2040ToAndroidPacket.Sizes.START_MARKER +
+                RP2040ToAndroidPacket.Sizes.PACKET_TYPE + RP2040ToAndroidPacket.Sizes.DATA_SIZE +
+                data.length + RP2040ToAndroidPacket.Sizes.END_MARKER);
+        reply.order(ByteOrder.LITTLE_ENDIAN);
+        reply.put(AndroidToRP2040Command.START.getHexValue());
+        reply.put(type.getHexValue());
+        reply.putShort((short) data.length);
+        reply.put(data);
+        reply.put(AndroidToRP2040Command.STOP.getHexValue());
+        return reply.array();
+    }
+
+    /**
+     * Must hold this. Applies the configured faults and schedules the reply as one or more chunks.
+     */
+    private void deliver(byte[] reply) {
+        if (executor == null) {
+            return;
+        }
+        byte[] faulty = new byte[reply.length];
+        int length = 0;
+        for (byte b : reply) {
+            if (dropRate > 0 && random.nextDouble() < dropRate) {
+                droppedByteCount.incrementAndGet();
+                continue;
+            }
+            if (corruptionRate > 0 && random.nextDouble() < corruptionRate) {
+                // xor with a non-zero value so the byte always changes
+                b ^= (byte) (1 + random.nextInt(255));
+                corruptedByteCount.incrementAndGet();
+            }
+            faulty[length++] = b;
+        }
+
+        long now = System.nanoTime();
+        long deliveryTime = now + latency;
+        if (latencyJitter > 0) {
+            deliveryTime += (long) (random.nextDouble() * latencyJitter);
+        }
+        int offset = 0;
+        while (offset < length) {
+            int size = Math.min(length - offset, maxChunkSize > 0 ? 1 + random.nextInt(maxChunkSize) : length);
+            byte[] chunk = new byte[size];
+            System.arraycopy(faulty, offset, chunk, 0, size);
+            offset += size;
+            // Never deliver before an earlier chunk
+            deliveryTime = Math.max(deliveryTime, lastDeliveryTime);
+            lastDeliveryTime = deliveryTime;
+            pendingChunks.add(chunk);
+            executor.schedule(this::deliverOldestChunk, deliveryTime - now, TimeUnit.NANOSECONDS);
+            deliveryTime += chunkInterval;
+        }
+    }
+
+    private void deliverOldestChunk() {
+        byte[] chunk;
+        synchronized (this) {
+            chunk = pendingChunks.poll();
+        }
+        if (chunk != null) {
+            chunkCount.incrementAndGet();
+            receiver.accept(chunk);
+        }
+    }
+
+    /**
+     * Must hold this. Integrates the wheel speeds implied by the current control values.
+     */
+    private void updateEncoders(long now) {
+        double seconds = (now - lastStateUpdate) / 1e9;
+        lastStateUpdate = now;
+        encoderLeft += speed(state.get(StateOffsets.CONTROL_VALUE_LEFT)) * countsPerSecond * seconds;
+        encoderRight += speed(state.get(StateOffsets.CONTROL_VALUE_RIGHT)) * countsPerSecond * seconds;
+        state.putInt(StateOffsets.ENCODER_COUNT_LEFT, (int) encoderLeft);
+        state.putInt(StateOffsets.ENCODER_COUNT_RIGHT, (int) encoderRight);
+    }
+
+    /**
+     * @return the emulated rp2040 clock in microseconds at phone time now
+     */
+    public long getMcuTime(long now) {
+        long elapsed = now - mcuClockStart;
+        return mcuClockOffset + (long) (elapsed * (1 + mcuClockDrift)) / 1000L;
+    }
+
+    /**
+     * @return signed fraction of full speed [-1,1] encoded by a DRV8830 control value
+     */
+    private static double speed(byte controlValue) {
+        boolean in1 = (controlValue & 0x01) != 0;
+        boolean in2 = (controlValue & 0x02) != 0;
+        if (in1 == in2) {
+            // coast or brake
+            return 0;
+        }
+        double magnitude = ((controlValue >> 2) & 0x3F) / (double) 0x3F;
+        return in2 ? magnitude : -magnitude;
+    }
+
+    /**
+     * @return number of writes received from the Android side, valid or not
+     */
+    public long getCommandCount() {
+        return commandCount.get();
+    }
+
+    /**
+     * @return number of writes that were not a well formed command
+     */
+    public long getInvalidCommandCount() {
+        return invalidCommandCount.get();
+    }
+
+    /**
+     * @return number of replies sent, including NACKs
+     */
+    public long getReplyCount() {
+        return replyCount.get();
+    }
+
+    public long getNackCount() {
+        return nackCount.get();
+    }
+
+    /**
+     * @return number of chunks handed to the receiver
+     */
+    public long getChunkCount() {
+        return chunkCount.get();
+    }
+
+    public long getCorruptedByteCount() {
+        return corruptedByteCount.get();
+    }
+
+    public long getDroppedByteCount() {
+        return droppedByteCount.get();
+    }
+
+    public static class Builder {
+        private long latency = 0;
+        private long latencyJitter = 0;
+        private int maxChunkSize = 0;
+        private long chunkInterval = 0;
+        private double corruptionRate = 0;
+        private double dropRate = 0;
+        private double nackRate = 0;
+        private long seed = 0;
+        private String logMessage = "RP2040Emulator log\r\n";
+        private double countsPerSecond = 2000;
+        private short batteryVoltage = 3900;
+        private short usbChargerVoltage = 0;
+        private long mcuClockOffset = 0;
+        private double mcuClockDriftPpm = 0;
+
+        public Builder(){}
+
+        /**
+         * @param latency time in microseconds between a command being written and the first byte
+         *                of its reply being delivered
+         * @param jitter additional random delay in microseconds, uniformly distributed in [0, jitter)
+         */
+        public Builder setLatency(long latency, long jitter){
+            this.latency = TimeUnit.MICROSECONDS.toNanos(latency);
+            this.latencyJitter = TimeUnit.MICROSECONDS.toNanos(jitter);
+            return this;
+        }
+
+        /**
+         * @param maxChunkSize replies are split into chunks of random size in [1, maxChunkSize]
+         *                     bytes, each delivered by a separate onNewData call. 0 delivers each
+         *                     reply whole.
+         * @param chunkInterval time in microseconds between consecutive chunks
+         */
+        public Builder setFragmentation(int maxChunkSize, long chunkInterval){
+            this.maxChunkSize = maxChunkSize;
+            this.chunkInterval = TimeUnit.MICROSECONDS.toNanos(chunkInterval);
+            return this;
+        }
+
+        /**
+         * @param corruptionRate probability [0,1] of each reply byte being changed
+         */
+        public Builder setCorruptionRate(double corruptionRate){
+            this.corruptionRate = corruptionRate;
+            return this;
+        }
+
+        /**
+         * @param dropRate probability [0,1] of each reply byte being lost
+         */
+        public Builder setDropRate(double dropRate){
+            this.dropRate = dropRate;
+            return this;
+        }
+
+        /**
+         * @param nackRate probability [0,1] of each valid command being rejected with a NACK
+         *                 instead of being applied and answered
+         */
+        public Builder setNackRate(double nackRate){
+            this.nackRate = nackRate;
+            return this;
+        }
+
+        public Builder setSeed(long seed){
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * @param logMessage ASCII text returned for GET_LOG
+         */
+        public Builder setLogMessage(String logMessage){
+            this.logMessage = logMessage;
+            return this;
+        }
+
+        /**
+         * @param countsPerSecond encoder counts per second at full speed
+         */
+        public Builder setCountsPerSecond(double countsPerSecond){
+            this.countsPerSecond = countsPerSecond;
+            return this;
+        }
+
+        /**
+         * @param batteryVoltage reported battery voltage in mV
+         */
+        public Builder setBatteryVoltage(short batteryVoltage){
+            this.batteryVoltage = batteryVoltage;
+            return this;
+        }
+
+        /**
+         * @param usbChargerVoltage reported usb charger voltage in mV
+         */
+        public Builder setUsbChargerVoltage(short usbChargerVoltage){
+            this.usbChargerVoltage = usbChargerVoltage;
+            return this;
+        }
+
+        /**
+         * @param offset rp2040 time in microseconds when the emulator is created
+         * @param driftPpm rate in parts per million at which the rp2040 clock gains on nanoTime
+         */
+        public Builder setMcuClock(long offset, double driftPpm){
+            this.mcuClockOffset = offset;
+            this.mcuClockDriftPpm = driftPpm;
+            return this;
+        }
+
+        public RP2040Emulator build(){
+            return new RP2040Emulator(this);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package jp.oist.abcvlib.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and round trip latency of the serial stack against an {@link RP2040Emulator}, i.e.
+ * of everything between {@link SerialCommManager#setMotorLevels(float, float, boolean, boolean)}
+ * and its future completing, on top of the simulated link latency. Run with
+ * {@link jp.oist.abcvlib.Benchmarks}. The sample time mode reports latency percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SerialCommManagerBenchmark {
+    /** Simulated time from writing a command to the first byte of its reply */
+    @Param({"0", "500"})
+    public long latencyUs;
+
+    /** Replies are delivered in chunks of up to this many bytes. 0 for whole replies */
+    @Param({"0", "16"})
+    public int maxChunkSize;
+
+    private EmulatedSerialLink serialLink;
+    private SerialCommManager manager;
+
+    @Setup
+    public void connect(){
+        RP2040Emulator emulator = new RP2040Emulator.Builder()
+                .setLatency(latencyUs, 0)
+                .setFragmentation(maxChunkSize, 0)
+                .setSeed(1)
+                .build();
+        serialLink = new EmulatedSerialLink(emulator);
+        manager = new SerialCommManager(serialLink);
+        manager.start();
+    }
+
+    @TearDown
+    public void close(){
+        manager.stop();
+        serialLink.close();
+    }
+
+    @Benchmark
+    public SerialRequest setMotorLevels() throws Exception {
+        return manager.setMotorLevels(0.5f, -0.5f, false, false).get(1, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,163 @@
+package jp.oist.abcvlib.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the serial stack, from {@link SerialCommManager} down to the packet framing of
+ * {@link SerialLink}, against an {@link RP2040Emulator} on the JVM. See
+ * {@link SerialCommManagerBenchmark} for throughput and latency.
+ */
+public class SerialCommManagerEmulatorTest {
+    private static final long TIMEOUT = 1000; // ms
+
+    private RP2040Emulator emulator;
+    private EmulatedSerialLink serialLink;
+    private SerialCommManager manager;
+
+    private void connect(RP2040Emulator.Builder builder){
+        emulator = builder.setSeed(1).build();
+        serialLink = new EmulatedSerialLink(emulator);
+        manager = new SerialCommManager(serialLink);
+        manager.start();
+    }
+
+    @After
+    public void close(){
+        if (manager != null){
+            manager.stop();
+        }
+        if (serialLink != null){
+            serialLink.close();
+        }
+    }
+
+    @Test
+    public void motorCommandsAreAnsweredWithTheirState() throws Exception {
+        connect(new RP2040Emulator.Builder());
+        AtomicInteger left = new AtomicInteger();
+        AtomicInteger right = new AtomicInteger();
+        manager.setStateListener((deviceId, timestamp, state) -> {
+            left.set(state.getControlValueLeft());
+            right.set(state.getControlValueRight());
+        });
+        for (int i = 0; i < 200; i++){
+            SerialRequest request = manager.setMotorLevels(1, -1, false, false).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertEquals(1, request.getAttempts());
+        }
+        // DRV8830 control values, echoed back by the emulator. Levels are inverted as the motors
+        // are mounted reversed, so 1 sets IN1 and -1 sets IN2, both at full voltage
+        assertEquals(1, left.get() & 0x03);
+        assertEquals(2, right.get() & 0x03);
+        assertTrue(((left.get() >> 2) & 0x3F) > 0x30);
+        SerialLinkStats stats = manager.getLinkStats();
+        assertEquals(0, stats.getBadPacketCount());
+        assertEquals(0, stats.getTimeoutCount());
+        assertEquals(0, stats.getFailedCount());
+        assertTrue(stats.getSetMotorLevelsLatency().getCount() >= 200);
+    }
+
+    @Test
+    public void logRepliesAreDecodedIntoLines() throws Exception {
+        connect(new RP2040Emulator.Builder().setLogMessage("first\r\nsecond\r\n"));
+        manager.getLog().get(TIMEOUT, TimeUnit.MILLISECONDS);
+        ArrayList<String> lines = new ArrayList<>();
+        manager.getRP2040Log().getLines(0, lines);
+        assertEquals(2, lines.size());
+        assertEquals("first", lines.get(0));
+        assertEquals("second", lines.get(1));
+    }
+
+    @Test
+    public void fragmentedRepliesAreReassembled() throws Exception {
+        connect(new RP2040Emulator.Builder().setFragmentation(3, 20));
+        for (int i = 0; i < 100; i++){
+            manager.setMotorLevels(0.5f, 0.5f, false, false).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(emulator.getChunkCount() > emulator.getReplyCount());
+        assertEquals(0, manager.getLinkStats().getBadPacketCount());
+    }
+
+    @Test
+    public void linkRecoversFromCorruptedAndDroppedBytes(){
+        connect(new RP2040Emulator.Builder().setCorruptionRate(0.005).setDropRate(0.005));
+        int answered = 0;
+        for (int i = 0; i < 300; i++){
+            try {
+                manager.setMotorLevels(0.5f, 0.5f, false, false).get(TIMEOUT, TimeUnit.MILLISECONDS);
+                answered++;
+            } catch (Exception e){
+                // Counted as not answered. Retries may still have given up on it
+            }
+        }
+        SerialLinkStats stats = manager.getLinkStats();
+        // Damaged replies are detected and retried rather than decoded
+        assertTrue(emulator.getCorruptedByteCount() + emulator.getDroppedByteCount() > 0);
+        assertTrue(stats.getBadPacketCount() + stats.getTimeoutCount() > 0);
+        assertTrue("Only " + answered + " of 300 answered", answered >= 285);
+    }
+
+    @Test
+    public void roundTripsTakeTheLinkLatency() throws Exception {
+        connect(new RP2040Emulator.Builder().setLatency(2000, 0));
+        for (int i = 0; i < 50; i++){
+            SerialRequest request = manager.setMotorLevels(0.5f, 0.5f, false, false).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertTrue(request.getRoundTripTime() >= TimeUnit.MICROSECONDS.toNanos(2000));
+        }
+        long p50 = manager.getLinkStats().getSetMotorLevelsLatency().getP50();
+        assertTrue("p50 " + p50 + "ns", p50 >= TimeUnit.MICROSECONDS.toNanos(1750));
+        assertTrue("p50 " + p50 + "ns", p50 < TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void nackFailsTheRequestWithoutWaitingForItsTimeout() throws Exception {
+        connect(new RP2040Emulator.Builder().setNackRate(1));
+        // Longer than the wait below, so only the NACK can end the request in time
+        manager.setRequestTimeout(10 * TIMEOUT);
+        try {
+            manager.getLog().get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("NACKed request completed");
+        } catch (ExecutionException e){
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        // State polls are NACKed too
+        SerialLinkStats stats = manager.getLinkStats();
+        assertTrue(stats.getNackCount() >= 1);
+        assertEquals(0, stats.getBadPacketCount());
+        assertEquals(0, stats.getUnmatchedReplyCount());
+        assertEquals(0, stats.getRetryCount());
+    }
+
+    @Test
+    public void everyNackIsMatchedToItsRequest() throws Exception {
+        connect(new RP2040Emulator.Builder().setNackRate(0.2));
+        manager.setRequestTimeout(10 * TIMEOUT);
+        int rejected = 0;
+        for (int i = 0; i < 200; i++){
+            try {
+                manager.setMotorLevels(0.5f, 0.5f, false, false).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e){
+                assertTrue(e.getCause() instanceof IOException);
+                rejected++;
+            }
+        }
+        SerialLinkStats stats = manager.getLinkStats();
+        assertTrue(rejected > 0);
+        // Along with some of the state polls
+        assertTrue(stats.getNackCount() >= rejected);
+        assertTrue(stats.getNackCount() <= emulator.getNackCount());
+        assertEquals(0, stats.getUnmatchedReplyCount());
+        assertEquals(0, stats.getBadPacketCount());
+        assertEquals(0, stats.getTimeoutCount());
+    }
+}
@@ -0,0 +1,100 @@
+package jp.oist.abcvlib.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs a {@link SerialDeviceManager} over two {@link EmulatedSerialLink}s, each to an
+ * {@link RP2040Emulator} of its own, in place of two usb devices.
+ */
+public class SerialDeviceManagerTest {
+    private static final long TIMEOUT = 1000; // ms
+
+    private final ConcurrentHashMap<String, SerialCommManager> ready = new ConcurrentHashMap<>();
+    private final SerialDeviceManager manager = new SerialDeviceManager.Builder(null, null)
+            .setDeviceListener(ready::put)
+            .build();
+    private final RP2040Emulator emulatorA = new RP2040Emulator.Builder().setSeed(1).build();
+    private final RP2040Emulator emulatorB = new RP2040Emulator.Builder().setSeed(2).build();
+
+    @After
+    public void stop(){
+        manager.stop();
+    }
+
+    private void addLinks(){
+        manager.addLink(new EmulatedSerialLink(emulatorA, "a"));
+        manager.addLink(new EmulatedSerialLink(emulatorB, "b"));
+    }
+
+    @Test
+    public void everyLinkIsReadyUnderItsDeviceId(){
+        addLinks();
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), manager.getDeviceIds());
+        assertEquals(2, ready.size());
+        assertSame(ready.get("a"), manager.getSerialCommManager("a"));
+        assertSame(ready.get("b"), manager.getSerialCommManager("b"));
+        try {
+            manager.getSerialCommManager("c");
+            fail("Got a SerialCommManager for a device never added");
+        } catch (IllegalArgumentException expected){
+            // Only the devices added are addressable
+        }
+    }
+
+    @Test
+    public void commandsGoToTheirDeviceAndStateComesBackTaggedWithIt() throws Exception {
+        ConcurrentHashMap<String, Integer> controlValues = new ConcurrentHashMap<>();
+        manager.addStateListener((deviceId, timestamp, state) ->
+                controlValues.put(deviceId, (int) state.getControlValueLeft()));
+        addLinks();
+        for (int i = 0; i < 50; i++){
+            manager.setMotorLevels("a", 1, 1, false, false).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        // b has only been polled for its state, so its motors are still coasting
+        manager.getSerialCommManager("b").getLog().get(TIMEOUT, TimeUnit.MILLISECONDS);
+        Integer coasting = controlValues.get("b");
+        assertTrue(coasting == null || (coasting & 0x03) == 0);
+        manager.setMotorLevels("b", -1, -1, false, false).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        // DRV8830 IN1 for a and IN2 for b, as levels are inverted for the reversed motors
+        assertEquals(1, controlValues.get("a") & 0x03);
+        assertEquals(2, controlValues.get("b") & 0x03);
+    }
+
+    @Test
+    public void aLinkAddedAgainReplacesTheOldOne() throws Exception {
+        addLinks();
+        SerialCommManager first = manager.getSerialCommManager("a");
+        RP2040Emulator replacement = new RP2040Emulator.Builder().setSeed(3).build();
+        manager.addLink(new EmulatedSerialLink(replacement, "a"));
+        assertEquals(2, manager.getDeviceIds().size());
+        SerialCommManager second = manager.getSerialCommManager("a");
+        assertTrue(first != second);
+        assertSame(second, ready.get("a"));
+        long before = replacement.getCommandCount();
+        manager.setMotorLevels("a", 0.5f, 0.5f, false, false).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(replacement.getCommandCount() > before);
+    }
+
+    @Test
+    public void linksNeedADeviceId(){
+        try {
+            manager.addLink(new EmulatedSerialLink(emulatorA));
+            fail("Added a link without a device id");
+        } catch (IllegalArgumentException expected){
+            // It could not be addressed
+        }
+        emulatorA.stop();
+        assertTrue(manager.getDeviceIds().isEmpty());
+    }
+}
@@ -0,0 +1,66 @@
+package jp.oist.abcvlib.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What pipelining requests gains over strict request/response, i.e.
+ * {@link SerialCommManager#setMaxInFlight(int)} of 1, on an emulated link adding latencyUs to
+ * every reply. Each operation is a control step sending motor levels and fetching the
+ * log at the same time, as a controller and a log reader would, and waiting for both replies.
+ * With more than one request in flight both share a round trip instead of taking one each. Run
+ * with {@link jp.oist.abcvlib.Benchmarks}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SerialPipelineBenchmark {
+    @Param({"1", "2", "4"})
+    public int maxInFlight;
+
+    @Param({"500"})
+    public long latencyUs;
+
+    private EmulatedSerialLink serialLink;
+    private SerialCommManager manager;
+
+    @Setup
+    public void connect(){
+        RP2040Emulator emulator = new RP2040Emulator.Builder()
+                .setLatency(latencyUs, 0)
+                .setSeed(1)
+                .build();
+        serialLink = new EmulatedSerialLink(emulator);
+        manager = new SerialCommManager(serialLink);
+        manager.setMaxInFlight(maxInFlight);
+        manager.start();
+    }
+
+    @TearDown
+    public void close(){
+        manager.stop();
+        serialLink.close();
+    }
+
+    @Benchmark
+    public SerialRequest motorLevelsAndLog() throws Exception {
+        CompletableFuture<SerialRequest> motorLevels = manager.setMotorLevels(0.5f, -0.5f, false, false);
+        CompletableFuture<SerialRequest> log = manager.getLog();
+        motorLevels.get(1, TimeUnit.SECONDS);
+        return log.get(1, TimeUnit.SECONDS);
+    }
+}